@@ -0,0 +1,119 @@
+package xmpp.extensions.com.ua.max.oliynick.benchmark;
+
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+import org.jivesoftware.smack.packet.IQ;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import xmpp.extensions.com.ua.max.oliynick.iq.ChatListResponceIQ;
+import xmpp.extensions.com.ua.max.oliynick.provider.ChatListResponceIQProvider;
+
+/**
+ * <p>
+ * Compares serialization of {@link ChatListResponceIQ} with
+ * the former template and regex based implementation
+ * </p>
+ * @author Max Oliynick
+ * */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ChatListSerializationBenchmark {
+	
+	/**
+	 * Former implementation, kept here as a baseline
+	 * */
+	private static final class LegacyChatListIQ extends IQ {
+		
+		private static final String chatStr = "<chat xmlns='urn:xmpp:archive' with='?' start='?'/>";
+		private static final Pattern pattern = Pattern.compile("\\?");
+		
+		private final StringBuilder chatsBuffer = new StringBuilder();
+		private int count;
+		
+		LegacyChatListIQ() {
+			super(ChatListResponceIQProvider.elementName, ChatListResponceIQProvider.namespace);
+		}
+		
+		void appendChat(String with, String start) {
+			chatsBuffer.append(chatStr.replaceFirst(pattern.pattern(), with).replaceFirst(pattern.pattern(), start));
+			count++;
+		}
+		
+		@Override
+		protected IQChildElementXmlStringBuilder getIQChildElementBuilder(IQChildElementXmlStringBuilder xml) {
+			
+			xml.rightAngleBracket().
+			append(chatsBuffer.toString()).
+			halfOpenElement("set").
+			attribute("xmlns", "http://jabber.org/protocol/rsm").
+			rightAngleBracket();
+			
+			xml.halfOpenElement("first").attribute("index", 0).rightAngleBracket().
+			append("0").closeElement("first");
+			
+			xml.halfOpenElement("last").rightAngleBracket().
+			append(String.valueOf(count - 1)).closeElement("last");
+			
+			xml.halfOpenElement("count").rightAngleBracket().
+			append(String.valueOf(count)).closeElement("count");
+			
+			xml.closeElement("set");
+			
+			return xml;
+		}
+		
+	}
+	
+	@Param({"10", "100", "1000", "10000", "100000"})
+	public int entries;
+	
+	private ChatListResponceIQ current;
+	private LegacyChatListIQ legacy;
+	
+	/**
+	 * Fills both IQs, so that only serialization is measured
+	 * */
+	@Setup
+	public void setup() {
+		current = new ChatListResponceIQ();
+		legacy = new LegacyChatListIQ();
+		
+		for(int i = 0; i < entries; ++i) {
+			
+			final String with = "user" + (i % 16) + "@maxlaptop";
+			final String start = String.format("%04d-%02d-%02dT10:00:00.000Z", 2000 + i / 336, (i / 28) % 12 + 1, i % 28 + 1);
+			
+			current.appendChat(with, start);
+			legacy.appendChat(with, start);
+		}
+		
+		current.setFirst(0, "0");
+		current.setLast(String.valueOf(entries - 1));
+	}
+	
+	@Benchmark
+	public String current() {
+		return current.toXML().toString();
+	}
+	
+	@Benchmark
+	public String legacy() {
+		return legacy.toXML().toString();
+	}
+	
+}
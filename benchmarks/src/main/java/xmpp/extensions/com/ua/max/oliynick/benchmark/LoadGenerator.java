@@ -0,0 +1,269 @@
+package xmpp.extensions.com.ua.max.oliynick.benchmark;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import xmpp.extensions.com.ua.max.oliynick.archive.BulkHistoryRetriever;
+import xmpp.extensions.com.ua.max.oliynick.archive.ChatHistoryPager;
+import xmpp.extensions.com.ua.max.oliynick.archive.CollectionListener;
+import xmpp.extensions.com.ua.max.oliynick.archive.IqPipeline;
+import xmpp.extensions.com.ua.max.oliynick.iq.ChatListRequestIQ;
+import xmpp.extensions.com.ua.max.oliynick.iq.ChatListResponceIQ;
+import xmpp.extensions.com.ua.max.oliynick.iq.ChatListRetrieveRequestIQ;
+import xmpp.extensions.com.ua.max.oliynick.iq.ChatListRetrieveResultIQ;
+import xmpp.extensions.com.ua.max.oliynick.util.StubConnection;
+
+/**
+ * <p>
+ * Load generator which runs client code paths against
+ * {@link StubConnection} and reports collections/sec and
+ * messages/sec. Options are passed as 'name=value' arguments:
+ * </p>
+ * <ul>
+ * <li>contacts, collections, messages, length - archive size, see {@link SyntheticArchive}</li>
+ * <li>latency - injected round-trip latency in millis</li>
+ * <li>page - RSM page size of 'list' and 'retrieve' requests</li>
+ * <li>parallelism - parallelism of {@link BulkHistoryRetriever}, window of {@link IqPipeline}
+ * and prefetch of {@link ChatHistoryPager}</li>
+ * <li>rounds - number of runs of every scenario, the first ones warm up JIT</li>
+ * </ul>
+ * @author Max Oliynick
+ * */
+public final class LoadGenerator {
+	
+	private final StubConnection connection;
+	private final int pageSize;
+	private final int parallelism;
+	
+	/**
+	 * Client code path measured by the generator
+	 * */
+	private interface Scenario {
+		
+		/**
+		 * Runs scenario, returns number of received messages
+		 * */
+		public long run(ChatListResponceIQ list) throws Exception;
+	}
+	
+	public LoadGenerator(StubConnection connection, int pageSize, int parallelism) {
+		
+		if(connection == null)
+			throw new IllegalArgumentException("connection == null");
+		
+		if(pageSize < 1)
+			throw new IllegalArgumentException("pageSize < 1");
+		
+		if(parallelism < 1)
+			throw new IllegalArgumentException("parallelism < 1");
+		
+		this.connection = connection;
+		this.pageSize = pageSize;
+		this.parallelism = parallelism;
+	}
+	
+	/**
+	 * Lists all collections of the archive page by page
+	 * */
+	public ChatListResponceIQ list() throws Exception {
+		
+		final ChatListResponceIQ all = new ChatListResponceIQ();
+		
+		for(String after = null; ; ) {
+			
+			final ChatListRequestIQ request = new ChatListRequestIQ(null, pageSize);
+			
+			request.setAfter(after);
+			
+			final ChatListResponceIQ page = connection.createPacketCollectorAndSend(request).nextResultOrThrow();
+			
+			for(int i = 0; i < page.getChatCount(); ++i) {
+				all.appendChat(page.getWith(i), page.getStartDate(i));
+			}
+			
+			if(page.getChatCount() < pageSize || page.getLastValue() == null) return all;
+			
+			after = page.getLastValue();
+		}
+	}
+	
+	/**
+	 * Walks collections one by one with {@link ChatHistoryPager}
+	 * */
+	public long pager(ChatListResponceIQ list) throws Exception {
+		
+		long messages = 0;
+		
+		for(int i = 0; i < list.getChatCount(); ++i) {
+			
+			final ChatHistoryPager pager = new ChatHistoryPager(connection, request(list, i, pageSize), parallelism);
+			final ChatListRetrieveResultIQ collection = pager.fetchAll();
+			
+			if(collection != null) messages += collection.getMessageCount();
+		}
+		
+		return messages;
+	}
+	
+	/**
+	 * Retrieves collections with {@link BulkHistoryRetriever}
+	 * */
+	public long bulk(ChatListResponceIQ list) throws Exception {
+		
+		final BulkHistoryRetriever retriever = new BulkHistoryRetriever(connection, parallelism);
+		final AtomicLong messages = new AtomicLong();
+		final AtomicReference<Exception> failure = new AtomicReference<>();
+		final CountDownLatch finished = new CountDownLatch(1);
+		
+		retriever.setPageSize(pageSize);
+		retriever.setOrdered(false);
+		retriever.retrieve(list, new CollectionListener() {
+			
+			@Override
+			public void processPage(ChatListRetrieveResultIQ page) {
+				messages.addAndGet(page.getMessageCount());
+			}
+			
+			@Override
+			public void processException(String with, String start, Exception exception) {
+				failure.compareAndSet(null, exception);
+			}
+			
+			@Override
+			public void processFinished() {
+				finished.countDown();
+			}
+		});
+		
+		finished.await();
+		
+		if(failure.get() != null) throw failure.get();
+		
+		return messages.get();
+	}
+	
+	/**
+	 * Retrieves every collection by a single request
+	 * sent through {@link IqPipeline}
+	 * */
+	public long pipeline(ChatListResponceIQ list) throws Exception {
+		
+		final IqPipeline pipeline = new IqPipeline(connection, parallelism);
+		final List<Future<ChatListRetrieveResultIQ>> results = new ArrayList<>(list.getChatCount());
+		long messages = 0;
+		
+		for(int i = 0; i < list.getChatCount(); ++i) {
+			results.add(pipeline.submit(request(list, i, 0), ChatListRetrieveResultIQ.class));
+		}
+		
+		for(final Future<ChatListRetrieveResultIQ> result : results) {
+			messages += result.get().getMessageCount();
+		}
+		
+		return messages;
+	}
+	
+	private static ChatListRetrieveRequestIQ request(ChatListResponceIQ list, int index, int max) {
+		
+		final ChatListRetrieveRequestIQ request = new ChatListRetrieveRequestIQ(list.getWith(index));
+		
+		request.setStart(list.getStartDate(index));
+		request.setMax(max);
+		
+		return request;
+	}
+	
+	private void report(String name, Scenario scenario, ChatListResponceIQ list, int rounds) throws Exception {
+		
+		for(int round = 1; round <= rounds; ++round) {
+			
+			final long requests = connection.getRequests();
+			final long started = System.nanoTime();
+			final long messages = scenario.run(list);
+			final double seconds = (System.nanoTime() - started) / 1e9;
+			
+			System.out.println(String.format(Locale.ROOT, "%-9s round %d: %8.1f ms %10.1f collections/s %12.1f messages/s %7d requests",
+					name, round, seconds * 1000, list.getChatCount() / seconds, messages / seconds,
+					connection.getRequests() - requests));
+		}
+	}
+	
+	public static void main(String [] args) throws Exception {
+		
+		final Map<String, Integer> options = new HashMap<>();
+		
+		options.put("contacts", 50);
+		options.put("collections", 20);
+		options.put("messages", 200);
+		options.put("length", 64);
+		options.put("latency", 2);
+		options.put("page", 100);
+		options.put("parallelism", 8);
+		options.put("rounds", 3);
+		
+		for(final String arg : args) {
+			
+			final int eq = arg.indexOf('=');
+			
+			if(eq < 0 || !options.containsKey(arg.substring(0, eq)))
+				throw new IllegalArgumentException("unknown option " + arg + ", known options are " + options.keySet());
+			
+			options.put(arg.substring(0, eq), Integer.parseInt(arg.substring(eq + 1)));
+		}
+		
+		final SyntheticArchive archive = new SyntheticArchive(options.get("contacts"), options.get("collections"),
+				options.get("messages"), options.get("length"));
+		final StubConnection connection = new StubConnection(archive);
+		
+		connection.setLatency(options.get("latency"));
+		connection.setPacketReplyTimeout(60000);
+		
+		System.out.println(archive + ", " + options);
+		
+		try {
+			final LoadGenerator generator = new LoadGenerator(connection, options.get("page"), options.get("parallelism"));
+			final int rounds = options.get("rounds");
+			
+			final long started = System.nanoTime();
+			final ChatListResponceIQ list = generator.list();
+			
+			System.out.println(String.format(Locale.ROOT, "listed %d collections in %.1f ms",
+					list.getChatCount(), (System.nanoTime() - started) / 1e6));
+			
+			generator.report("pager", new Scenario() {
+				
+				@Override
+				public long run(ChatListResponceIQ list) throws Exception {
+					return generator.pager(list);
+				}
+			}, list, rounds);
+			
+			generator.report("bulk", new Scenario() {
+				
+				@Override
+				public long run(ChatListResponceIQ list) throws Exception {
+					return generator.bulk(list);
+				}
+			}, list, rounds);
+			
+			generator.report("pipeline", new Scenario() {
+				
+				@Override
+				public long run(ChatListResponceIQ list) throws Exception {
+					return generator.pipeline(list);
+				}
+			}, list, rounds);
+			
+		} finally {
+			connection.disconnect();
+		}
+	}
+	
+}
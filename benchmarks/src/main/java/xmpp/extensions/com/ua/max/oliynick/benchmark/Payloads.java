@@ -0,0 +1,76 @@
+package xmpp.extensions.com.ua.max.oliynick.benchmark;
+
+/**
+ * <p>
+ * Generates synthetic XEP-0136 payloads for benchmarks
+ * </p>
+ * @author Max Oliynick
+ * */
+public final class Payloads {
+	
+	private Payloads() {}
+	
+	/**
+	 * Generates 'list' element with given number of 'chat' entries
+	 * @param entries number of 'chat' entries
+	 * */
+	public static String list(int entries) {
+		
+		final StringBuilder sb = new StringBuilder(entries * 96 + 256);
+		
+		sb.append("<list xmlns='urn:xmpp:archive'>");
+		
+		for(int i = 0; i < entries; ++i) {
+			sb.append("<chat with='user").append(i % 16).append("@maxlaptop' start='")
+			.append(timestamp(i)).append("'/>");
+		}
+		
+		appendSet(sb, entries);
+		return sb.append("</list>").toString();
+	}
+	
+	/**
+	 * Generates 'chat' element with given number of messages
+	 * @param entries number of 'from' and 'to' entries
+	 * */
+	public static String chat(int entries) {
+		
+		final StringBuilder sb = new StringBuilder(entries * 80 + 256);
+		
+		sb.append("<chat xmlns='urn:xmpp:archive' with='mary@maxlaptop' start='")
+		.append(timestamp(0)).append("' subject='benchmark' version='1'>");
+		
+		for(int i = 0; i < entries; ++i) {
+			final String tag = (i & 1) == 0 ? "from" : "to";
+			
+			sb.append('<').append(tag).append(" secs='").append(i * 7).append("'><body>")
+			.append("Message number ").append(i).append(" of the conversation")
+			.append("</body></").append(tag).append('>');
+		}
+		
+		appendSet(sb, entries);
+		return sb.append("</chat>").toString();
+	}
+	
+	/**
+	 * Returns XEP-0082 timestamp, one day per index
+	 * */
+	private static String timestamp(int index) {
+		final int day = index % 28 + 1;
+		final int month = (index / 28) % 12 + 1;
+		final int year = 2000 + index / 336;
+		
+		return String.format("%04d-%02d-%02dT10:00:00.000Z", year, month, day);
+	}
+	
+	private static void appendSet(StringBuilder sb, int entries) {
+		sb.append("<set xmlns='http://jabber.org/protocol/rsm'>");
+		
+		if(entries > 0) {
+			sb.append("<first index='0'>0</first><last>").append(entries - 1).append("</last>");
+		}
+		
+		sb.append("<count>").append(entries).append("</count></set>");
+	}
+
+}
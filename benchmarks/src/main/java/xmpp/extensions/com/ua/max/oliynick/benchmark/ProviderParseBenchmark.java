@@ -0,0 +1,80 @@
+package xmpp.extensions.com.ua.max.oliynick.benchmark;
+
+import java.io.StringReader;
+import java.util.concurrent.TimeUnit;
+
+import org.jivesoftware.smack.util.PacketParserUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.xmlpull.v1.XmlPullParser;
+
+import xmpp.extensions.com.ua.max.oliynick.iq.ChatListResponceIQ;
+import xmpp.extensions.com.ua.max.oliynick.iq.ChatListRetrieveResultIQ;
+import xmpp.extensions.com.ua.max.oliynick.provider.ChatListResponceIQProvider;
+import xmpp.extensions.com.ua.max.oliynick.provider.ChatListRetrieveIQProvider;
+
+/**
+ * <p>
+ * Measures throughput of XEP-0136 providers on synthetic
+ * 'list' and 'chat' payloads. Run with '-prof gc' to get
+ * bytes allocated per operation (gc.alloc.rate.norm)
+ * </p>
+ * @author Max Oliynick
+ * */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ProviderParseBenchmark {
+	
+	@Param({"10", "100", "1000", "10000", "100000"})
+	public int entries;
+	
+	private String listPayload;
+	private String chatPayload;
+	
+	private XmlPullParser parser;
+	
+	private final ChatListResponceIQProvider listProvider = new ChatListResponceIQProvider();
+	private final ChatListRetrieveIQProvider chatProvider = new ChatListRetrieveIQProvider();
+	
+	@Setup
+	public void setup() throws Exception {
+		listPayload = Payloads.list(entries);
+		chatPayload = Payloads.chat(entries);
+		// parser instance is reused, so that its buffers don't affect results
+		parser = PacketParserUtils.newXmppParser();
+	}
+	
+	@Benchmark
+	public ChatListResponceIQ parseList() throws Exception {
+		reset(listPayload);
+		return listProvider.parse(parser, parser.getDepth());
+	}
+	
+	@Benchmark
+	public ChatListRetrieveResultIQ parseChat() throws Exception {
+		reset(chatPayload);
+		return chatProvider.parse(parser, parser.getDepth());
+	}
+	
+	/**
+	 * Moves parser to the root element of the payload
+	 * */
+	private void reset(String payload) throws Exception {
+		parser.setInput(new StringReader(payload));
+		parser.next();
+	}
+
+}
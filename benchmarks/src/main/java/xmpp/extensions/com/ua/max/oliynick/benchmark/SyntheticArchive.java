@@ -0,0 +1,273 @@
+package xmpp.extensions.com.ua.max.oliynick.benchmark;
+
+import java.util.Date;
+import java.util.Random;
+
+import org.jivesoftware.smack.packet.IQ;
+import org.jivesoftware.smack.packet.XMPPError;
+import org.jivesoftware.smack.provider.ProviderManager;
+import org.jxmpp.util.XmppDateTime;
+
+import xmpp.extensions.com.ua.max.oliynick.iq.ChatListRequestIQ;
+import xmpp.extensions.com.ua.max.oliynick.iq.ChatListResponceIQ;
+import xmpp.extensions.com.ua.max.oliynick.iq.ChatListRetrieveRequestIQ;
+import xmpp.extensions.com.ua.max.oliynick.iq.ChatListRetrieveResultIQ;
+import xmpp.extensions.com.ua.max.oliynick.iq.ChatListRetrieveResultIQ.Direction;
+import xmpp.extensions.com.ua.max.oliynick.provider.ChatListResponceIQProvider;
+import xmpp.extensions.com.ua.max.oliynick.provider.ChatListRetrieveIQProvider;
+import xmpp.extensions.com.ua.max.oliynick.util.StubConnection;
+import xmpp.extensions.com.ua.max.oliynick.util.Xep0082;
+
+/**
+ * <p>
+ * Deterministic XEP-0136 archive which generates collections on
+ * demand instead of storing them, so that its size is limited by
+ * nothing but patience. Collection number <i>g</i> belongs to
+ * contact <i>g % contacts</i> and starts <i>g</i> minutes after
+ * 2016-01-01, so that collections are ordered by start time.
+ * RSM values are indexes of collections and messages. Client
+ * providers are registered once the archive is loaded
+ * </p>
+ * @author Max Oliynick
+ * */
+public final class SyntheticArchive implements StubConnection.Responder {
+	
+	static {
+		ProviderManager.addIQProvider(ChatListResponceIQProvider.elementName, ChatListResponceIQProvider.namespace, new ChatListResponceIQProvider());
+		ProviderManager.addIQProvider(ChatListRetrieveIQProvider.elementName, ChatListRetrieveIQProvider.namespace, new ChatListRetrieveIQProvider());
+	}
+	
+	/**
+	 * 2016-01-01T00:00:00Z and distance between collections
+	 * */
+	private static final long baseMillis = 1451606400000L;
+	private static final long stepMillis = 60 * 1000L;
+	
+	/**
+	 * Number of distinct generated bodies
+	 * */
+	private static final int bodyCount = 256;
+	
+	private static final String [] words = {
+		"archive", "message", "hello", "tomorrow", "meeting", "call", "the", "a",
+		"is", "we", "release", "build", "server", "client", "ok", "thanks"
+	};
+	
+	private final int contacts;
+	private final int collections;
+	private final int messages;
+	private final int messageLength;
+	
+	private final String [] bodies;
+	
+	/**
+	 * Constructs archive
+	 * @param contacts number of contacts
+	 * @param collections number of collections per contact
+	 * @param messages number of messages per collection
+	 * @param messageLength length of message bodies in chars
+	 * */
+	public SyntheticArchive(int contacts, int collections, int messages, int messageLength) {
+		
+		if(contacts < 1)
+			throw new IllegalArgumentException("contacts < 1");
+		
+		if(collections < 0)
+			throw new IllegalArgumentException("collections < 0");
+		
+		if(messages < 0)
+			throw new IllegalArgumentException("messages < 0");
+		
+		if(messageLength < 1)
+			throw new IllegalArgumentException("messageLength < 1");
+		
+		this.contacts = contacts;
+		this.collections = collections;
+		this.messages = messages;
+		this.messageLength = messageLength;
+		this.bodies = new String[bodyCount];
+		
+		final Random random = new Random(contacts * 31L + messageLength);
+		final StringBuilder sb = new StringBuilder(messageLength + 16);
+		
+		for(int i = 0; i < bodyCount; ++i) {
+			
+			sb.setLength(0);
+			
+			while(sb.length() < messageLength) {
+				sb.append(words[random.nextInt(words.length)]).append(' ');
+			}
+			
+			bodies[i] = sb.substring(0, messageLength);
+		}
+	}
+	
+	public int getContacts() {
+		return contacts;
+	}
+	
+	/**
+	 * Returns number of collections per contact
+	 * */
+	public int getCollections() {
+		return collections;
+	}
+	
+	/**
+	 * Returns number of messages per collection
+	 * */
+	public int getMessages() {
+		return messages;
+	}
+	
+	public int getMessageLength() {
+		return messageLength;
+	}
+	
+	/**
+	 * Returns total number of collections
+	 * */
+	public int size() {
+		return contacts * collections;
+	}
+	
+	/**
+	 * Returns 'with' of the given contact
+	 * */
+	public String getWith(int contact) {
+		return "contact" + contact + "@example.com";
+	}
+	
+	/**
+	 * Returns start of the collection by its global number
+	 * */
+	public String getStart(int collection) {
+		return XmppDateTime.formatXEP0082Date(new Date(baseMillis + collection * stepMillis));
+	}
+	
+	/**
+	 * Answers 'list' and 'retrieve' requests, the rest
+	 * of requests get 'feature-not-implemented' error
+	 * */
+	@Override
+	public IQ respond(IQ request) {
+		
+		if(request instanceof ChatListRetrieveRequestIQ)
+			return retrieve((ChatListRetrieveRequestIQ) request);
+		
+		if(request instanceof ChatListRequestIQ)
+			return list((ChatListRequestIQ) request);
+		
+		return IQ.createErrorResponse(request, new XMPPError(XMPPError.Condition.feature_not_implemented));
+	}
+	
+	private IQ retrieve(ChatListRetrieveRequestIQ request) {
+		
+		final int contact = contactOf(request.getWith());
+		int collection = contact;
+		
+		if(request.getStart() != null) {
+			final long millis = Xep0082.parseMillisOrDefault(request.getStart()) - baseMillis;
+			
+			collection = millis >= 0 && millis % stepMillis == 0 && millis / stepMillis < size()
+					? (int) (millis / stepMillis) : -1;
+		}
+		
+		if(contact < 0 || collection < 0 || collection >= size() || collection % contacts != contact)
+			return IQ.createErrorResponse(request, new XMPPError(XMPPError.Condition.item_not_found));
+		
+		final int from = request.getAfter() == null ? 0 : Integer.parseInt(request.getAfter()) + 1;
+		final int to = request.getMax() > 0 ? Math.min(messages, from + request.getMax()) : messages;
+		
+		final ChatListRetrieveResultIQ result = new ChatListRetrieveResultIQ();
+		
+		result.setWith(request.getWith());
+		result.setStart(getStart(collection));
+		result.setCount(messages);
+		
+		for(int i = from; i < to; ++i) {
+			result.addBody(i % 2 == 0 ? Direction.from : Direction.to, i * 7, bodies[(collection * 31 + i) & (bodyCount - 1)]);
+		}
+		
+		if(from < to) {
+			result.setFirstIndex(from);
+			result.setFirstValue(String.valueOf(from));
+			result.setLastValue(String.valueOf(to - 1));
+		}
+		
+		return result;
+	}
+	
+	private IQ list(ChatListRequestIQ request) {
+		
+		final ChatListResponceIQ result = new ChatListResponceIQ();
+		
+		// collections of a single contact are every 'contacts' collection
+		final int contact = request.getWith() == null ? 0 : contactOf(request.getWith());
+		final int stride = request.getWith() == null ? 1 : contacts;
+		
+		if(contact < 0) return result;
+		
+		// matching collections are 'contact + k * stride' with k in [lo, hi)
+		final long lo = firstAtOrAfter(request.getStart(), 0);
+		final long hi = firstAtOrAfter(request.getEnd(), size());
+		final int first = (int) ceilDiv(Math.max(0, lo - contact), stride);
+		final int last = (int) ceilDiv(Math.max(0, hi - contact), stride);
+		
+		final int from = first + (request.getAfter() == null ? 0 : Integer.parseInt(request.getAfter()) + 1);
+		final int to = request.getMax() > 0 ? Math.min(last, from + request.getMax()) : last;
+		
+		for(int k = from; k < to; ++k) {
+			final int collection = contact + k * stride;
+			result.appendChat(getWith(collection % contacts), getStart(collection));
+		}
+		
+		if(from < to) {
+			result.setFirst(from - first, String.valueOf(from - first));
+			result.setLast(String.valueOf(to - first - 1));
+		}
+		
+		return result;
+	}
+	
+	/**
+	 * Returns number of the first collection which starts
+	 * not earlier than the given time, clamped to [0, size]
+	 * */
+	private long firstAtOrAfter(String time, long absent) {
+		
+		if(time == null) return absent;
+		
+		final long millis = Xep0082.parseMillisOrDefault(time);
+		
+		if(millis == Xep0082.unknown) return absent;
+		
+		return Math.max(0, Math.min(size(), ceilDiv(millis - baseMillis, stepMillis)));
+	}
+	
+	/**
+	 * Returns contact number or -1 if 'with' wasn't generated
+	 * */
+	private int contactOf(String with) {
+		
+		if(with == null || !with.startsWith("contact") || !with.endsWith("@example.com")) return -1;
+		
+		try {
+			final int contact = Integer.parseInt(with.substring(7, with.length() - 12));
+			return contact < contacts ? contact : -1;
+		} catch(NumberFormatException e) {
+			return -1;
+		}
+	}
+	
+	private static long ceilDiv(long x, long y) {
+		return -Math.floorDiv(-x, y);
+	}
+	
+	@Override
+	public String toString() {
+		return "SyntheticArchive [contacts=" + contacts + ", collections=" + collections
+				+ ", messages=" + messages + ", messageLength=" + messageLength + "]";
+	}
+	
+}
@@ -0,0 +1,286 @@
+package xmpp.extensions.com.ua.max.oliynick.archive;
+
+import java.util.Date;
+
+import org.jivesoftware.smack.SmackException;
+import org.jivesoftware.smack.XMPPConnection;
+import org.jivesoftware.smack.XMPPException;
+import org.jivesoftware.smack.XMPPException.XMPPErrorException;
+import org.jivesoftware.smack.packet.XMPPError;
+import org.jxmpp.util.XmppDateTime;
+
+import xmpp.extensions.com.ua.max.oliynick.iq.ChatListRequestIQ;
+import xmpp.extensions.com.ua.max.oliynick.iq.ChatListResponceIQ;
+import xmpp.extensions.com.ua.max.oliynick.iq.ChatModifiedRequestIQ;
+import xmpp.extensions.com.ua.max.oliynick.iq.ChatModifiedResultIQ;
+import xmpp.extensions.com.ua.max.oliynick.iq.ChatModifiedResultIQ.Modification;
+
+/**
+ * <p>
+ * Incremental archive synchronization. Instead of listing the
+ * whole archive, only collections newer than the ones recorded in
+ * {@link SyncState} are listed. If the server supports XEP-0136
+ * replication, changes since the previous synchronization are
+ * requested with {@link ChatModifiedRequestIQ}, so that changed and
+ * removed collections are detected as well
+ * </p>
+ * <p>
+ * Replication time is taken from the client clock, which may run ahead
+ * of the server one, so the next replication starts earlier by
+ * {@link #getReplicationMargin() margin}. Changes which are reported
+ * again because of the overlap are dropped by their versions
+ * </p>
+ * @author Max Oliynick
+ * */
+public final class ArchiveSynchronizer {
+	
+	/**
+	 * Default RSM page size
+	 * */
+	public static final int defaultPageSize = 100;
+	
+	/**
+	 * Default replication margin in millis
+	 * */
+	public static final long defaultReplicationMargin = 5 * 60 * 1000;
+	
+	private final XMPPConnection connection;
+	private final SyncState state;
+	
+	private volatile int pageSize = defaultPageSize;
+	
+	// replication margin in millis
+	private volatile long replicationMargin = defaultReplicationMargin;
+	
+	/**
+	 * Whether replication should be tried, it's
+	 * disabled once server reports that it's not supported
+	 * */
+	private volatile boolean replicationEnabled = true;
+	
+	/**
+	 * Cache to invalidate changed and removed collections in
+	 * */
+	private volatile CollectionCache cache;
+	
+	/**
+	 * Constructs synchronizer
+	 * @param connection connection to send requests
+	 * @param state known archive state, updated by each synchronization
+	 * */
+	public ArchiveSynchronizer(XMPPConnection connection, SyncState state) {
+		
+		if(connection == null)
+			throw new IllegalArgumentException("connection == null");
+		
+		if(state == null)
+			throw new IllegalArgumentException("state == null");
+		
+		this.connection = connection;
+		this.state = state;
+	}
+	
+	public SyncState getState() {
+		return state;
+	}
+	
+	public int getPageSize() {
+		return pageSize;
+	}
+	
+	public void setPageSize(int pageSize) {
+		
+		if(pageSize < 1)
+			throw new IllegalArgumentException("pageSize < 1");
+		
+		this.pageSize = pageSize;
+	}
+	
+	/**
+	 * Returns margin in millis by which the next replication
+	 * starts earlier than the previous synchronization
+	 * */
+	public long getReplicationMargin() {
+		return replicationMargin;
+	}
+	
+	/**
+	 * Sets margin in millis by which the next replication starts
+	 * earlier than the previous synchronization, should cover
+	 * possible clock skew between client and server
+	 * */
+	public void setReplicationMargin(long replicationMargin) {
+		
+		if(replicationMargin < 0)
+			throw new IllegalArgumentException("replicationMargin < 0");
+		
+		this.replicationMargin = replicationMargin;
+	}
+	
+	public boolean isReplicationEnabled() {
+		return replicationEnabled;
+	}
+	
+	public void setReplicationEnabled(boolean replicationEnabled) {
+		this.replicationEnabled = replicationEnabled;
+	}
+	
+	public CollectionCache getCache() {
+		return cache;
+	}
+	
+	/**
+	 * Sets cache in which changed and removed
+	 * collections should be invalidated
+	 * */
+	public void setCache(CollectionCache cache) {
+		this.cache = cache;
+	}
+	
+	/**
+	 * Synchronizes the whole archive. Uses replication if it's enabled
+	 * and there was a previous synchronization, lists newer
+	 * collections otherwise
+	 * @throws XMPPErrorException if server responded with an error
+	 * @throws SmackException if no response was received or connection was lost
+	 * */
+	public SyncResult sync() throws XMPPException, SmackException {
+		
+		final String now = XmppDateTime.formatXEP0082Date(new Date(System.currentTimeMillis() - replicationMargin));
+		final SyncResult result = new SyncResult();
+		
+		if(!(replicationEnabled && state.getReplicationTime() != null && replicate(result))) {
+			list(null, result);
+		}
+		
+		state.setReplicationTime(now);
+		
+		return result;
+	}
+	
+	/**
+	 * Lists collections of the contact which are newer
+	 * than the newest known one
+	 * @param with contact jid
+	 * @throws XMPPErrorException if server responded with an error
+	 * @throws SmackException if no response was received or connection was lost
+	 * */
+	public SyncResult sync(String with) throws XMPPException, SmackException {
+		
+		if(with == null)
+			throw new IllegalArgumentException("with == null");
+		
+		final SyncResult result = new SyncResult();
+		
+		list(with, result);
+		
+		return result;
+	}
+	
+	/**
+	 * Requests changes since the previous synchronization
+	 * @return false if server doesn't support replication
+	 * */
+	private boolean replicate(SyncResult result) throws XMPPException, SmackException {
+		
+		final CollectionCache cache = this.cache;
+		String after = null;
+		
+		while(true) {
+			
+			final ChatModifiedRequestIQ request = new ChatModifiedRequestIQ(state.getReplicationTime());
+			
+			request.setMax(pageSize);
+			request.setAfter(after);
+			
+			final ChatModifiedResultIQ page;
+			
+			try {
+				page = connection.createPacketCollectorAndSend(request).nextResultOrThrow();
+			} catch (XMPPErrorException e) {
+				
+				final XMPPError.Condition condition = e.getXMPPError().getCondition();
+				
+				if(after == null && (condition == XMPPError.Condition.feature_not_implemented ||
+						condition == XMPPError.Condition.service_unavailable)) {
+					
+					replicationEnabled = false;
+					return false;
+				}
+				
+				throw e;
+			}
+			
+			for(final Modification modification : page.getModifications()) {
+				
+				final CollectionKey key = new CollectionKey(modification.getWith(), modification.getStart());
+				
+				// already replicated, reported again since replication windows overlap
+				if(!state.updateVersion(key, modification.getVersion())) continue;
+				
+				if(modification.isRemoved()) {
+					result.addRemoved(key);
+				} else {
+					result.addChanged(key);
+					state.update(key.getWith(), key.getStart());
+					state.updateNewest(key.getStart());
+				}
+				
+				if(cache != null) {
+					cache.invalidate(key);
+				}
+			}
+			
+			if(page.getLastValue() == null || page.getModifications().size() < pageSize) break;
+			
+			after = page.getLastValue();
+		}
+		
+		result.setReplicated(true);
+		return true;
+	}
+	
+	/**
+	 * Lists collections which start not earlier than the newest known one
+	 * @param with contact jid or null to list all contacts
+	 * */
+	private void list(String with, SyncResult result) throws XMPPException, SmackException {
+		
+		final String start = with == null ? state.getNewestStart() : state.getNewestStart(with);
+		String after = null;
+		
+		while(true) {
+			
+			final ChatListRequestIQ request = new ChatListRequestIQ(with, pageSize);
+			
+			request.setStart(start);
+			request.setAfter(after);
+			
+			final ChatListResponceIQ page = connection.createPacketCollectorAndSend(request).nextResultOrThrow();
+			
+			for(int i = 0; i < page.getChatCount(); ++i) {
+				
+				final String chatWith = page.getWith(i);
+				final String chatStart = page.getStartDate(i);
+				
+				final String known = state.getNewestStart(chatWith);
+				
+				if(with == null) {
+					state.updateNewest(chatStart);
+				}
+				
+				// 'start' bound is inclusive, the newest known collection is listed again,
+				// listing of the whole archive also meets collections known by contact synchronization
+				if(known != null && Timestamps.compare(chatStart, known) <= 0) continue;
+				
+				result.addAdded(new CollectionKey(chatWith, chatStart));
+				state.update(chatWith, chatStart);
+			}
+			
+			if(page.getLastValue() == null || page.getChatCount() < pageSize) break;
+			
+			after = page.getLastValue();
+		}
+	}
+	
+}
@@ -0,0 +1,58 @@
+package xmpp.extensions.com.ua.max.oliynick.archive;
+
+import xmpp.extensions.com.ua.max.oliynick.iq.ChatListRetrieveResultIQ.Direction;
+import xmpp.extensions.com.ua.max.oliynick.util.Xep0082;
+
+/**
+ * <p>
+ * Immutable archived message published by {@link HistoryPublisher}
+ * </p>
+ * @author Max Oliynick
+ * */
+public final class ArchivedMessage {
+	
+	private final Direction direction;
+	private final int secs;
+	private final long millis;
+	private final String body;
+	
+	/**
+	 * @param direction direction of the message
+	 * @param secs seconds since start of the conversation
+	 * @param millis absolute time of the message or {@link Xep0082#unknown}
+	 * @param body message body
+	 * */
+	public ArchivedMessage(Direction direction, int secs, long millis, String body) {
+		this.direction = direction;
+		this.secs = secs;
+		this.millis = millis;
+		this.body = body;
+	}
+	
+	public Direction getDirection() {
+		return direction;
+	}
+	
+	public int getSecs() {
+		return secs;
+	}
+	
+	/**
+	 * Returns absolute time of the message in epoch millis
+	 * or {@link Xep0082#unknown} if collection start is unknown
+	 * */
+	public long getMillis() {
+		return millis;
+	}
+	
+	public String getBody() {
+		return body;
+	}
+	
+	@Override
+	public String toString() {
+		return "ArchivedMessage [direction=" + direction + ", secs=" + secs
+				+ ", millis=" + millis + ", body=" + body + "]";
+	}
+	
+}
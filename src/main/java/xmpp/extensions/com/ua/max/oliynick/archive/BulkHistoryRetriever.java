@@ -0,0 +1,356 @@
+package xmpp.extensions.com.ua.max.oliynick.archive;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+import org.jivesoftware.smack.ExceptionCallback;
+import org.jivesoftware.smack.SmackException.NotConnectedException;
+import org.jivesoftware.smack.StanzaListener;
+import org.jivesoftware.smack.XMPPConnection;
+import org.jivesoftware.smack.packet.Stanza;
+
+import xmpp.extensions.com.ua.max.oliynick.iq.ChatListResponceIQ;
+import xmpp.extensions.com.ua.max.oliynick.iq.ChatListRetrieveRequestIQ;
+import xmpp.extensions.com.ua.max.oliynick.iq.ChatListRetrieveResultIQ;
+import xmpp.extensions.com.ua.max.oliynick.provider.DecodedResultCallback;
+
+/**
+ * <p>
+ * Retrieves every collection listed in {@link ChatListResponceIQ},
+ * keeping up to the given number of retrieve IQs outstanding on
+ * the connection at once. Each collection is walked page by page
+ * using RSM
+ * </p>
+ * <p>
+ * Pages are delivered as they arrive or, in ordered mode, ordered
+ * by collection start date. In ordered mode pages of a collection
+ * are buffered until all preceding collections were delivered
+ * </p>
+ * @author Max Oliynick
+ * */
+public final class BulkHistoryRetriever {
+	
+	/**
+	 * Orders collections by start date
+	 * */
+	private static final Comparator<CollectionTask> byStart = new Comparator<CollectionTask>() {
+		
+		@Override
+		public int compare(CollectionTask o1, CollectionTask o2) {
+			return Timestamps.compare(o1.startMillis, o1.start, o2.startMillis, o2.start);
+		}
+	};
+	
+	private final XMPPConnection connection;
+	
+	/**
+	 * Max number of outstanding retrieve IQs
+	 * */
+	private final int parallelism;
+	
+	/**
+	 * Page size, non-positive value means server default
+	 * */
+	private volatile int pageSize;
+	
+	/**
+	 * Whether pages should be ordered by collection start date
+	 * */
+	private volatile boolean ordered;
+	
+	/**
+	 * Response timeout in millis
+	 * */
+	private volatile long timeout;
+	
+	/**
+	 * Constructs retriever
+	 * @param connection connection to send requests
+	 * @param parallelism max number of outstanding retrieve IQs
+	 * */
+	public BulkHistoryRetriever(XMPPConnection connection, int parallelism) {
+		
+		if(connection == null)
+			throw new IllegalArgumentException("connection == null");
+		
+		if(parallelism < 1)
+			throw new IllegalArgumentException("parallelism < 1");
+		
+		this.connection = connection;
+		this.parallelism = parallelism;
+		this.timeout = connection.getPacketReplyTimeout();
+	}
+	
+	public int getParallelism() {
+		return parallelism;
+	}
+
+	public int getPageSize() {
+		return pageSize;
+	}
+
+	/**
+	 * Sets RSM 'max' value of each retrieve request
+	 * */
+	public void setPageSize(int pageSize) {
+		this.pageSize = pageSize;
+	}
+
+	public boolean isOrdered() {
+		return ordered;
+	}
+
+	/**
+	 * Sets whether pages should be delivered ordered
+	 * by collection start date
+	 * */
+	public void setOrdered(boolean ordered) {
+		this.ordered = ordered;
+	}
+
+	public long getTimeout() {
+		return timeout;
+	}
+
+	/**
+	 * Sets response timeout for each page request
+	 * */
+	public void setTimeout(long timeout) {
+		this.timeout = timeout;
+	}
+	
+	/**
+	 * Starts retrieval of all collections of the list,
+	 * returns immediately
+	 * @param list list response
+	 * @param listener receiver of results
+	 * */
+	public void retrieve(ChatListResponceIQ list, CollectionListener listener) {
+		
+		if(list == null)
+			throw new IllegalArgumentException("list == null");
+		
+		if(listener == null)
+			throw new IllegalArgumentException("listener == null");
+		
+		new Retrieval(list, listener, ordered, pageSize, timeout).start();
+	}
+	
+	/**
+	 * State of a single {@link #retrieve(ChatListResponceIQ, CollectionListener)} call.
+	 * All fields are guarded by the instance monitor
+	 * */
+	private final class Retrieval {
+		
+		private final CollectionListener listener;
+		private final CollectionTask [] collections;
+		private final boolean ordered;
+		private final long timeout;
+		
+		// index of the next collection to request
+		private int nextToStart;
+		// number of collections being retrieved
+		private int active;
+		// index of the collection whose pages are delivered directly, ordered mode only
+		private int head;
+		// number of collections which are not completed yet
+		private int remaining;
+		// whether listener was notified about the end of retrieval
+		private boolean finished;
+		
+		Retrieval(ChatListResponceIQ list, CollectionListener listener, boolean ordered, int pageSize, long timeout) {
+			this.listener = listener;
+			this.ordered = ordered;
+			this.timeout = timeout;
+			this.collections = new CollectionTask[list.getChatCount()];
+			
+			for(int i = 0; i < collections.length; ++i) {
+				collections[i] = new CollectionTask(this, list.getWith(i), list.getStartDate(i), 
+						list.getStartMillis(i), pageSize);
+			}
+			
+			if(ordered) {
+				Arrays.sort(collections, byStart);
+			}
+			
+			this.remaining = collections.length;
+		}
+		
+		synchronized void start() {
+			startMore();
+			finishIfDone();
+		}
+		
+		/**
+		 * Sends requests for collections while there are free slots.
+		 * Collections which fail to send are completed in place, so
+		 * that the loop continues with the next one instead of recursing
+		 * */
+		private void startMore() {
+			while(active < parallelism && nextToStart < collections.length) {
+				
+				final CollectionTask collection = collections[nextToStart++];
+				
+				++active;
+				
+				final NotConnectedException e = collection.send();
+				
+				if(e != null) {
+					deliver(collection, e);
+					markDone(collection);
+				}
+			}
+		}
+		
+		/**
+		 * Delivers page or exception of the collection
+		 * */
+		private void deliver(CollectionTask collection, Object result) {
+			
+			if(ordered && collections[head] != collection) {
+				collection.buffer.add(result);
+			} else {
+				dispatch(collection, result);
+			}
+		}
+		
+		private void dispatch(CollectionTask collection, Object result) {
+			
+			if(result instanceof Exception) {
+				listener.processException(collection.with, collection.start, (Exception) result);
+			} else {
+				listener.processPage((ChatListRetrieveResultIQ) result);
+			}
+		}
+		
+		/**
+		 * Marks collection completed and starts the next one
+		 * */
+		private void complete(CollectionTask collection) {
+			markDone(collection);
+			startMore();
+			finishIfDone();
+		}
+		
+		private void markDone(CollectionTask collection) {
+			
+			collection.done = true;
+			--active;
+			--remaining;
+			
+			if(ordered) {
+				// flushes buffers of the collections which became head
+				while(head < collections.length && collections[head].done) {
+					
+					if(++head < collections.length) {
+						final CollectionTask next = collections[head];
+						
+						for(final Object result : next.buffer) {
+							dispatch(next, result);
+						}
+						
+						next.buffer.clear();
+					}
+				}
+			}
+		}
+		
+		/**
+		 * Notifies listener once all collections were completed
+		 * */
+		private void finishIfDone() {
+			
+			if(finished || remaining > 0) return;
+			
+			finished = true;
+			listener.processFinished();
+		}
+		
+	}
+	
+	/**
+	 * Walks a single collection, responses are handled
+	 * under the monitor of the owning {@link Retrieval}
+	 * */
+	private final class CollectionTask implements StanzaListener, ExceptionCallback {
+		
+		private final Retrieval retrieval;
+		private final String with;
+		private final String start;
+		private final long startMillis;
+		private final ChatListRetrieveRequestIQ template;
+		
+		// pages and exceptions which wait for delivery, ordered mode only
+		private final List<Object> buffer = new ArrayList<>(0);
+		
+		private String after;
+		private int received;
+		private boolean done;
+		
+		CollectionTask(Retrieval retrieval, String with, String start, long startMillis, int pageSize) {
+			this.retrieval = retrieval;
+			this.with = with;
+			this.start = start;
+			this.startMillis = startMillis;
+			this.template = new ChatListRetrieveRequestIQ(with);
+			this.template.setStart(start);
+			this.template.setMax(pageSize);
+		}
+		
+		/**
+		 * Sends request for the next page
+		 * @return null or exception if connection was lost
+		 * */
+		NotConnectedException send() {
+			try {
+				final DecodedResultCallback callback = new DecodedResultCallback(this, this);
+				connection.sendIqWithResponseCallback(RsmPaging.nextRequest(template, after), callback, callback, retrieval.timeout);
+				return null;
+			} catch (NotConnectedException e) {
+				return e;
+			}
+		}
+
+		@Override
+		public void processPacket(Stanza packet) throws NotConnectedException {
+			
+			synchronized(retrieval) {
+				
+				final ChatListRetrieveResultIQ page = (ChatListRetrieveResultIQ) packet;
+				
+				if(page.getLastValue() != null) {
+					after = page.getLastValue();
+					++received;
+					retrieval.deliver(this, page);
+				}
+				
+				final NotConnectedException e = RsmPaging.isLast(page) ? null : send();
+				
+				if(e != null) {
+					retrieval.deliver(this, e);
+				}
+				
+				if(e != null || RsmPaging.isLast(page)) {
+					retrieval.complete(this);
+				}
+			}
+		}
+
+		@Override
+		public void processException(Exception exception) {
+			
+			synchronized(retrieval) {
+				
+				if(!RsmPaging.isEndOfPages(exception, received)) {
+					retrieval.deliver(this, exception);
+				}
+				
+				retrieval.complete(this);
+			}
+		}
+		
+	}
+
+}
@@ -0,0 +1,359 @@
+package xmpp.extensions.com.ua.max.oliynick.archive;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+
+import org.jivesoftware.smack.ExceptionCallback;
+import org.jivesoftware.smack.SmackException;
+import org.jivesoftware.smack.SmackException.NotConnectedException;
+import org.jivesoftware.smack.StanzaListener;
+import org.jivesoftware.smack.XMPPConnection;
+import org.jivesoftware.smack.XMPPException;
+import org.jivesoftware.smack.XMPPException.XMPPErrorException;
+import org.jivesoftware.smack.packet.Stanza;
+
+import xmpp.extensions.com.ua.max.oliynick.iq.ChatListRetrieveRequestIQ;
+import xmpp.extensions.com.ua.max.oliynick.iq.ChatListRetrieveResultIQ;
+import xmpp.extensions.com.ua.max.oliynick.iq.MessageCursor;
+import xmpp.extensions.com.ua.max.oliynick.provider.DecodedResultCallback;
+
+/**
+ * <p>
+ * Walks a XEP-0136 collection page by page using RSM.
+ * Request for the next page is sent as soon as the 'last' value
+ * of the previous page arrives, so that network round-trips
+ * overlap with processing of already received pages
+ * </p>
+ * <p>
+ * At most prefetch pages are received ahead of the page consumer
+ * is going to take, the next request is postponed while the buffer is full
+ * </p>
+ * @author Max Oliynick
+ * */
+public final class ChatHistoryPager {
+
+	/**
+	 * Marks the end of the collection in the pages queue
+	 * */
+	private static final Object endOfHistory = new Object();
+
+	private final XMPPConnection connection;
+
+	/**
+	 * Request template, 'after' value is set for each page
+	 * */
+	private final ChatListRetrieveRequestIQ template;
+
+	/**
+	 * Received pages, exceptions and end marker
+	 * */
+	private final Queue<Object> pages;
+
+	/**
+	 * Number of pages which may be requested ahead
+	 * of the page consumer is going to take
+	 * */
+	private final int prefetch;
+
+	/**
+	 * Response timeout in millis
+	 * */
+	private long timeout;
+
+	/**
+	 * Chooses page sizes, null if 'max' value of the template is used
+	 * */
+	private PageSizeController pageSizeController;
+
+	/**
+	 * 'last' value of the latest received page
+	 * */
+	private String after;
+
+	/**
+	 * Whether request is being awaited
+	 * */
+	private boolean pending;
+
+	/**
+	 * Whether the last page was received or the pager was closed
+	 * */
+	private boolean finished;
+
+	/**
+	 * Number of received pages
+	 * */
+	private int received;
+
+	/**
+	 * Constructs pager with prefetch of one page
+	 * @param connection connection to send requests
+	 * @param request request template, its 'with', 'start', 'end',
+	 * 'max' and 'after' values define the walked collection
+	 * */
+	public ChatHistoryPager(XMPPConnection connection, ChatListRetrieveRequestIQ request) {
+		this(connection, request, 1);
+	}
+
+	/**
+	 * Constructs pager
+	 * @param connection connection to send requests
+	 * @param request request template, its 'with', 'start', 'end',
+	 * 'max' and 'after' values define the walked collection
+	 * @param prefetch number of pages to receive ahead of consumer
+	 * */
+	public ChatHistoryPager(XMPPConnection connection, ChatListRetrieveRequestIQ request, int prefetch) {
+
+		if(connection == null)
+			throw new IllegalArgumentException("connection == null");
+
+		if(request == null)
+			throw new IllegalArgumentException("request == null");
+
+		if(prefetch < 1)
+			throw new IllegalArgumentException("prefetch < 1");
+
+		this.connection = connection;
+		this.template = request;
+		this.prefetch = prefetch;
+		this.after = request.getAfter();
+		this.timeout = connection.getPacketReplyTimeout();
+		this.pages = new ArrayDeque<>(prefetch + 2);
+	}
+
+	public long getTimeout() {
+		return timeout;
+	}
+
+	/**
+	 * Sets response timeout for each page request
+	 * */
+	public synchronized void setTimeout(long timeout) {
+		this.timeout = timeout;
+	}
+
+	public synchronized PageSizeController getPageSizeController() {
+		return pageSizeController;
+	}
+
+	/**
+	 * Sets controller which chooses 'max' value of each page
+	 * request by contact jid, observations of received pages
+	 * are recorded by the controller. Passing null restores
+	 * 'max' value of the template
+	 * */
+	public synchronized void setPageSizeController(PageSizeController pageSizeController) {
+		this.pageSizeController = pageSizeController;
+	}
+
+	/**
+	 * Returns number of received pages which weren't taken yet
+	 * */
+	public synchronized int getBufferedPages() {
+		return pages.size();
+	}
+
+	/**
+	 * Returns the next page, blocks until it arrives. The first call
+	 * sends the first request
+	 * @return the next page or null if there are no more pages
+	 * @throws XMPPErrorException if server responded with an error
+	 * @throws SmackException if no response was received or connection was lost
+	 * */
+	public synchronized ChatListRetrieveResultIQ nextPage()
+			throws InterruptedException, XMPPException, SmackException {
+
+		requestIfNeeded();
+
+		while(pages.isEmpty()) {
+
+			if(finished && !pending) return null;
+
+			wait();
+		}
+
+		final Object page = pages.peek();
+
+		if(page == endOfHistory) return null;
+
+		pages.poll();
+
+		if(page instanceof XMPPException) throw (XMPPException) page;
+		if(page instanceof SmackException) throw (SmackException) page;
+		if(page instanceof Exception) throw new SmackException((Exception) page);
+
+		// a slot was freed, the next request can be sent
+		requestIfNeeded();
+
+		return (ChatListRetrieveResultIQ) page;
+	}
+
+	/**
+	 * Receives all remaining pages and merges them into a single
+	 * IQ with compact messages storage. RSM values of the result
+	 * describe the whole merged range
+	 * @return merged collection or null if there are no more pages
+	 * @throws XMPPErrorException if server responded with an error
+	 * @throws SmackException if no response was received or connection was lost
+	 * */
+	public ChatListRetrieveResultIQ fetchAll()
+			throws InterruptedException, XMPPException, SmackException {
+		
+		ChatListRetrieveResultIQ page = nextPage();
+		
+		if(page == null) return null;
+		
+		final ChatListRetrieveResultIQ merged = new ChatListRetrieveResultIQ(true);
+		
+		merged.setWith(page.getWith());
+		merged.setStart(page.getStart());
+		merged.setSubject(page.getSubject());
+		merged.setVersion(page.getVersion());
+		merged.setFirstIndex(page.getFirstIndex());
+		merged.setFirstValue(page.getFirstValue());
+		
+		for(; page != null; page = nextPage()) {
+			
+			for(final MessageCursor cursor = page.cursor(); cursor.next(); ) {
+				merged.addBody(cursor.getDirection(), cursor.getSecs(), cursor.getBody());
+			}
+			
+			merged.setLastValue(page.getLastValue());
+			merged.setCount(page.getCount());
+			
+			// the page was copied, pooled one is reused by the provider
+			page.recycle();
+		}
+		
+		merged.getCompactContent().trimToSize();
+		
+		return merged;
+	}
+
+	/**
+	 * Stops paging, buffered pages and pages which
+	 * arrive later are dropped and recycled
+	 * */
+	public synchronized void close() {
+		finished = true;
+		
+		for(final Object page : pages) {
+			if(page instanceof ChatListRetrieveResultIQ) {
+				((ChatListRetrieveResultIQ) page).recycle();
+			}
+		}
+		
+		pages.clear();
+		pages.add(endOfHistory);
+		notifyAll();
+	}
+
+	/**
+	 * Sends request for the next page if there is no
+	 * pending request and the buffer isn't full
+	 * */
+	private void requestIfNeeded() {
+
+		if(finished || pending || pages.size() >= prefetch) return;
+
+		final ChatListRetrieveRequestIQ request = RsmPaging.nextRequest(template, after);
+
+		if(pageSizeController != null) {
+			request.setMax(pageSizeController.getPageSize(template.getWith()));
+		}
+
+		pending = true;
+
+		final ResponseCallback response = new ResponseCallback();
+		final DecodedResultCallback callback = new DecodedResultCallback(response, response);
+
+		try {
+			connection.sendIqWithResponseCallback(request, callback, callback, timeout);
+		} catch (NotConnectedException e) {
+			pending = false;
+			finish(e);
+		}
+	}
+
+	/**
+	 * Appends exception and end marker to the queue
+	 * */
+	private void finish(Exception e) {
+		finished = true;
+
+		if(e != null) pages.add(e);
+
+		pages.add(endOfHistory);
+		notifyAll();
+	}
+
+	/**
+	 * Handles page responses, invoked by connection
+	 * */
+	private final class ResponseCallback implements StanzaListener, ExceptionCallback {
+
+		/**
+		 * Time the request was sent in nanos
+		 * */
+		private final long sent = System.nanoTime();
+
+		@Override
+		public void processPacket(Stanza packet) throws NotConnectedException {
+
+			final long responseNanos = System.nanoTime() - sent;
+
+			synchronized(ChatHistoryPager.this) {
+
+				pending = false;
+
+				final ChatListRetrieveResultIQ page = (ChatListRetrieveResultIQ) packet;
+
+				if(finished) {
+					page.recycle();
+					return;
+				}
+
+				if(pageSizeController != null) {
+					pageSizeController.record(template.getWith(), page.getMessageCount(), responseNanos, page.getParseNanos(),
+							PageSizeController.estimateBytes(page.getMessageCount(), page.getBodiesLength()));
+				}
+
+				final boolean last = RsmPaging.isLast(page);
+
+				if(page.getLastValue() != null) {
+					after = page.getLastValue();
+					pages.add(page);
+					++received;
+				} else {
+					page.recycle();
+				}
+
+				if(last) {
+					finish(null);
+				} else {
+					requestIfNeeded();
+					ChatHistoryPager.this.notifyAll();
+				}
+			}
+		}
+
+		@Override
+		public void processException(Exception exception) {
+
+			synchronized(ChatHistoryPager.this) {
+
+				pending = false;
+
+				if(finished) return;
+
+				if(RsmPaging.isEndOfPages(exception, received)) {
+					finish(null);
+				} else {
+					finish(exception);
+				}
+			}
+		}
+
+	}
+
+}
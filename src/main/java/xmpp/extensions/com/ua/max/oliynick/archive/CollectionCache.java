@@ -0,0 +1,250 @@
+package xmpp.extensions.com.ua.max.oliynick.archive;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+import org.jivesoftware.smack.SmackException;
+import org.jivesoftware.smack.XMPPConnection;
+import org.jivesoftware.smack.XMPPException;
+import org.jivesoftware.smack.XMPPException.XMPPErrorException;
+
+import xmpp.extensions.com.ua.max.oliynick.iq.ChatListRetrieveRequestIQ;
+import xmpp.extensions.com.ua.max.oliynick.iq.ChatListRetrieveResultIQ;
+import xmpp.extensions.com.ua.max.oliynick.metrics.Metrics;
+
+/**
+ * <p>
+ * In-memory LRU cache of retrieved collections keyed by
+ * {@link CollectionKey}. Cache is bounded by total size of
+ * message bodies in bytes rather than by number of entries
+ * </p>
+ * <p>
+ * Cached IQs are shared between callers and must not be modified.
+ * In compressed mode collections are kept as
+ * {@link ChatListRetrieveResultIQ#compress() compressed} copies and
+ * weighed by their compressed size, so that the same budget holds
+ * several times more collections at the cost of inflating bodies on access
+ * </p>
+ * @author Max Oliynick
+ * */
+public final class CollectionCache {
+	
+	/**
+	 * Entries in access order, guarded by the instance monitor
+	 * */
+	private final LinkedHashMap<CollectionKey, Entry> entries;
+	
+	/**
+	 * Max total size of bodies in bytes
+	 * */
+	private final long maxBytes;
+	
+	/**
+	 * Current total size of bodies in bytes
+	 * */
+	private long bytes;
+	
+	/**
+	 * Whether collections are compressed before they're cached
+	 * */
+	private volatile boolean compressed;
+	
+	private long hits;
+	private long misses;
+	private long evictions;
+	
+	/**
+	 * Cached collection and its weight
+	 * */
+	private static final class Entry {
+		
+		private final ChatListRetrieveResultIQ collection;
+		private final long bytes;
+		
+		Entry(ChatListRetrieveResultIQ collection, long bytes) {
+			this.collection = collection;
+			this.bytes = bytes;
+		}
+	}
+	
+	/**
+	 * Constructs an empty cache
+	 * @param maxBytes max total size of message bodies in bytes
+	 * */
+	public CollectionCache(long maxBytes) {
+		
+		if(maxBytes <= 0)
+			throw new IllegalArgumentException("maxBytes <= 0");
+		
+		this.maxBytes = maxBytes;
+		this.entries = new LinkedHashMap<>(16, 0.75f, true);
+	}
+	
+	/**
+	 * Returns cached collection
+	 * @return collection or null if it isn't cached
+	 * */
+	public synchronized ChatListRetrieveResultIQ get(CollectionKey key) {
+		
+		final Entry entry = entries.get(key);
+		
+		if(entry == null) {
+			++misses;
+			Metrics.get().recordCacheLookup(false);
+			return null;
+		}
+		
+		++hits;
+		Metrics.get().recordCacheLookup(true);
+		return entry.collection;
+	}
+	
+	/**
+	 * Puts collection into the cache, least recently used
+	 * collections are evicted if the cache became too large. Collections
+	 * larger than the cache itself aren't cached
+	 * @param collection retrieved collection, its 'with' and 'start'
+	 * attributes should be specified
+	 * */
+	public void put(ChatListRetrieveResultIQ collection) {
+		store(compressed ? collection.compress() : collection);
+	}
+	
+	private synchronized void store(ChatListRetrieveResultIQ collection) {
+		
+		final CollectionKey key = new CollectionKey(collection.getWith(), collection.getStart());
+		final long weight = weigh(collection);
+		
+		remove(key);
+		
+		if(weight > maxBytes) return;
+		
+		entries.put(key, new Entry(collection, weight));
+		bytes += weight;
+		
+		for(final Iterator<Entry> it = entries.values().iterator(); bytes > maxBytes && it.hasNext(); ) {
+			bytes -= it.next().bytes;
+			it.remove();
+			++evictions;
+			Metrics.get().recordCacheEviction();
+		}
+	}
+	
+	/**
+	 * Returns cached collection or retrieves the whole
+	 * collection page by page and caches it
+	 * @param connection connection to send requests
+	 * @param with 'with' attribute of the collection
+	 * @param start 'start' attribute of the collection
+	 * @param pageSize RSM 'max' value of each request, non-positive value means server default
+	 * @return collection or null if server returned no messages
+	 * @throws XMPPErrorException if server responded with an error
+	 * @throws SmackException if no response was received or connection was lost
+	 * */
+	public ChatListRetrieveResultIQ retrieve(XMPPConnection connection, String with, String start, int pageSize)
+			throws InterruptedException, XMPPException, SmackException {
+		
+		final ChatListRetrieveResultIQ cached = get(new CollectionKey(with, start));
+		
+		if(cached != null) return cached;
+		
+		final ChatListRetrieveRequestIQ request = new ChatListRetrieveRequestIQ(with);
+		
+		request.setStart(start);
+		request.setMax(pageSize);
+		
+		final ChatListRetrieveResultIQ collection = new ChatHistoryPager(connection, request).fetchAll();
+		
+		if(collection == null) return null;
+		
+		// server may return start in another format
+		collection.setStart(start);
+		
+		final ChatListRetrieveResultIQ retained = compressed ? collection.compress() : collection;
+		
+		store(retained);
+		return retained;
+	}
+	
+	/**
+	 * Removes collection from the cache
+	 * */
+	public synchronized void invalidate(CollectionKey key) {
+		remove(key);
+	}
+	
+	/**
+	 * Removes all collections
+	 * */
+	public synchronized void clear() {
+		entries.clear();
+		bytes = 0;
+	}
+	
+	public synchronized int size() {
+		return entries.size();
+	}
+	
+	/**
+	 * Returns current total size of cached bodies in bytes
+	 * */
+	public synchronized long getBytes() {
+		return bytes;
+	}
+	
+	public long getMaxBytes() {
+		return maxBytes;
+	}
+	
+	public boolean isCompressed() {
+		return compressed;
+	}
+	
+	/**
+	 * Sets whether collections put afterwards are compressed,
+	 * already cached collections are kept as is
+	 * */
+	public void setCompressed(boolean compressed) {
+		this.compressed = compressed;
+	}
+	
+	public synchronized long getHits() {
+		return hits;
+	}
+	
+	public synchronized long getMisses() {
+		return misses;
+	}
+	
+	public synchronized long getEvictions() {
+		return evictions;
+	}
+	
+	private void remove(CollectionKey key) {
+		
+		final Entry previous = entries.remove(key);
+		
+		if(previous != null) {
+			bytes -= previous.bytes;
+		}
+	}
+	
+	/**
+	 * Returns size of message bodies in bytes, bodies
+	 * are held as UTF-16 strings unless they're compressed
+	 * */
+	private static long weigh(ChatListRetrieveResultIQ collection) {
+		
+		if(collection.isCompressed())
+			return collection.getCompressedContent().getRetainedBytes();
+		
+		return 2L * collection.getBodiesLength();
+	}
+	
+	@Override
+	public synchronized String toString() {
+		return "CollectionCache [size=" + entries.size() + ", bytes=" + bytes + ", maxBytes=" + maxBytes 
+				+ ", hits=" + hits + ", misses=" + misses + ", evictions=" + evictions + "]";
+	}
+	
+}
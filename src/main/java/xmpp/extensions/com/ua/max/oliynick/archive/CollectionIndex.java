@@ -0,0 +1,543 @@
+package xmpp.extensions.com.ua.max.oliynick.archive;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.jivesoftware.smack.SmackException;
+import org.jivesoftware.smack.XMPPConnection;
+import org.jivesoftware.smack.XMPPException;
+import org.jxmpp.util.XmppDateTime;
+
+import xmpp.extensions.com.ua.max.oliynick.iq.ChatListRequestIQ;
+import xmpp.extensions.com.ua.max.oliynick.iq.ChatListResponceIQ;
+import xmpp.extensions.com.ua.max.oliynick.util.Xep0082;
+
+/**
+ * <p>
+ * Local index of listed collections ordered by start time.
+ * Answers list queries with the semantics of {@link ChatListRequestIQ}
+ * attributes: collections of 'with' contact (or of all contacts),
+ * whose start lies within ['start', 'end'), first 'max' ones
+ * </p>
+ * <p>
+ * The index remembers which time ranges were completely listed per
+ * contact and for all contacts. Only ranges which weren't covered yet
+ * are listed from the server. Collections with malformed start
+ * aren't indexed
+ * </p>
+ * @author Max Oliynick
+ * */
+public final class CollectionIndex {
+	
+	private final XMPPConnection connection;
+	
+	/**
+	 * Collections of all contacts
+	 * */
+	private final Entries all = new Entries();
+	
+	/**
+	 * Collections per contact
+	 * */
+	private final Map<String, Entries> contacts = new HashMap<>();
+	
+	/**
+	 * Ranges listed for all contacts
+	 * */
+	private final Ranges coveredAll = new Ranges();
+	
+	/**
+	 * Ranges listed per contact
+	 * */
+	private final Map<String, Ranges> covered = new HashMap<>();
+	
+	/**
+	 * Max number of collections in a list page
+	 * */
+	private int pageSize = 100;
+	
+	/**
+	 * Number of list requests sent to the server
+	 * */
+	private int requests;
+	
+	/**
+	 * Constructs index
+	 * @param connection connection to list uncovered ranges
+	 * */
+	public CollectionIndex(XMPPConnection connection) {
+		
+		if(connection == null)
+			throw new IllegalArgumentException("connection == null");
+		
+		this.connection = connection;
+	}
+	
+	public int getPageSize() {
+		return pageSize;
+	}
+	
+	/**
+	 * Sets max number of collections in a list page
+	 * */
+	public synchronized void setPageSize(int pageSize) {
+		
+		if(pageSize < 1)
+			throw new IllegalArgumentException("pageSize < 1");
+		
+		this.pageSize = pageSize;
+	}
+	
+	/**
+	 * Returns number of list requests sent to the server
+	 * */
+	public synchronized int getRequests() {
+		return requests;
+	}
+	
+	/**
+	 * Returns number of indexed collections
+	 * */
+	public synchronized int size() {
+		return all.size;
+	}
+	
+	/**
+	 * Adds collection to the index, coverage isn't changed
+	 * @param with 'with' attribute of the collection
+	 * @param start 'start' attribute of the collection
+	 * */
+	public synchronized void add(String with, String start) {
+		
+		if(with == null)
+			throw new IllegalArgumentException("with == null");
+		
+		if(start == null)
+			throw new IllegalArgumentException("start == null");
+		
+		add(with, start, Xep0082.parseMillisOrDefault(start));
+	}
+	
+	/**
+	 * Adds all collections of the list page, coverage isn't changed
+	 * */
+	public synchronized void addAll(ChatListResponceIQ page) {
+		
+		if(page == null)
+			throw new IllegalArgumentException("page == null");
+		
+		for(int i = 0; i < page.getChatCount(); ++i) {
+			add(page.getWith(i), page.getStartDate(i), page.getStartMillis(i));
+		}
+	}
+	
+	/**
+	 * Marks range as completely listed
+	 * @param with contact jid or null if the range was listed for all contacts
+	 * @param from range start in epoch millis, inclusive
+	 * @param to range end in epoch millis, exclusive
+	 * */
+	public synchronized void markCovered(String with, long from, long to) {
+		
+		if(from >= to) return;
+		
+		if(with == null) {
+			coveredAll.add(from, to);
+		} else {
+			Ranges ranges = covered.get(with);
+			
+			if(ranges == null) {
+				ranges = new Ranges();
+				covered.put(with, ranges);
+			}
+			
+			ranges.add(from, to);
+		}
+	}
+	
+	/**
+	 * Answers list query from the index only
+	 * @param request list request, 'after' value isn't supported
+	 * @return matching collections or null if the range wasn't
+	 * completely listed yet
+	 * */
+	public synchronized List<CollectionKey> query(ChatListRequestIQ request) {
+		
+		checkRequest(request);
+		
+		final long from = startOf(request);
+		final long to = endOf(request, System.currentTimeMillis());
+		
+		if(uncovered(request.getWith(), from, to).length > 0) return null;
+		
+		return collect(request.getWith(), from, to, request.getMax());
+	}
+	
+	/**
+	 * Answers list query, ranges which weren't listed yet
+	 * are listed from the server in ascending order until
+	 * 'max' collections are known. The index isn't locked while
+	 * waiting for the server, so concurrent calls may list the same
+	 * range twice, collections which are already indexed are skipped
+	 * @param request list request, 'after' value isn't supported
+	 * @return matching collections ordered by start
+	 * */
+	public List<CollectionKey> list(ChatListRequestIQ request)
+			throws XMPPException, SmackException {
+		
+		checkRequest(request);
+		
+		final String with = request.getWith();
+		final long from = startOf(request);
+		// collections which start later can't exist yet
+		final long to = endOf(request, System.currentTimeMillis());
+		final int max = request.getMax();
+		
+		final long [] gaps;
+		final int pageSize;
+		
+		synchronized(this) {
+			gaps = uncovered(with, from, to);
+			pageSize = this.pageSize;
+		}
+		
+		for(int i = 0; i < gaps.length; i += 2) {
+			
+			synchronized(this) {
+				// enough collections precede the gap
+				if(max > 0 && entries(with).count(from, gaps[i]) >= max) break;
+			}
+			
+			listRange(request, gaps[i], gaps[i + 1], pageSize);
+			markCovered(with, gaps[i], gaps[i + 1]);
+		}
+		
+		synchronized(this) {
+			return collect(with, from, to, max);
+		}
+	}
+	
+	/**
+	 * Removes everything from the index
+	 * */
+	public synchronized void clear() {
+		all.clear();
+		contacts.clear();
+		coveredAll.clear();
+		covered.clear();
+	}
+	
+	private void add(String with, String start, long millis) {
+		
+		if(millis == Xep0082.unknown) return;
+		
+		Entries entries = contacts.get(with);
+		
+		if(entries == null) {
+			entries = new Entries();
+			contacts.put(with, entries);
+		}
+		
+		if(entries.add(millis, with, start)) {
+			all.add(millis, with, start);
+		}
+	}
+	
+	/**
+	 * Lists range ['from', 'to') from the server, the index
+	 * is locked only to merge received pages
+	 * */
+	private void listRange(ChatListRequestIQ template, long from, long to, int pageSize)
+			throws XMPPException, SmackException {
+		
+		String after = null;
+		
+		while(true) {
+			
+			final ChatListRequestIQ request = new ChatListRequestIQ(template.getWith(), pageSize);
+			
+			request.setTo(template.getTo());
+			request.setStart(from == Long.MIN_VALUE ? null : XmppDateTime.formatXEP0082Date(new Date(from)));
+			request.setEnd(XmppDateTime.formatXEP0082Date(new Date(to)));
+			request.setAfter(after);
+			
+			synchronized(this) {
+				++requests;
+			}
+			
+			final ChatListResponceIQ page = connection.createPacketCollectorAndSend(request).nextResultOrThrow();
+			
+			addAll(page);
+			
+			if(page.getLastValue() == null || page.getChatCount() < pageSize) break;
+			
+			after = page.getLastValue();
+		}
+	}
+	
+	/**
+	 * Returns uncovered parts of ['from', 'to') as
+	 * pairs of bounds ordered by start
+	 * */
+	private long [] uncovered(String with, long from, long to) {
+		
+		final Ranges own = with == null ? null : covered.get(with);
+		final List<Long> gaps = new ArrayList<>(2);
+		
+		long pos = from;
+		
+		while(pos < to) {
+			
+			long next = coveredAll.coveredUntil(pos);
+			
+			if(own != null) {
+				next = Math.max(next, own.coveredUntil(pos));
+			}
+			
+			if(next > pos) {
+				pos = next;
+				continue;
+			}
+			
+			// gap lasts until the nearest covered range
+			long gapEnd = Math.min(to, coveredAll.nextStart(pos));
+			
+			if(own != null) {
+				gapEnd = Math.min(gapEnd, own.nextStart(pos));
+			}
+			
+			gaps.add(pos);
+			gaps.add(gapEnd);
+			pos = gapEnd;
+		}
+		
+		final long [] result = new long[gaps.size()];
+		
+		for(int i = 0; i < result.length; ++i) {
+			result[i] = gaps.get(i);
+		}
+		
+		return result;
+	}
+	
+	private List<CollectionKey> collect(String with, long from, long to, int max) {
+		
+		final Entries entries = entries(with);
+		final int first = entries.lowerBound(from);
+		final int last = entries.lowerBound(to);
+		final int size = max > 0 ? Math.min(max, last - first) : last - first;
+		final List<CollectionKey> result = new ArrayList<>(size);
+		
+		for(int i = first; i < first + size; ++i) {
+			result.add(new CollectionKey(entries.withs[i], entries.starts[i]));
+		}
+		
+		return result;
+	}
+	
+	private Entries entries(String with) {
+		
+		if(with == null) return all;
+		
+		final Entries entries = contacts.get(with);
+		
+		return entries == null ? Entries.empty : entries;
+	}
+	
+	private static void checkRequest(ChatListRequestIQ request) {
+		
+		if(request == null)
+			throw new IllegalArgumentException("request == null");
+		
+		if(request.getAfter() != null)
+			throw new IllegalArgumentException("'after' isn't supported");
+	}
+	
+	private static long startOf(ChatListRequestIQ request) {
+		
+		if(request.getStart() == null) return Long.MIN_VALUE;
+		
+		return Xep0082.parseMillis(request.getStart());
+	}
+	
+	private static long endOf(ChatListRequestIQ request, long now) {
+		
+		if(request.getEnd() == null) return now;
+		
+		return Xep0082.parseMillis(request.getEnd());
+	}
+	
+	/**
+	 * Collections ordered by start kept in parallel arrays
+	 * */
+	private static final class Entries {
+		
+		static final Entries empty = new Entries();
+		
+		long [] millis = new long[16];
+		String [] withs = new String[16];
+		String [] starts = new String[16];
+		int size;
+		
+		/**
+		 * Inserts collection keeping the order
+		 * @return false if the collection is already indexed
+		 * */
+		boolean add(long value, String with, String start) {
+			
+			int pos = lowerBound(value);
+			
+			for(int i = pos; i < size && millis[i] == value; ++i) {
+				if(withs[i].equals(with) && starts[i].equals(start)) return false;
+			}
+			
+			// listed pages usually arrive in ascending order
+			pos = upperBound(value);
+			
+			if(size == millis.length) {
+				millis = Arrays.copyOf(millis, size * 2);
+				withs = Arrays.copyOf(withs, size * 2);
+				starts = Arrays.copyOf(starts, size * 2);
+			}
+			
+			System.arraycopy(millis, pos, millis, pos + 1, size - pos);
+			System.arraycopy(withs, pos, withs, pos + 1, size - pos);
+			System.arraycopy(starts, pos, starts, pos + 1, size - pos);
+			
+			millis[pos] = value;
+			withs[pos] = with;
+			starts[pos] = start;
+			++size;
+			return true;
+		}
+		
+		/**
+		 * Returns number of collections within ['from', 'to')
+		 * */
+		int count(long from, long to) {
+			return Math.max(0, lowerBound(to) - lowerBound(from));
+		}
+		
+		/**
+		 * Returns index of the first collection which starts not earlier than value
+		 * */
+		int lowerBound(long value) {
+			
+			int low = 0, high = size;
+			
+			while(low < high) {
+				final int mid = (low + high) >>> 1;
+				
+				if(millis[mid] < value) {
+					low = mid + 1;
+				} else {
+					high = mid;
+				}
+			}
+			
+			return low;
+		}
+		
+		/**
+		 * Returns index of the first collection which starts later than value
+		 * */
+		int upperBound(long value) {
+			
+			int low = 0, high = size;
+			
+			while(low < high) {
+				final int mid = (low + high) >>> 1;
+				
+				if(millis[mid] <= value) {
+					low = mid + 1;
+				} else {
+					high = mid;
+				}
+			}
+			
+			return low;
+		}
+		
+		void clear() {
+			Arrays.fill(withs, 0, size, null);
+			Arrays.fill(starts, 0, size, null);
+			size = 0;
+		}
+		
+	}
+	
+	/**
+	 * Disjoint ordered ranges [from, to) kept as
+	 * pairs of bounds, adjacent ranges are merged
+	 * */
+	private static final class Ranges {
+		
+		long [] bounds = new long[8];
+		int size;
+		
+		void add(long from, long to) {
+			
+			// first range which ends not earlier than 'from'
+			int first = 0;
+			
+			while(first < size && bounds[first + 1] < from) {
+				first += 2;
+			}
+			
+			// ranges [first, last) intersect or touch the new one
+			int last = first;
+			
+			while(last < size && bounds[last] <= to) {
+				from = Math.min(from, bounds[last]);
+				to = Math.max(to, bounds[last + 1]);
+				last += 2;
+			}
+			
+			final int newSize = size - (last - first) + 2;
+			
+			if(newSize > bounds.length) {
+				bounds = Arrays.copyOf(bounds, Math.max(newSize, bounds.length * 2));
+			}
+			
+			System.arraycopy(bounds, last, bounds, first + 2, size - last);
+			bounds[first] = from;
+			bounds[first + 1] = to;
+			size = newSize;
+		}
+		
+		/**
+		 * Returns end of the range which contains value
+		 * or value itself if it isn't covered
+		 * */
+		long coveredUntil(long value) {
+			
+			for(int i = 0; i < size && bounds[i] <= value; i += 2) {
+				if(value < bounds[i + 1]) return bounds[i + 1];
+			}
+			
+			return value;
+		}
+		
+		/**
+		 * Returns start of the first range which starts later than value
+		 * */
+		long nextStart(long value) {
+			
+			for(int i = 0; i < size; i += 2) {
+				if(bounds[i] > value) return bounds[i];
+			}
+			
+			return Long.MAX_VALUE;
+		}
+		
+		void clear() {
+			size = 0;
+		}
+		
+	}
+	
+}
@@ -0,0 +1,67 @@
+package xmpp.extensions.com.ua.max.oliynick.archive;
+
+/**
+ * <p>
+ * Identity of a XEP-0136 collection, which is defined
+ * by its 'with' and 'start' attributes
+ * </p>
+ * @author Max Oliynick
+ * */
+public final class CollectionKey implements Comparable<CollectionKey> {
+	
+	private final String with;
+	private final String start;
+	
+	/**
+	 * Constructs key
+	 * @param with 'with' attribute of the collection
+	 * @param start 'start' attribute of the collection
+	 * */
+	public CollectionKey(String with, String start) {
+		
+		if(with == null)
+			throw new IllegalArgumentException("with == null");
+		
+		if(start == null)
+			throw new IllegalArgumentException("start == null");
+		
+		this.with = with;
+		this.start = start;
+	}
+
+	public String getWith() {
+		return with;
+	}
+
+	public String getStart() {
+		return start;
+	}
+
+	@Override
+	public int compareTo(CollectionKey o) {
+		final int result = with.compareTo(o.with);
+		return result == 0 ? start.compareTo(o.start) : result;
+	}
+
+	@Override
+	public int hashCode() {
+		return 31 * with.hashCode() + start.hashCode();
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		
+		if(this == obj) return true;
+		if(!(obj instanceof CollectionKey)) return false;
+		
+		final CollectionKey other = (CollectionKey) obj;
+		
+		return with.equals(other.with) && start.equals(other.start);
+	}
+
+	@Override
+	public String toString() {
+		return "CollectionKey [with=" + with + ", start=" + start + "]";
+	}
+
+}
@@ -0,0 +1,36 @@
+package xmpp.extensions.com.ua.max.oliynick.archive;
+
+import xmpp.extensions.com.ua.max.oliynick.iq.ChatListRetrieveResultIQ;
+
+/**
+ * <p>
+ * Receives results of {@link BulkHistoryRetriever}. Methods
+ * are never invoked concurrently, but may be invoked from different
+ * threads, implementations shouldn't block
+ * </p>
+ * @author Max Oliynick
+ * */
+public interface CollectionListener {
+	
+	/**
+	 * Invoked for each received page of a collection
+	 * @param page received page, its 'with' and 'start'
+	 * attributes identify the collection
+	 * */
+	public void processPage(ChatListRetrieveResultIQ page);
+	
+	/**
+	 * Invoked if a collection couldn't be retrieved,
+	 * other collections are retrieved anyway
+	 * @param with 'with' attribute of the collection
+	 * @param start 'start' attribute of the collection
+	 * @param exception cause
+	 * */
+	public void processException(String with, String start, Exception exception);
+	
+	/**
+	 * Invoked once all collections were retrieved
+	 * */
+	public void processFinished();
+
+}
@@ -0,0 +1,532 @@
+package xmpp.extensions.com.ua.max.oliynick.archive;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import xmpp.extensions.com.ua.max.oliynick.iq.ChatListRetrieveResultIQ;
+import xmpp.extensions.com.ua.max.oliynick.iq.ChatListRetrieveResultIQ.Direction;
+import xmpp.extensions.com.ua.max.oliynick.iq.MessageCursor;
+import xmpp.extensions.com.ua.max.oliynick.provider.ArchiveMessageListener;
+
+/**
+ * <p>
+ * Incremental inverted index over archived message bodies.
+ * Terms are sequences of letters and digits compared case-insensitively.
+ * Each term maps to postings of messages and term positions, stored
+ * as variable-length encoded deltas in a byte array
+ * </p>
+ * <p>
+ * Messages are indexed either from parsed pages or while a page is
+ * being parsed, when the index is set as message listener of
+ * {@link xmpp.extensions.com.ua.max.oliynick.provider.ChatListRetrieveIQProvider}.
+ * In the latter case each message is indexed as it arrives if RSM 'first'
+ * index of the page is already known, as it is when the provider decodes
+ * captured pages in offload mode. Otherwise RSM values follow the messages
+ * in the stanza, so bodies of the page are held until it's parsed and
+ * dropped if parsing fails. Pages of a collection should be indexed in
+ * order, messages which were already indexed are skipped
+ * </p>
+ * @author Max Oliynick
+ * */
+public final class FullTextIndex implements ArchiveMessageListener {
+	
+	/**
+	 * Postings by term
+	 * */
+	private final Map<String, PostingList> terms = new HashMap<>();
+	
+	/**
+	 * Indexed collections, collection id is index in the list
+	 * */
+	private final List<CollectionKey> collections = new ArrayList<>();
+	
+	/**
+	 * Collection ids by key
+	 * */
+	private final Map<CollectionKey, Integer> collectionIds = new HashMap<>();
+	
+	/**
+	 * Number of indexed messages per collection id
+	 * */
+	private int [] indexedCounts = new int[16];
+	
+	/**
+	 * Collection id and ordinal of each indexed message,
+	 * message id is index in the arrays
+	 * */
+	private int [] messageCollections = new int[256];
+	private int [] messageOrdinals = new int[256];
+	private int messages;
+	
+	/**
+	 * Pages which are being parsed
+	 * */
+	private final Map<ChatListRetrieveResultIQ, PendingPage> parsing = new IdentityHashMap<>();
+	
+	/**
+	 * Postings touched by the message being indexed
+	 * */
+	private final List<PostingList> touched = new ArrayList<>();
+	
+	/**
+	 * Reused token buffer
+	 * */
+	private final StringBuilder token = new StringBuilder(32);
+	
+	/**
+	 * Indexes messages of the page
+	 * @param page retrieved page, its 'with' and 'start' attributes should
+	 * be specified. RSM 'first' index is used as ordinal of the first message
+	 * */
+	public synchronized void index(ChatListRetrieveResultIQ page) {
+		
+		final int collection = collectionId(page.getWith(), page.getStart());
+		int ordinal = firstOrdinal(collection, page);
+		
+		for(final MessageCursor cursor = page.cursor(); cursor.next(); ++ordinal) {
+			
+			if(ordinal < indexedCounts[collection]) continue;
+			
+			indexMessage(collection, ordinal, cursor.getBody());
+		}
+	}
+	
+	/**
+	 * Indexes the message or holds it until the page is
+	 * parsed if RSM 'first' index isn't known yet
+	 * */
+	@Override
+	public synchronized void processMessage(ChatListRetrieveResultIQ iq, Direction direction, int secs, String body) {
+		
+		PendingPage page = parsing.get(iq);
+		
+		if(page == null) {
+			page = new PendingPage(collectionId(iq.getWith(), iq.getStart()), iq.getFirstIndex());
+			parsing.put(iq, page);
+		}
+		
+		if(page.bodies != null) {
+			page.bodies.add(body);
+			return;
+		}
+		
+		if(page.ordinal >= indexedCounts[page.collection]) {
+			indexMessage(page.collection, page.ordinal, body);
+		}
+		
+		++page.ordinal;
+	}
+	
+	/**
+	 * Indexes held messages of the parsed page
+	 * */
+	@Override
+	public synchronized void processFinished(ChatListRetrieveResultIQ iq) {
+		
+		final PendingPage page = parsing.remove(iq);
+		
+		if(page == null || page.bodies == null) return;
+		
+		int ordinal = firstOrdinal(page.collection, iq);
+		
+		for(final String body : page.bodies) {
+			
+			if(ordinal >= indexedCounts[page.collection]) {
+				indexMessage(page.collection, ordinal, body);
+			}
+			
+			++ordinal;
+		}
+	}
+	
+	/**
+	 * Drops held messages of the page, already indexed ones stay
+	 * */
+	@Override
+	public synchronized void processFailed(ChatListRetrieveResultIQ iq) {
+		parsing.remove(iq);
+	}
+	
+	/**
+	 * Returns number of pages which are being parsed
+	 * */
+	synchronized int getParsingPages() {
+		return parsing.size();
+	}
+	
+	/**
+	 * Searches messages which contain the text. Single term
+	 * is looked up directly, several terms are searched as a phrase
+	 * @param text searched term or phrase
+	 * @param limit max number of results, non-positive means no limit
+	 * @return found messages in index order
+	 * */
+	public synchronized List<MessageHit> search(String text, int limit) {
+		
+		if(text == null)
+			throw new IllegalArgumentException("text == null");
+		
+		final List<String> words = new ArrayList<>(4);
+		
+		for(int i = 0; (i = nextToken(text, i)) >= 0; ) {
+			words.add(token.toString());
+		}
+		
+		if(words.isEmpty()) return Collections.emptyList();
+		
+		final PostingCursor [] cursors = new PostingCursor[words.size()];
+		
+		for(int i = 0; i < cursors.length; ++i) {
+			
+			final PostingList postings = terms.get(words.get(i));
+			
+			if(postings == null) return Collections.emptyList();
+			
+			cursors[i] = new PostingCursor(postings);
+		}
+		
+		return cursors.length == 1 ? searchTerm(cursors[0], limit) : searchPhrase(cursors, limit);
+	}
+	
+	/**
+	 * Returns number of indexed messages
+	 * */
+	public synchronized int getMessageCount() {
+		return messages;
+	}
+	
+	/**
+	 * Returns number of distinct terms
+	 * */
+	public synchronized int getTermCount() {
+		return terms.size();
+	}
+	
+	/**
+	 * Returns size of encoded postings in bytes
+	 * */
+	public synchronized long getPostingsBytes() {
+		
+		long bytes = 0;
+		
+		for(final PostingList postings : terms.values()) {
+			bytes += postings.length;
+		}
+		
+		return bytes;
+	}
+	
+	/**
+	 * Removes everything from the index
+	 * */
+	public synchronized void clear() {
+		terms.clear();
+		collections.clear();
+		collectionIds.clear();
+		Arrays.fill(indexedCounts, 0);
+		parsing.clear();
+		messages = 0;
+	}
+	
+	private List<MessageHit> searchTerm(PostingCursor cursor, int limit) {
+		
+		final List<MessageHit> result = new ArrayList<>();
+		
+		while((limit <= 0 || result.size() < limit) && cursor.nextDoc()) {
+			result.add(hit(cursor.doc));
+		}
+		
+		return result;
+	}
+	
+	/**
+	 * Intersects postings by message and checks
+	 * that terms follow each other
+	 * */
+	private List<MessageHit> searchPhrase(PostingCursor [] cursors, int limit) {
+		
+		final List<MessageHit> result = new ArrayList<>();
+		int target = 0;
+		
+		search:
+		while(limit <= 0 || result.size() < limit) {
+			
+			for(final PostingCursor cursor : cursors) {
+				
+				while(cursor.doc < target) {
+					if(!cursor.nextDoc()) break search;
+				}
+				
+				if(cursor.doc > target) {
+					target = cursor.doc;
+					continue search;
+				}
+			}
+			
+			if(isPhrase(cursors)) {
+				result.add(hit(target));
+			}
+			
+			++target;
+		}
+		
+		return result;
+	}
+	
+	private static boolean isPhrase(PostingCursor [] cursors) {
+		
+		final PostingCursor first = cursors[0];
+		
+		positions:
+		for(int i = 0; i < first.count; ++i) {
+			
+			for(int k = 1; k < cursors.length; ++k) {
+				if(Arrays.binarySearch(cursors[k].positions, 0, cursors[k].count, first.positions[i] + k) < 0)
+					continue positions;
+			}
+			
+			return true;
+		}
+		
+		return false;
+	}
+	
+	private MessageHit hit(int doc) {
+		return new MessageHit(collections.get(messageCollections[doc]), messageOrdinals[doc]);
+	}
+	
+	private int collectionId(String with, String start) {
+		
+		final CollectionKey key = new CollectionKey(with, start);
+		final Integer id = collectionIds.get(key);
+		
+		if(id != null) return id;
+		
+		final int newId = collections.size();
+		
+		collections.add(key);
+		collectionIds.put(key, newId);
+		
+		if(newId == indexedCounts.length) {
+			indexedCounts = Arrays.copyOf(indexedCounts, newId * 2);
+		}
+		
+		return newId;
+	}
+	
+	/**
+	 * Returns ordinal of the first message of the page, RSM 'first' index
+	 * if it's specified or number of already indexed messages otherwise
+	 * */
+	private int firstOrdinal(int collection, ChatListRetrieveResultIQ page) {
+		return page.getFirstIndex() >= 0 ? page.getFirstIndex() : indexedCounts[collection];
+	}
+	
+	private void indexMessage(int collection, int ordinal, String body) {
+		
+		final int doc = messages;
+		
+		if(doc == messageCollections.length) {
+			messageCollections = Arrays.copyOf(messageCollections, doc * 2);
+			messageOrdinals = Arrays.copyOf(messageOrdinals, doc * 2);
+		}
+		
+		messageCollections[doc] = collection;
+		messageOrdinals[doc] = ordinal;
+		indexedCounts[collection] = ordinal + 1;
+		++messages;
+		
+		if(body == null) return;
+		
+		int position = 0;
+		
+		for(int i = 0; (i = nextToken(body, i)) >= 0; ++position) {
+			
+			final String term = token.toString();
+			PostingList postings = terms.get(term);
+			
+			if(postings == null) {
+				postings = new PostingList();
+				terms.put(term, postings);
+			}
+			
+			if(postings.pendingCount == 0) {
+				touched.add(postings);
+			}
+			
+			postings.addPosition(position);
+		}
+		
+		for(final PostingList postings : touched) {
+			postings.flush(doc);
+		}
+		
+		touched.clear();
+	}
+	
+	/**
+	 * Reads the next token into the token buffer
+	 * @return position after the token or -1 if there are no more tokens
+	 * */
+	private int nextToken(String text, int from) {
+		
+		final int length = text.length();
+		int i = from;
+		
+		while(i < length && !Character.isLetterOrDigit(text.charAt(i))) {
+			++i;
+		}
+		
+		if(i == length) return -1;
+		
+		token.setLength(0);
+		
+		for(; i < length && Character.isLetterOrDigit(text.charAt(i)); ++i) {
+			token.append(Character.toLowerCase(text.charAt(i)));
+		}
+		
+		return i;
+	}
+	
+	/**
+	 * Postings of a term. Each message is encoded as message id delta,
+	 * number of positions and position deltas, all as varints
+	 * */
+	private static final class PostingList {
+		
+		private byte [] data = new byte[8];
+		private int length;
+		private int lastDoc = -1;
+		
+		/**
+		 * Positions of the message being indexed
+		 * */
+		private int [] pending = new int[4];
+		private int pendingCount;
+		
+		void addPosition(int position) {
+			
+			if(pendingCount == pending.length) {
+				pending = Arrays.copyOf(pending, pendingCount * 2);
+			}
+			
+			pending[pendingCount++] = position;
+		}
+		
+		void flush(int doc) {
+			
+			writeVarint(doc - lastDoc);
+			writeVarint(pendingCount);
+			
+			int last = 0;
+			
+			for(int i = 0; i < pendingCount; ++i) {
+				writeVarint(pending[i] - last);
+				last = pending[i];
+			}
+			
+			lastDoc = doc;
+			pendingCount = 0;
+		}
+		
+		private void writeVarint(int value) {
+			
+			if(length + 5 > data.length) {
+				data = Arrays.copyOf(data, Math.max(data.length * 2, length + 5));
+			}
+			
+			while((value & ~0x7F) != 0) {
+				data[length++] = (byte) ((value & 0x7F) | 0x80);
+				value >>>= 7;
+			}
+			
+			data[length++] = (byte) value;
+		}
+		
+	}
+	
+	/**
+	 * Page which is being parsed, either the ordinal of the next
+	 * message or held bodies if RSM 'first' index isn't known yet
+	 * */
+	private static final class PendingPage {
+		
+		private final int collection;
+		private int ordinal;
+		private final List<String> bodies;
+		
+		PendingPage(int collection, int firstIndex) {
+			this.collection = collection;
+			this.ordinal = firstIndex;
+			this.bodies = firstIndex < 0 ? new ArrayList<String>() : null;
+		}
+		
+	}
+	
+	/**
+	 * Decodes postings message by message
+	 * */
+	private static final class PostingCursor {
+		
+		private final byte [] data;
+		private final int length;
+		private int offset;
+		
+		/**
+		 * Current message id and its positions
+		 * */
+		int doc = -1;
+		int [] positions = new int[8];
+		int count;
+		
+		PostingCursor(PostingList postings) {
+			this.data = postings.data;
+			this.length = postings.length;
+		}
+		
+		boolean nextDoc() {
+			
+			if(offset >= length) {
+				doc = Integer.MAX_VALUE;
+				return false;
+			}
+			
+			doc += readVarint();
+			count = readVarint();
+			
+			if(count > positions.length) {
+				positions = new int[count];
+			}
+			
+			int position = 0;
+			
+			for(int i = 0; i < count; ++i) {
+				position += readVarint();
+				positions[i] = position;
+			}
+			
+			return true;
+		}
+		
+		private int readVarint() {
+			
+			int value = 0;
+			
+			for(int shift = 0; ; shift += 7) {
+				
+				final byte b = data[offset++];
+				
+				value |= (b & 0x7F) << shift;
+				
+				if(b >= 0) return value;
+			}
+		}
+		
+	}
+	
+}
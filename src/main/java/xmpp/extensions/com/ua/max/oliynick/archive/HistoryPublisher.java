@@ -0,0 +1,304 @@
+package xmpp.extensions.com.ua.max.oliynick.archive;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+
+import org.jivesoftware.smack.ExceptionCallback;
+import org.jivesoftware.smack.SmackException.NotConnectedException;
+import org.jivesoftware.smack.StanzaListener;
+import org.jivesoftware.smack.XMPPConnection;
+import org.jivesoftware.smack.packet.Stanza;
+import org.reactivestreams.Publisher;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+import xmpp.extensions.com.ua.max.oliynick.iq.ChatListRetrieveRequestIQ;
+import xmpp.extensions.com.ua.max.oliynick.iq.ChatListRetrieveResultIQ;
+import xmpp.extensions.com.ua.max.oliynick.iq.MessageCursor;
+import xmpp.extensions.com.ua.max.oliynick.provider.DecodedResultCallback;
+
+/**
+ * <p>
+ * Reactive Streams publisher of messages of a XEP-0136 collection.
+ * Subscriber demand is translated into RSM paging: a page is requested
+ * only when there is unsatisfied demand and its 'max' value doesn't exceed
+ * the demand, so that no more messages are buffered than were requested
+ * </p>
+ * <p>
+ * Each subscription walks the collection independently,
+ * starting after the 'after' value of the request template
+ * </p>
+ * @author Max Oliynick
+ * */
+public final class HistoryPublisher implements Publisher<ArchivedMessage> {
+	
+	private final XMPPConnection connection;
+	
+	/**
+	 * Request template, 'max' and 'after' values are set for each page
+	 * */
+	private final ChatListRetrieveRequestIQ template;
+	
+	/**
+	 * Max number of messages requested by a single IQ
+	 * */
+	private volatile int maxPageSize = 100;
+	
+	/**
+	 * Response timeout in millis
+	 * */
+	private volatile long timeout;
+	
+	/**
+	 * Constructs publisher
+	 * @param connection connection to send requests
+	 * @param request request template, its 'with', 'start', 'end'
+	 * and 'after' values define the published collection
+	 * */
+	public HistoryPublisher(XMPPConnection connection, ChatListRetrieveRequestIQ request) {
+		
+		if(connection == null)
+			throw new IllegalArgumentException("connection == null");
+		
+		if(request == null)
+			throw new IllegalArgumentException("request == null");
+		
+		this.connection = connection;
+		this.template = request;
+		this.timeout = connection.getPacketReplyTimeout();
+	}
+	
+	public int getMaxPageSize() {
+		return maxPageSize;
+	}
+	
+	/**
+	 * Sets max number of messages requested by a single IQ
+	 * */
+	public void setMaxPageSize(int maxPageSize) {
+		
+		if(maxPageSize < 1)
+			throw new IllegalArgumentException("maxPageSize < 1");
+		
+		this.maxPageSize = maxPageSize;
+	}
+	
+	public long getTimeout() {
+		return timeout;
+	}
+	
+	/**
+	 * Sets response timeout for each page request
+	 * */
+	public void setTimeout(long timeout) {
+		this.timeout = timeout;
+	}
+	
+	@Override
+	public void subscribe(Subscriber<? super ArchivedMessage> subscriber) {
+		
+		if(subscriber == null)
+			throw new NullPointerException("subscriber == null");
+		
+		final HistorySubscription subscription = new HistorySubscription(subscriber);
+		
+		subscriber.onSubscribe(subscription);
+	}
+	
+	/**
+	 * Subscription state, guarded by its monitor. Signals to the
+	 * subscriber are emitted by a single thread at a time and
+	 * never under the monitor
+	 * */
+	private final class HistorySubscription implements Subscription, StanzaListener, ExceptionCallback {
+		
+		private final Subscriber<? super ArchivedMessage> subscriber;
+		
+		/**
+		 * Received messages which weren't delivered yet
+		 * */
+		private final Queue<ArchivedMessage> buffer = new ArrayDeque<>();
+		
+		/**
+		 * Unsatisfied demand
+		 * */
+		private long demand;
+		
+		/**
+		 * 'last' value of the latest received page
+		 * */
+		private String after;
+		
+		/**
+		 * Number of received pages
+		 * */
+		private int received;
+		
+		private boolean pending;
+		private boolean finished;
+		private Throwable error;
+		private boolean cancelled;
+		private boolean terminated;
+		
+		// drain loop state
+		private boolean emitting;
+		private boolean missed;
+		
+		HistorySubscription(Subscriber<? super ArchivedMessage> subscriber) {
+			this.subscriber = subscriber;
+			this.after = template.getAfter();
+		}
+		
+		@Override
+		public void request(long n) {
+			
+			synchronized(this) {
+				
+				if(cancelled || terminated) return;
+				
+				if(n <= 0) {
+					error = new IllegalArgumentException("non-positive request: " + n);
+					buffer.clear();
+				} else {
+					demand = demand + n < 0 ? Long.MAX_VALUE : demand + n;
+				}
+			}
+			
+			drain();
+		}
+		
+		@Override
+		public synchronized void cancel() {
+			cancelled = true;
+			buffer.clear();
+		}
+		
+		@Override
+		public void processPacket(Stanza packet) throws NotConnectedException {
+			
+			final ChatListRetrieveResultIQ page = (ChatListRetrieveResultIQ) packet;
+			
+			synchronized(this) {
+				
+				pending = false;
+				
+				if(cancelled) return;
+				
+				for(final MessageCursor cursor = page.cursor(); cursor.next(); ) {
+					buffer.add(new ArchivedMessage(cursor.getDirection(), cursor.getSecs(),
+							page.getMessageMillis(cursor), cursor.getBody()));
+				}
+				
+				if(page.getLastValue() != null) {
+					after = page.getLastValue();
+					++received;
+				}
+				
+				finished = RsmPaging.isLast(page);
+			}
+			
+			drain();
+		}
+		
+		@Override
+		public void processException(Exception exception) {
+			
+			synchronized(this) {
+				
+				pending = false;
+				
+				if(RsmPaging.isEndOfPages(exception, received)) {
+					finished = true;
+				} else {
+					error = exception;
+				}
+			}
+			
+			drain();
+		}
+		
+		/**
+		 * Delivers buffered messages within demand, requests
+		 * the next page or emits terminal signal
+		 * */
+		private void drain() {
+			
+			synchronized(this) {
+				
+				if(emitting) {
+					missed = true;
+					return;
+				}
+				
+				emitting = true;
+			}
+			
+			while(true) {
+				
+				for(ArchivedMessage message; (message = poll()) != null; ) {
+					subscriber.onNext(message);
+				}
+				
+				Throwable terminal = null;
+				boolean complete = false;
+				ChatListRetrieveRequestIQ request = null;
+				
+				synchronized(this) {
+					
+					if(!cancelled && !terminated && (buffer.isEmpty() || error != null)) {
+						
+						if(error != null) {
+							terminal = error;
+							terminated = true;
+						} else if(finished) {
+							complete = terminated = true;
+						} else if(demand > 0 && !pending) {
+							request = RsmPaging.nextRequest(template, after);
+							request.setMax((int) Math.min(demand, maxPageSize));
+							pending = true;
+						}
+					}
+				}
+				
+				if(terminal != null) subscriber.onError(terminal);
+				if(complete) subscriber.onComplete();
+				
+				if(request != null) {
+					try {
+						final DecodedResultCallback callback = new DecodedResultCallback(this, this);
+						connection.sendIqWithResponseCallback(request, callback, callback, timeout);
+					} catch (NotConnectedException e) {
+						synchronized(this) {
+							pending = false;
+							error = e;
+							missed = true;
+						}
+					}
+				}
+				
+				synchronized(this) {
+					
+					if(!missed) {
+						emitting = false;
+						return;
+					}
+					
+					missed = false;
+				}
+			}
+		}
+		
+		private synchronized ArchivedMessage poll() {
+			
+			if(cancelled || error != null || demand == 0) return null;
+			
+			final ArchivedMessage message = buffer.poll();
+			
+			if(message != null) --demand;
+			
+			return message;
+		}
+		
+	}
+	
+}
@@ -0,0 +1,266 @@
+package xmpp.extensions.com.ua.max.oliynick.archive;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.jivesoftware.smack.ExceptionCallback;
+import org.jivesoftware.smack.SmackException.NotConnectedException;
+import org.jivesoftware.smack.StanzaListener;
+import org.jivesoftware.smack.XMPPConnection;
+import org.jivesoftware.smack.packet.IQ;
+import org.jivesoftware.smack.packet.Stanza;
+
+/**
+ * <p>
+ * Sends archive IQs back-to-back over a single connection keeping up
+ * to window requests unanswered at a time. Further requests are queued
+ * and written as soon as responses arrive. Responses are matched to
+ * requests by stanza id and complete per-request futures
+ * </p>
+ * <p>
+ * Failures are reported by futures as {@link ExecutionException}
+ * caused by XMPPErrorException, NoResponseException,
+ * NotConnectedException or ClassCastException if response
+ * isn't of the expected type
+ * </p>
+ * @author Max Oliynick
+ * */
+public final class IqPipeline {
+	
+	private final XMPPConnection connection;
+	
+	/**
+	 * Max number of unanswered requests
+	 * */
+	private final int window;
+	
+	/**
+	 * Requests which wait for a free slot, guarded by the instance monitor
+	 * */
+	private final Queue<Request<?>> queued = new ArrayDeque<>();
+	
+	/**
+	 * Number of unanswered requests
+	 * */
+	private int inFlight;
+	
+	/**
+	 * Response timeout in millis
+	 * */
+	private long timeout;
+	
+	/**
+	 * Constructs pipeline
+	 * @param connection connection to send requests
+	 * @param window max number of unanswered requests
+	 * */
+	public IqPipeline(XMPPConnection connection, int window) {
+		
+		if(connection == null)
+			throw new IllegalArgumentException("connection == null");
+		
+		if(window < 1)
+			throw new IllegalArgumentException("window < 1");
+		
+		this.connection = connection;
+		this.window = window;
+		this.timeout = connection.getPacketReplyTimeout();
+	}
+	
+	public int getWindow() {
+		return window;
+	}
+	
+	public synchronized long getTimeout() {
+		return timeout;
+	}
+	
+	/**
+	 * Sets response timeout, which is measured
+	 * from the moment the request is written
+	 * */
+	public synchronized void setTimeout(long timeout) {
+		this.timeout = timeout;
+	}
+	
+	/**
+	 * Returns number of unanswered requests
+	 * */
+	public synchronized int getInFlight() {
+		return inFlight;
+	}
+	
+	/**
+	 * Returns number of requests which wait for a free slot
+	 * */
+	public synchronized int getQueued() {
+		return queued.size();
+	}
+	
+	/**
+	 * Sends the request as soon as there is a free slot
+	 * @param request request IQ
+	 * @param type expected type of the response
+	 * @return future completed with response of the expected type
+	 * */
+	public <T extends IQ> Future<T> submit(IQ request, Class<T> type) {
+		
+		if(request == null)
+			throw new IllegalArgumentException("request == null");
+		
+		if(type == null)
+			throw new IllegalArgumentException("type == null");
+		
+		final Request<T> pending = new Request<>(request, type);
+		
+		synchronized(this) {
+			queued.add(pending);
+			sendQueued();
+		}
+		
+		return pending;
+	}
+	
+	/**
+	 * Writes queued requests while there are free slots
+	 * */
+	private void sendQueued() {
+		
+		while(inFlight < window && !queued.isEmpty()) {
+			
+			final Request<?> request = queued.poll();
+			
+			if(request.isDone()) continue;
+			
+			++inFlight;
+			
+			try {
+				connection.sendIqWithResponseCallback(request.request, request, request, timeout);
+			} catch (NotConnectedException e) {
+				--inFlight;
+				request.complete(null, e);
+			}
+		}
+	}
+	
+	/**
+	 * Frees the slot of the answered request
+	 * */
+	private synchronized void release() {
+		--inFlight;
+		sendQueued();
+	}
+	
+	/**
+	 * Pending request and its future
+	 * */
+	private final class Request<T extends IQ> implements Future<T>, StanzaListener, ExceptionCallback {
+		
+		private final IQ request;
+		private final Class<T> type;
+		
+		private T result;
+		private Exception exception;
+		private boolean done;
+		private boolean cancelled;
+		
+		Request(IQ request, Class<T> type) {
+			this.request = request;
+			this.type = type;
+		}
+		
+		@Override
+		public void processPacket(Stanza packet) throws NotConnectedException {
+			release();
+			
+			if(type.isInstance(packet)) {
+				complete(type.cast(packet), null);
+			} else {
+				complete(null, new ClassCastException(packet.getClass().getName() 
+						+ " received instead of " + type.getName()));
+			}
+		}
+		
+		@Override
+		public void processException(Exception exception) {
+			release();
+			complete(null, exception);
+		}
+		
+		synchronized void complete(T result, Exception exception) {
+			
+			if(done) return;
+			
+			this.result = result;
+			this.exception = exception;
+			this.done = true;
+			notifyAll();
+		}
+		
+		/**
+		 * Cancelled request isn't written if it's still queued,
+		 * response on already written request is dropped
+		 * */
+		@Override
+		public synchronized boolean cancel(boolean mayInterruptIfRunning) {
+			
+			if(done) return false;
+			
+			cancelled = done = true;
+			notifyAll();
+			return true;
+		}
+		
+		@Override
+		public synchronized boolean isCancelled() {
+			return cancelled;
+		}
+		
+		@Override
+		public synchronized boolean isDone() {
+			return done;
+		}
+		
+		@Override
+		public synchronized T get() throws InterruptedException, ExecutionException {
+			
+			while(!done) {
+				wait();
+			}
+			
+			return report();
+		}
+		
+		@Override
+		public synchronized T get(long timeout, TimeUnit unit)
+				throws InterruptedException, ExecutionException, TimeoutException {
+			
+			final long deadline = System.nanoTime() + unit.toNanos(timeout);
+			
+			for(long left; !done; ) {
+				
+				if((left = deadline - System.nanoTime()) <= 0)
+					throw new TimeoutException();
+				
+				TimeUnit.NANOSECONDS.timedWait(this, left);
+			}
+			
+			return report();
+		}
+		
+		private T report() throws ExecutionException {
+			
+			if(cancelled) throw new CancellationException();
+			if(exception != null) throw new ExecutionException(exception);
+			
+			return result;
+		}
+		
+	}
+	
+}
@@ -0,0 +1,61 @@
+package xmpp.extensions.com.ua.max.oliynick.archive;
+
+/**
+ * <p>
+ * Message found by {@link FullTextIndex}, identified by
+ * its collection and ordinal within the collection
+ * </p>
+ * @author Max Oliynick
+ * */
+public final class MessageHit {
+	
+	private final CollectionKey collection;
+	private final int ordinal;
+	
+	/**
+	 * @param collection collection of the message
+	 * @param ordinal index of the message within the collection
+	 * */
+	public MessageHit(CollectionKey collection, int ordinal) {
+		
+		if(collection == null)
+			throw new IllegalArgumentException("collection == null");
+		
+		this.collection = collection;
+		this.ordinal = ordinal;
+	}
+	
+	public CollectionKey getCollection() {
+		return collection;
+	}
+	
+	/**
+	 * Returns index of the message within the collection,
+	 * which can be used as RSM index to retrieve it
+	 * */
+	public int getOrdinal() {
+		return ordinal;
+	}
+	
+	@Override
+	public int hashCode() {
+		return 31 * collection.hashCode() + ordinal;
+	}
+	
+	@Override
+	public boolean equals(Object obj) {
+		
+		if(this == obj) return true;
+		if(!(obj instanceof MessageHit)) return false;
+		
+		final MessageHit other = (MessageHit) obj;
+		
+		return ordinal == other.ordinal && collection.equals(other.collection);
+	}
+	
+	@Override
+	public String toString() {
+		return "MessageHit [collection=" + collection + ", ordinal=" + ordinal + "]";
+	}
+	
+}
@@ -0,0 +1,259 @@
+package xmpp.extensions.com.ua.max.oliynick.archive;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import xmpp.extensions.com.ua.max.oliynick.metrics.Metrics;
+
+/**
+ * <p>
+ * Chooses RSM 'max' value per key, e.g. per server or contact, so
+ * that responses meet target response time, parse time and stanza size.
+ * Response time is modeled as fixed latency plus cost per message, both
+ * fitted jointly by least squares over (page size, response time) of
+ * previous pages. Until observed page sizes vary enough to separate them
+ * the whole response time is attributed to messages, which overestimates
+ * cost per message, so that the target is still met. Parse time and
+ * size per message are smoothed over previous pages
+ * </p>
+ * <p>
+ * Page size moves towards the size which meets all targets, but
+ * changes at most twice per page and stays within [min, max] bounds.
+ * If fixed latency alone exceeds target response time, the response
+ * time target is ignored, since page size can't improve it
+ * </p>
+ * @author Max Oliynick
+ * */
+public final class PageSizeController {
+	
+	/**
+	 * Weight of the latest observation in smoothed values
+	 * */
+	private static final double weight = 0.3;
+	
+	/**
+	 * Weight of the latest observation in moments of the response
+	 * time regression, lower one keeps page sizes of more pages
+	 * */
+	private static final double regressionWeight = 0.1;
+	
+	/**
+	 * Min variance of page sizes relative to squared mean page
+	 * size, with lower variance the regression isn't reliable
+	 * */
+	private static final double minRelativeVariance = 0.01;
+	
+	private final int minPageSize;
+	private final int maxPageSize;
+	private final int initialPageSize;
+	
+	private volatile long targetResponseNanos = 500000000L;
+	private volatile long targetParseNanos = 50000000L;
+	private volatile long targetBytes = 256 * 1024;
+	
+	/**
+	 * Statistics per key, guarded by the instance monitor
+	 * */
+	private final Map<String, Statistics> statistics = new HashMap<>();
+	
+	/**
+	 * Observations of a single key
+	 * */
+	private static final class Statistics {
+		
+		private double pageSize;
+		
+		// smoothed moments of page size n and response time t
+		private double meanN = -1;
+		private double meanT;
+		private double meanNN;
+		private double meanNT;
+		
+		private double latencyNanos;
+		private double responseNanosPerMessage;
+		private double parseNanosPerMessage = -1;
+		private double bytesPerMessage = -1;
+		
+		Statistics(int pageSize) {
+			this.pageSize = pageSize;
+		}
+	}
+	
+	/**
+	 * Constructs controller with page size within [10, 1000]
+	 * starting from 50 messages
+	 * */
+	public PageSizeController() {
+		this(10, 1000, 50);
+	}
+	
+	/**
+	 * Constructs controller
+	 * @param minPageSize min page size
+	 * @param maxPageSize max page size
+	 * @param initialPageSize page size for keys without observations
+	 * */
+	public PageSizeController(int minPageSize, int maxPageSize, int initialPageSize) {
+		
+		if(minPageSize < 1)
+			throw new IllegalArgumentException("minPageSize < 1");
+		
+		if(maxPageSize < minPageSize)
+			throw new IllegalArgumentException("maxPageSize < minPageSize");
+		
+		if(initialPageSize < minPageSize || initialPageSize > maxPageSize)
+			throw new IllegalArgumentException("initialPageSize isn't within [minPageSize, maxPageSize]");
+		
+		this.minPageSize = minPageSize;
+		this.maxPageSize = maxPageSize;
+		this.initialPageSize = initialPageSize;
+	}
+	
+	/**
+	 * Sets target time between sending the request and
+	 * receiving the parsed response
+	 * */
+	public void setTargetResponseMillis(long millis) {
+		
+		if(millis <= 0)
+			throw new IllegalArgumentException("millis <= 0");
+		
+		this.targetResponseNanos = millis * 1000000L;
+	}
+	
+	/**
+	 * Sets target time the reader thread spends to parse a page
+	 * */
+	public void setTargetParseMillis(long millis) {
+		
+		if(millis <= 0)
+			throw new IllegalArgumentException("millis <= 0");
+		
+		this.targetParseNanos = millis * 1000000L;
+	}
+	
+	/**
+	 * Sets target stanza size in bytes
+	 * */
+	public void setTargetBytes(long bytes) {
+		
+		if(bytes <= 0)
+			throw new IllegalArgumentException("bytes <= 0");
+		
+		this.targetBytes = bytes;
+	}
+	
+	/**
+	 * Returns page size for the next request
+	 * @param key server or contact jid
+	 * */
+	public synchronized int getPageSize(String key) {
+		
+		final Statistics stats = statistics.get(key);
+		
+		return stats == null ? initialPageSize : (int) Math.round(stats.pageSize);
+	}
+	
+	/**
+	 * Records observation of the received page
+	 * @param key server or contact jid
+	 * @param received number of messages in the page
+	 * @param responseNanos time between sending the request and
+	 * receiving the parsed response
+	 * @param parseNanos time spent to parse the response
+	 * @param bytes stanza size or its estimation, see {@link #estimateBytes(int, int)}
+	 * */
+	public synchronized void record(String key, int received, long responseNanos, long parseNanos, long bytes) {
+		
+		if(received <= 0) return;
+		
+		Statistics stats = statistics.get(key);
+		
+		if(stats == null) {
+			stats = new Statistics(initialPageSize);
+			statistics.put(key, stats);
+		}
+		
+		fitResponseTime(stats, received, responseNanos);
+		stats.parseNanosPerMessage = smooth(stats.parseNanosPerMessage, (double) parseNanos / received);
+		stats.bytesPerMessage = smooth(stats.bytesPerMessage, (double) bytes / received);
+		
+		double desired = maxPageSize;
+		
+		if(stats.bytesPerMessage > 0) {
+			desired = Math.min(desired, targetBytes / stats.bytesPerMessage);
+		}
+		
+		if(stats.parseNanosPerMessage > 0) {
+			desired = Math.min(desired, targetParseNanos / stats.parseNanosPerMessage);
+		}
+		
+		if(stats.responseNanosPerMessage > 0 && stats.latencyNanos < targetResponseNanos) {
+			desired = Math.min(desired, (targetResponseNanos - stats.latencyNanos) / stats.responseNanosPerMessage);
+		}
+		
+		desired = Math.max(stats.pageSize / 2, Math.min(stats.pageSize * 2, desired));
+		stats.pageSize = Math.max(minPageSize, Math.min(maxPageSize, desired));
+	}
+	
+	/**
+	 * Forgets observations of the key
+	 * */
+	public synchronized void reset(String key) {
+		statistics.remove(key);
+	}
+	
+	/**
+	 * Estimates stanza size of the page, see {@link Metrics#estimateSize(int, long)}
+	 * @param messages number of messages
+	 * @param bodiesLength total length of bodies in chars
+	 * */
+	public static long estimateBytes(int messages, int bodiesLength) {
+		return Metrics.estimateSize(messages, bodiesLength);
+	}
+	
+	/**
+	 * Updates moments with the observation and fits latency
+	 * and cost per message by linear regression
+	 * */
+	private static void fitResponseTime(Statistics stats, int received, long responseNanos) {
+		
+		final double n = received;
+		final double t = responseNanos;
+		
+		if(stats.meanN < 0) {
+			stats.meanN = n;
+			stats.meanT = t;
+			stats.meanNN = n * n;
+			stats.meanNT = n * t;
+		} else {
+			stats.meanN += regressionWeight * (n - stats.meanN);
+			stats.meanT += regressionWeight * (t - stats.meanT);
+			stats.meanNN += regressionWeight * (n * n - stats.meanNN);
+			stats.meanNT += regressionWeight * (n * t - stats.meanNT);
+		}
+		
+		final double variance = stats.meanNN - stats.meanN * stats.meanN;
+		
+		if(variance > minRelativeVariance * stats.meanN * stats.meanN) {
+			
+			final double slope = (stats.meanNT - stats.meanN * stats.meanT) / variance;
+			final double intercept = stats.meanT - slope * stats.meanN;
+			
+			if(slope > 0 && intercept >= 0) {
+				stats.responseNanosPerMessage = slope;
+				stats.latencyNanos = intercept;
+				return;
+			}
+		}
+		
+		// sizes are too close or noisy, the conservative estimate
+		stats.responseNanosPerMessage = stats.meanT / stats.meanN;
+		stats.latencyNanos = 0;
+	}
+	
+	private static double smooth(double smoothed, double value) {
+		return smoothed < 0 ? value : smoothed + weight * (value - smoothed);
+	}
+	
+}
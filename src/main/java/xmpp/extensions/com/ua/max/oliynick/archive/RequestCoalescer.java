@@ -0,0 +1,241 @@
+package xmpp.extensions.com.ua.max.oliynick.archive;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.jivesoftware.smack.SmackException;
+import org.jivesoftware.smack.XMPPConnection;
+import org.jivesoftware.smack.XMPPException;
+import org.jivesoftware.smack.XMPPException.XMPPErrorException;
+import org.jivesoftware.smack.packet.IQ;
+
+import xmpp.extensions.com.ua.max.oliynick.iq.ChatListRequestIQ;
+import xmpp.extensions.com.ua.max.oliynick.iq.ChatListResponceIQ;
+import xmpp.extensions.com.ua.max.oliynick.iq.ChatListRetrieveRequestIQ;
+import xmpp.extensions.com.ua.max.oliynick.iq.ChatListRetrieveResultIQ;
+
+/**
+ * <p>
+ * Deduplicates identical archive requests which are in flight at the same
+ * time. Requests are identical if they have the same type, recipient and
+ * 'with', 'start', 'end', 'max' and 'after' values. The first caller sends
+ * the IQ, concurrent callers wait for its response and receive the same
+ * result or exception
+ * </p>
+ * <p>
+ * Results are shared between callers and must not be modified
+ * </p>
+ * @author Max Oliynick
+ * */
+public final class RequestCoalescer {
+	
+	private final XMPPConnection connection;
+	
+	/**
+	 * Requests in flight, guarded by the instance monitor
+	 * */
+	private final Map<RequestKey, Call> calls = new HashMap<>();
+	
+	/**
+	 * Number of sent requests and number of
+	 * callers which joined a request in flight
+	 * */
+	private long sent;
+	private long coalesced;
+	
+	/**
+	 * Constructs coalescer
+	 * @param connection connection to send requests
+	 * */
+	public RequestCoalescer(XMPPConnection connection) {
+		
+		if(connection == null)
+			throw new IllegalArgumentException("connection == null");
+		
+		this.connection = connection;
+	}
+	
+	/**
+	 * Sends retrieve request or joins identical request in flight
+	 * @return received page
+	 * @throws XMPPErrorException if server responded with an error
+	 * @throws SmackException if no response was received or connection was lost
+	 * */
+	public ChatListRetrieveResultIQ retrieve(ChatListRetrieveRequestIQ request)
+			throws InterruptedException, XMPPException, SmackException {
+		
+		if(request == null)
+			throw new IllegalArgumentException("request == null");
+		
+		return (ChatListRetrieveResultIQ) send(request, new RequestKey(ChatListRetrieveRequestIQ.class, request.getTo(),
+				request.getWith(), request.getStart(), request.getEnd(), request.getMax(), request.getAfter()));
+	}
+	
+	/**
+	 * Sends list request or joins identical request in flight
+	 * @return received list
+	 * @throws XMPPErrorException if server responded with an error
+	 * @throws SmackException if no response was received or connection was lost
+	 * */
+	public ChatListResponceIQ list(ChatListRequestIQ request)
+			throws InterruptedException, XMPPException, SmackException {
+		
+		if(request == null)
+			throw new IllegalArgumentException("request == null");
+		
+		return (ChatListResponceIQ) send(request, new RequestKey(ChatListRequestIQ.class, request.getTo(),
+				request.getWith(), request.getStart(), request.getEnd(), request.getMax(), request.getAfter()));
+	}
+	
+	/**
+	 * Returns number of requests which were actually sent
+	 * */
+	public synchronized long getSent() {
+		return sent;
+	}
+	
+	/**
+	 * Returns number of callers which received
+	 * response on a request sent by another caller
+	 * */
+	public synchronized long getCoalesced() {
+		return coalesced;
+	}
+	
+	private IQ send(IQ request, RequestKey key)
+			throws InterruptedException, XMPPException, SmackException {
+		
+		final Call call;
+		final boolean leader;
+		
+		synchronized(this) {
+			
+			final Call inFlight = calls.get(key);
+			
+			leader = inFlight == null;
+			
+			if(leader) {
+				call = new Call();
+				calls.put(key, call);
+				++sent;
+			} else {
+				call = inFlight;
+				++coalesced;
+			}
+		}
+		
+		if(leader) {
+			
+			IQ result = null;
+			Throwable failure = null;
+			
+			try {
+				result = connection.createPacketCollectorAndSend(request).nextResultOrThrow();
+			} catch (Throwable e) {
+				// errors are passed to waiters as well, otherwise they'd see null result
+				failure = e;
+			} finally {
+				// later requests aren't joined to the completed one
+				synchronized(this) {
+					calls.remove(key);
+				}
+				
+				call.complete(result, failure);
+			}
+		}
+		
+		return call.await();
+	}
+	
+	/**
+	 * Request in flight
+	 * */
+	private static final class Call {
+		
+		private IQ result;
+		private Throwable failure;
+		private boolean done;
+		
+		synchronized void complete(IQ result, Throwable failure) {
+			this.result = result;
+			this.failure = failure;
+			this.done = true;
+			notifyAll();
+		}
+		
+		synchronized IQ await() throws InterruptedException, XMPPException, SmackException {
+			
+			while(!done) {
+				wait();
+			}
+			
+			if(failure instanceof XMPPException) throw (XMPPException) failure;
+			if(failure instanceof SmackException) throw (SmackException) failure;
+			if(failure instanceof RuntimeException) throw (RuntimeException) failure;
+			if(failure instanceof Error) throw (Error) failure;
+			if(failure != null) throw new SmackException(failure);
+			
+			return result;
+		}
+		
+	}
+	
+	/**
+	 * Identifies request by its type and attributes
+	 * */
+	private static final class RequestKey {
+		
+		private final Class<?> type;
+		private final String to;
+		private final String with;
+		private final String start;
+		private final String end;
+		private final int max;
+		private final String after;
+		
+		RequestKey(Class<?> type, String to, String with, String start, String end, int max, String after) {
+			this.type = type;
+			this.to = to;
+			this.with = with;
+			this.start = start;
+			this.end = end;
+			this.max = max;
+			this.after = after;
+		}
+		
+		@Override
+		public int hashCode() {
+			
+			int result = type.hashCode();
+			
+			result = 31 * result + hash(to);
+			result = 31 * result + hash(with);
+			result = 31 * result + hash(start);
+			result = 31 * result + hash(end);
+			result = 31 * result + max;
+			return 31 * result + hash(after);
+		}
+		
+		@Override
+		public boolean equals(Object obj) {
+			
+			if(this == obj) return true;
+			if(!(obj instanceof RequestKey)) return false;
+			
+			final RequestKey other = (RequestKey) obj;
+			
+			return type == other.type && max == other.max && equal(to, other.to) && equal(with, other.with)
+					&& equal(start, other.start) && equal(end, other.end) && equal(after, other.after);
+		}
+		
+		private static int hash(String value) {
+			return value == null ? 0 : value.hashCode();
+		}
+		
+		private static boolean equal(String s1, String s2) {
+			return s1 == null ? s2 == null : s1.equals(s2);
+		}
+		
+	}
+	
+}
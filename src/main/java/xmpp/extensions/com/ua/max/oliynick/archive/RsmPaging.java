@@ -0,0 +1,60 @@
+package xmpp.extensions.com.ua.max.oliynick.archive;
+
+import org.jivesoftware.smack.XMPPException.XMPPErrorException;
+import org.jivesoftware.smack.packet.XMPPError;
+
+import xmpp.extensions.com.ua.max.oliynick.iq.ChatListRetrieveRequestIQ;
+import xmpp.extensions.com.ua.max.oliynick.iq.ChatListRetrieveResultIQ;
+
+/**
+ * <p>
+ * RSM paging rules shared by archive retrieval helpers
+ * </p>
+ * @author Max Oliynick
+ * */
+final class RsmPaging {
+	
+	private RsmPaging() {}
+	
+	/**
+	 * Creates request for the page which follows 'after' value
+	 * @param template request template
+	 * @param after 'last' value of the previous page, null for the first page
+	 * */
+	static ChatListRetrieveRequestIQ nextRequest(ChatListRetrieveRequestIQ template, String after) {
+		
+		final ChatListRetrieveRequestIQ request = new ChatListRetrieveRequestIQ(template.getWith());
+		
+		request.setTo(template.getTo());
+		request.setStart(template.getStart());
+		request.setEnd(template.getEnd());
+		request.setMax(template.getMax());
+		request.setAfter(after);
+		
+		return request;
+	}
+	
+	/**
+	 * Returns whether the page is the last one
+	 * */
+	static boolean isLast(ChatListRetrieveResultIQ page) {
+		
+		if(page.getLastValue() == null) return true;
+		
+		// RSM 'count' tells whether there is something after this page
+		return page.getCount() >= 0 && page.getFirstIndex() >= 0 && page.getMessageCount() > 0
+				&& page.getFirstIndex() + page.getMessageCount() >= page.getCount();
+	}
+	
+	/**
+	 * Returns whether the exception just means there are no more pages.
+	 * Some servers respond with 'item-not-found' on a page after the last one
+	 * @param exception exception received instead of page
+	 * @param received number of already received pages
+	 * */
+	static boolean isEndOfPages(Exception exception, int received) {
+		return received > 0 && exception instanceof XMPPErrorException &&
+				((XMPPErrorException) exception).getXMPPError().getCondition() == XMPPError.Condition.item_not_found;
+	}
+
+}
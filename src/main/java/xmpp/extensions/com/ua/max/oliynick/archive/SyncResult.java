@@ -0,0 +1,79 @@
+package xmpp.extensions.com.ua.max.oliynick.archive;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * <p>
+ * Collections which were found by {@link ArchiveSynchronizer}
+ * </p>
+ * @author Max Oliynick
+ * */
+public final class SyncResult {
+	
+	private final List<CollectionKey> added;
+	private final List<CollectionKey> changed;
+	private final List<CollectionKey> removed;
+	
+	/**
+	 * Whether XEP-0136 replication was used
+	 * */
+	private boolean replicated;
+	
+	SyncResult() {
+		added = new ArrayList<>();
+		changed = new ArrayList<>();
+		removed = new ArrayList<>();
+	}
+	
+	/**
+	 * Returns collections which appeared since the previous synchronization
+	 * */
+	public List<CollectionKey> getAdded() {
+		return Collections.unmodifiableList(added);
+	}
+	
+	/**
+	 * Returns collections which were changed, replication only.
+	 * Replication doesn't distinguish new collections from changed ones,
+	 * so all of them are reported here
+	 * */
+	public List<CollectionKey> getChanged() {
+		return Collections.unmodifiableList(changed);
+	}
+	
+	/**
+	 * Returns collections which were removed, replication only
+	 * */
+	public List<CollectionKey> getRemoved() {
+		return Collections.unmodifiableList(removed);
+	}
+	
+	public boolean isReplicated() {
+		return replicated;
+	}
+	
+	void setReplicated(boolean replicated) {
+		this.replicated = replicated;
+	}
+	
+	void addAdded(CollectionKey key) {
+		added.add(key);
+	}
+	
+	void addChanged(CollectionKey key) {
+		changed.add(key);
+	}
+	
+	void addRemoved(CollectionKey key) {
+		removed.add(key);
+	}
+
+	@Override
+	public String toString() {
+		return "SyncResult [added=" + added + ", changed=" + changed + ", removed=" + removed
+				+ ", replicated=" + replicated + "]";
+	}
+
+}
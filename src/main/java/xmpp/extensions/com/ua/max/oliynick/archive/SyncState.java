@@ -0,0 +1,142 @@
+package xmpp.extensions.com.ua.max.oliynick.archive;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * <p>
+ * What {@link ArchiveSynchronizer} already knows about the archive:
+ * the newest collection start per contact, the newest collection start
+ * seen by synchronizations of the whole archive, time of the latest
+ * replication and versions of replicated collections. Synchronization of a single contact advances only the
+ * start of that contact, since other contacts may still have unknown
+ * collections which are older. State can be persisted by caller
+ * using its getters and restored using its setters
+ * </p>
+ * @author Max Oliynick
+ * */
+public final class SyncState {
+	
+	/**
+	 * Newest known collection start per contact
+	 * */
+	private final Map<String, String> newestStarts;
+	
+	/**
+	 * Newest collection start seen by synchronizations of the whole archive,
+	 * all collections which start earlier are known
+	 * */
+	private String newestStart;
+	
+	/**
+	 * Time of the latest successful synchronization,
+	 * used as 'start' of the next replication request
+	 * */
+	private String replicationTime;
+	
+	/**
+	 * Latest replicated version per collection
+	 * */
+	private final Map<CollectionKey, Integer> versions;
+	
+	/**
+	 * Constructs an empty state, the first
+	 * synchronization lists whole archive
+	 * */
+	public SyncState() {
+		newestStarts = new HashMap<>();
+		versions = new HashMap<>();
+	}
+	
+	/**
+	 * Records known collection of the contact
+	 * @param with 'with' attribute of the collection
+	 * @param start 'start' attribute of the collection
+	 * */
+	public synchronized void update(String with, String start) {
+		
+		final String known = newestStarts.get(with);
+		
+		if(known == null || Timestamps.compare(known, start) < 0) {
+			newestStarts.put(with, start);
+		}
+	}
+	
+	/**
+	 * Records collection seen by synchronization of the whole archive,
+	 * advances the start the next such synchronization lists from
+	 * @param start 'start' attribute of the collection
+	 * */
+	public synchronized void updateNewest(String start) {
+		if(newestStart == null || Timestamps.compare(newestStart, start) < 0) {
+			newestStart = start;
+		}
+	}
+	
+	/**
+	 * Records replicated version of the collection
+	 * @param key collection
+	 * @param version version reported by server
+	 * @return false if the same or a newer version was already recorded
+	 * */
+	public synchronized boolean updateVersion(CollectionKey key, int version) {
+		
+		final Integer known = versions.get(key);
+		
+		if(known != null && known >= version) return false;
+		
+		versions.put(key, version);
+		return true;
+	}
+	
+	/**
+	 * Returns latest replicated version of the collection
+	 * @return version or -1 if nothing is known
+	 * */
+	public synchronized int getVersion(CollectionKey key) {
+		
+		final Integer known = versions.get(key);
+		
+		return known == null ? -1 : known;
+	}
+	
+	/**
+	 * Returns newest known collection start of the contact
+	 * @return start or null if nothing is known
+	 * */
+	public synchronized String getNewestStart(String with) {
+		return newestStarts.get(with);
+	}
+	
+	/**
+	 * Returns newest collection start seen by
+	 * synchronizations of the whole archive
+	 * @return start or null if nothing is known
+	 * */
+	public synchronized String getNewestStart() {
+		return newestStart;
+	}
+	
+	/**
+	 * Returns snapshot of newest starts per contact
+	 * */
+	public synchronized Map<String, String> getNewestStarts() {
+		return Collections.unmodifiableMap(new HashMap<>(newestStarts));
+	}
+	
+	public synchronized String getReplicationTime() {
+		return replicationTime;
+	}
+	
+	public synchronized void setReplicationTime(String replicationTime) {
+		this.replicationTime = replicationTime;
+	}
+	
+	@Override
+	public synchronized String toString() {
+		return "SyncState [newestStart=" + newestStart + ", replicationTime=" + replicationTime 
+				+ ", contacts=" + newestStarts.size() + "]";
+	}
+	
+}
@@ -0,0 +1,39 @@
+package xmpp.extensions.com.ua.max.oliynick.archive;
+
+import xmpp.extensions.com.ua.max.oliynick.util.Xep0082;
+
+/**
+ * <p>
+ * Helpers for XEP-0082 timestamps used as collection starts
+ * </p>
+ * @author Max Oliynick
+ * */
+final class Timestamps {
+	
+	private Timestamps() {}
+	
+	/**
+	 * Compares two XEP-0082 timestamps by their instants. Malformed
+	 * timestamps are ordered after all valid ones and lexicographically
+	 * among themselves, so that the order stays transitive
+	 * */
+	static int compare(String t1, String t2) {
+		return compare(Xep0082.parseMillisOrDefault(t1), t1, Xep0082.parseMillisOrDefault(t2), t2);
+	}
+	
+	/**
+	 * Compares two timestamps already parsed into epoch millis
+	 * */
+	static int compare(long millis1, String t1, long millis2, String t2) {
+		
+		final boolean malformed1 = millis1 == Xep0082.unknown;
+		final boolean malformed2 = millis2 == Xep0082.unknown;
+		
+		if(malformed1 && malformed2) return t1.compareTo(t2);
+		if(malformed1) return 1;
+		if(malformed2) return -1;
+		
+		return millis1 < millis2 ? -1 : (millis1 == millis2 ? 0 : 1);
+	}
+
+}
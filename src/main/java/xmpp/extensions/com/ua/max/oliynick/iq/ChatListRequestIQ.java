@@ -17,6 +17,8 @@ public final class ChatListRequestIQ extends IQ {
 	private String start = null;
 	private String end = null;
 	private int max;
+	private String after = null;
+	private String before = null;
 	
 	/**
 	 * Constructs an empty IQ packet
@@ -32,7 +34,7 @@ public final class ChatListRequestIQ extends IQ {
 	public ChatListRequestIQ(final String with) {
 		this(with, -1);
 	}
-
+	
 	/**
 	 * Constructs IQ packet with given parameters
 	 * @param with user's jid
@@ -47,7 +49,7 @@ public final class ChatListRequestIQ extends IQ {
 	public String getWith() {
 		return with;
 	}
-
+	
 	public void setWith(String with) {
 		this.with = with;
 	}
@@ -55,27 +57,51 @@ public final class ChatListRequestIQ extends IQ {
 	public String getStart() {
 		return start;
 	}
-
+	
 	public void setStart(String start) {
 		this.start = start;
 	}
-
+	
 	public String getEnd() {
 		return end;
 	}
-
+	
 	public void setEnd(String end) {
 		this.end = end;
 	}
-
+	
 	public int getMax() {
 		return max;
 	}
-
+	
 	public void setMax(int max) {		
 		this.max = max;
 	}
-
+	
+	public String getAfter() {
+		return after;
+	}
+	
+	/**
+	 * Sets RSM 'after' value, which is the 'last'
+	 * value of the previous page
+	 * */
+	public void setAfter(String after) {
+		this.after = after;
+	}
+	
+	public String getBefore() {
+		return before;
+	}
+	
+	/**
+	 * Sets RSM 'before' value, which is the 'first' value
+	 * of the next page, an empty value requests the last page
+	 * */
+	public void setBefore(String before) {
+		this.before = before;
+	}
+	
 	@Override
 	protected IQChildElementXmlStringBuilder getIQChildElementBuilder(
 			IQChildElementXmlStringBuilder xml) {
@@ -86,15 +112,34 @@ public final class ChatListRequestIQ extends IQ {
 		
 		xml.rightAngleBracket();
 		
-		if(getMax() > 0) {
+		if(getMax() > 0 || getAfter() != null || getBefore() != null) {
 		
 			xml.halfOpenElement("set").
 			attribute("xmlns", "http://jabber.org/protocol/rsm").
 			rightAngleBracket();
 			
-			xml.halfOpenElement("max").
-			rightAngleBracket().append(String.valueOf(getMax())).
-			closeElement("max");
+			if(getMax() > 0) {
+				xml.halfOpenElement("max").
+				rightAngleBracket().append(String.valueOf(getMax())).
+				closeElement("max");
+			}
+			
+			if(getAfter() != null) {
+				xml.openElement("after").
+				escape(getAfter()).
+				closeElement("after");
+			}
+			
+			if(getBefore() != null) {
+				
+				if(getBefore().isEmpty()) {
+					xml.emptyElement("before");
+				} else {
+					xml.openElement("before").
+					escape(getBefore()).
+					closeElement("before");
+				}
+			}
 			
 			xml.closeElement("set");
 			
@@ -102,11 +147,11 @@ public final class ChatListRequestIQ extends IQ {
 		
 		return xml;
 	}
-
+	
 	@Override
 	public String toString() {
 		return "ChatListRequestIQ [with=" + with + ", start=" + start
-				+ ", end=" + end + ", max=" + max + "]";
+				+ ", end=" + end + ", max=" + max + ", after=" + after + ", before=" + before + "]";
 	}
 	
 }
@@ -1,14 +1,20 @@
 package xmpp.extensions.com.ua.max.oliynick.iq;
 
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
-import java.util.regex.Pattern;
+import java.util.concurrent.atomic.AtomicBoolean;
 
+import org.jivesoftware.smack.packet.ExtensionElement;
 import org.jivesoftware.smack.packet.IQ;
 
 import xmpp.extensions.com.ua.max.oliynick.provider.ChatListResponceIQProvider;
+import xmpp.extensions.com.ua.max.oliynick.util.InstancePool;
+import xmpp.extensions.com.ua.max.oliynick.util.ChunkedXmlWriter;
+import xmpp.extensions.com.ua.max.oliynick.util.Xep0082;
 
 /**
  * <p>
@@ -20,18 +26,41 @@ import xmpp.extensions.com.ua.max.oliynick.provider.ChatListResponceIQProvider;
 public final class ChatListResponceIQ extends IQ {
 
 	/**
-	 * 'chat' tag
+	 * Parts of the 'chat' tag
 	 * */
-    private static final String chatStr = "<chat xmlns='urn:xmpp:archive' with='?' start='?'/>";
+    private static final String chatOpen = "<chat xmlns='urn:xmpp:archive'";
+    private static final String chatClose = "/>";
+    
     /**
-     * Substitution pattern
+     * Dates buffer for more chats than this is
+     * dropped when the instance is cleared
      * */
-    private static final Pattern pattern = Pattern.compile("\\?");
-
+    private static final int maxRetainedChats = 4096;
+    
     /**
-     * Contains 'chat' tags
+     * Recycled instances, see {@link #obtain()}
      * */
-    private final StringBuilder chatsBuffer;
+    private static final InstancePool<ChatListResponceIQ> pool = new InstancePool<ChatListResponceIQ>(16) {
+    	
+    	@Override
+    	protected ChatListResponceIQ newInstance() {
+    		final ChatListResponceIQ iq = new ChatListResponceIQ();
+    		iq.pooled = true;
+    		return iq;
+    	}
+    	
+    	@Override
+    	protected void reset(ChatListResponceIQ iq) {
+    		iq.clearBuffers();
+    		iq.resetStanza();
+    	}
+    	
+    	@Override
+    	protected boolean markPooled(ChatListResponceIQ iq, boolean pooled) {
+    		return iq.released.compareAndSet(!pooled, pooled);
+    	}
+    };
+
  
     /**
      * index attribute and value of the 'first' tag
@@ -53,18 +82,67 @@ public final class ChatListResponceIQ extends IQ {
      * set of available chat dates
      * */
     private final List<String> startDate;
+    
+    /**
+     * chat dates in epoch millis, parsed while appending
+     * */
+    private long [] startMillis;
+    
+    /**
+     * 'with' attributes of the chats
+     * */
+    private final List<String> withList;
+    
+    /**
+     * Whether the instance was obtained from the pool
+     * */
+    private boolean pooled;
+    
+    /**
+     * Whether the instance is released to the pool
+     * */
+    private final AtomicBoolean released = new AtomicBoolean();
 
     /**
      * Constructs an empty {@link ChatListResponceIQ} instance
      * */
     public ChatListResponceIQ() {
         super(ChatListResponceIQProvider.elementName, ChatListResponceIQProvider.namespace);
-        chatsBuffer = new StringBuilder();
         startDate = new ArrayList<>(15);
+        withList = new ArrayList<>(15);
+        startMillis = new long[15];
         firstIndex = -1;
         firstValue = lastValue = null;
     }
 
+    /**
+     * Returns an empty instance, recycled one if available.
+     * The instance should be returned by {@link #recycle()}
+     * when it isn't needed anymore
+     * */
+    public static ChatListResponceIQ obtain() {
+    	return pool.acquire();
+    }
+    
+    /**
+     * Clears the instance and returns it to the pool if it was
+     * {@link #obtain() obtained} from it, otherwise does nothing. Neither
+     * the instance nor values returned by its getters may be used afterwards
+     * @throws IllegalStateException if the pooled instance is already recycled
+     * */
+    public void recycle() {
+    	if(pooled) {
+    		pool.release(this);
+    	}
+    }
+    
+    /**
+     * Returns whether the instance was obtained from the pool
+     * */
+    public boolean isPooled() {
+    	return pooled;
+    }
+
     /**
      * Appends 'chat' tag
      * @param with user jid
@@ -78,9 +156,13 @@ public final class ChatListResponceIQ extends IQ {
         if(start == null)
         	throw new IllegalArgumentException("start == null");
 
-        chatsBuffer.append(chatStr.replaceFirst(pattern.pattern(), with).replaceFirst(pattern.pattern(), start));
+        if(withList.size() == startMillis.length) {
+        	startMillis = Arrays.copyOf(startMillis, startMillis.length * 2);
+        }
         
+        startMillis[withList.size()] = Xep0082.parseMillisOrDefault(start);
         startDate.add(start);
+        withList.add(with);
         count++;
     }
 
@@ -93,13 +175,47 @@ public final class ChatListResponceIQ extends IQ {
         firstValue = value;
     }
 
+    /**
+     * Sets RSM 'count' value. By default it's the number of
+     * appended chats, archive side sets the total number of
+     * chats which match the request
+     * */
+    public void setCount(int count) {
+        this.count = count;
+    }
+
+    /**
+     * Removes appended chats and RSM values, so that
+     * the instance is the same as a new one
+     * */
     public void clearBuffers() {
-        chatsBuffer.setLength(0);
+        if(startMillis.length > maxRetainedChats) {
+        	startMillis = new long[15];
+        }
+        
+        startDate.clear();
+        withList.clear();
         count = 0;
         firstIndex = -1;
         firstValue = lastValue = null;
     }
     
+    /**
+     * Resets attributes of the stanza itself
+     * */
+    private void resetStanza() {
+    	setType(Type.get);
+    	setStanzaId(null);
+    	setTo(null);
+    	setFrom(null);
+    	setError(null);
+    	setLanguage(null);
+    	
+    	for(final ExtensionElement extension : getExtensions()) {
+    		removeExtension(extension);
+    	}
+    }
+    
     public int getFirstIndex() {
     	return firstIndex;
     }
@@ -119,6 +235,43 @@ public final class ChatListResponceIQ extends IQ {
     public Collection<String> getStartDates() {
     	return Collections.unmodifiableCollection(startDate);
     }
+    
+    /**
+     * Returns number of appended chats
+     * */
+    public int getChatCount() {
+    	return withList.size();
+    }
+    
+    /**
+     * Returns 'with' attribute of the chat
+     * @param index index of the chat
+     * */
+    public String getWith(int index) {
+    	return withList.get(index);
+    }
+    
+    /**
+     * Returns 'start' attribute of the chat
+     * @param index index of the chat
+     * */
+    public String getStartDate(int index) {
+    	return startDate.get(index);
+    }
+    
+    /**
+     * Returns 'start' attribute of the chat in epoch millis
+     * @param index index of the chat
+     * @return millis or {@link Xep0082#unknown} if
+     * the date is malformed
+     * */
+    public long getStartMillis(int index) {
+    	
+    	if(index < 0 || index >= withList.size())
+    		throw new IndexOutOfBoundsException(String.valueOf(index));
+    	
+    	return startMillis[index];
+    }
 
     @Override
 	public String toString() {
@@ -139,9 +292,26 @@ public final class ChatListResponceIQ extends IQ {
     		return xml;
     	}
     	
-    	xml.rightAngleBracket().
-    	append(chatsBuffer.toString()).
-    	halfOpenElement("set").
+    	xml.rightAngleBracket();
+    	
+    	// chats are escaped straight into chunks of the builder, chunks
+    	// are immutable, so later changes of this IQ don't affect the result
+    	final ChunkedXmlWriter out = new ChunkedXmlWriter(ChunkedXmlWriter.into(xml));
+    	
+    	try {
+    		for(int i = 0; i < withList.size(); ++i) {
+    			out.append(chatOpen).attribute("with", withList.get(i)).
+    			attribute("start", startDate.get(i)).append(chatClose);
+    		}
+    		
+    		out.flush();
+    		
+    	} catch (IOException e) {
+    		// the builder doesn't throw
+    		throw new IllegalStateException(e);
+    	}
+    	
+    	xml.halfOpenElement("set").
         attribute("xmlns", "http://jabber.org/protocol/rsm").
         rightAngleBracket();
     	
@@ -1,13 +1,20 @@
 package xmpp.extensions.com.ua.max.oliynick.iq;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
 
+import org.jivesoftware.smack.packet.ExtensionElement;
 import org.jivesoftware.smack.packet.IQ;
 
 import xmpp.extensions.com.ua.max.oliynick.provider.ChatListRetrieveIQProvider;
+import xmpp.extensions.com.ua.max.oliynick.util.ChunkedXmlWriter;
+import xmpp.extensions.com.ua.max.oliynick.util.InstancePool;
+import xmpp.extensions.com.ua.max.oliynick.util.Xep0082;
 
 /**
  * <p>
@@ -28,6 +35,12 @@ public final class ChatListRetrieveResultIQ extends IQ {
 	 * */
 	private String start = null;
 	
+	/**
+	 * 'start' attribute in epoch millis, {@link Xep0082#unknown}
+	 * if it isn't specified or malformed
+	 * */
+	private long startMillis = Xep0082.unknown;
+	
 	/**
 	 * Represents 'subject' attribute
 	 * */
@@ -57,6 +70,40 @@ public final class ChatListRetrieveResultIQ extends IQ {
      * value of the 'count' tag
      * */
     private int count;
+    
+    /**
+     * Time spent by provider to parse this IQ in nanos,
+     * zero if the IQ wasn't parsed
+     * */
+    private long parseNanos;
+	
+	/**
+	 * Whether the instance was obtained from the pool
+	 * */
+	private boolean pooled;
+	
+	/**
+	 * Whether the instance is released to the pool
+	 * */
+	private final AtomicBoolean released = new AtomicBoolean();
+	
+	/**
+	 * Decoding of the messages captured by provider, null
+	 * if this IQ doesn't wait for decoding
+	 * */
+	private volatile PendingDecode pendingDecode;
+	
+	/**
+	 * Storage of a recycled instance is trimmed
+	 * if its bodies were longer than this
+	 * */
+	private static final int maxRetainedChars = 1 << 18;
+	
+	/**
+	 * Recycled instances with plain and compact storage, see {@link #obtain(boolean)}
+	 * */
+	private static final InstancePool<ChatListRetrieveResultIQ> plainPool = newPool(false);
+	private static final InstancePool<ChatListRetrieveResultIQ> compactPool = newPool(true);
 	
 	/**
 	 * Defines direction of chat message
@@ -95,31 +142,31 @@ public final class ChatListRetrieveResultIQ extends IQ {
 			this.body = body;
 			this.direction = direction;
 		}
-
+		
 		public int getSecs() {
 			return secs;
 		}
-
+		
 		public void setSecs(int secs) {
 			this.secs = secs;
 		}
-
+		
 		public String getBody() {
 			return body;
 		}
-
+		
 		public void setBody(String body) {
 			this.body = body;
 		}
-
+		
 		public Direction getDirection() {
 			return direction;
 		}
-
+		
 		public void setDirection(Direction direction) {
 			this.direction = direction;
 		}
-
+		
 		@Override
 		public String toString() {
 			return "secs=".concat(String.valueOf(secs)).concat(", body=").concat(body).
@@ -128,87 +175,566 @@ public final class ChatListRetrieveResultIQ extends IQ {
 		
 	}
 	
+	/**
+	 * Messages, null if compact, compressed or lazy storage is used
+	 * */
 	private final List<WrappedBody> wrappedMessages;
-
+	
+	/**
+	 * Columnar messages storage, null if
+	 * compact storage isn't used
+	 * */
+	private final CompactMessageContent compactMessages;
+	
+	/**
+	 * Immutable compressed messages storage, null
+	 * if compressed storage isn't used
+	 * */
+	private final CompressedMessageContent compressedMessages;
+	
+	/**
+	 * Raw messages slice decoded on iteration, null
+	 * if lazy storage isn't used
+	 * */
+	private final LazyMessageContent lazyMessages;
+	
 	public ChatListRetrieveResultIQ() {
+		this(false);
+	}
+	
+	/**
+	 * Constructs an empty {@link ChatListRetrieveResultIQ} instance
+	 * @param compact whether messages should be kept in
+	 * {@link CompactMessageContent} columnar storage
+	 * */
+	public ChatListRetrieveResultIQ(boolean compact) {
+		this(compact, false);
+	}
+	
+	private ChatListRetrieveResultIQ(boolean compact, boolean lazy) {
 		super(ChatListRetrieveIQProvider.elementName, ChatListRetrieveIQProvider.namespace);
-		wrappedMessages = new ArrayList<>();
+		wrappedMessages = compact || lazy ? null : new ArrayList<WrappedBody>();
+		compactMessages = compact && !lazy ? new CompactMessageContent() : null;
+		compressedMessages = null;
+		lazyMessages = lazy ? new LazyMessageContent() : null;
+		count = firstIndex = -1;
+		firstValue = lastValue = null;
+	}
+	
+	/**
+	 * Constructs an empty instance which keeps messages in
+	 * {@link LazyMessageContent} storage, so that messages are decoded
+	 * only when they're iterated. Intended for consumers which need only
+	 * collection attributes, RSM values or the first few messages
+	 * */
+	public static ChatListRetrieveResultIQ newLazy() {
+		return new ChatListRetrieveResultIQ(false, true);
+	}
+	
+	/**
+	 * Constructs a read-only copy of the collection
+	 * which keeps compressed messages
+	 * */
+	private ChatListRetrieveResultIQ(ChatListRetrieveResultIQ source, CompressedMessageContent messages) {
+		super(ChatListRetrieveIQProvider.elementName, ChatListRetrieveIQProvider.namespace);
+		wrappedMessages = null;
+		compactMessages = null;
+		compressedMessages = messages;
+		lazyMessages = null;
+		copyAttributes(source);
+		copyStanza(source);
+	}
+	
+	/**
+	 * Copies collection attributes, RSM values and parse time
+	 * of the source, messages aren't copied
+	 * */
+	public void copyAttributes(ChatListRetrieveResultIQ source) {
+		
+		if(source == null)
+			throw new IllegalArgumentException("source == null");
+		
+		with = source.with;
+		start = source.start;
+		startMillis = source.startMillis;
+		subject = source.subject;
+		version = source.version;
+		firstIndex = source.firstIndex;
+		firstValue = source.firstValue;
+		lastValue = source.lastValue;
+		count = source.count;
+		parseNanos = source.parseNanos;
+	}
+	
+	private void copyStanza(ChatListRetrieveResultIQ source) {
+		setType(source.getType());
+		setStanzaId(source.getStanzaId());
+		setFrom(source.getFrom());
+		setTo(source.getTo());
+	}
+	
+	private static InstancePool<ChatListRetrieveResultIQ> newPool(final boolean compact) {
+		return new InstancePool<ChatListRetrieveResultIQ>(16) {
+			
+			@Override
+			protected ChatListRetrieveResultIQ newInstance() {
+				final ChatListRetrieveResultIQ iq = new ChatListRetrieveResultIQ(compact);
+				iq.pooled = true;
+				return iq;
+			}
+			
+			@Override
+			protected void reset(ChatListRetrieveResultIQ iq) {
+				iq.clearBuffers();
+				iq.resetStanza();
+			}
+			
+			@Override
+			protected boolean markPooled(ChatListRetrieveResultIQ iq, boolean pooled) {
+				return iq.released.compareAndSet(!pooled, pooled);
+			}
+		};
+	}
+	
+	/**
+	 * Returns an empty instance, recycled one if available.
+	 * The instance should be returned by {@link #recycle()}
+	 * when it isn't needed anymore
+	 * @param compact whether messages should be kept in
+	 * {@link CompactMessageContent} columnar storage
+	 * */
+	public static ChatListRetrieveResultIQ obtain(boolean compact) {
+		return (compact ? compactPool : plainPool).acquire();
+	}
+	
+	/**
+	 * Clears the instance and returns it to the pool if it was
+	 * {@link #obtain(boolean) obtained} from it, otherwise does nothing. Neither
+	 * the instance nor its cursors may be used afterwards
+	 * @throws IllegalStateException if the pooled instance is already recycled
+	 * */
+	public void recycle() {
+		if(pooled) {
+			(compactMessages != null ? compactPool : plainPool).release(this);
+		}
+	}
+	
+	/**
+	 * Returns whether the instance was obtained from the pool
+	 * */
+	public boolean isPooled() {
+		return pooled;
+	}
+	
+	/**
+	 * Removes messages, collection attributes and RSM values,
+	 * so that the instance is the same as a new one
+	 * @throws UnsupportedOperationException if messages are compressed
+	 * */
+	public void clearBuffers() {
+		
+		if(compressedMessages != null)
+			throw new UnsupportedOperationException("compressed collection is read-only");
+		
+		if(compactMessages != null) {
+			
+			final boolean large = compactMessages.getBodiesLength() > maxRetainedChars;
+			
+			compactMessages.clear();
+			
+			if(large) {
+				compactMessages.trimToSize();
+			}
+			
+		} else if(lazyMessages != null) {
+			
+			final boolean large = lazyMessages.getSliceLength() > maxRetainedChars;
+			
+			lazyMessages.clear();
+			
+			if(large) {
+				lazyMessages.trimToSize();
+			}
+			
+		} else {
+			wrappedMessages.clear();
+		}
+		
+		with = start = subject = null;
+		startMillis = Xep0082.unknown;
+		version = 0;
 		count = firstIndex = -1;
 		firstValue = lastValue = null;
+		parseNanos = 0;
+		pendingDecode = null;
+	}
+	
+	/**
+	 * Resets attributes of the stanza itself
+	 * */
+	private void resetStanza() {
+		setType(Type.get);
+		setStanzaId(null);
+		setTo(null);
+		setFrom(null);
+		setError(null);
+		setLanguage(null);
+		
+		for(final ExtensionElement extension : getExtensions()) {
+			removeExtension(extension);
+		}
+	}
+	
+	/**
+	 * Returns decoding of this IQ or null if the IQ isn't waiting for
+	 * decoding, see {@link ChatListRetrieveIQProvider#setDecodeExecutor}
+	 * */
+	public PendingDecode getPendingDecode() {
+		return pendingDecode;
+	}
+	
+	/**
+	 * Sets decoding of this IQ, called by provider
+	 * */
+	public void setPendingDecode(PendingDecode pendingDecode) {
+		this.pendingDecode = pendingDecode;
+	}
+	
+	/**
+	 * Returns decoded IQ, waits for decoding if needed. Stanza
+	 * attributes, e.g. id and type, are copied from this IQ
+	 * @return decoded IQ or this IQ if it doesn't wait for decoding
+	 * @throws ExecutionException if decoding failed
+	 * */
+	public ChatListRetrieveResultIQ getDecoded() throws InterruptedException, ExecutionException {
+		
+		final PendingDecode pending = pendingDecode;
+		
+		if(pending == null) return this;
+		
+		final ChatListRetrieveResultIQ decoded = pending.get();
+		
+		decoded.copyStanza(this);
+		return decoded;
 	}
 	
 	public String getWith() {
 		return with;
 	}
-
+	
 	public void setWith(String with) {
 		this.with = with;
 	}
-
+	
 	public String getStart() {
 		return start;
 	}
-
+	
 	public void setStart(String start) {
 		this.start = start;
+		this.startMillis = Xep0082.parseMillisOrDefault(start);
 	}
-
+	
+	/**
+	 * Returns 'start' attribute in epoch millis
+	 * @return millis or {@link Xep0082#unknown}
+	 * */
+	public long getStartMillis() {
+		return startMillis;
+	}
+	
 	public String getSubject() {
 		return subject;
 	}
-
+	
 	public void setSubject(String subject) {
 		this.subject = subject;
 	}
-
+	
 	public int getVersion() {
 		return version;
 	}
-
+	
 	public void setVersion(int version) {
 		this.version = version;
 	}
-
+	
 	public int getFirstIndex() {
 		return firstIndex;
 	}
-
+	
 	public void setFirstIndex(int firstIndex) {
 		this.firstIndex = firstIndex;
 	}
-
+	
 	public String getFirstValue() {
 		return firstValue;
 	}
-
+	
 	public void setFirstValue(String firstValue) {
 		this.firstValue = firstValue;
 	}
-
+	
 	public String getLastValue() {
 		return lastValue;
 	}
-
+	
 	public void setLastValue(String lastValue) {
 		this.lastValue = lastValue;
 	}
-
+	
 	public int getCount() {
 		return count;
 	}
-
+	
 	public void setCount(int count) {
 		this.count = count;
 	}
-
+	
+	public long getParseNanos() {
+		return parseNanos;
+	}
+	
+	/**
+	 * Sets time spent to parse this IQ, called by provider
+	 * */
+	public void setParseNanos(long parseNanos) {
+		this.parseNanos = parseNanos;
+	}
+	
+	/**
+	 * Adds message
+	 * @throws UnsupportedOperationException if messages are compressed
+	 * */
 	public void addBody(Direction direction, int secs, String body) {
-		wrappedMessages.add(new WrappedBody(secs, body, direction));
+		
+		if(compressedMessages != null)
+			throw new UnsupportedOperationException("compressed collection is read-only");
+		
+		if(compactMessages != null) {
+			compactMessages.append(direction, secs, body);
+		} else if(lazyMessages != null) {
+			lazyMessages.append(direction, secs, body);
+		} else {
+			wrappedMessages.add(new WrappedBody(secs, body, direction));
+		}
 	}
 	
+	/**
+	 * Returns messages. Unless messages are kept as a list they're
+	 * materialized on each call, use {@link #cursor()} instead
+	 * */
 	public Collection<WrappedBody> getContent() {
-		return Collections.unmodifiableCollection(wrappedMessages);
+		
+		if(wrappedMessages != null) 
+			return Collections.unmodifiableCollection(wrappedMessages);
+		
+		final List<WrappedBody> content = new ArrayList<>(getMessageCount());
+		
+		for(final MessageCursor cursor = cursor(); cursor.next(); ) {
+			content.add(new WrappedBody(cursor.getSecs(), cursor.getBody(), cursor.getDirection()));
+		}
+		
+		return Collections.unmodifiableCollection(content);
 	}
-
+	
+	/**
+	 * Returns whether messages are kept in columnar storage
+	 * */
+	public boolean isCompact() {
+		return compactMessages != null;
+	}
+	
+	/**
+	 * Returns columnar messages storage or null
+	 * if compact storage isn't used
+	 * */
+	public CompactMessageContent getCompactContent() {
+		return compactMessages;
+	}
+	
+	/**
+	 * Returns whether messages are decoded on iteration
+	 * */
+	public boolean isLazy() {
+		return lazyMessages != null;
+	}
+	
+	/**
+	 * Returns lazy messages storage or null
+	 * if lazy storage isn't used
+	 * */
+	public LazyMessageContent getLazyContent() {
+		return lazyMessages;
+	}
+	
+	/**
+	 * Returns whether messages are kept compressed
+	 * */
+	public boolean isCompressed() {
+		return compressedMessages != null;
+	}
+	
+	/**
+	 * Returns compressed messages storage or null
+	 * if compressed storage isn't used
+	 * */
+	public CompressedMessageContent getCompressedContent() {
+		return compressedMessages;
+	}
+	
+	/**
+	 * Returns read-only copy of this collection which keeps message
+	 * bodies deflated, see {@link CompressedMessageContent}. Intended
+	 * for collections retained in memory for a long time
+	 * @return compressed copy or this IQ if it's already compressed
+	 * */
+	public ChatListRetrieveResultIQ compress() {
+		
+		if(compressedMessages != null) return this;
+		
+		return new ChatListRetrieveResultIQ(this, CompressedMessageContent.compress(getMessageCount(), cursor()));
+	}
+	
+	/**
+	 * Returns number of messages
+	 * */
+	public int getMessageCount() {
+		
+		if(compressedMessages != null) 
+			return compressedMessages.size();
+		
+		if(lazyMessages != null) 
+			return lazyMessages.size();
+		
+		return compactMessages == null ? wrappedMessages.size() : compactMessages.size();
+	}
+	
+	/**
+	 * Returns total length of message bodies in chars
+	 * */
+	public int getBodiesLength() {
+		
+		if(compactMessages != null) 
+			return compactMessages.getBodiesLength();
+		
+		if(compressedMessages != null) 
+			return compressedMessages.getBodiesLength();
+		
+		if(lazyMessages != null) 
+			return lazyMessages.getBodiesLength();
+		
+		int length = 0;
+		
+		for(final WrappedBody body : wrappedMessages) {
+			length += body.getBody() == null ? 0 : body.getBody().length();
+		}
+		
+		return length;
+	}
+	
+	/**
+	 * Returns absolute time of the message, 'start' plus 'secs'
+	 * @param index index of the message
+	 * @return epoch millis or {@link Xep0082#unknown} if
+	 * 'start' is unknown
+	 * */
+	public long getMessageMillis(int index) {
+		
+		if(compressedMessages != null) 
+			return toMillis(compressedMessages.getSecs(index));
+		
+		if(lazyMessages != null) 
+			return toMillis(lazyMessages.getSecs(index));
+		
+		return toMillis(compactMessages == null ? 
+				wrappedMessages.get(index).getSecs() : compactMessages.getSecs(index));
+	}
+	
+	/**
+	 * Returns absolute time of the message the cursor points to
+	 * @param cursor cursor obtained from this IQ
+	 * @return epoch millis or {@link Xep0082#unknown} if
+	 * 'start' is unknown
+	 * */
+	public long getMessageMillis(MessageCursor cursor) {
+		return toMillis(cursor.getSecs());
+	}
+	
+	private long toMillis(int secs) {
+		return startMillis == Xep0082.unknown ? Xep0082.unknown : startMillis + secs * 1000L;
+	}
+	
+	/**
+	 * Returns cursor positioned before the first message,
+	 * works for all storage modes
+	 * */
+	public MessageCursor cursor() {
+		
+		if(compactMessages != null) 
+			return compactMessages.cursor();
+		
+		if(compressedMessages != null) 
+			return compressedMessages.cursor();
+		
+		if(lazyMessages != null) 
+			return lazyMessages.cursor();
+		
+		return new MessageCursor() {
+			
+			private int index = -1;
+			private WrappedBody current = null;
+			
+			@Override
+			public boolean next() {
+				
+				if(index + 1 >= wrappedMessages.size()) {
+					current = null;
+					return false;
+				}
+				
+				current = wrappedMessages.get(++index);
+				return true;
+			}
+			
+			@Override
+			public int getSecs() {
+				return current.getSecs();
+			}
+			
+			@Override
+			public Direction getDirection() {
+				return current.getDirection();
+			}
+			
+			@Override
+			public String getBody() {
+				return current.getBody();
+			}
+			
+			@Override
+			public void appendBody(StringBuilder sb) {
+				sb.append(current.getBody());
+			}
+		};
+	}
+	
+	/**
+	 * Writes 'from' or 'to' element of a single message
+	 * @param out output
+	 * @param direction message direction
+	 * @param secs seconds since start of the conversation
+	 * @param body message body, escaped while writing
+	 * */
+	public static void writeMessage(ChunkedXmlWriter out, Direction direction, int secs, CharSequence body) 
+			throws IOException {
+		
+		final String tag = direction.name();
+		
+		out.append('<').append(tag).attribute("xmlns", "urn:xmpp:archive").attribute("secs", secs)
+		.append("><body xmlns='urn:xmpp:archive'>").escape(body).append("</body></").append(tag).append('>');
+	}
+	
 	@Override
 	protected IQChildElementXmlStringBuilder getIQChildElementBuilder(
 			IQChildElementXmlStringBuilder xml) {
@@ -246,19 +772,20 @@ public final class ChatListRetrieveResultIQ extends IQ {
 		
 		xml.rightAngleBracket();
 		
-		for(final WrappedBody body : getContent()) {
-			
-			xml.halfOpenElement(body.getDirection().toString().toLowerCase()).
-			attribute("xmlns", "urn:xmpp:archive").attribute("secs", body.getSecs()).
-			rightAngleBracket();
+		// messages are encoded in chunks rather than as a number
+		// of small pieces per message
+		final ChunkedXmlWriter out = new ChunkedXmlWriter(ChunkedXmlWriter.into(xml));
+		
+		try {
+			for(final MessageCursor body = cursor(); body.next(); ) {
+				writeMessage(out, body.getDirection(), body.getSecs(), body.getBody());
+			}
 			
-			xml.halfOpenElement("body").
-			attribute("xmlns", "urn:xmpp:archive").
-			rightAngleBracket();
+			out.flush();
 			
-			xml.append(body.getBody()).closeElement("body")
-			.closeElement(body.getDirection().toString().
-			toLowerCase());
+		} catch (IOException e) {
+			// the builder doesn't throw
+			throw new IllegalStateException(e);
 		}
 		
 		xml.halfOpenElement("set").
@@ -284,14 +811,16 @@ public final class ChatListRetrieveResultIQ extends IQ {
 		
 		return xml;
 	}
-
+	
 	@Override
 	public String toString() {
 		return "ChatListRetrieveResultIQ [with=" + with + ", start=" + start
 				+ ", subject=" + subject + ", version=" + version
 				+ ", firstIndex=" + firstIndex + ", firstValue=" + firstValue
 				+ ", lastValue=" + lastValue + ", count=" + count 
-				+ ", wrappedMessages=" + wrappedMessages + "]";
+				+ ", wrappedMessages=" + (wrappedMessages != null ? wrappedMessages 
+						: compactMessages != null ? compactMessages 
+						: compressedMessages != null ? compressedMessages : lazyMessages) + "]";
 	}
-
+	
 }
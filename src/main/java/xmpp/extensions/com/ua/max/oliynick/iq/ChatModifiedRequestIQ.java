@@ -0,0 +1,100 @@
+package xmpp.extensions.com.ua.max.oliynick.iq;
+
+import org.jivesoftware.smack.packet.IQ;
+
+import xmpp.extensions.com.ua.max.oliynick.provider.ChatModifiedIQProvider;
+
+/**
+ * <p>
+ * This IQ stanza should be send in order to get a set of
+ * collections which were changed or removed since the given
+ * time. See XEP-0136 replication
+ * </p>
+ * @author Max Oliynick
+ * */
+public final class ChatModifiedRequestIQ extends IQ {
+	
+	/**
+	 * Represents 'start' attribute
+	 * */
+	private String start = null;
+	
+	/**
+	 * Represents 'max' tag value
+	 * */
+	private int max = 0;
+	
+	/**
+	 * Represents 'after' tag value
+	 * */
+	private String after = null;
+	
+	/**
+	 * Constructs IQ packet with given parameter
+	 * @param start time of the previous replication. See XEP-0082
+	 * */
+	public ChatModifiedRequestIQ(final String start) {
+		super(ChatModifiedIQProvider.elementName, ChatModifiedIQProvider.namespace);
+		setStart(start);
+	}
+
+	public String getStart() {
+		return start;
+	}
+
+	public void setStart(String start) {
+		this.start = start;
+	}
+
+	public int getMax() {
+		return max;
+	}
+
+	public void setMax(int max) {
+		this.max = max;
+	}
+
+	public String getAfter() {
+		return after;
+	}
+
+	public void setAfter(String after) {
+		this.after = after;
+	}
+
+	@Override
+	protected IQChildElementXmlStringBuilder getIQChildElementBuilder(
+			IQChildElementXmlStringBuilder xml) {
+		
+		if(getStart() != null) {
+			xml.attribute("start", getStart());
+		}
+		
+		xml.rightAngleBracket().
+		halfOpenElement("set").
+		attribute("xmlns", "http://jabber.org/protocol/rsm").
+		rightAngleBracket();
+		
+		if(getMax() > 0) {
+			xml.openElement("max").
+			append(String.valueOf(getMax())).
+			closeElement("max");
+		}
+		
+		if(getAfter() != null) {
+			xml.openElement("after").
+			escape(getAfter()).
+			closeElement("after");
+		}
+		
+		xml.closeElement("set");
+		
+		return xml;
+	}
+
+	@Override
+	public String toString() {
+		return "ChatModifiedRequestIQ [start=" + start + ", max=" + max + ", after=" + after + "]";
+	}
+
+}
@@ -0,0 +1,195 @@
+package xmpp.extensions.com.ua.max.oliynick.iq;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.jivesoftware.smack.packet.IQ;
+
+import xmpp.extensions.com.ua.max.oliynick.provider.ChatModifiedIQProvider;
+
+/**
+ * <p>
+ * This IQ represents response on {@link ChatModifiedRequestIQ},
+ * it lists changed and removed collections
+ * </p>
+ * @author Max Oliynick
+ * */
+public final class ChatModifiedResultIQ extends IQ {
+	
+	/**
+	 * Single 'changed' or 'removed' entry
+	 * */
+	public static final class Modification {
+		
+		private final String with;
+		private final String start;
+		private final int version;
+		private final boolean removed;
+		
+		public Modification(String with, String start, int version, boolean removed) {
+			this.with = with;
+			this.start = start;
+			this.version = version;
+			this.removed = removed;
+		}
+
+		public String getWith() {
+			return with;
+		}
+
+		public String getStart() {
+			return start;
+		}
+
+		public int getVersion() {
+			return version;
+		}
+
+		/**
+		 * Returns true for 'removed' entry and
+		 * false for 'changed' one
+		 * */
+		public boolean isRemoved() {
+			return removed;
+		}
+
+		@Override
+		public String toString() {
+			return "Modification [with=" + with + ", start=" + start + ", version=" + version 
+					+ ", removed=" + removed + "]";
+		}
+		
+	}
+	
+	private final List<Modification> modifications;
+	
+	/**
+     * index attribute and value of the 'first' tag
+     * */
+	private int firstIndex;
+	private String firstValue;
+	
+	/**
+     * last value of the 'last' tag
+     * */
+	private String lastValue;
+	
+	/**
+     * value of the 'count' tag
+     * */
+	private int count;
+	
+	/**
+     * Constructs an empty {@link ChatModifiedResultIQ} instance
+     * */
+	public ChatModifiedResultIQ() {
+		super(ChatModifiedIQProvider.elementName, ChatModifiedIQProvider.namespace);
+		modifications = new ArrayList<>();
+		count = firstIndex = -1;
+		firstValue = lastValue = null;
+	}
+	
+	/**
+	 * Appends 'changed' or 'removed' entry
+	 * */
+	public void addModification(String with, String start, int version, boolean removed) {
+		
+		if(with == null)
+            throw new IllegalArgumentException("with == null");
+        
+        if(start == null)
+        	throw new IllegalArgumentException("start == null");
+        
+		modifications.add(new Modification(with, start, version, removed));
+	}
+	
+	public List<Modification> getModifications() {
+		return Collections.unmodifiableList(modifications);
+	}
+
+	public int getFirstIndex() {
+		return firstIndex;
+	}
+
+	public void setFirstIndex(int firstIndex) {
+		this.firstIndex = firstIndex;
+	}
+
+	public String getFirstValue() {
+		return firstValue;
+	}
+
+	public void setFirstValue(String firstValue) {
+		this.firstValue = firstValue;
+	}
+
+	public String getLastValue() {
+		return lastValue;
+	}
+
+	public void setLastValue(String lastValue) {
+		this.lastValue = lastValue;
+	}
+
+	public int getCount() {
+		return count;
+	}
+
+	public void setCount(int count) {
+		this.count = count;
+	}
+
+	@Override
+	protected IQChildElementXmlStringBuilder getIQChildElementBuilder(
+			IQChildElementXmlStringBuilder xml) {
+		
+		xml.rightAngleBracket();
+		
+		for(final Modification modification : modifications) {
+			xml.halfOpenElement(modification.isRemoved() ? "removed" : "changed").
+			attribute("with", modification.getWith()).
+			attribute("start", modification.getStart());
+			
+			if(modification.getVersion() > 0) {
+				xml.attribute("version", modification.getVersion());
+			}
+			
+			xml.closeEmptyElement();
+		}
+		
+		xml.halfOpenElement("set").
+		attribute("xmlns", "http://jabber.org/protocol/rsm").
+		rightAngleBracket();
+		
+		if(getFirstIndex() >= 0 && getFirstValue() != null && getLastValue() != null) {
+			
+			xml.halfOpenElement("first").
+			attribute("index", getFirstIndex()).rightAngleBracket().
+			escape(getFirstValue()).
+			closeElement("first");
+			
+			xml.openElement("last").
+			escape(getLastValue()).
+			closeElement("last");
+		}
+		
+		if(getCount() >= 0) {
+			xml.openElement("count").
+			append(String.valueOf(getCount())).
+			closeElement("count");
+		}
+		
+		xml.closeElement("set");
+		
+		return xml;
+	}
+
+	@Override
+	public String toString() {
+		return "ChatModifiedResultIQ [firstIndex=" + firstIndex + ", firstValue=" + firstValue 
+				+ ", lastValue=" + lastValue + ", count=" + count 
+				+ ", modifications=" + modifications + "]";
+	}
+
+}
@@ -0,0 +1,235 @@
+package xmpp.extensions.com.ua.max.oliynick.iq;
+
+import java.util.Arrays;
+
+import xmpp.extensions.com.ua.max.oliynick.iq.ChatListRetrieveResultIQ.Direction;
+
+/**
+ * <p>
+ * Columnar storage of archived messages. Seconds are kept in
+ * an int array, directions in a bitset and all bodies share one
+ * char buffer addressed by offsets, so there is no per message
+ * object overhead
+ * </p>
+ * @author Max Oliynick
+ * */
+public final class CompactMessageContent {
+	
+	private static final int defaultCapacity = 16;
+	
+	/**
+	 * Number of stored messages
+	 * */
+	private int size;
+	
+	/**
+	 * Seconds since start of the conversation
+	 * */
+	private int [] secs;
+	
+	/**
+	 * Directions, set bit means {@link Direction#to}
+	 * */
+	private long [] directions;
+	
+	/**
+	 * Body of the i-th message occupies [offsets[i], offsets[i + 1])
+	 * region of the chars buffer
+	 * */
+	private int [] offsets;
+	
+	/**
+	 * Shared bodies buffer
+	 * */
+	private char [] chars;
+	
+	/**
+	 * Constructs an empty {@link CompactMessageContent} instance
+	 * */
+	public CompactMessageContent() {
+		this(defaultCapacity, defaultCapacity * 32);
+	}
+	
+	/**
+	 * Constructs an empty {@link CompactMessageContent} instance
+	 * @param messages expected number of messages
+	 * @param chars expected total length of bodies
+	 * */
+	public CompactMessageContent(int messages, int chars) {
+		
+		if(messages < 0)
+			throw new IllegalArgumentException("messages < 0");
+		
+		if(chars < 0)
+			throw new IllegalArgumentException("chars < 0");
+		
+		this.secs = new int[messages];
+		this.directions = new long[(messages + 63) >>> 6];
+		this.offsets = new int[messages + 1];
+		this.chars = new char[chars];
+	}
+	
+	/**
+	 * Appends message
+	 * @param direction direction of the message
+	 * @param secs seconds since start of the conversation
+	 * @param body message body
+	 * */
+	public void append(Direction direction, int secs, String body) {
+		
+		if(direction == null)
+			throw new IllegalArgumentException("direction == null");
+		
+		if(body == null)
+			throw new IllegalArgumentException("body == null");
+		
+		ensureCapacity(size + 1);
+		
+		final int start = offsets[size];
+		final int end = start + body.length();
+		
+		if(end > chars.length) {
+			chars = Arrays.copyOf(chars, Math.max(end, chars.length + (chars.length >> 1)));
+		}
+		
+		body.getChars(0, body.length(), chars, start);
+		
+		this.secs[size] = secs;
+		
+		if(direction == Direction.to) {
+			directions[size >>> 6] |= 1L << size;
+		}
+		
+		offsets[++size] = end;
+	}
+	
+	/**
+	 * Returns number of stored messages
+	 * */
+	public int size() {
+		return size;
+	}
+	
+	public int getSecs(int index) {
+		checkIndex(index);
+		return secs[index];
+	}
+	
+	public Direction getDirection(int index) {
+		checkIndex(index);
+		return (directions[index >>> 6] & (1L << index)) == 0 ? Direction.from : Direction.to;
+	}
+	
+	public String getBody(int index) {
+		checkIndex(index);
+		return new String(chars, offsets[index], offsets[index + 1] - offsets[index]);
+	}
+	
+	public int getBodyLength(int index) {
+		checkIndex(index);
+		return offsets[index + 1] - offsets[index];
+	}
+	
+	/**
+	 * Appends body of the message to the given builder
+	 * */
+	public void appendBody(int index, StringBuilder sb) {
+		checkIndex(index);
+		sb.append(chars, offsets[index], offsets[index + 1] - offsets[index]);
+	}
+	
+	/**
+	 * Returns total length of all bodies in chars
+	 * */
+	public int getBodiesLength() {
+		return offsets[size];
+	}
+	
+	/**
+	 * Releases unused capacity
+	 * */
+	public void trimToSize() {
+		secs = Arrays.copyOf(secs, size);
+		directions = Arrays.copyOf(directions, (size + 63) >>> 6);
+		offsets = Arrays.copyOf(offsets, size + 1);
+		chars = Arrays.copyOf(chars, offsets[size]);
+	}
+	
+	/**
+	 * Removes all messages, allocated capacity is kept
+	 * */
+	public void clear() {
+		Arrays.fill(directions, 0L);
+		size = 0;
+	}
+	
+	/**
+	 * Returns new cursor positioned before the first message
+	 * */
+	public MessageCursor cursor() {
+		return new Cursor();
+	}
+	
+	private void ensureCapacity(int capacity) {
+		
+		if(capacity <= secs.length) return;
+		
+		final int newCapacity = Math.max(capacity, secs.length + (secs.length >> 1) + 1);
+		
+		secs = Arrays.copyOf(secs, newCapacity);
+		directions = Arrays.copyOf(directions, (newCapacity + 63) >>> 6);
+		offsets = Arrays.copyOf(offsets, newCapacity + 1);
+	}
+	
+	private void checkIndex(int index) {
+		if(index < 0 || index >= size)
+			throw new IndexOutOfBoundsException("index=" + index + ", size=" + size);
+	}
+	
+	/**
+	 * Flyweight cursor over the columns
+	 * */
+	private final class Cursor implements MessageCursor {
+		
+		private int index = -1;
+
+		@Override
+		public boolean next() {
+			
+			if(index + 1 >= size) {
+				index = size;
+				return false;
+			}
+			
+			++index;
+			return true;
+		}
+
+		@Override
+		public Direction getDirection() {
+			return CompactMessageContent.this.getDirection(index);
+		}
+
+		@Override
+		public int getSecs() {
+			return CompactMessageContent.this.getSecs(index);
+		}
+
+		@Override
+		public String getBody() {
+			return CompactMessageContent.this.getBody(index);
+		}
+
+		@Override
+		public void appendBody(StringBuilder sb) {
+			CompactMessageContent.this.appendBody(index, sb);
+		}
+		
+	}
+
+	@Override
+	public String toString() {
+		return "CompactMessageContent [size=" + size + ", bodiesLength=" + getBodiesLength() + "]";
+	}
+
+}
@@ -0,0 +1,406 @@
+package xmpp.extensions.com.ua.max.oliynick.iq;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import xmpp.extensions.com.ua.max.oliynick.iq.ChatListRetrieveResultIQ.Direction;
+
+/**
+ * <p>
+ * Immutable message storage for retained collections. Seconds and
+ * directions are kept as in {@link CompactMessageContent}, bodies are
+ * encoded as UTF-8 and deflated per block of messages with a preset
+ * dictionary, so that even short blocks compress well. Blocks are
+ * inflated lazily when their messages are accessed, the last inflated
+ * block is kept, so that sequential access inflates each block once
+ * </p>
+ * <p>
+ * Block layout before compression: for each message its body length
+ * in bytes as varint followed by UTF-8 bytes of the body
+ * </p>
+ * @author Max Oliynick
+ * */
+public final class CompressedMessageContent {
+	
+	public static final int defaultBlockSize = 64;
+	
+	/**
+	 * Default preset dictionary, common chat words. Deflate looks for
+	 * matches from the end of the dictionary, so frequent words go last
+	 * */
+	private static final byte [] defaultDictionary = ("http:// https:// www. .com .org .net "
+			+ "tomorrow today yesterday morning evening tonight week weekend meeting call "
+			+ "please thank thanks sorry maybe sure good great nice cool fine okay ok "
+			+ "what when where which would could should will have has had been about "
+			+ "there their they them then than this that with from your you are "
+			+ "and the for not but can just know like now yes no hi hello lol ")
+			.getBytes(StandardCharsets.UTF_8);
+	
+	private static final ThreadLocal<Inflater> inflaters = new ThreadLocal<Inflater>() {
+		
+		@Override
+		protected Inflater initialValue() {
+			return new Inflater();
+		}
+	};
+	
+	private final int size;
+	private final int blockSize;
+	private final int [] secs;
+	
+	/**
+	 * Directions, set bit means {@link Direction#to}
+	 * */
+	private final long [] directions;
+	
+	/**
+	 * Compressed blocks and their sizes before compression
+	 * */
+	private final byte [][] blocks;
+	private final int [] rawSizes;
+	
+	private final byte [] dictionary;
+	
+	/**
+	 * Total length of bodies in chars
+	 * */
+	private final int bodiesLength;
+	
+	/**
+	 * The last inflated block, immutable, so that
+	 * it's safely shared between threads
+	 * */
+	private volatile InflatedBlock last;
+	
+	/**
+	 * Inflated block with body offsets
+	 * */
+	private static final class InflatedBlock {
+		
+		private final int index;
+		private final byte [] bytes;
+		
+		// body of the i-th message of the block is [offsets[2 * i], offsets[2 * i + 1])
+		private final int [] offsets;
+		
+		InflatedBlock(int index, byte [] bytes, int messages) {
+			this.index = index;
+			this.bytes = bytes;
+			this.offsets = new int[messages * 2];
+			
+			for(int i = 0, position = 0; i < messages; ++i) {
+				
+				int length = 0;
+				
+				for(int shift = 0; ; shift += 7) {
+					final int b = bytes[position++];
+					
+					length |= (b & 0x7F) << shift;
+					
+					if(b >= 0) break;
+				}
+				
+				offsets[2 * i] = position;
+				offsets[2 * i + 1] = position += length;
+			}
+		}
+		
+		String body(int message) {
+			final int from = offsets[2 * message];
+			return new String(bytes, from, offsets[2 * message + 1] - from, StandardCharsets.UTF_8);
+		}
+	}
+	
+	private CompressedMessageContent(int size, int blockSize, int [] secs, long [] directions,
+			byte [][] blocks, int [] rawSizes, byte [] dictionary, int bodiesLength) {
+		this.size = size;
+		this.blockSize = blockSize;
+		this.secs = secs;
+		this.directions = directions;
+		this.blocks = blocks;
+		this.rawSizes = rawSizes;
+		this.dictionary = dictionary;
+		this.bodiesLength = bodiesLength;
+	}
+	
+	/**
+	 * Compresses messages with default block size and dictionary
+	 * @param messages number of messages the cursor walks
+	 * @param cursor cursor positioned before the first message
+	 * */
+	public static CompressedMessageContent compress(int messages, MessageCursor cursor) {
+		return compress(messages, cursor, defaultBlockSize, null);
+	}
+	
+	/**
+	 * Compresses messages
+	 * @param messages number of messages the cursor walks
+	 * @param cursor cursor positioned before the first message
+	 * @param blockSize number of messages per block
+	 * @param dictionary preset dictionary, null for the default one.
+	 * The array is kept and must not be modified
+	 * */
+	public static CompressedMessageContent compress(int messages, MessageCursor cursor, int blockSize, byte [] dictionary) {
+		
+		if(messages < 0)
+			throw new IllegalArgumentException("messages < 0");
+		
+		if(cursor == null)
+			throw new IllegalArgumentException("cursor == null");
+		
+		if(blockSize < 1)
+			throw new IllegalArgumentException("blockSize < 1");
+		
+		final byte [] dict = dictionary == null ? defaultDictionary : dictionary;
+		final int blockCount = (messages + blockSize - 1) / blockSize;
+		
+		final int [] secs = new int[messages];
+		final long [] directions = new long[(messages + 63) >>> 6];
+		final byte [][] blocks = new byte[blockCount][];
+		final int [] rawSizes = new int[blockCount];
+		
+		final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+		final StringBuilder body = new StringBuilder();
+		
+		byte [] raw = new byte[1024];
+		byte [] out = new byte[1024];
+		int bodiesLength = 0;
+		
+		try {
+			for(int block = 0, i = 0; block < blockCount; ++block) {
+				
+				int length = 0;
+				
+				for(final int end = Math.min(messages, i + blockSize); i < end; ++i) {
+					
+					if(!cursor.next())
+						throw new IllegalArgumentException("cursor has less than " + messages + " messages");
+					
+					secs[i] = cursor.getSecs();
+					
+					if(cursor.getDirection() == Direction.to) {
+						directions[i >>> 6] |= 1L << i;
+					}
+					
+					body.setLength(0);
+					cursor.appendBody(body);
+					bodiesLength += body.length();
+					
+					final byte [] bytes = body.toString().getBytes(StandardCharsets.UTF_8);
+					
+					if(raw.length < length + bytes.length + 5) {
+						raw = Arrays.copyOf(raw, Math.max(raw.length * 2, length + bytes.length + 5));
+					}
+					
+					for(int v = bytes.length; ; v >>>= 7) {
+						if(v < 0x80) {
+							raw[length++] = (byte) v;
+							break;
+						}
+						
+						raw[length++] = (byte) (v & 0x7F | 0x80);
+					}
+					
+					System.arraycopy(bytes, 0, raw, length, bytes.length);
+					length += bytes.length;
+				}
+				
+				deflater.reset();
+				deflater.setDictionary(dict);
+				deflater.setInput(raw, 0, length);
+				deflater.finish();
+				
+				int compressed = 0;
+				
+				while(!deflater.finished()) {
+					
+					if(compressed == out.length) out = Arrays.copyOf(out, out.length * 2);
+					
+					compressed += deflater.deflate(out, compressed, out.length - compressed);
+				}
+				
+				blocks[block] = Arrays.copyOf(out, compressed);
+				rawSizes[block] = length;
+			}
+			
+		} finally {
+			deflater.end();
+		}
+		
+		return new CompressedMessageContent(messages, blockSize, secs, directions, blocks, rawSizes, dict, bodiesLength);
+	}
+	
+	/**
+	 * Returns number of stored messages
+	 * */
+	public int size() {
+		return size;
+	}
+	
+	public int getSecs(int index) {
+		checkIndex(index);
+		return secs[index];
+	}
+	
+	public Direction getDirection(int index) {
+		checkIndex(index);
+		return (directions[index >>> 6] & (1L << index)) == 0 ? Direction.from : Direction.to;
+	}
+	
+	/**
+	 * Returns body of the message, inflates its
+	 * block unless it was the last inflated one
+	 * */
+	public String getBody(int index) {
+		checkIndex(index);
+		return inflate(index / blockSize).body(index % blockSize);
+	}
+	
+	/**
+	 * Returns total length of all bodies in chars
+	 * */
+	public int getBodiesLength() {
+		return bodiesLength;
+	}
+	
+	/**
+	 * Returns size of compressed blocks in bytes
+	 * */
+	public long getCompressedBytes() {
+		
+		long bytes = 0;
+		
+		for(final byte [] block : blocks) {
+			bytes += block.length;
+		}
+		
+		return bytes;
+	}
+	
+	/**
+	 * Returns approximate retained size in bytes,
+	 * including seconds and directions columns
+	 * */
+	public long getRetainedBytes() {
+		return getCompressedBytes() + 4L * secs.length + 8L * directions.length + 20L * blocks.length;
+	}
+	
+	/**
+	 * Returns new cursor positioned before the first message.
+	 * Cursor keeps its own inflated block
+	 * */
+	public MessageCursor cursor() {
+		return new Cursor();
+	}
+	
+	private InflatedBlock inflate(int block) {
+		
+		final InflatedBlock cached = last;
+		
+		if(cached != null && cached.index == block) return cached;
+		
+		final InflatedBlock inflated = new InflatedBlock(block, inflateBytes(block), messagesIn(block));
+		
+		last = inflated;
+		return inflated;
+	}
+	
+	private byte [] inflateBytes(int block) {
+		
+		final Inflater inflater = inflaters.get();
+		final byte [] raw = new byte[rawSizes[block]];
+		
+		inflater.reset();
+		inflater.setInput(blocks[block]);
+		
+		try {
+			int length = 0;
+			
+			while(length < raw.length) {
+				
+				final int n = inflater.inflate(raw, length, raw.length - length);
+				
+				if(n == 0 && inflater.needsDictionary()) {
+					inflater.setDictionary(dictionary);
+				} else if(n == 0 && (inflater.finished() || inflater.needsInput())) {
+					throw new IllegalStateException("block " + block + " is truncated");
+				}
+				
+				length += n;
+			}
+			
+		} catch (DataFormatException e) {
+			throw new IllegalStateException("block " + block + " is corrupted", e);
+		}
+		
+		return raw;
+	}
+	
+	private int messagesIn(int block) {
+		return Math.min(blockSize, size - block * blockSize);
+	}
+	
+	private void checkIndex(int index) {
+		if(index < 0 || index >= size)
+			throw new IndexOutOfBoundsException("index=" + index + ", size=" + size);
+	}
+	
+	/**
+	 * Cursor which inflates each block once
+	 * */
+	private final class Cursor implements MessageCursor {
+		
+		private int index = -1;
+		private InflatedBlock block;
+		
+		@Override
+		public boolean next() {
+			
+			if(index + 1 >= size) {
+				index = size;
+				block = null;
+				return false;
+			}
+			
+			++index;
+			
+			if(block == null || block.index != index / blockSize) {
+				block = inflate(index / blockSize);
+			}
+			
+			return true;
+		}
+		
+		@Override
+		public Direction getDirection() {
+			return CompressedMessageContent.this.getDirection(index);
+		}
+		
+		@Override
+		public int getSecs() {
+			return CompressedMessageContent.this.getSecs(index);
+		}
+		
+		@Override
+		public String getBody() {
+			checkIndex(index);
+			return block.body(index % blockSize);
+		}
+		
+		@Override
+		public void appendBody(StringBuilder sb) {
+			sb.append(getBody());
+		}
+		
+	}
+	
+	@Override
+	public String toString() {
+		return "CompressedMessageContent [size=" + size + ", blocks=" + blocks.length
+				+ ", bodiesLength=" + bodiesLength + ", compressedBytes=" + getCompressedBytes() + "]";
+	}
+	
+}
@@ -0,0 +1,294 @@
+package xmpp.extensions.com.ua.max.oliynick.iq;
+
+import java.util.Arrays;
+
+import xmpp.extensions.com.ua.max.oliynick.iq.ChatListRetrieveResultIQ.Direction;
+
+/**
+ * <p>
+ * Message storage which keeps the messages region of a parsed
+ * collection as a single slice of chars and decodes it only when
+ * messages are iterated. Each message is recorded as a header of
+ * five chars: direction, two halves of seconds and two halves of
+ * body length, followed by body chars. Provider copies body text
+ * straight from the parser buffer, so neither strings nor per-message
+ * objects are created until a cursor reaches the message
+ * </p>
+ * <p>
+ * Header positions are kept in an array of ints, so that random
+ * access by index seeks the message in O(1) time at the cost of
+ * 4 bytes per message, indexed loops stay linear. {@link #cursor()}
+ * doesn't use the array and is still the cheapest way to iterate
+ * </p>
+ * @author Max Oliynick
+ * */
+public final class LazyMessageContent {
+	
+	private static final int headerLength = 5;
+	
+	private static final char fromMark = 'f';
+	private static final char toMark = 't';
+	
+	private char [] slice;
+	
+	/**
+	 * Number of used chars of the slice
+	 * */
+	private int length;
+	
+	/**
+	 * Header positions of complete messages, the
+	 * first {@link #size} entries are used
+	 * */
+	private int [] offsets;
+	
+	/**
+	 * Number of complete messages
+	 * */
+	private int size;
+	
+	/**
+	 * Total length of bodies in chars
+	 * */
+	private int bodiesLength;
+	
+	/**
+	 * Position of the header of the message being recorded,
+	 * -1 if there is no such message
+	 * */
+	private int pending = -1;
+	
+	/**
+	 * Constructs an empty {@link LazyMessageContent} instance
+	 * */
+	public LazyMessageContent() {
+		this(1024);
+	}
+	
+	/**
+	 * Constructs an empty {@link LazyMessageContent} instance
+	 * @param chars expected length of the slice
+	 * */
+	public LazyMessageContent(int chars) {
+		
+		if(chars < 0)
+			throw new IllegalArgumentException("chars < 0");
+		
+		this.slice = new char[chars];
+		this.offsets = new int[16];
+	}
+	
+	/**
+	 * Starts recording of a message, body chars are appended by
+	 * {@link #appendBody(char[], int, int)} and the message is
+	 * completed by {@link #end()}
+	 * @param direction direction of the message
+	 * @param secs seconds since start of the conversation
+	 * */
+	public void begin(Direction direction, int secs) {
+		
+		if(direction == null)
+			throw new IllegalArgumentException("direction == null");
+		
+		if(pending >= 0)
+			throw new IllegalStateException("previous message isn't completed");
+		
+		ensureCapacity(headerLength);
+		
+		pending = length;
+		slice[length++] = direction == Direction.to ? toMark : fromMark;
+		slice[length++] = (char) (secs >>> 16);
+		slice[length++] = (char) secs;
+		length += 2;
+	}
+	
+	/**
+	 * Appends chars to the body of the message being recorded
+	 * */
+	public void appendBody(char [] chars, int offset, int count) {
+		
+		if(pending < 0)
+			throw new IllegalStateException("no message is being recorded");
+		
+		ensureCapacity(count);
+		System.arraycopy(chars, offset, slice, length, count);
+		length += count;
+	}
+	
+	/**
+	 * Completes the message being recorded
+	 * */
+	public void end() {
+		
+		if(pending < 0)
+			throw new IllegalStateException("no message is being recorded");
+		
+		final int bodyLength = length - pending - headerLength;
+		
+		slice[pending + 3] = (char) (bodyLength >>> 16);
+		slice[pending + 4] = (char) bodyLength;
+		bodiesLength += bodyLength;
+		
+		if(size == offsets.length) {
+			offsets = Arrays.copyOf(offsets, size + (size >> 1) + 16);
+		}
+		
+		offsets[size++] = pending;
+		pending = -1;
+	}
+	
+	/**
+	 * Appends message
+	 * @param direction direction of the message
+	 * @param secs seconds since start of the conversation
+	 * @param body message body
+	 * */
+	public void append(Direction direction, int secs, String body) {
+		
+		if(body == null)
+			throw new IllegalArgumentException("body == null");
+		
+		begin(direction, secs);
+		ensureCapacity(body.length());
+		body.getChars(0, body.length(), slice, length);
+		length += body.length();
+		end();
+	}
+	
+	/**
+	 * Returns number of stored messages
+	 * */
+	public int size() {
+		return size;
+	}
+	
+	/**
+	 * Returns total length of all bodies in chars
+	 * */
+	public int getBodiesLength() {
+		return bodiesLength;
+	}
+	
+	/**
+	 * Returns length of the slice in chars
+	 * */
+	public int getSliceLength() {
+		return length;
+	}
+	
+	/**
+	 * Returns seconds of the message
+	 * */
+	public int getSecs(int index) {
+		return secsAt(seek(index));
+	}
+	
+	/**
+	 * Removes all messages, allocated capacity is kept
+	 * */
+	public void clear() {
+		length = size = bodiesLength = 0;
+		pending = -1;
+	}
+	
+	/**
+	 * Releases unused capacity
+	 * */
+	public void trimToSize() {
+		slice = Arrays.copyOf(slice, length);
+		offsets = Arrays.copyOf(offsets, size);
+	}
+	
+	/**
+	 * Returns new cursor positioned before the first message,
+	 * messages are decoded as the cursor moves
+	 * */
+	public MessageCursor cursor() {
+		return new Cursor();
+	}
+	
+	private int seek(int index) {
+		
+		if(index < 0 || index >= size)
+			throw new IndexOutOfBoundsException("index=" + index + ", size=" + size);
+		
+		return offsets[index];
+	}
+	
+	private int secsAt(int position) {
+		return slice[position + 1] << 16 | slice[position + 2];
+	}
+	
+	private int bodyLengthAt(int position) {
+		return slice[position + 3] << 16 | slice[position + 4];
+	}
+	
+	private void ensureCapacity(int extra) {
+		
+		if(length + extra <= slice.length) return;
+		
+		slice = Arrays.copyOf(slice, Math.max(length + extra, slice.length + (slice.length >> 1) + 16));
+	}
+	
+	/**
+	 * Cursor which decodes message headers as it moves
+	 * */
+	private final class Cursor implements MessageCursor {
+		
+		private int index = -1;
+		
+		/**
+		 * Position of the current message header
+		 * */
+		private int position = -1;
+		
+		@Override
+		public boolean next() {
+			
+			if(index + 1 >= size) {
+				index = size;
+				return false;
+			}
+			
+			position = index < 0 ? 0 : position + headerLength + bodyLengthAt(position);
+			++index;
+			return true;
+		}
+		
+		@Override
+		public Direction getDirection() {
+			checkPosition();
+			return slice[position] == toMark ? Direction.to : Direction.from;
+		}
+		
+		@Override
+		public int getSecs() {
+			checkPosition();
+			return secsAt(position);
+		}
+		
+		@Override
+		public String getBody() {
+			checkPosition();
+			return new String(slice, position + headerLength, bodyLengthAt(position));
+		}
+		
+		@Override
+		public void appendBody(StringBuilder sb) {
+			checkPosition();
+			sb.append(slice, position + headerLength, bodyLengthAt(position));
+		}
+		
+		private void checkPosition() {
+			if(index < 0 || index >= size)
+				throw new IndexOutOfBoundsException("index=" + index + ", size=" + size);
+		}
+		
+	}
+	
+	@Override
+	public String toString() {
+		return "LazyMessageContent [size=" + size + ", sliceLength=" + length + ", bodiesLength=" + bodiesLength + "]";
+	}
+	
+}
@@ -0,0 +1,44 @@
+package xmpp.extensions.com.ua.max.oliynick.iq;
+
+import xmpp.extensions.com.ua.max.oliynick.iq.ChatListRetrieveResultIQ.Direction;
+
+/**
+ * <p>
+ * Flyweight cursor over archived messages of
+ * {@link ChatListRetrieveResultIQ}. Cursor doesn't allocate
+ * message objects, accessors return values of the message
+ * the cursor currently points to
+ * </p>
+ * @author Max Oliynick
+ * */
+public interface MessageCursor {
+	
+	/**
+	 * Moves cursor to the next message
+	 * @return false if there are no more messages
+	 * */
+	public boolean next();
+	
+	/**
+	 * Returns direction of the current message
+	 * */
+	public Direction getDirection();
+	
+	/**
+	 * Returns seconds since start of the conversation
+	 * of the current message
+	 * */
+	public int getSecs();
+	
+	/**
+	 * Returns body of the current message
+	 * */
+	public String getBody();
+	
+	/**
+	 * Appends body of the current message to the
+	 * given builder without creating intermediate strings
+	 * */
+	public void appendBody(StringBuilder sb);
+
+}
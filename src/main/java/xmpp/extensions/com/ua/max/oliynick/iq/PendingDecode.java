@@ -0,0 +1,87 @@
+package xmpp.extensions.com.ua.max.oliynick.iq;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.FutureTask;
+
+/**
+ * <p>
+ * Decoding of a {@link ChatListRetrieveResultIQ} which was captured
+ * on the reader thread and is completed by another executor. Besides
+ * being a future, it runs continuations once decoding is done, so that
+ * the decoded IQ is delivered without blocking any thread
+ * </p>
+ * @author Max Oliynick
+ * */
+public final class PendingDecode extends FutureTask<ChatListRetrieveResultIQ> {
+	
+	/**
+	 * Continuations to run when decoding is done, guarded by the instance monitor
+	 * */
+	private List<Runnable> continuations = new ArrayList<>(1);
+	
+	private boolean finished;
+	
+	/**
+	 * Constructs pending decoding
+	 * @param decoder callable which returns the decoded IQ
+	 * */
+	public PendingDecode(Callable<ChatListRetrieveResultIQ> decoder) {
+		super(decoder);
+	}
+	
+	/**
+	 * Runs the continuation when decoding is done. If decoding is
+	 * already done, the continuation is run on the calling thread,
+	 * otherwise on the thread which completes decoding. Continuations
+	 * run in the order they were added, if some of them throw, the rest
+	 * still run and the first exception is rethrown to the decoding thread
+	 * */
+	public void whenDone(Runnable continuation) {
+		
+		if(continuation == null)
+			throw new IllegalArgumentException("continuation == null");
+		
+		synchronized(this) {
+			if(!finished) {
+				continuations.add(continuation);
+				return;
+			}
+		}
+		
+		continuation.run();
+	}
+	
+	@Override
+	protected void done() {
+		
+		final List<Runnable> ready;
+		
+		synchronized(this) {
+			finished = true;
+			ready = continuations;
+			continuations = null;
+		}
+		
+		Throwable failure = null;
+		
+		// a failed continuation doesn't prevent delivery to the others
+		for(final Runnable continuation : ready) {
+			try {
+				continuation.run();
+			} catch (RuntimeException | Error e) {
+				
+				if(failure == null) {
+					failure = e;
+				} else {
+					failure.addSuppressed(e);
+				}
+			}
+		}
+		
+		if(failure instanceof Error) throw (Error) failure;
+		if(failure != null) throw (RuntimeException) failure;
+	}
+	
+}
@@ -0,0 +1,42 @@
+package xmpp.extensions.com.ua.max.oliynick.metrics;
+
+/**
+ * <p>
+ * Metrics SPI for XEP-0136 operations. Implementations are
+ * invoked on reader and caller threads, so they should be
+ * thread safe and cheap. Active implementation is set
+ * by {@link Metrics#set(ArchiveMetrics)}
+ * </p>
+ * @author Max Oliynick
+ * */
+public interface ArchiveMetrics {
+	
+	/**
+	 * Records time between sending a request IQ and receiving its response
+	 * @param element child element name of the request, e.g. 'retrieve'
+	 * @param nanos round-trip time
+	 * @param error whether error response was received
+	 * */
+	public void recordRoundTrip(String element, long nanos, boolean error);
+	
+	/**
+	 * Records parsed response IQ
+	 * @param element child element name of the response, e.g. 'chat'
+	 * @param nanos time spent by provider
+	 * @param items number of parsed messages or collections
+	 * @param bytes estimated size of the parsed payload
+	 * */
+	public void recordParse(String element, long nanos, int items, long bytes);
+	
+	/**
+	 * Records collection cache lookup
+	 * @param hit whether the collection was found
+	 * */
+	public void recordCacheLookup(boolean hit);
+	
+	/**
+	 * Records eviction of a collection from the cache
+	 * */
+	public void recordCacheEviction();
+	
+}
@@ -0,0 +1,127 @@
+package xmpp.extensions.com.ua.max.oliynick.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * <p>
+ * Lock-free histogram of non-negative long values with log-linear
+ * buckets. Values below 128 are counted exactly, larger values keep
+ * 7 significant bits, so that relative error doesn't exceed 1/64.
+ * Recording is a single atomic increment and doesn't allocate
+ * </p>
+ * @author Max Oliynick
+ * */
+public final class Histogram {
+	
+	/**
+	 * Number of exactly counted values and
+	 * number of buckets per power of two
+	 * */
+	private static final int linearBuckets = 128;
+	private static final int subBuckets = 64;
+	
+	private static final int bucketCount = linearBuckets + 56 * subBuckets;
+	
+	private final AtomicLongArray counts = new AtomicLongArray(bucketCount);
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong sum = new AtomicLong();
+	private final AtomicLong max = new AtomicLong();
+	
+	/**
+	 * Records value, negative values are recorded as zero
+	 * */
+	public void record(long value) {
+		
+		if(value < 0) value = 0;
+		
+		counts.incrementAndGet(indexOf(value));
+		count.incrementAndGet();
+		sum.addAndGet(value);
+		
+		for(long current; (current = max.get()) < value && !max.compareAndSet(current, value); );
+	}
+	
+	public long getCount() {
+		return count.get();
+	}
+	
+	public long getMax() {
+		return max.get();
+	}
+	
+	public double getMean() {
+		final long n = count.get();
+		return n == 0 ? 0 : (double) sum.get() / n;
+	}
+	
+	/**
+	 * Returns value which isn't exceeded by the given percentage
+	 * of recorded values, reported as the highest value of its bucket
+	 * @param percentile percentile within [0, 100]
+	 * @return value or zero if nothing was recorded
+	 * */
+	public long getValueAtPercentile(double percentile) {
+		
+		if(percentile < 0 || percentile > 100)
+			throw new IllegalArgumentException("percentile isn't within [0, 100]");
+		
+		final long total = count.get();
+		
+		if(total == 0) return 0;
+		
+		final long rank = Math.max(1, (long) Math.ceil(percentile / 100 * total));
+		long seen = 0;
+		
+		for(int i = 0; i < bucketCount; ++i) {
+			
+			seen += counts.get(i);
+			
+			if(seen >= rank) return Math.min(highestValueOf(i), max.get());
+		}
+		
+		return max.get();
+	}
+	
+	/**
+	 * Clears recorded values, values recorded concurrently
+	 * may be partially kept
+	 * */
+	public void reset() {
+		
+		for(int i = 0; i < bucketCount; ++i) {
+			counts.set(i, 0);
+		}
+		
+		count.set(0);
+		sum.set(0);
+		max.set(0);
+	}
+	
+	static int indexOf(long value) {
+		
+		if(value < linearBuckets) return (int) value;
+		
+		// keeps 7 significant bits, the highest one is always set
+		final int shift = 57 - Long.numberOfLeadingZeros(value);
+		
+		return linearBuckets + (shift - 1) * subBuckets + (int) (value >>> shift) - subBuckets;
+	}
+	
+	static long highestValueOf(int index) {
+		
+		if(index < linearBuckets) return index;
+		
+		final int shift = (index - linearBuckets) / subBuckets + 1;
+		final long sub = (index - linearBuckets) % subBuckets + subBuckets;
+		
+		return ((sub + 1) << shift) - 1;
+	}
+	
+	@Override
+	public String toString() {
+		return "Histogram [count=" + getCount() + ", mean=" + getMean() + ", p50=" + getValueAtPercentile(50)
+				+ ", p99=" + getValueAtPercentile(99) + ", max=" + getMax() + "]";
+	}
+	
+}
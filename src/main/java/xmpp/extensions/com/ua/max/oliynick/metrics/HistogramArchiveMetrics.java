@@ -0,0 +1,124 @@
+package xmpp.extensions.com.ua.max.oliynick.metrics;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>
+ * Keeps round-trip and parse times in {@link Histogram}s per
+ * element name, sizes of parsed pages and cache counters
+ * </p>
+ * @author Max Oliynick
+ * */
+public final class HistogramArchiveMetrics implements ArchiveMetrics {
+	
+	private final ConcurrentMap<String, Histogram> roundTrips = new ConcurrentHashMap<>();
+	private final ConcurrentMap<String, Histogram> parses = new ConcurrentHashMap<>();
+	private final ConcurrentMap<String, Histogram> pageSizes = new ConcurrentHashMap<>();
+	
+	private final AtomicLong errors = new AtomicLong();
+	private final AtomicLong bytesParsed = new AtomicLong();
+	private final AtomicLong cacheHits = new AtomicLong();
+	private final AtomicLong cacheMisses = new AtomicLong();
+	private final AtomicLong cacheEvictions = new AtomicLong();
+	
+	@Override
+	public void recordRoundTrip(String element, long nanos, boolean error) {
+		
+		histogram(roundTrips, element).record(nanos);
+		
+		if(error) errors.incrementAndGet();
+	}
+	
+	@Override
+	public void recordParse(String element, long nanos, int items, long bytes) {
+		histogram(parses, element).record(nanos);
+		histogram(pageSizes, element).record(items);
+		bytesParsed.addAndGet(bytes);
+	}
+	
+	@Override
+	public void recordCacheLookup(boolean hit) {
+		(hit ? cacheHits : cacheMisses).incrementAndGet();
+	}
+	
+	@Override
+	public void recordCacheEviction() {
+		cacheEvictions.incrementAndGet();
+	}
+	
+	/**
+	 * Returns round-trip times in nanos by request element name
+	 * */
+	public Map<String, Histogram> getRoundTrips() {
+		return Collections.unmodifiableMap(roundTrips);
+	}
+	
+	/**
+	 * Returns parse times in nanos by response element name
+	 * */
+	public Map<String, Histogram> getParseTimes() {
+		return Collections.unmodifiableMap(parses);
+	}
+	
+	/**
+	 * Returns numbers of messages or collections
+	 * per page by response element name
+	 * */
+	public Map<String, Histogram> getPageSizes() {
+		return Collections.unmodifiableMap(pageSizes);
+	}
+	
+	/**
+	 * Returns number of error responses
+	 * */
+	public long getErrors() {
+		return errors.get();
+	}
+	
+	/**
+	 * Returns estimated size of parsed payloads in bytes
+	 * */
+	public long getBytesParsed() {
+		return bytesParsed.get();
+	}
+	
+	public long getCacheHits() {
+		return cacheHits.get();
+	}
+	
+	public long getCacheMisses() {
+		return cacheMisses.get();
+	}
+	
+	public long getCacheEvictions() {
+		return cacheEvictions.get();
+	}
+	
+	private static Histogram histogram(ConcurrentMap<String, Histogram> histograms, String element) {
+		
+		Histogram histogram = histograms.get(element);
+		
+		if(histogram == null) {
+			final Histogram created = new Histogram();
+			
+			histogram = histograms.putIfAbsent(element, created);
+			
+			if(histogram == null) histogram = created;
+		}
+		
+		return histogram;
+	}
+	
+	@Override
+	public String toString() {
+		return "HistogramArchiveMetrics [roundTrips=" + roundTrips + ", parses=" + parses
+				+ ", pageSizes=" + pageSizes + ", errors=" + errors + ", bytesParsed=" + bytesParsed
+				+ ", cacheHits=" + cacheHits + ", cacheMisses=" + cacheMisses
+				+ ", cacheEvictions=" + cacheEvictions + "]";
+	}
+	
+}
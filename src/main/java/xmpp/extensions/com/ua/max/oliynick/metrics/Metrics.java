@@ -0,0 +1,71 @@
+package xmpp.extensions.com.ua.max.oliynick.metrics;
+
+/**
+ * <p>
+ * Holds metrics implementation used by providers and archive
+ * helpers. Metrics are disabled by default
+ * </p>
+ * @author Max Oliynick
+ * */
+public final class Metrics {
+	
+	/**
+	 * Implementation which ignores all observations
+	 * */
+	public static final ArchiveMetrics noop = new ArchiveMetrics() {
+		
+		@Override
+		public void recordRoundTrip(String element, long nanos, boolean error) {}
+		
+		@Override
+		public void recordParse(String element, long nanos, int items, long bytes) {}
+		
+		@Override
+		public void recordCacheLookup(boolean hit) {}
+		
+		@Override
+		public void recordCacheEviction() {}
+	};
+	
+	/**
+	 * Estimated size of the markup of a message or a collection
+	 * in bytes, which is added to the size of its text
+	 * */
+	public static final int itemOverhead = 96;
+	
+	private static volatile ArchiveMetrics metrics = noop;
+	
+	private Metrics() {}
+	
+	/**
+	 * Returns active metrics implementation
+	 * */
+	public static ArchiveMetrics get() {
+		return metrics;
+	}
+	
+	/**
+	 * Sets metrics implementation, null restores no-op one
+	 * */
+	public static void set(ArchiveMetrics metrics) {
+		Metrics.metrics = metrics == null ? noop : metrics;
+	}
+	
+	/**
+	 * Returns whether metrics are enabled, so that
+	 * callers can skip measurements otherwise
+	 * */
+	public static boolean isEnabled() {
+		return metrics != noop;
+	}
+	
+	/**
+	 * Estimates size of parsed payload in bytes
+	 * @param items number of messages or collections
+	 * @param chars total length of text values
+	 * */
+	public static long estimateSize(int items, long chars) {
+		return chars + (long) items * itemOverhead;
+	}
+	
+}
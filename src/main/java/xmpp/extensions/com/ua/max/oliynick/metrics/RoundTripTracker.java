@@ -0,0 +1,147 @@
+package xmpp.extensions.com.ua.max.oliynick.metrics;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.jivesoftware.smack.StanzaListener;
+import org.jivesoftware.smack.XMPPConnection;
+import org.jivesoftware.smack.filter.StanzaFilter;
+import org.jivesoftware.smack.packet.IQ;
+import org.jivesoftware.smack.packet.Stanza;
+
+/**
+ * <p>
+ * Measures round-trip time of every XEP-0136 request IQ sent over
+ * the connection, whichever code sent it. Requests are remembered by
+ * stanza id right before they are written and matched with result or
+ * error IQs as they arrive. Observations go to {@link Metrics#get()}
+ * </p>
+ * @author Max Oliynick
+ * */
+public final class RoundTripTracker {
+	
+	private static final String namespace = "urn:xmpp:archive";
+	
+	/**
+	 * Requests without response older than this are dropped
+	 * */
+	private static final long staleNanos = 10 * 60 * 1000000000L;
+	
+	/**
+	 * Number of pending requests which triggers removal of stale ones
+	 * */
+	private static final int cleanupThreshold = 4096;
+	
+	private final XMPPConnection connection;
+	
+	/**
+	 * Pending requests by stanza id
+	 * */
+	private final ConcurrentMap<String, Pending> pending = new ConcurrentHashMap<>();
+	
+	/**
+	 * Request element name and time it was sent
+	 * */
+	private static final class Pending {
+		
+		private final String element;
+		private final long sent;
+		
+		Pending(String element, long sent) {
+			this.element = element;
+			this.sent = sent;
+		}
+	}
+	
+	private final StanzaFilter requests = new StanzaFilter() {
+		
+		@Override
+		public boolean accept(Stanza stanza) {
+			return stanza instanceof IQ && ((IQ) stanza).isRequestIQ()
+					&& namespace.equals(((IQ) stanza).getChildElementNamespace());
+		}
+	};
+	
+	private final StanzaFilter responses = new StanzaFilter() {
+		
+		@Override
+		public boolean accept(Stanza stanza) {
+			return stanza instanceof IQ && !((IQ) stanza).isRequestIQ()
+					&& stanza.getStanzaId() != null && !pending.isEmpty();
+		}
+	};
+	
+	private final StanzaListener sendingListener = new StanzaListener() {
+		
+		@Override
+		public void processPacket(Stanza stanza) {
+			
+			if(pending.size() >= cleanupThreshold) removeStale();
+			
+			pending.put(stanza.getStanzaId(), new Pending(((IQ) stanza).getChildElementName(), System.nanoTime()));
+		}
+	};
+	
+	private final StanzaListener receivingListener = new StanzaListener() {
+		
+		@Override
+		public void processPacket(Stanza stanza) {
+			
+			final Pending request = pending.remove(stanza.getStanzaId());
+			
+			if(request != null) {
+				Metrics.get().recordRoundTrip(request.element, System.nanoTime() - request.sent,
+						((IQ) stanza).getType() == IQ.Type.error);
+			}
+		}
+	};
+	
+	private RoundTripTracker(XMPPConnection connection) {
+		this.connection = connection;
+	}
+	
+	/**
+	 * Starts tracking requests sent over the connection
+	 * */
+	public static RoundTripTracker install(XMPPConnection connection) {
+		
+		if(connection == null)
+			throw new IllegalArgumentException("connection == null");
+		
+		final RoundTripTracker tracker = new RoundTripTracker(connection);
+		
+		// interceptors run before the request is written, so that
+		// the response can't outrun the registration
+		connection.addPacketInterceptor(tracker.sendingListener, tracker.requests);
+		connection.addSyncStanzaListener(tracker.receivingListener, tracker.responses);
+		
+		return tracker;
+	}
+	
+	/**
+	 * Stops tracking requests
+	 * */
+	public void uninstall() {
+		connection.removePacketInterceptor(sendingListener);
+		connection.removeSyncStanzaListener(receivingListener);
+		pending.clear();
+	}
+	
+	/**
+	 * Returns number of requests which wait for response
+	 * */
+	public int getPending() {
+		return pending.size();
+	}
+	
+	private void removeStale() {
+		
+		final long now = System.nanoTime();
+		
+		for(final Iterator<Pending> it = pending.values().iterator(); it.hasNext(); ) {
+			if(now - it.next().sent > staleNanos) it.remove();
+		}
+	}
+	
+}
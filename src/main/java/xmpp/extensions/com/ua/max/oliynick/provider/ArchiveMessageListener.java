@@ -0,0 +1,44 @@
+package xmpp.extensions.com.ua.max.oliynick.provider;
+
+import xmpp.extensions.com.ua.max.oliynick.iq.ChatListRetrieveResultIQ;
+import xmpp.extensions.com.ua.max.oliynick.iq.ChatListRetrieveResultIQ.Direction;
+
+/**
+ * <p>
+ * Callback which receives archived messages one by one
+ * while {@link ChatListRetrieveIQProvider} parses a
+ * XEP-0136 collection
+ * </p>
+ * @author Max Oliynick
+ * */
+public interface ArchiveMessageListener {
+
+	/**
+	 * Invoked for each 'from' or 'to' element as soon as it was parsed.
+	 * Messages are delivered in document order on the parsing thread or,
+	 * in offload mode, on the thread which decodes the collection. Either
+	 * way calls never overlap and collections follow the order of stanzas
+	 * @param iq result IQ which is being parsed, its 'with', 'start',
+	 * 'subject' and 'version' attributes are already set
+	 * @param direction direction of the message
+	 * @param secs seconds since start of the conversation
+	 * @param body message body
+	 * */
+	public void processMessage(ChatListRetrieveResultIQ iq, Direction direction, int secs, String body);
+	
+	/**
+	 * Invoked once all messages of the collection were delivered,
+	 * on the same thread as the messages
+	 * @param iq result IQ whose messages were delivered, its RSM values are set
+	 * */
+	public void processFinished(ChatListRetrieveResultIQ iq);
+	
+	/**
+	 * Invoked instead of {@link #processFinished(ChatListRetrieveResultIQ)}
+	 * if the collection couldn't be parsed, some of its messages may have been
+	 * delivered already. Invoked on the same thread as the messages
+	 * @param iq result IQ whose parsing failed
+	 * */
+	public void processFailed(ChatListRetrieveResultIQ iq);
+
+}
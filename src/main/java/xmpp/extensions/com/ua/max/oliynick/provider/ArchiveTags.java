@@ -0,0 +1,112 @@
+package xmpp.extensions.com.ua.max.oliynick.provider;
+
+import org.xmlpull.v1.XmlPullParser;
+
+import xmpp.extensions.com.ua.max.oliynick.util.StringPool;
+
+/**
+ * <p>
+ * Element names used by XEP-0136 providers and their integer codes.
+ * Names are resolved by length and first character, so that parsing
+ * loops compare at most one string per start tag and allocate nothing
+ * </p>
+ * @author Max Oliynick
+ * */
+final class ArchiveTags {
+	
+	static final String chatTag = "chat";
+	static final String fromTag = "from";
+	static final String toTag = "to";
+	static final String firstTag = "first";
+	static final String lastTag = "last";
+	static final String countTag = "count";
+	static final String changedTag = "changed";
+	static final String removedTag = "removed";
+	static final String maxTag = "max";
+	static final String afterTag = "after";
+	
+	static final int unknown = 0;
+	static final int chat = 1;
+	static final int from = 2;
+	static final int to = 3;
+	static final int first = 4;
+	static final int last = 5;
+	static final int count = 6;
+	static final int changed = 7;
+	static final int removed = 8;
+	static final int max = 9;
+	static final int after = 10;
+	
+	private ArchiveTags() {}
+	
+	/**
+	 * Resolves element name into tag code
+	 * @param name element name, may be null
+	 * @return tag code or {@link #unknown}
+	 * */
+	static int codeOf(String name) {
+		
+		if(name == null) return unknown;
+		
+		switch (name.length()) {
+			case 2 : 
+				return name.equals(toTag) ? to : unknown;
+				
+			case 3 : 
+				return name.equals(maxTag) ? max : unknown;
+				
+			case 4 : {
+				switch (name.charAt(0)) {
+					case 'c' : return name.equals(chatTag) ? chat : unknown;
+					case 'f' : return name.equals(fromTag) ? from : unknown;
+					case 'l' : return name.equals(lastTag) ? last : unknown;
+				}
+				return unknown;
+			}
+			
+			case 5 : {
+				switch (name.charAt(0)) {
+					case 'f' : return name.equals(firstTag) ? first : unknown;
+					case 'c' : return name.equals(countTag) ? count : unknown;
+					case 'a' : return name.equals(afterTag) ? after : unknown;
+				}
+				return unknown;
+			}
+			
+			case 7 : {
+				switch (name.charAt(0)) {
+					case 'c' : return name.equals(changedTag) ? changed : unknown;
+					case 'r' : return name.equals(removedTag) ? removed : unknown;
+				}
+				return unknown;
+			}
+		}
+		
+		return unknown;
+	}
+	
+	/**
+	 * Parses integer value, returns default value
+	 * if the string is absent
+	 * */
+	static int parseInt(String value, int def) {
+		return value == null ? def : Integer.parseInt(value.trim());
+	}
+	
+	/**
+	 * Returns attribute value canonicalized by the shared {@link StringPool},
+	 * used for JIDs and timestamps which repeat across elements and stanzas
+	 * @return value or null if the attribute is absent
+	 * */
+	static String pooledAttribute(XmlPullParser parser, String name) {
+		return StringPool.shared().canonicalize(parser.getAttributeValue("", name));
+	}
+	
+	/**
+	 * Returns length of the value, 0 if it's null
+	 * */
+	static int length(String value) {
+		return value == null ? 0 : value.length();
+	}
+
+}
@@ -0,0 +1,149 @@
+package xmpp.extensions.com.ua.max.oliynick.provider;
+
+import java.io.IOException;
+
+import org.jivesoftware.smack.SmackException;
+import org.jivesoftware.smack.packet.IQ;
+import org.jivesoftware.smack.provider.IQProvider;
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+
+import xmpp.extensions.com.ua.max.oliynick.iq.ChatListRequestIQ;
+import xmpp.extensions.com.ua.max.oliynick.iq.ChatListResponceIQ;
+
+/**
+ * <p>
+ * Provider for the 'list' element on the archive side. Requests and
+ * responses share the element name, while providers are registered
+ * per JVM and don't see IQ type, so that the element is parsed into
+ * {@link ChatListRequestIQ} if it has 'with', 'start', 'end' attributes
+ * or its RSM set starts with 'max', 'after' or 'before'. Other elements
+ * are responses, they're passed to the wrapped client provider, so that
+ * the same JVM can both answer and send 'list' requests. An empty 'list'
+ * element is parsed into an empty {@link ChatListResponceIQ}, which should
+ * be treated as an unfiltered request when IQ type is 'get'.
+ * The provider should be registered instead of {@link ChatListResponceIQProvider}
+ * </p>
+ * @author Max Oliynick
+ * */
+public final class ChatListRequestIQProvider extends IQProvider<IQ> {
+	
+	public static final String elementName = ChatListResponceIQProvider.elementName;
+	public static final String namespace = ChatListResponceIQProvider.namespace;
+	
+	private static final String withAttr = "with";
+	private static final String startAttr = "start";
+	private static final String endAttr = "end";
+	
+	private static final String setTag = "set";
+	private static final String beforeTag = "before";
+	
+	/**
+	 * Provider of 'list' responses
+	 * */
+	private final ChatListResponceIQProvider responses;
+	
+	/**
+	 * Constructs provider which parses responses by
+	 * a new {@link ChatListResponceIQProvider}
+	 * */
+	public ChatListRequestIQProvider() {
+		this(new ChatListResponceIQProvider());
+	}
+	
+	/**
+	 * Constructs provider
+	 * @param responses provider of 'list' responses
+	 * */
+	public ChatListRequestIQProvider(ChatListResponceIQProvider responses) {
+		
+		if(responses == null)
+			throw new IllegalArgumentException("responses == null");
+		
+		this.responses = responses;
+	}
+	
+	/**
+	 * Returns provider of 'list' responses
+	 * */
+	public ChatListResponceIQProvider getResponseProvider() {
+		return responses;
+	}
+	
+	@Override
+	public IQ parse(XmlPullParser parser, int depth)
+			throws XmlPullParserException, IOException, SmackException {
+		
+		final String with = ArchiveTags.pooledAttribute(parser, withAttr);
+		final String start = ArchiveTags.pooledAttribute(parser, startAttr);
+		final String end = ArchiveTags.pooledAttribute(parser, endAttr);
+		
+		if(with == null && start == null && end == null && !isRequest(parser, depth)) {
+			// the parser is either at the end of an empty element or at the first response element
+			return parser.getEventType() == XmlPullParser.END_TAG && parser.getDepth() == depth ?
+					new ChatListResponceIQ() : responses.parse(parser, depth);
+		}
+		
+		int max = -1;
+		String after = null;
+		String before = null;
+		
+		do {
+			
+			if(parser.getEventType() == XmlPullParser.START_TAG) {
+				
+				switch (ArchiveTags.codeOf(parser.getName())) {
+					case ArchiveTags.max : {
+						max = ArchiveTags.parseInt(parser.nextText(), -1);
+						break;
+					}
+					case ArchiveTags.after : {
+						after = parser.nextText();
+						break;
+					}
+					default : {
+						if(beforeTag.equals(parser.getName())) {
+							before = parser.nextText();
+						}
+					}
+				}
+			}
+			
+			parser.next();
+			
+		} while(parser.getDepth() != depth);
+		
+		final ChatListRequestIQ listRequest = new ChatListRequestIQ(with, max);
+		
+		listRequest.setStart(start);
+		listRequest.setEnd(end);
+		listRequest.setAfter(after);
+		listRequest.setBefore(before);
+		
+		return listRequest;
+	}
+	
+	/**
+	 * Moves the parser to the first child element other than RSM
+	 * 'set', or to the end of the 'list' element if there is no such
+	 * child. Returns true if the child is RSM 'max', 'after' or 'before'
+	 * */
+	private static boolean isRequest(XmlPullParser parser, int depth)
+			throws XmlPullParserException, IOException {
+		
+		for(;;) {
+			
+			final int event = parser.next();
+			
+			if(event == XmlPullParser.END_TAG && parser.getDepth() == depth) return false;
+			if(event != XmlPullParser.START_TAG || setTag.equals(parser.getName())) continue;
+			
+			switch (ArchiveTags.codeOf(parser.getName())) {
+				case ArchiveTags.max :
+				case ArchiveTags.after : return true;
+				default : return beforeTag.equals(parser.getName());
+			}
+		}
+	}
+	
+}
@@ -8,12 +8,18 @@ import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserException;
 
 import xmpp.extensions.com.ua.max.oliynick.iq.ChatListResponceIQ;
+import xmpp.extensions.com.ua.max.oliynick.metrics.Metrics;
 
 /**
  * <p>
  * Custom provider that parsers XEP-0136 result history into
  * {@link ChatListResponceIQ} packets
  * </p>
+ * <p>
+ * If pooled mode is enabled, IQs are taken from the pool of recycled
+ * instances, consumer should {@link ChatListResponceIQ#recycle()
+ * recycle} them once they're processed
+ * </p>
  * @author Max Oliynick
  * */
 public final class ChatListResponceIQProvider extends IQProvider<ChatListResponceIQ> {
@@ -21,42 +27,77 @@ public final class ChatListResponceIQProvider extends IQProvider<ChatListResponc
 	public static final String elementName = "list";
 	public static final String namespace = "urn:xmpp:archive";
 	
-	private static final String chatTag = "chat";
-	private static final String firstTag = "first";
-	private static final String lastTag = "last";
+	private static final String withAttr = "with";
+	private static final String startAttr = "start";
+	private static final String indexAttr = "index";
+	
+	/**
+	 * Whether parsed IQs should be taken from the pool
+	 * */
+	private volatile boolean pooled;
+	
+	public boolean isPooled() {
+		return pooled;
+	}
+	
+	/**
+	 * Enables or disables taking parsed IQs from the
+	 * pool, see {@link ChatListResponceIQ#obtain()}
+	 * */
+	public void setPooled(boolean pooled) {
+		this.pooled = pooled;
+	}
 	
 	@Override
 	public ChatListResponceIQ parse(XmlPullParser parser, int depth)
 			throws XmlPullParserException, IOException, SmackException {
 	
-		final ChatListResponceIQ iq = new ChatListResponceIQ();
+		// clock isn't read when metrics are disabled
+		final boolean measured = Metrics.isEnabled();
+		final long started = measured ? System.nanoTime() : 0;
+		final ChatListResponceIQ iq = pooled ? ChatListResponceIQ.obtain() : new ChatListResponceIQ();
+		long chars = 0;
 			
 		do {
 
-			final String name = parser.getName();
-
-				switch (parser.getEventType()) {
-					case XmlPullParser.START_TAG : {
+			if(parser.getEventType() == XmlPullParser.START_TAG) {
+				
+				switch (ArchiveTags.codeOf(parser.getName())) {
+					case ArchiveTags.chat : {
+						final String chatWith = ArchiveTags.pooledAttribute(parser, withAttr);
+						final String chatStart = ArchiveTags.pooledAttribute(parser, startAttr);
 						
-						if (name.equals(chatTag)) {
-							iq.appendChat(parser.getAttributeValue(0), parser.getAttributeValue(1));
-							
-						} else if(name.equals(firstTag)) {
-							iq.setFirst(Integer.valueOf(parser.getAttributeValue(0)), parser.nextText());
-							
-						} else if(name.equals(lastTag)) {
-							iq.setLast(parser.nextText());
-							
-						}
+						chars += ArchiveTags.length(chatWith) + ArchiveTags.length(chatStart);
+						iq.appendChat(chatWith, chatStart);
+						break;
+					}
+					case ArchiveTags.first : {
+						final int index = ArchiveTags.parseInt(parser.getAttributeValue("", indexAttr), -1);
+						final String first = parser.nextText();
 						
+						chars += first.length();
+						iq.setFirst(index, first);
+						break;
+					}
+					case ArchiveTags.last : {
+						final String last = parser.nextText();
+						
+						chars += last.length();
+						iq.setLast(last);
 						break;
 					}
 				}
+			}
 				
 			parser.next();
 								
 		} while(parser.getDepth() != depth);
 		
+		if(measured) {
+			Metrics.get().recordParse(elementName, System.nanoTime() - started, 
+					iq.getChatCount(), Metrics.estimateSize(iq.getChatCount(), chars));
+		}
+		
 		return iq;
 	}
 
@@ -1,6 +1,9 @@
 package xmpp.extensions.com.ua.max.oliynick.provider;
 
 import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
 
 import org.jivesoftware.smack.SmackException;
 import org.jivesoftware.smack.provider.IQProvider;
@@ -9,12 +12,55 @@ import org.xmlpull.v1.XmlPullParserException;
 
 import xmpp.extensions.com.ua.max.oliynick.iq.ChatListRetrieveResultIQ;
 import xmpp.extensions.com.ua.max.oliynick.iq.ChatListRetrieveResultIQ.Direction;
+import xmpp.extensions.com.ua.max.oliynick.iq.LazyMessageContent;
+import xmpp.extensions.com.ua.max.oliynick.iq.MessageCursor;
+import xmpp.extensions.com.ua.max.oliynick.iq.PendingDecode;
+import xmpp.extensions.com.ua.max.oliynick.metrics.Metrics;
+import xmpp.extensions.com.ua.max.oliynick.util.SerialExecutor;
 
 /**
  * <p>
  * Custom provider that parsers XEP-0136 result history into
  * {@link ChatListRetrieveResultIQ} packets
  * </p>
+ * <p>
+ * If {@link ArchiveMessageListener} was set, provider works in
+ * streaming mode: each message is passed to the listener as soon
+ * as it was parsed and resulting IQ keeps only collection attributes
+ * and RSM metadata
+ * </p>
+ * <p>
+ * If compact storage is enabled, messages are kept in columnar
+ * {@link xmpp.extensions.com.ua.max.oliynick.iq.CompactMessageContent}
+ * storage instead of a list of message objects
+ * </p>
+ * <p>
+ * If lazy mode is enabled, body text is copied from the parser buffer
+ * into {@link LazyMessageContent} slice and messages are decoded only
+ * when they're iterated. Lazy mode takes precedence over compact storage
+ * and pooled mode, but not over streaming mode
+ * </p>
+ * <p>
+ * If pooled mode is enabled, IQs are taken from the pool of recycled
+ * instances, consumer should {@link ChatListRetrieveResultIQ#recycle()
+ * recycle} them once they're processed
+ * </p>
+ * <p>
+ * If decode executor is set, provider works in offload mode: the reader
+ * thread only captures messages as in lazy mode and decoding into the
+ * configured storage or streaming to the listener is done by the executor.
+ * Returned IQ is a placeholder with collection attributes and RSM values,
+ * the decoded one is obtained by {@link ChatListRetrieveResultIQ#getDecoded()}
+ * or delivered by {@link DecodedResultCallback}. Collections smaller than
+ * the threshold are decoded on the reader thread
+ * </p>
+ * <p>
+ * If a message listener is set as well, decoding is serialized per
+ * provider: every collection, whatever its size, is queued to a
+ * {@link SerialExecutor} over the decode executor, so that the listener
+ * receives collections one at a time, in the order the stanzas were read,
+ * just as in streaming mode without offload
+ * </p>
  * @author Max Oliynick
  * */
 public final class ChatListRetrieveIQProvider extends IQProvider<ChatListRetrieveResultIQ> {
@@ -22,85 +68,334 @@ public final class ChatListRetrieveIQProvider extends IQProvider<ChatListRetriev
 	public static final String namespace = "urn:xmpp:archive";
 	public static final String elementName = "chat";
 	
-	private static final String chatTag = "chat";
-	private static final String fromTag = "from";
-	private static final String toTag = "to";
-	private static final String firstTag = "first";
-	private static final String lastTag = "last";
-	private static final String countTag = "count";
-
 	private static final String withAttr = "with";
 	private static final String startAttr = "start";
 	private static final String subjectAttr = "subject";
 	private static final String versionAttr = "version";
+	private static final String secsAttr = "secs";
+	private static final String indexAttr = "index";
+	
+	/**
+	 * Listener of parsed messages, null if streaming mode is disabled
+	 * */
+	private volatile ArchiveMessageListener messageListener;
+	
+	/**
+	 * Whether parsed IQs should use columnar messages storage
+	 * */
+	private volatile boolean compactStorage;
+	
+	/**
+	 * Whether parsed IQs should be taken from the pool
+	 * */
+	private volatile boolean pooled;
+	
+	/**
+	 * Whether parsed IQs should keep raw messages slice
+	 * */
+	private volatile boolean lazy;
+	
+	/**
+	 * Executor which decodes captured messages, null if offload mode is disabled
+	 * */
+	private volatile Executor decodeExecutor;
+	
+	/**
+	 * Serial view of the decode executor which keeps order
+	 * of collections delivered to the listener
+	 * */
+	private volatile SerialExecutor serialExecutor;
+	
+	/**
+	 * Min number of messages decoded by the executor
+	 * */
+	private volatile int offloadThreshold;
+	
+	public ChatListRetrieveIQProvider() {
+		this(null);
+	}
+	
+	/**
+	 * Constructs provider which works in streaming mode
+	 * @param messageListener listener of parsed messages
+	 * */
+	public ChatListRetrieveIQProvider(ArchiveMessageListener messageListener) {
+		this.messageListener = messageListener;
+	}
+	
+	public ArchiveMessageListener getMessageListener() {
+		return messageListener;
+	}
+	
+	/**
+	 * Sets listener of parsed messages. Passing null
+	 * disables streaming mode
+	 * */
+	public void setMessageListener(ArchiveMessageListener messageListener) {
+		this.messageListener = messageListener;
+	}
+	
+	public boolean isCompactStorage() {
+		return compactStorage;
+	}
+	
+	/**
+	 * Enables or disables columnar messages storage
+	 * in parsed IQs
+	 * */
+	public void setCompactStorage(boolean compactStorage) {
+		this.compactStorage = compactStorage;
+	}
+	
+	public boolean isLazy() {
+		return lazy;
+	}
+	
+	/**
+	 * Enables or disables lazy messages decoding in parsed
+	 * IQs, see {@link ChatListRetrieveResultIQ#newLazy()}. Lazy IQ
+	 * already defers decoding to its consumer, so while no message
+	 * listener is set, lazy mode disables offload mode
+	 * */
+	public void setLazy(boolean lazy) {
+		this.lazy = lazy;
+	}
+	
+	public boolean isPooled() {
+		return pooled;
+	}
+	
+	/**
+	 * Enables or disables taking parsed IQs from the
+	 * pool, see {@link ChatListRetrieveResultIQ#obtain(boolean)}
+	 * */
+	public void setPooled(boolean pooled) {
+		this.pooled = pooled;
+	}
+	
+	public Executor getDecodeExecutor() {
+		return decodeExecutor;
+	}
+	
+	public int getOffloadThreshold() {
+		return offloadThreshold;
+	}
+	
+	/**
+	 * Enables offload mode, e.g. with {@link java.util.concurrent.ForkJoinPool#commonPool()}
+	 * or an executor of virtual threads. Passing null disables offload mode. The threshold
+	 * doesn't apply while a message listener is set, see the class description. Offload
+	 * mode has no effect in lazy mode unless a message listener is set, lazy IQs are
+	 * returned by the reader thread as they are without the executor
+	 * @param decodeExecutor executor which decodes captured messages
+	 * @param offloadThreshold min number of messages to decode by the executor
+	 * */
+	public void setDecodeExecutor(Executor decodeExecutor, int offloadThreshold) {
+		
+		if(offloadThreshold < 0)
+			throw new IllegalArgumentException("offloadThreshold < 0");
+		
+		this.offloadThreshold = offloadThreshold;
+		this.serialExecutor = decodeExecutor == null ? null : new SerialExecutor(decodeExecutor);
+		this.decodeExecutor = decodeExecutor;
+	}
 	
-	public ChatListRetrieveIQProvider() {}
-
 	@Override
 	public ChatListRetrieveResultIQ parse(XmlPullParser parser, int depth)
 			throws XmlPullParserException, IOException, SmackException {
 		
-		final ChatListRetrieveResultIQ iq = new ChatListRetrieveResultIQ();
+		final long started = System.nanoTime();
+		final ArchiveMessageListener listener = messageListener;
+		final Executor executor = listener == null ? decodeExecutor : serialExecutor;
+		final boolean offload = executor != null && (listener != null || !this.lazy);
+		final boolean lazy = offload || this.lazy && listener == null;
+		final ChatListRetrieveResultIQ iq = lazy ? ChatListRetrieveResultIQ.newLazy() : pooled ? 
+				ChatListRetrieveResultIQ.obtain(compactStorage) : new ChatListRetrieveResultIQ(compactStorage);
+		final LazyMessageContent slice = iq.getLazyContent();
+		final int [] holder = lazy ? new int[2] : null;
+		int messages = 0;
+		long chars = 0;
 		
-		do {
+		try {
 			
-			final String name = parser.getName();
-			
-				switch (parser.getEventType()) {
-					case XmlPullParser.START_TAG : {
-						
-						if (name.equals(chatTag)) {
-							parseRetrTagAttrs(iq, parser, parser.getAttributeCount());
-							
-						} else if(name.equals(fromTag) || name.equals(toTag)) {
-							final int secs = Integer.valueOf(parser.getAttributeValue(0));
-							final Direction direction = name.equals(fromTag) ? Direction.from : Direction.to;
+			do {
+				
+				if(parser.getEventType() == XmlPullParser.START_TAG) {
+					
+					final int tag = ArchiveTags.codeOf(parser.getName());
+					
+					switch (tag) {
+						case ArchiveTags.chat : {
+							parseRetrTagAttrs(iq, parser);
+							break;
+						}
+						case ArchiveTags.from :
+						case ArchiveTags.to : {
+							final int secs = ArchiveTags.parseInt(parser.getAttributeValue("", secsAttr), 0);
+							final Direction direction = tag == ArchiveTags.from ? Direction.from : Direction.to;
 							
 							parser.nextTag();
-							iq.addBody(direction, secs, parser.nextText());
+							++messages;
 							
-						} else if(name.equals(firstTag)) {
-							iq.setFirstIndex(Integer.valueOf(parser.getAttributeValue(0)));
-							iq.setFirstValue(parser.nextText());
+							if(lazy) {
+								chars += copyText(parser, slice, direction, secs, holder);
+								break;
+							}
 							
-						} else if(name.equals(lastTag)) {
-							iq.setLastValue(parser.nextText());
+							final String body = parser.nextText();
+							
+							chars += body.length();
 							
-						} else if(name.equals(countTag)) {
-							iq.setCount(Integer.valueOf(parser.nextText()));
+							if(listener == null) {
+								iq.addBody(direction, secs, body);
+							} else {
+								listener.processMessage(iq, direction, secs, body);
+							}
+							
+							break;
+						}
+						case ArchiveTags.first : {
+							iq.setFirstIndex(ArchiveTags.parseInt(parser.getAttributeValue("", indexAttr), -1));
+							iq.setFirstValue(parser.nextText());
+							break;
+						}
+						case ArchiveTags.last : {
+							iq.setLastValue(parser.nextText());
+							break;
+						}
+						case ArchiveTags.count : {
+							iq.setCount(Integer.parseInt(parser.nextText().trim()));
+							break;
 						}
-						
-						break;
 					}
 				}
 				
 				parser.next();
 				
-		} while(parser.getDepth() != depth);
+			} while(parser.getDepth() != depth);
+			
+		} catch (Exception e) {
+			
+			// messages delivered so far belong to a collection which won't be finished
+			if(listener != null && !lazy) {
+				listener.processFailed(iq);
+			}
+			
+			throw e;
+		}
+		
+		iq.setParseNanos(System.nanoTime() - started);
+		Metrics.get().recordParse(elementName, iq.getParseNanos(), messages, Metrics.estimateSize(messages, chars));
+		
+		if(!offload) {
+			
+			if(listener != null) {
+				listener.processFinished(iq);
+			}
+			
+			return iq;
+		}
+		
+		// small collections can't overtake the queued ones
+		if(listener == null && messages < offloadThreshold) return decode(iq, null);
+		
+		final PendingDecode pending = new PendingDecode(new Callable<ChatListRetrieveResultIQ>() {
+			
+			@Override
+			public ChatListRetrieveResultIQ call() {
+				return decode(iq, listener);
+			}
+		});
+		
+		iq.setPendingDecode(pending);
+		
+		try {
+			executor.execute(pending);
+		} catch (RejectedExecutionException e) {
+			pending.run();
+		}
 		
 		return iq;
 				
 	}
 	
 	/**
-	 * Parses packet attributes
+	 * Decodes captured messages into the configured storage
+	 * or passes them to the listener
+	 * @param captured IQ with lazy messages storage
+	 * @param listener listener of messages, may be null
 	 * */
-	private void parseRetrTagAttrs(ChatListRetrieveResultIQ iq, XmlPullParser parser, int count) {
+	private ChatListRetrieveResultIQ decode(ChatListRetrieveResultIQ captured, ArchiveMessageListener listener) {
 		
-		for(int i = 0; i < count; ++i) {
-			if(parser.getAttributeName(i).equals(withAttr)) {
-				iq.setWith(parser.getAttributeValue(i));
-				
-			} else if(parser.getAttributeName(i).equals(startAttr)) {
-				iq.setStart(parser.getAttributeValue(i));
-				
-			} else if(parser.getAttributeName(i).equals(subjectAttr)) {
-				iq.setSubject(parser.getAttributeValue(i));
+		final ChatListRetrieveResultIQ iq = pooled ? 
+				ChatListRetrieveResultIQ.obtain(compactStorage) : new ChatListRetrieveResultIQ(compactStorage);
+		
+		iq.copyAttributes(captured);
+		
+		try {
+			
+			for(final MessageCursor cursor = captured.cursor(); cursor.next(); ) {
 				
-			} else if(parser.getAttributeName(i).equals(versionAttr)) {
-				iq.setVersion(Integer.valueOf(parser.getAttributeValue(i)));
+				if(listener == null) {
+					iq.addBody(cursor.getDirection(), cursor.getSecs(), cursor.getBody());
+				} else {
+					listener.processMessage(iq, cursor.getDirection(), cursor.getSecs(), cursor.getBody());
+				}
 			}
+			
+		} catch (RuntimeException e) {
+			
+			if(listener != null) {
+				listener.processFailed(iq);
+			}
+			
+			throw e;
+		}
+		
+		if(listener != null) {
+			listener.processFinished(iq);
 		}
+		
+		return iq;
 	}
-
+	
+	/**
+	 * Records message with body text copied straight from the parser
+	 * buffer, parser is positioned on the 'body' start tag
+	 * and is left on its end tag
+	 * @return body length
+	 * */
+	private static int copyText(XmlPullParser parser, LazyMessageContent slice, Direction direction, int secs, int [] holder)
+			throws XmlPullParserException, IOException {
+		
+		int length = 0;
+		
+		slice.begin(direction, secs);
+		
+		for(int event = parser.next(); event != XmlPullParser.END_TAG; event = parser.next()) {
+			
+			if(event != XmlPullParser.TEXT)
+				throw new XmlPullParserException("'body' is expected to contain text only", parser, null);
+			
+			final char [] text = parser.getTextCharacters(holder);
+			
+			slice.appendBody(text, holder[0], holder[1]);
+			length += holder[1];
+		}
+		
+		slice.end();
+		return length;
+	}
+	
+	/**
+	 * Parses packet attributes by their names
+	 * */
+	private void parseRetrTagAttrs(ChatListRetrieveResultIQ iq, XmlPullParser parser) {
+		
+		iq.setWith(ArchiveTags.pooledAttribute(parser, withAttr));
+		iq.setStart(ArchiveTags.pooledAttribute(parser, startAttr));
+		iq.setSubject(parser.getAttributeValue("", subjectAttr));
+		iq.setVersion(ArchiveTags.parseInt(parser.getAttributeValue("", versionAttr), 0));
+	}
+	
 }
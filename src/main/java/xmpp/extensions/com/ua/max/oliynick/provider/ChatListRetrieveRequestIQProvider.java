@@ -0,0 +1,60 @@
+package xmpp.extensions.com.ua.max.oliynick.provider;
+
+import java.io.IOException;
+
+import org.jivesoftware.smack.SmackException;
+import org.jivesoftware.smack.provider.IQProvider;
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+
+import xmpp.extensions.com.ua.max.oliynick.iq.ChatListRetrieveRequestIQ;
+
+/**
+ * <p>
+ * Provider that parses XEP-0136 'retrieve' requests into
+ * {@link ChatListRetrieveRequestIQ} packets on the archive side
+ * </p>
+ * @author Max Oliynick
+ * */
+public final class ChatListRetrieveRequestIQProvider extends IQProvider<ChatListRetrieveRequestIQ> {
+	
+	public static final String elementName = ChatListRetrieveRequestIQ.elementName;
+	public static final String namespace = ChatListRetrieveRequestIQ.namespace;
+	
+	private static final String withAttr = "with";
+	private static final String startAttr = "start";
+	private static final String endAttr = "end";
+	
+	@Override
+	public ChatListRetrieveRequestIQ parse(XmlPullParser parser, int depth)
+			throws XmlPullParserException, IOException, SmackException {
+		
+		final ChatListRetrieveRequestIQ iq = new ChatListRetrieveRequestIQ(ArchiveTags.pooledAttribute(parser, withAttr));
+		
+		iq.setStart(ArchiveTags.pooledAttribute(parser, startAttr));
+		iq.setEnd(ArchiveTags.pooledAttribute(parser, endAttr));
+		
+		do {
+			
+			if(parser.getEventType() == XmlPullParser.START_TAG) {
+				
+				switch (ArchiveTags.codeOf(parser.getName())) {
+					case ArchiveTags.max : {
+						iq.setMax(ArchiveTags.parseInt(parser.nextText(), 0));
+						break;
+					}
+					case ArchiveTags.after : {
+						iq.setAfter(parser.nextText());
+						break;
+					}
+				}
+			}
+			
+			parser.next();
+			
+		} while(parser.getDepth() != depth);
+		
+		return iq;
+	}
+	
+}
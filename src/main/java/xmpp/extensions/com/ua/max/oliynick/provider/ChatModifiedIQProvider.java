@@ -0,0 +1,76 @@
+package xmpp.extensions.com.ua.max.oliynick.provider;
+
+import java.io.IOException;
+
+import org.jivesoftware.smack.SmackException;
+import org.jivesoftware.smack.provider.IQProvider;
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+
+import xmpp.extensions.com.ua.max.oliynick.iq.ChatModifiedResultIQ;
+import xmpp.extensions.com.ua.max.oliynick.metrics.Metrics;
+
+/**
+ * <p>
+ * Custom provider that parsers XEP-0136 replication result into
+ * {@link ChatModifiedResultIQ} packets
+ * </p>
+ * @author Max Oliynick
+ * */
+public final class ChatModifiedIQProvider extends IQProvider<ChatModifiedResultIQ> {
+	
+	public static final String elementName = "modified";
+	public static final String namespace = "urn:xmpp:archive";
+	
+	private static final String withAttr = "with";
+	private static final String startAttr = "start";
+	private static final String versionAttr = "version";
+	private static final String indexAttr = "index";
+
+	@Override
+	public ChatModifiedResultIQ parse(XmlPullParser parser, int depth)
+			throws XmlPullParserException, IOException, SmackException {
+		
+		final long started = System.nanoTime();
+		final ChatModifiedResultIQ iq = new ChatModifiedResultIQ();
+		
+		do {
+			
+			if(parser.getEventType() == XmlPullParser.START_TAG) {
+				
+				final int tag = ArchiveTags.codeOf(parser.getName());
+				
+				switch (tag) {
+					case ArchiveTags.changed :
+					case ArchiveTags.removed : {
+						iq.addModification(ArchiveTags.pooledAttribute(parser, withAttr), ArchiveTags.pooledAttribute(parser, startAttr), 
+								ArchiveTags.parseInt(parser.getAttributeValue("", versionAttr), 0), tag == ArchiveTags.removed);
+						break;
+					}
+					case ArchiveTags.first : {
+						iq.setFirstIndex(ArchiveTags.parseInt(parser.getAttributeValue("", indexAttr), -1));
+						iq.setFirstValue(parser.nextText());
+						break;
+					}
+					case ArchiveTags.last : {
+						iq.setLastValue(parser.nextText());
+						break;
+					}
+					case ArchiveTags.count : {
+						iq.setCount(Integer.parseInt(parser.nextText().trim()));
+						break;
+					}
+				}
+			}
+			
+			parser.next();
+			
+		} while(parser.getDepth() != depth);
+		
+		final int items = iq.getModifications().size();
+		
+		Metrics.get().recordParse(elementName, System.nanoTime() - started, items, Metrics.estimateSize(items, 0));
+		return iq;
+	}
+
+}
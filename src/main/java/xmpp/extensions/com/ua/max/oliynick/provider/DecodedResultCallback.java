@@ -0,0 +1,86 @@
+package xmpp.extensions.com.ua.max.oliynick.provider;
+
+import java.util.concurrent.ExecutionException;
+
+import org.jivesoftware.smack.ExceptionCallback;
+import org.jivesoftware.smack.SmackException;
+import org.jivesoftware.smack.SmackException.NotConnectedException;
+import org.jivesoftware.smack.StanzaListener;
+import org.jivesoftware.smack.packet.Stanza;
+
+import xmpp.extensions.com.ua.max.oliynick.iq.ChatListRetrieveResultIQ;
+import xmpp.extensions.com.ua.max.oliynick.iq.PendingDecode;
+
+/**
+ * <p>
+ * IQ response callback which delivers decoded collections when
+ * {@link ChatListRetrieveIQProvider} works in offload mode. Collections
+ * which wait for decoding are passed to the wrapped listener once decoding
+ * is done, on the thread which decoded them, other stanzas are passed as is.
+ * Pass the instance as both the callback and the exception callback of
+ * {@link org.jivesoftware.smack.XMPPConnection#sendIqWithResponseCallback(org.jivesoftware.smack.packet.IQ,
+ * StanzaListener, ExceptionCallback, long) sendIqWithResponseCallback}
+ * </p>
+ * @author Max Oliynick
+ * */
+public final class DecodedResultCallback implements StanzaListener, ExceptionCallback {
+	
+	private final StanzaListener listener;
+	private final ExceptionCallback exceptionCallback;
+	
+	/**
+	 * Constructs callback
+	 * @param listener listener of responses
+	 * @param exceptionCallback callback of errors, including decoding failures
+	 * */
+	public DecodedResultCallback(StanzaListener listener, ExceptionCallback exceptionCallback) {
+		
+		if(listener == null)
+			throw new IllegalArgumentException("listener == null");
+		
+		if(exceptionCallback == null)
+			throw new IllegalArgumentException("exceptionCallback == null");
+		
+		this.listener = listener;
+		this.exceptionCallback = exceptionCallback;
+	}
+	
+	@Override
+	public void processPacket(Stanza packet) throws NotConnectedException {
+		
+		final PendingDecode pending = packet instanceof ChatListRetrieveResultIQ ?
+				((ChatListRetrieveResultIQ) packet).getPendingDecode() : null;
+		
+		if(pending == null) {
+			listener.processPacket(packet);
+			return;
+		}
+		
+		final ChatListRetrieveResultIQ captured = (ChatListRetrieveResultIQ) packet;
+		
+		pending.whenDone(new Runnable() {
+			
+			@Override
+			public void run() {
+				
+				try {
+					listener.processPacket(captured.getDecoded());
+				} catch (ExecutionException e) {
+					exceptionCallback.processException(e.getCause() instanceof Exception ?
+							(Exception) e.getCause() : new SmackException(e));
+				} catch (InterruptedException e) {
+					// decoding is done, get doesn't wait
+					Thread.currentThread().interrupt();
+				} catch (NotConnectedException e) {
+					exceptionCallback.processException(e);
+				}
+			}
+		});
+	}
+	
+	@Override
+	public void processException(Exception exception) {
+		exceptionCallback.processException(exception);
+	}
+	
+}
@@ -0,0 +1,412 @@
+package xmpp.extensions.com.ua.max.oliynick.server;
+
+import java.io.IOException;
+import java.io.Writer;
+
+import org.jivesoftware.smack.XMPPConnection;
+import org.jivesoftware.smack.iqrequest.AbstractIqRequestHandler;
+import org.jivesoftware.smack.iqrequest.IQRequestHandler;
+import org.jivesoftware.smack.packet.IQ;
+import org.jivesoftware.smack.packet.XMPPError;
+import org.jivesoftware.smack.provider.ProviderManager;
+import org.jxmpp.util.XmppStringUtils;
+
+import xmpp.extensions.com.ua.max.oliynick.iq.ChatListRequestIQ;
+import xmpp.extensions.com.ua.max.oliynick.iq.ChatListResponceIQ;
+import xmpp.extensions.com.ua.max.oliynick.iq.ChatListRetrieveRequestIQ;
+import xmpp.extensions.com.ua.max.oliynick.iq.ChatListRetrieveResultIQ;
+import xmpp.extensions.com.ua.max.oliynick.iq.MessageCursor;
+import xmpp.extensions.com.ua.max.oliynick.provider.ChatListRequestIQProvider;
+import xmpp.extensions.com.ua.max.oliynick.provider.ChatListResponceIQProvider;
+import xmpp.extensions.com.ua.max.oliynick.provider.ChatListRetrieveRequestIQProvider;
+import xmpp.extensions.com.ua.max.oliynick.util.ChunkedXmlWriter;
+import xmpp.extensions.com.ua.max.oliynick.util.Xep0082;
+
+/**
+ * <p>
+ * Answers XEP-0136 'list' and 'retrieve' requests received by the
+ * connection from {@link ArchiveStore}. The archive owner is the bare
+ * JID of the requester. RSM values are positions of collections or
+ * messages within the requested range, so that a page after any
+ * 'last' value is found without lookups; 'count' is the size of the
+ * whole range. 'list' requests can page backwards by RSM 'before',
+ * an empty 'before' requests the last page of the range. Pages are limited by {@link #getPageLimit()} whatever
+ * 'max' was requested
+ * </p>
+ * <p>
+ * Requests are parsed by {@link ChatListRequestIQProvider} and
+ * {@link ChatListRetrieveRequestIQProvider}, see {@link #registerProviders()}
+ * </p>
+ * @author Max Oliynick
+ * */
+public final class ArchiveResponder {
+	
+	public static final int defaultPageLimit = 100;
+	
+	private final XMPPConnection connection;
+	private final ArchiveStore store;
+	
+	private volatile int pageLimit = defaultPageLimit;
+	
+	private final IQRequestHandler listHandler = new AbstractIqRequestHandler(ChatListRequestIQProvider.elementName,
+			ChatListRequestIQProvider.namespace, IQ.Type.get, IQRequestHandler.Mode.async) {
+		
+		@Override
+		public IQ handleIQRequest(IQ iq) {
+			return list(iq);
+		}
+	};
+	
+	private final IQRequestHandler retrieveHandler = new AbstractIqRequestHandler(ChatListRetrieveRequestIQ.elementName,
+			ChatListRetrieveRequestIQ.namespace, IQ.Type.get, IQRequestHandler.Mode.async) {
+		
+		@Override
+		public IQ handleIQRequest(IQ iq) {
+			return retrieve(iq);
+		}
+	};
+	
+	private ArchiveResponder(XMPPConnection connection, ArchiveStore store) {
+		this.connection = connection;
+		this.store = store;
+	}
+	
+	/**
+	 * Registers providers of 'list' and 'retrieve' requests. Providers
+	 * are global, so {@link ChatListRequestIQProvider} takes the place of
+	 * the registered {@link ChatListResponceIQProvider} and passes 'list'
+	 * responses to it, client connections of the JVM keep parsing them
+	 * as before. Register client providers first, later registration
+	 * of the client provider disables parsing of 'list' requests
+	 * */
+	public static void registerProviders() {
+		
+		final Object current = ProviderManager.getIQProvider(ChatListRequestIQProvider.elementName, ChatListRequestIQProvider.namespace);
+		final ChatListResponceIQProvider responses;
+		
+		if(current instanceof ChatListRequestIQProvider) {
+			responses = ((ChatListRequestIQProvider) current).getResponseProvider();
+		} else if(current instanceof ChatListResponceIQProvider) {
+			responses = (ChatListResponceIQProvider) current;
+		} else {
+			responses = new ChatListResponceIQProvider();
+		}
+		
+		ProviderManager.addIQProvider(ChatListRequestIQProvider.elementName, ChatListRequestIQProvider.namespace, new ChatListRequestIQProvider(responses));
+		ProviderManager.addIQProvider(ChatListRetrieveRequestIQProvider.elementName, ChatListRetrieveRequestIQProvider.namespace, new ChatListRetrieveRequestIQProvider());
+	}
+	
+	/**
+	 * Starts answering requests received by the connection
+	 * @param connection connection which receives requests
+	 * @param store store of collections
+	 * */
+	public static ArchiveResponder install(XMPPConnection connection, ArchiveStore store) {
+		
+		if(connection == null)
+			throw new IllegalArgumentException("connection == null");
+		
+		if(store == null)
+			throw new IllegalArgumentException("store == null");
+		
+		final ArchiveResponder responder = new ArchiveResponder(connection, store);
+		
+		connection.registerIQRequestHandler(responder.listHandler);
+		connection.registerIQRequestHandler(responder.retrieveHandler);
+		
+		return responder;
+	}
+	
+	/**
+	 * Stops answering requests
+	 * */
+	public void uninstall() {
+		connection.unregisterIQRequestHandler(listHandler);
+		connection.unregisterIQRequestHandler(retrieveHandler);
+	}
+	
+	public int getPageLimit() {
+		return pageLimit;
+	}
+	
+	/**
+	 * Sets max number of collections or messages per response
+	 * */
+	public void setPageLimit(int pageLimit) {
+		
+		if(pageLimit < 1)
+			throw new IllegalArgumentException("pageLimit < 1");
+		
+		this.pageLimit = pageLimit;
+	}
+	
+	/**
+	 * Answers 'list' or 'retrieve' request by writing the response
+	 * stanza straight to the output in chunks, without building
+	 * response IQ, so that pages of any size take O(chunk) memory.
+	 * Meant for components which own their output stream
+	 * @param iq parsed request
+	 * @param out output, it's flushed when the stanza is written
+	 * */
+	public void respond(IQ iq, Writer out) throws IOException {
+		
+		if(iq == null)
+			throw new IllegalArgumentException("iq == null");
+		
+		if(out == null)
+			throw new IllegalArgumentException("out == null");
+		
+		final Page page = iq instanceof ChatListRetrieveRequestIQ ? retrievePage(iq) : listPage(iq);
+		
+		if(page.error != null) {
+			out.write(IQ.createErrorResponse(iq, new XMPPError(page.error)).toXML().toString());
+			out.flush();
+			return;
+		}
+		
+		final ChunkedXmlWriter xml = new ChunkedXmlWriter(out);
+		
+		xml.append("<iq");
+		
+		if(iq.getStanzaId() != null) xml.attribute("id", iq.getStanzaId());
+		if(iq.getFrom() != null) xml.attribute("to", iq.getFrom());
+		if(iq.getTo() != null) xml.attribute("from", iq.getTo());
+		
+		xml.attribute("type", "result").append('>');
+		
+		if(page.collection == null) {
+			
+			xml.append("<list xmlns='urn:xmpp:archive'>");
+			
+			for(int i = page.from; i < page.to; ++i) {
+				xml.append("<chat xmlns='urn:xmpp:archive'").attribute("with", page.range.getWith(i))
+				.attribute("start", page.range.getStart(i)).append("/>");
+			}
+			
+		} else {
+			
+			xml.append("<chat xmlns='urn:xmpp:archive'").attribute("with", page.collection.getWith())
+			.attribute("start", page.collection.getStart());
+			
+			if(page.collection.getSubject() != null) xml.attribute("subject", page.collection.getSubject());
+			if(page.collection.getVersion() > 0) xml.attribute("version", page.collection.getVersion());
+			
+			xml.append('>');
+			
+			final MessageCursor cursor = page.collection.cursor();
+			
+			for(int i = 0; i < page.to && cursor.next(); ++i) {
+				if(i >= page.from) ChatListRetrieveResultIQ.writeMessage(xml, cursor.getDirection(), cursor.getSecs(), cursor.getBody());
+			}
+		}
+		
+		xml.append("<set xmlns='http://jabber.org/protocol/rsm'>");
+		
+		if(page.from < page.to) {
+			xml.append("<first").attribute("index", page.from).append('>').append(page.from).append("</first><last>")
+			.append(page.to - 1).append("</last>");
+		}
+		
+		xml.append("<count>").append(page.count).append("</count></set>")
+		.append(page.collection == null ? "</list>" : "</chat>").append("</iq>");
+		
+		xml.flush();
+	}
+	
+	IQ list(IQ iq) {
+		
+		final Page page = listPage(iq);
+		
+		if(page.error != null)
+			return IQ.createErrorResponse(iq, new XMPPError(page.error));
+		
+		final ChatListResponceIQ result = new ChatListResponceIQ();
+		
+		for(int i = page.from; i < page.to; ++i) {
+			result.appendChat(page.range.getWith(i), page.range.getStart(i));
+		}
+		
+		if(page.from < page.to) {
+			result.setFirst(page.from, String.valueOf(page.from));
+			result.setLast(String.valueOf(page.to - 1));
+		}
+		
+		result.setCount(page.count);
+		
+		return resultOf(iq, result);
+	}
+	
+	IQ retrieve(IQ iq) {
+		
+		final Page page = retrievePage(iq);
+		
+		if(page.error != null)
+			return IQ.createErrorResponse(iq, new XMPPError(page.error));
+		
+		final ChatListRetrieveResultIQ collection = page.collection;
+		final ChatListRetrieveResultIQ result = new ChatListRetrieveResultIQ(true);
+		
+		result.setWith(collection.getWith());
+		result.setStart(collection.getStart());
+		result.setSubject(collection.getSubject());
+		result.setVersion(collection.getVersion());
+		
+		final MessageCursor cursor = collection.cursor();
+		
+		for(int i = 0; i < page.to && cursor.next(); ++i) {
+			if(i >= page.from) result.addBody(cursor.getDirection(), cursor.getSecs(), cursor.getBody());
+		}
+		
+		if(page.from < page.to) {
+			result.setFirstIndex(page.from);
+			result.setFirstValue(String.valueOf(page.from));
+			result.setLastValue(String.valueOf(page.to - 1));
+		}
+		
+		result.setCount(page.count);
+		
+		return resultOf(iq, result);
+	}
+	
+	/**
+	 * Items of the response page, either collections of the
+	 * range or messages of the collection, or error condition
+	 * */
+	private static final class Page {
+		
+		private CollectionRange range;
+		private ChatListRetrieveResultIQ collection;
+		private int from, to, count;
+		private XMPPError.Condition error;
+	}
+	
+	private Page listPage(IQ iq) {
+		
+		// an empty 'list' element is parsed as an empty response
+		final ChatListRequestIQ request = iq instanceof ChatListRequestIQ ? (ChatListRequestIQ) iq : new ChatListRequestIQ();
+		
+		final Page page = new Page();
+		final String owner = ownerOf(iq);
+		final long start = Xep0082.parseMillisOrDefault(request.getStart());
+		final long end = Xep0082.parseMillisOrDefault(request.getEnd());
+		
+		if(owner == null || (request.getStart() != null && start == Xep0082.unknown)
+				|| (request.getEnd() != null && end == Xep0082.unknown)) {
+			page.error = XMPPError.Condition.bad_request;
+			return page;
+		}
+		
+		// unknown start is the least millis value
+		page.range = store.find(owner, request.getWith(), start,
+				request.getEnd() == null ? Long.MAX_VALUE : end);
+		page.count = page.range.size();
+		
+		if(request.getBefore() != null) {
+			
+			page.to = lastOf(request.getBefore(), page.count);
+			
+			if(page.to < 0) {
+				page.error = XMPPError.Condition.item_not_found;
+				return page;
+			}
+			
+			page.from = page.to - pageOf(request.getMax(), page.to);
+			return page;
+		}
+		
+		page.from = firstOf(request.getAfter(), page.count);
+		
+		if(page.from < 0) {
+			page.error = XMPPError.Condition.item_not_found;
+			return page;
+		}
+		
+		page.to = page.from + pageOf(request.getMax(), page.count - page.from);
+		return page;
+	}
+	
+	private Page retrievePage(IQ iq) {
+		
+		final ChatListRetrieveRequestIQ request = (ChatListRetrieveRequestIQ) iq;
+		final Page page = new Page();
+		final String owner = ownerOf(iq);
+		final long start = Xep0082.parseMillisOrDefault(request.getStart());
+		
+		if(owner == null || request.getWith() == null || start == Xep0082.unknown) {
+			page.error = XMPPError.Condition.bad_request;
+			return page;
+		}
+		
+		page.collection = store.get(owner, request.getWith(), start);
+		page.count = page.collection == null ? 0 : page.collection.getMessageCount();
+		page.from = page.collection == null ? -1 : firstOf(request.getAfter(), page.count);
+		
+		if(page.from < 0) {
+			page.error = XMPPError.Condition.item_not_found;
+			return page;
+		}
+		
+		page.to = page.from + pageOf(request.getMax(), page.count - page.from);
+		return page;
+	}
+	
+	/**
+	 * Returns position of the first item of the page
+	 * or -1 if 'after' value doesn't denote an item
+	 * */
+	private static int firstOf(String after, int size) {
+		
+		if(after == null) return 0;
+		
+		try {
+			final int last = Integer.parseInt(after.trim());
+			return last >= 0 && last < size ? last + 1 : -1;
+		} catch(NumberFormatException e) {
+			return -1;
+		}
+	}
+	
+	/**
+	 * Returns position next to the last item of the page, which is the
+	 * range size for an empty 'before' value, or -1 if 'before' value
+	 * doesn't denote an item
+	 * */
+	private static int lastOf(String before, int size) {
+		
+		if(before.trim().isEmpty()) return size;
+		
+		try {
+			final int next = Integer.parseInt(before.trim());
+			return next >= 0 && next < size ? next : -1;
+		} catch(NumberFormatException e) {
+			return -1;
+		}
+	}
+	
+	/**
+	 * Returns number of items of the page, non-positive
+	 * 'max' means the request doesn't limit the page
+	 * */
+	private int pageOf(int max, int remaining) {
+		return Math.min(remaining, max > 0 ? Math.min(max, pageLimit) : pageLimit);
+	}
+	
+	private String ownerOf(IQ iq) {
+		final String from = iq.getFrom() != null ? iq.getFrom() : connection.getUser();
+		return from == null ? null : XmppStringUtils.parseBareJid(from);
+	}
+	
+	private static IQ resultOf(IQ request, IQ result) {
+		result.setType(IQ.Type.result);
+		result.setStanzaId(request.getStanzaId());
+		result.setTo(request.getFrom());
+		result.setFrom(request.getTo());
+		return result;
+	}
+	
+	@Override
+	public String toString() {
+		return "ArchiveResponder [store=" + store + ", pageLimit=" + pageLimit + "]";
+	}
+	
+}
@@ -0,0 +1,32 @@
+package xmpp.extensions.com.ua.max.oliynick.server;
+
+import xmpp.extensions.com.ua.max.oliynick.iq.ChatListRetrieveResultIQ;
+
+/**
+ * <p>
+ * Storage of archived collections served by {@link ArchiveResponder}.
+ * Implementations are queried from several threads at once
+ * </p>
+ * @author Max Oliynick
+ * */
+public interface ArchiveStore {
+	
+	/**
+	 * Returns collections of the owner ordered by start time
+	 * @param owner bare JID of the archive owner
+	 * @param with 'with' of the collections, null for all collections
+	 * @param start min start time in epoch millis, inclusive
+	 * @param end max start time in epoch millis, exclusive
+	 * */
+	public CollectionRange find(String owner, String with, long start, long end);
+	
+	/**
+	 * Returns collection with all its messages
+	 * @param owner bare JID of the archive owner
+	 * @param with 'with' of the collection
+	 * @param start start time in epoch millis
+	 * @return collection or null if it isn't stored
+	 * */
+	public ChatListRetrieveResultIQ get(String owner, String with, long start);
+	
+}
@@ -0,0 +1,29 @@
+package xmpp.extensions.com.ua.max.oliynick.server;
+
+/**
+ * <p>
+ * Ordered collections found by {@link ArchiveStore#find(String, String, long, long)}
+ * with random access, so that any RSM page is taken without walking the preceding ones
+ * </p>
+ * @author Max Oliynick
+ * */
+public interface CollectionRange {
+	
+	/**
+	 * Returns number of collections in the range
+	 * */
+	public int size();
+	
+	/**
+	 * Returns 'with' attribute of the collection
+	 * @param index index of the collection within the range
+	 * */
+	public String getWith(int index);
+	
+	/**
+	 * Returns 'start' attribute of the collection
+	 * @param index index of the collection within the range
+	 * */
+	public String getStart(int index);
+	
+}
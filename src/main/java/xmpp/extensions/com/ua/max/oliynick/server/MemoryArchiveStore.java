@@ -0,0 +1,425 @@
+package xmpp.extensions.com.ua.max.oliynick.server;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import xmpp.extensions.com.ua.max.oliynick.iq.ChatListRetrieveResultIQ;
+import xmpp.extensions.com.ua.max.oliynick.util.Xep0082;
+
+/**
+ * <p>
+ * In-memory {@link ArchiveStore}. Collections of every owner are kept
+ * in sorted arrays ordered by start time and 'with', one for all
+ * contacts and one per contact, so that lookups and range bounds are
+ * binary searches and pages are taken by index. Arrays are copied on
+ * write, so that readers never block and see consistent snapshots
+ * </p>
+ * <p>
+ * Since every {@link #add(String, ChatListRetrieveResultIQ)} copies
+ * arrays of the owner, adding n collections one by one takes O(n&#178;)
+ * time. Archives should be loaded by {@link #addAll(String, Collection)},
+ * which sorts the batch and merges it in a single copy
+ * </p>
+ * @author Max Oliynick
+ * */
+public final class MemoryArchiveStore implements ArchiveStore {
+	
+	private final ConcurrentMap<String, Archive> archives = new ConcurrentHashMap<>();
+	
+	/**
+	 * Collections of a single owner, writes are guarded by the instance monitor
+	 * */
+	private static final class Archive {
+		
+		private volatile Index all = Index.empty;
+		private final ConcurrentMap<String, Index> byWith = new ConcurrentHashMap<>();
+	}
+	
+	/**
+	 * Orders collections by start time and 'with'
+	 * */
+	private static final Comparator<ChatListRetrieveResultIQ> order = new Comparator<ChatListRetrieveResultIQ>() {
+		
+		@Override
+		public int compare(ChatListRetrieveResultIQ c1, ChatListRetrieveResultIQ c2) {
+			final int result = Long.compare(c1.getStartMillis(), c2.getStartMillis());
+			return result != 0 ? result : c1.getWith().compareTo(c2.getWith());
+		}
+	};
+	
+	/**
+	 * Immutable sorted arrays of collections
+	 * */
+	private static final class Index implements CollectionRange {
+		
+		private static final Index empty = new Index(new long[0], new String[0], new ChatListRetrieveResultIQ[0], 0, 0);
+		
+		/**
+		 * Returns index of collections which are already
+		 * sorted and don't repeat 'with' and 'start'
+		 * */
+		static Index of(List<ChatListRetrieveResultIQ> sorted) {
+			
+			final int n = sorted.size();
+			final long [] millis = new long[n];
+			final String [] withs = new String[n];
+			final ChatListRetrieveResultIQ [] collections = sorted.toArray(new ChatListRetrieveResultIQ[n]);
+			
+			for(int i = 0; i < n; ++i) {
+				millis[i] = collections[i].getStartMillis();
+				withs[i] = collections[i].getWith();
+			}
+			
+			return new Index(millis, withs, collections, 0, n);
+		}
+		
+		private final long [] millis;
+		private final String [] withs;
+		private final ChatListRetrieveResultIQ [] collections;
+		
+		// bounds of the range view
+		private final int from;
+		private final int to;
+		
+		Index(long [] millis, String [] withs, ChatListRetrieveResultIQ [] collections, int from, int to) {
+			this.millis = millis;
+			this.withs = withs;
+			this.collections = collections;
+			this.from = from;
+			this.to = to;
+		}
+		
+		/**
+		 * Returns index of the first collection which is
+		 * ordered not before the given start and 'with'
+		 * */
+		int lowerBound(long start, String with) {
+			
+			int lo = 0, hi = millis.length;
+			
+			while(lo < hi) {
+				
+				final int mid = (lo + hi) >>> 1;
+				
+				if(millis[mid] < start || (millis[mid] == start && with != null && withs[mid].compareTo(with) < 0)) {
+					lo = mid + 1;
+				} else {
+					hi = mid;
+				}
+			}
+			
+			return lo;
+		}
+		
+		/**
+		 * Returns index of the collection or -1
+		 * */
+		int indexOf(long start, String with) {
+			final int i = lowerBound(start, with);
+			return i < millis.length && millis[i] == start && withs[i].equals(with) ? i : -1;
+		}
+		
+		Index range(long start, long end) {
+			final int lo = lowerBound(start, null);
+			return new Index(millis, withs, collections, lo, Math.max(lo, lowerBound(end, null)));
+		}
+		
+		/**
+		 * Returns copy with the collection inserted or replaced
+		 * */
+		Index put(long start, ChatListRetrieveResultIQ collection) {
+			
+			final String with = collection.getWith();
+			final int i = lowerBound(start, with);
+			
+			if(i < millis.length && millis[i] == start && withs[i].equals(with)) {
+				final ChatListRetrieveResultIQ [] replaced = collections.clone();
+				
+				replaced[i] = collection;
+				return new Index(millis, withs, replaced, 0, millis.length);
+			}
+			
+			final int n = millis.length;
+			final long [] newMillis = new long[n + 1];
+			final String [] newWiths = new String[n + 1];
+			final ChatListRetrieveResultIQ [] newCollections = new ChatListRetrieveResultIQ[n + 1];
+			
+			System.arraycopy(millis, 0, newMillis, 0, i);
+			System.arraycopy(withs, 0, newWiths, 0, i);
+			System.arraycopy(collections, 0, newCollections, 0, i);
+			
+			newMillis[i] = start;
+			newWiths[i] = with;
+			newCollections[i] = collection;
+			
+			System.arraycopy(millis, i, newMillis, i + 1, n - i);
+			System.arraycopy(withs, i, newWiths, i + 1, n - i);
+			System.arraycopy(collections, i, newCollections, i + 1, n - i);
+			
+			return new Index(newMillis, newWiths, newCollections, 0, n + 1);
+		}
+		
+		/**
+		 * Returns copy merged with the given index, its
+		 * collections replace ones with the same 'with' and 'start'
+		 * */
+		Index merge(Index added) {
+			
+			final int n = millis.length, k = added.millis.length;
+			final long [] newMillis = new long[n + k];
+			final String [] newWiths = new String[n + k];
+			final ChatListRetrieveResultIQ [] newCollections = new ChatListRetrieveResultIQ[n + k];
+			int i = 0, j = 0, size = 0;
+			
+			while(i < n || j < k) {
+				
+				final int result = i == n ? 1 : j == k ? -1 : order.compare(collections[i], added.collections[j]);
+				
+				if(result < 0) {
+					newMillis[size] = millis[i];
+					newWiths[size] = withs[i];
+					newCollections[size++] = collections[i++];
+				} else {
+					
+					if(result == 0) ++i;
+					
+					newMillis[size] = added.millis[j];
+					newWiths[size] = added.withs[j];
+					newCollections[size++] = added.collections[j++];
+				}
+			}
+			
+			return new Index(Arrays.copyOf(newMillis, size), Arrays.copyOf(newWiths, size),
+					Arrays.copyOf(newCollections, size), 0, size);
+		}
+		
+		/**
+		 * Returns copy without the collection at the given index
+		 * */
+		Index remove(int i) {
+			
+			final int n = millis.length - 1;
+			final long [] newMillis = Arrays.copyOf(millis, n);
+			final String [] newWiths = Arrays.copyOf(withs, n);
+			final ChatListRetrieveResultIQ [] newCollections = Arrays.copyOf(collections, n);
+			
+			System.arraycopy(millis, i + 1, newMillis, i, n - i);
+			System.arraycopy(withs, i + 1, newWiths, i, n - i);
+			System.arraycopy(collections, i + 1, newCollections, i, n - i);
+			
+			return new Index(newMillis, newWiths, newCollections, 0, n);
+		}
+		
+		@Override
+		public int size() {
+			return to - from;
+		}
+		
+		@Override
+		public String getWith(int index) {
+			return withs[position(index)];
+		}
+		
+		@Override
+		public String getStart(int index) {
+			return collections[position(index)].getStart();
+		}
+		
+		private int position(int index) {
+			
+			if(index < 0 || index >= to - from)
+				throw new IndexOutOfBoundsException(String.valueOf(index));
+			
+			return from + index;
+		}
+	}
+	
+	/**
+	 * Adds collection or replaces collection with the same 'with' and
+	 * 'start'. Takes O(n) time for n collections of the owner
+	 * @param owner bare JID of the archive owner
+	 * @param collection collection, its 'with' and 'start' attributes should be specified
+	 * */
+	public void add(String owner, ChatListRetrieveResultIQ collection) {
+		
+		if(owner == null)
+			throw new IllegalArgumentException("owner == null");
+		
+		check(collection);
+		
+		final long start = collection.getStartMillis();
+		final Archive archive = archiveOf(owner);
+		
+		synchronized(archive) {
+			final Index byWith = archive.byWith.get(collection.getWith());
+			
+			archive.byWith.put(collection.getWith(), (byWith == null ? Index.empty : byWith).put(start, collection));
+			archive.all = archive.all.put(start, collection);
+		}
+	}
+	
+	/**
+	 * Adds collections or replaces collections with the same 'with' and
+	 * 'start', the later of such given collections is kept. Takes
+	 * O(n + k log k) time for n collections of the owner and k given ones
+	 * @param owner bare JID of the archive owner
+	 * @param collections collections, their 'with' and 'start' attributes should be specified
+	 * */
+	public void addAll(String owner, Collection<ChatListRetrieveResultIQ> collections) {
+		
+		if(owner == null)
+			throw new IllegalArgumentException("owner == null");
+		
+		if(collections == null)
+			throw new IllegalArgumentException("collections == null");
+		
+		final List<ChatListRetrieveResultIQ> sorted = new ArrayList<>(collections.size());
+		
+		for(final ChatListRetrieveResultIQ collection : collections) {
+			check(collection);
+			sorted.add(collection);
+		}
+		
+		if(sorted.isEmpty()) return;
+		
+		// sort is stable, so the later of equal collections follows the earlier one
+		Collections.sort(sorted, order);
+		
+		final Map<String, List<ChatListRetrieveResultIQ>> byWith = new HashMap<>();
+		int size = 0;
+		
+		for(final ChatListRetrieveResultIQ collection : sorted) {
+			
+			if(size > 0 && order.compare(sorted.get(size - 1), collection) == 0) {
+				sorted.set(size - 1, collection);
+			} else {
+				sorted.set(size++, collection);
+			}
+		}
+		
+		final List<ChatListRetrieveResultIQ> unique = sorted.subList(0, size);
+		
+		for(final ChatListRetrieveResultIQ collection : unique) {
+			
+			List<ChatListRetrieveResultIQ> contact = byWith.get(collection.getWith());
+			
+			if(contact == null) {
+				contact = new ArrayList<>();
+				byWith.put(collection.getWith(), contact);
+			}
+			
+			contact.add(collection);
+		}
+		
+		final Archive archive = archiveOf(owner);
+		
+		synchronized(archive) {
+			
+			for(final Map.Entry<String, List<ChatListRetrieveResultIQ>> contact : byWith.entrySet()) {
+				
+				final Index known = archive.byWith.get(contact.getKey());
+				
+				archive.byWith.put(contact.getKey(), (known == null ? Index.empty : known).merge(Index.of(contact.getValue())));
+			}
+			
+			archive.all = archive.all.merge(Index.of(unique));
+		}
+	}
+	
+	/**
+	 * Removes collection
+	 * @return whether the collection was stored
+	 * */
+	public boolean remove(String owner, String with, String start) {
+		
+		final Archive archive = owner == null ? null : archives.get(owner);
+		final long millis = Xep0082.parseMillisOrDefault(start);
+		
+		if(archive == null || with == null || millis == Xep0082.unknown) return false;
+		
+		synchronized(archive) {
+			final Index byWith = archive.byWith.get(with);
+			final int i = byWith == null ? -1 : byWith.indexOf(millis, with);
+			
+			if(i < 0) return false;
+			
+			if(byWith.size() == 1) {
+				archive.byWith.remove(with);
+			} else {
+				archive.byWith.put(with, byWith.remove(i));
+			}
+			
+			archive.all = archive.all.remove(archive.all.indexOf(millis, with));
+			return true;
+		}
+	}
+	
+	/**
+	 * Returns number of collections of the owner
+	 * */
+	public int size(String owner) {
+		final Archive archive = owner == null ? null : archives.get(owner);
+		return archive == null ? 0 : archive.all.size();
+	}
+	
+	@Override
+	public CollectionRange find(String owner, String with, long start, long end) {
+		
+		final Archive archive = owner == null ? null : archives.get(owner);
+		
+		if(archive == null) return Index.empty;
+		
+		final Index index = with == null ? archive.all : archive.byWith.get(with);
+		
+		return index == null ? Index.empty : index.range(start, end);
+	}
+	
+	@Override
+	public ChatListRetrieveResultIQ get(String owner, String with, long start) {
+		
+		final Archive archive = owner == null ? null : archives.get(owner);
+		final Index index = archive == null || with == null ? null : archive.byWith.get(with);
+		final int i = index == null ? -1 : index.indexOf(start, with);
+		
+		return i < 0 ? null : index.collections[i];
+	}
+	
+	private static void check(ChatListRetrieveResultIQ collection) {
+		
+		if(collection == null)
+			throw new IllegalArgumentException("collection == null");
+		
+		if(collection.getWith() == null)
+			throw new IllegalArgumentException("collection.getWith() == null");
+		
+		if(collection.getStartMillis() == Xep0082.unknown)
+			throw new IllegalArgumentException("collection start is absent or malformed: " + collection.getStart());
+	}
+	
+	/**
+	 * Returns archive of the owner, creates it if it's absent
+	 * */
+	private Archive archiveOf(String owner) {
+		
+		Archive archive = archives.get(owner);
+		
+		if(archive == null) {
+			final Archive created = new Archive();
+			
+			archive = archives.putIfAbsent(owner, created);
+			
+			if(archive == null) archive = created;
+		}
+		
+		return archive;
+	}
+	
+}
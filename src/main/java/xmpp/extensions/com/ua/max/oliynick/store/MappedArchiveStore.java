@@ -0,0 +1,370 @@
+package xmpp.extensions.com.ua.max.oliynick.store;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+import xmpp.extensions.com.ua.max.oliynick.archive.CollectionKey;
+import xmpp.extensions.com.ua.max.oliynick.iq.ChatListRetrieveResultIQ;
+import xmpp.extensions.com.ua.max.oliynick.iq.MessageCursor;
+
+/**
+ * <p>
+ * Persistent local archive of retrieved collections. Collections
+ * are appended to memory-mapped segment files, an in-memory index
+ * maps {@link CollectionKey} to the latest record of the collection.
+ * The index is rebuilt by scanning segments when the store is opened
+ * </p>
+ * <p>
+ * Appending a collection which is already stored supersedes the
+ * previous record, old records stay in the segments. Reads return
+ * {@link StoredCollection} views over the mapped files
+ * </p>
+ * <p>
+ * Each record starts with a header of payload length and CRC32 of
+ * the payload. The payload is written first and the length last, a
+ * record which was torn by a crash fails the checksum, so the scan
+ * truncates segments at the first invalid record
+ * </p>
+ * @author Max Oliynick
+ * */
+public final class MappedArchiveStore implements Closeable {
+	
+	/**
+	 * Default segment file size, 64 MB
+	 * */
+	public static final int defaultSegmentSize = 64 << 20;
+	
+	private static final String segmentPrefix = "segment-";
+	private static final String segmentSuffix = ".dat";
+	
+	/**
+	 * Record header size, payload length and checksum
+	 * */
+	private static final int headerSize = 8;
+	
+	private final File directory;
+	private final int segmentSize;
+	
+	/**
+	 * Mapped segments, the last one is being appended
+	 * */
+	private final List<Segment> segments;
+	
+	/**
+	 * Location of the latest record of each collection
+	 * */
+	private final Map<CollectionKey, Location> index;
+	
+	private boolean closed;
+	
+	/**
+	 * Mapped segment file
+	 * */
+	private static final class Segment {
+		
+		private final RandomAccessFile file;
+		private final MappedByteBuffer buffer;
+		
+		Segment(RandomAccessFile file, MappedByteBuffer buffer) {
+			this.file = file;
+			this.buffer = buffer;
+		}
+	}
+	
+	/**
+	 * Record location, offset points to the record header
+	 * */
+	private static final class Location {
+		
+		private final int segment;
+		private final int offset;
+		
+		Location(int segment, int offset) {
+			this.segment = segment;
+			this.offset = offset;
+		}
+	}
+	
+	/**
+	 * Opens store with default segment size
+	 * @param directory directory of segment files, created if absent
+	 * */
+	public MappedArchiveStore(File directory) throws IOException {
+		this(directory, defaultSegmentSize);
+	}
+	
+	/**
+	 * Opens store
+	 * @param directory directory of segment files, created if absent
+	 * @param segmentSize size of new segment files in bytes
+	 * */
+	public MappedArchiveStore(File directory, int segmentSize) throws IOException {
+		
+		if(directory == null)
+			throw new IllegalArgumentException("directory == null");
+		
+		if(segmentSize < 64)
+			throw new IllegalArgumentException("segmentSize < 64");
+		
+		if(!directory.isDirectory() && !directory.mkdirs())
+			throw new IOException("Can't create directory " + directory);
+		
+		this.directory = directory;
+		this.segmentSize = segmentSize;
+		this.segments = new ArrayList<>();
+		this.index = new HashMap<>();
+		
+		load();
+	}
+	
+	/**
+	 * Appends collection
+	 * @param collection retrieved collection, its 'with' and 'start'
+	 * attributes should be specified
+	 * */
+	public synchronized void append(ChatListRetrieveResultIQ collection) throws IOException {
+		
+		ensureOpen();
+		
+		final CollectionKey key = new CollectionKey(collection.getWith(), collection.getStart());
+		final byte [][] bodies = new byte[collection.getMessageCount()][];
+		
+		int i = 0;
+		
+		for(final MessageCursor cursor = collection.cursor(); cursor.next(); ) {
+			bodies[i++] = cursor.getBody().getBytes(StandardCharsets.UTF_8);
+		}
+		
+		final int size = StoredCollection.encodedSize(collection, bodies);
+		
+		// length of the next record should fit as well
+		if(segments.isEmpty() || tail().buffer.remaining() < headerSize + size + 4) {
+			roll(headerSize + size + 4);
+		}
+		
+		final MappedByteBuffer buffer = tail().buffer;
+		final int offset = buffer.position();
+		
+		buffer.position(offset + headerSize);
+		StoredCollection.write(buffer, collection, bodies);
+		
+		// non-zero length commits the record
+		buffer.putInt(offset + 4, checksum(buffer, offset + headerSize, size));
+		buffer.putInt(offset, size);
+		index.put(key, new Location(segments.size() - 1, offset));
+	}
+	
+	/**
+	 * Returns the latest record of the collection
+	 * @return collection or null if it isn't stored
+	 * */
+	public synchronized StoredCollection get(String with, String start) {
+		
+		ensureOpen();
+		
+		final Location location = index.get(new CollectionKey(with, start));
+		
+		if(location == null) return null;
+		
+		return new StoredCollection(record(segments.get(location.segment).buffer, location.offset));
+	}
+	
+	/**
+	 * Returns whether the collection is stored
+	 * */
+	public synchronized boolean contains(String with, String start) {
+		return index.containsKey(new CollectionKey(with, start));
+	}
+	
+	/**
+	 * Returns keys of all stored collections
+	 * */
+	public synchronized Set<CollectionKey> keys() {
+		return Collections.unmodifiableSet(new HashSet<>(index.keySet()));
+	}
+	
+	/**
+	 * Returns number of stored collections
+	 * */
+	public synchronized int size() {
+		return index.size();
+	}
+	
+	/**
+	 * Forces appended records to the storage device
+	 * */
+	public synchronized void flush() {
+		ensureOpen();
+		
+		if(!segments.isEmpty()) {
+			tail().buffer.force();
+		}
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		
+		if(closed) return;
+		
+		closed = true;
+		
+		if(!segments.isEmpty()) {
+			tail().buffer.force();
+		}
+		
+		for(final Segment segment : segments) {
+			segment.file.close();
+		}
+		
+		segments.clear();
+		index.clear();
+	}
+	
+	public File getDirectory() {
+		return directory;
+	}
+	
+	/**
+	 * Maps existing segments and rebuilds the index
+	 * */
+	private void load() throws IOException {
+		
+		final File [] files = directory.listFiles();
+		final List<String> names = new ArrayList<>();
+		
+		if(files != null) {
+			for(final File file : files) {
+				if(file.getName().startsWith(segmentPrefix) && file.getName().endsWith(segmentSuffix)) {
+					names.add(file.getName());
+				}
+			}
+		}
+		
+		final String [] sorted = names.toArray(new String[names.size()]);
+		
+		// names contain zero-padded numbers
+		Arrays.sort(sorted);
+		
+		for(int i = 0; i < sorted.length; ++i) {
+			
+			final RandomAccessFile file = new RandomAccessFile(new File(directory, sorted[i]), "rw");
+			final MappedByteBuffer buffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, file.length());
+			
+			segments.add(new Segment(file, buffer));
+			
+			if(!scan(buffer)) {
+				// records of the following segments were appended after the torn one
+				for(int j = i + 1; j < sorted.length; ++j) {
+					if(!new File(directory, sorted[j]).delete())
+						throw new IOException("Can't delete segment " + sorted[j]);
+				}
+				
+				break;
+			}
+		}
+	}
+	
+	/**
+	 * Indexes records of the segment and positions the buffer
+	 * at the end of written data
+	 * @return false if the segment was truncated at an invalid record
+	 * */
+	private boolean scan(MappedByteBuffer buffer) {
+		
+		// zero length marks the end of written data
+		while(buffer.remaining() >= headerSize) {
+			
+			final int offset = buffer.position();
+			final int length = buffer.getInt(offset);
+			
+			if(length == 0) return true;
+			
+			if(length < 0 || length > buffer.remaining() - headerSize 
+					|| buffer.getInt(offset + 4) != checksum(buffer, offset + headerSize, length)) {
+				// the next append overwrites the record
+				buffer.putInt(offset, 0);
+				return false;
+			}
+			
+			final String [] key = StoredCollection.readKey(record(buffer, offset));
+			
+			index.put(new CollectionKey(key[0], key[1]), new Location(segments.size() - 1, offset));
+			buffer.position(offset + headerSize + length);
+		}
+		
+		return true;
+	}
+	
+	/**
+	 * Creates and maps a new segment
+	 * @param minSize min size of the segment
+	 * */
+	private void roll(int minSize) throws IOException {
+		
+		final File path = new File(directory, String.format("%s%08d%s", segmentPrefix, segments.size(), segmentSuffix));
+		final RandomAccessFile file = new RandomAccessFile(path, "rw");
+		final int size = Math.max(minSize, segmentSize);
+		
+		file.setLength(size);
+		
+		if(!segments.isEmpty()) {
+			tail().buffer.force();
+		}
+		
+		segments.add(new Segment(file, file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size)));
+	}
+	
+	private Segment tail() {
+		return segments.get(segments.size() - 1);
+	}
+	
+	/**
+	 * Returns read-only slice of the record without header
+	 * */
+	private static ByteBuffer record(MappedByteBuffer segment, int offset) {
+		
+		final ByteBuffer buffer = segment.duplicate();
+		final int length = buffer.getInt(offset);
+		
+		buffer.limit(offset + headerSize + length);
+		buffer.position(offset + headerSize);
+		
+		return buffer.slice().asReadOnlyBuffer();
+	}
+	
+	/**
+	 * Returns CRC32 of the bytes of the segment
+	 * */
+	private static int checksum(MappedByteBuffer segment, int offset, int length) {
+		
+		final ByteBuffer buffer = segment.duplicate();
+		final CRC32 crc = new CRC32();
+		
+		buffer.limit(offset + length);
+		buffer.position(offset);
+		crc.update(buffer);
+		
+		return (int) crc.getValue();
+	}
+	
+	private void ensureOpen() {
+		if(closed) 
+			throw new IllegalStateException("Store is closed");
+	}
+
+}
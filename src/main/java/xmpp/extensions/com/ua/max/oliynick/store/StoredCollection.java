@@ -0,0 +1,310 @@
+package xmpp.extensions.com.ua.max.oliynick.store;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import xmpp.extensions.com.ua.max.oliynick.iq.ChatListRetrieveResultIQ;
+import xmpp.extensions.com.ua.max.oliynick.iq.ChatListRetrieveResultIQ.Direction;
+import xmpp.extensions.com.ua.max.oliynick.iq.MessageCursor;
+
+/**
+ * <p>
+ * Read-only view of a collection kept by {@link MappedArchiveStore}.
+ * The view is a slice of the mapped segment file, nothing is copied
+ * until values are requested
+ * </p>
+ * <p>
+ * Record layout: 'with', 'start' and 'subject' strings, 'version',
+ * RSM first index, 'first' and 'last' strings and count as received
+ * from the server, number of messages, then for each message its
+ * direction byte, secs and body. Strings are UTF-8 bytes prefixed
+ * with length, absent string has length -1
+ * </p>
+ * @author Max Oliynick
+ * */
+public final class StoredCollection {
+	
+	private static final byte fromDirection = 0;
+	private static final byte toDirection = 1;
+	
+	/**
+	 * Record without its header
+	 * */
+	private final ByteBuffer record;
+	
+	private final String with;
+	private final String start;
+	private final String subject;
+	private final int version;
+	private final int firstIndex;
+	private final String firstValue;
+	private final String lastValue;
+	private final int count;
+	private final int messageCount;
+	
+	/**
+	 * Position of the first message in the record
+	 * */
+	private final int messagesOffset;
+	
+	StoredCollection(ByteBuffer record) {
+		this.record = record;
+		
+		final ByteBuffer buffer = record.duplicate();
+		
+		this.with = readString(buffer);
+		this.start = readString(buffer);
+		this.subject = readString(buffer);
+		this.version = buffer.getInt();
+		this.firstIndex = buffer.getInt();
+		this.firstValue = readString(buffer);
+		this.lastValue = readString(buffer);
+		this.count = buffer.getInt();
+		this.messageCount = buffer.getInt();
+		this.messagesOffset = buffer.position() - record.position();
+	}
+	
+	public String getWith() {
+		return with;
+	}
+
+	public String getStart() {
+		return start;
+	}
+
+	public String getSubject() {
+		return subject;
+	}
+
+	public int getVersion() {
+		return version;
+	}
+
+	/**
+	 * Returns RSM first index of the retrieved
+	 * collection, -1 if it wasn't specified
+	 * */
+	public int getFirstIndex() {
+		return firstIndex;
+	}
+
+	public String getFirstValue() {
+		return firstValue;
+	}
+
+	public String getLastValue() {
+		return lastValue;
+	}
+
+	/**
+	 * Returns RSM count of the retrieved
+	 * collection, -1 if it wasn't specified
+	 * */
+	public int getCount() {
+		return count;
+	}
+
+	public int getMessageCount() {
+		return messageCount;
+	}
+	
+	/**
+	 * Returns size of the record in bytes
+	 * */
+	public int getRecordSize() {
+		return record.remaining();
+	}
+	
+	/**
+	 * Returns cursor positioned before the first message,
+	 * bodies are decoded only when requested
+	 * */
+	public StoredCursor cursor() {
+		final ByteBuffer buffer = record.duplicate();
+		
+		buffer.position(buffer.position() + messagesOffset);
+		return new StoredCursor(buffer, messageCount);
+	}
+	
+	/**
+	 * Materializes collection into IQ with compact messages storage
+	 * */
+	public ChatListRetrieveResultIQ toIQ() {
+		
+		final ChatListRetrieveResultIQ iq = new ChatListRetrieveResultIQ(true);
+		
+		iq.setWith(with);
+		iq.setStart(start);
+		iq.setSubject(subject);
+		iq.setVersion(version);
+		
+		for(final MessageCursor cursor = cursor(); cursor.next(); ) {
+			iq.addBody(cursor.getDirection(), cursor.getSecs(), cursor.getBody());
+		}
+		
+		iq.setFirstIndex(firstIndex);
+		iq.setFirstValue(firstValue);
+		iq.setLastValue(lastValue);
+		iq.setCount(count);
+		iq.getCompactContent().trimToSize();
+		
+		return iq;
+	}
+	
+	/**
+	 * Returns size of the encoded collection in bytes
+	 * */
+	static int encodedSize(ChatListRetrieveResultIQ iq, byte [][] bodies) {
+		
+		int size = stringSize(iq.getWith()) + stringSize(iq.getStart()) + stringSize(iq.getSubject()) + 8
+				+ stringSize(iq.getFirstValue()) + stringSize(iq.getLastValue()) + 8;
+		
+		for(final byte [] body : bodies) {
+			size += 1 + 4 + 4 + body.length;
+		}
+		
+		return size;
+	}
+	
+	/**
+	 * Writes collection, record header is written by the store
+	 * @param bodies UTF-8 encoded bodies of the collection messages
+	 * */
+	static void write(ByteBuffer out, ChatListRetrieveResultIQ iq, byte [][] bodies) {
+		
+		writeString(out, iq.getWith());
+		writeString(out, iq.getStart());
+		writeString(out, iq.getSubject());
+		out.putInt(iq.getVersion());
+		out.putInt(iq.getFirstIndex());
+		writeString(out, iq.getFirstValue());
+		writeString(out, iq.getLastValue());
+		out.putInt(iq.getCount());
+		out.putInt(bodies.length);
+		
+		int i = 0;
+		
+		for(final MessageCursor cursor = iq.cursor(); cursor.next(); ++i) {
+			out.put(cursor.getDirection() == Direction.from ? fromDirection : toDirection);
+			out.putInt(cursor.getSecs());
+			out.putInt(bodies[i].length);
+			out.put(bodies[i]);
+		}
+	}
+	
+	/**
+	 * Reads 'with' and 'start' strings of the record
+	 * */
+	static String [] readKey(ByteBuffer record) {
+		final ByteBuffer buffer = record.duplicate();
+		return new String [] {readString(buffer), readString(buffer)};
+	}
+	
+	private static int stringSize(String value) {
+		return 4 + (value == null ? 0 : value.getBytes(StandardCharsets.UTF_8).length);
+	}
+	
+	private static void writeString(ByteBuffer out, String value) {
+		
+		if(value == null) {
+			out.putInt(-1);
+			return;
+		}
+		
+		final byte [] bytes = value.getBytes(StandardCharsets.UTF_8);
+		
+		out.putInt(bytes.length);
+		out.put(bytes);
+	}
+	
+	private static String readString(ByteBuffer buffer) {
+		
+		final int length = buffer.getInt();
+		
+		if(length < 0) return null;
+		
+		final ByteBuffer bytes = buffer.duplicate();
+		
+		bytes.limit(bytes.position() + length);
+		buffer.position(buffer.position() + length);
+		
+		return StandardCharsets.UTF_8.decode(bytes).toString();
+	}
+	
+	/**
+	 * Cursor over stored messages. Besides decoded bodies,
+	 * gives access to the raw UTF-8 bytes of the mapped file
+	 * */
+	public static final class StoredCursor implements MessageCursor {
+		
+		private final ByteBuffer buffer;
+		private int remaining;
+		
+		private Direction direction;
+		private int secs;
+		private ByteBuffer body;
+		
+		StoredCursor(ByteBuffer buffer, int messages) {
+			this.buffer = buffer;
+			this.remaining = messages;
+		}
+
+		@Override
+		public boolean next() {
+			
+			if(remaining == 0) {
+				body = null;
+				return false;
+			}
+			
+			--remaining;
+			direction = buffer.get() == fromDirection ? Direction.from : Direction.to;
+			secs = buffer.getInt();
+			
+			final int length = buffer.getInt();
+			
+			body = buffer.slice();
+			body.limit(length);
+			buffer.position(buffer.position() + length);
+			
+			return true;
+		}
+
+		@Override
+		public Direction getDirection() {
+			return direction;
+		}
+
+		@Override
+		public int getSecs() {
+			return secs;
+		}
+
+		@Override
+		public String getBody() {
+			return StandardCharsets.UTF_8.decode(body.duplicate()).toString();
+		}
+
+		@Override
+		public void appendBody(StringBuilder sb) {
+			sb.append(StandardCharsets.UTF_8.decode(body.duplicate()));
+		}
+		
+		/**
+		 * Returns read-only UTF-8 bytes of the current body
+		 * without copying
+		 * */
+		public ByteBuffer getBodyBytes() {
+			return body.asReadOnlyBuffer();
+		}
+		
+	}
+
+	@Override
+	public String toString() {
+		return "StoredCollection [with=" + with + ", start=" + start + ", subject=" + subject 
+				+ ", version=" + version + ", firstValue=" + firstValue + ", lastValue=" + lastValue 
+				+ ", count=" + count + ", messageCount=" + messageCount + "]";
+	}
+
+}
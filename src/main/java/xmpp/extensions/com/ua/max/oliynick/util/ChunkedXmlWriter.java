@@ -0,0 +1,201 @@
+package xmpp.extensions.com.ua.max.oliynick.util;
+
+import java.io.IOException;
+import java.io.Writer;
+
+import org.jivesoftware.smack.util.XmlStringBuilder;
+
+/**
+ * <p>
+ * Encodes XML into a fixed size chunk of chars which is handed to the
+ * underlying writer whenever it fills up, so that a document of any
+ * size is written with O(chunk) memory. Values are escaped and numbers
+ * are formatted straight into the chunk without intermediate strings
+ * </p>
+ * @author Max Oliynick
+ * */
+public final class ChunkedXmlWriter {
+	
+	public static final int defaultChunkSize = 8192;
+	
+	private final Writer out;
+	private final char [] chunk;
+	
+	// number of pending chars in the chunk
+	private int length;
+	
+	private long written;
+	
+	/**
+	 * Constructs writer with default chunk size
+	 * @param out writer which receives chunks
+	 * */
+	public ChunkedXmlWriter(Writer out) {
+		this(out, defaultChunkSize);
+	}
+	
+	/**
+	 * Constructs writer
+	 * @param out writer which receives chunks
+	 * @param chunkSize chunk size in chars
+	 * */
+	public ChunkedXmlWriter(Writer out, int chunkSize) {
+		
+		if(out == null)
+			throw new IllegalArgumentException("out == null");
+		
+		if(chunkSize < 16)
+			throw new IllegalArgumentException("chunkSize < 16");
+		
+		this.out = out;
+		this.chunk = new char[chunkSize];
+	}
+	
+	/**
+	 * Returns writer which appends every chunk to the builder as a
+	 * separate string, so that the builder doesn't grow by copying
+	 * */
+	public static Writer into(final XmlStringBuilder xml) {
+		
+		if(xml == null)
+			throw new IllegalArgumentException("xml == null");
+		
+		return new Writer() {
+			
+			@Override
+			public void write(char [] cbuf, int off, int len) {
+				xml.append(new String(cbuf, off, len));
+			}
+			
+			@Override
+			public void flush() {}
+			
+			@Override
+			public void close() {}
+		};
+	}
+	
+	/**
+	 * Appends value as is
+	 * */
+	public ChunkedXmlWriter append(CharSequence value) throws IOException {
+		
+		final int n = value.length();
+		
+		for(int i = 0; i < n; ) {
+			
+			if(length == chunk.length) writeChunk();
+			
+			final int count = Math.min(n - i, chunk.length - length);
+			
+			if(value instanceof String) {
+				((String) value).getChars(i, i + count, chunk, length);
+				length += count;
+				i += count;
+			} else {
+				for(final int end = i + count; i < end; ) {
+					chunk[length++] = value.charAt(i++);
+				}
+			}
+		}
+		
+		return this;
+	}
+	
+	public ChunkedXmlWriter append(char c) throws IOException {
+		
+		if(length == chunk.length) writeChunk();
+		
+		chunk[length++] = c;
+		return this;
+	}
+	
+	/**
+	 * Appends decimal value
+	 * */
+	public ChunkedXmlWriter append(long value) throws IOException {
+		
+		if(value < 0) {
+			
+			if(value == Long.MIN_VALUE) return append(String.valueOf(value));
+			
+			append('-');
+			value = -value;
+		}
+		
+		long divisor = 1;
+		
+		while(value / divisor >= 10) divisor *= 10;
+		
+		for(; divisor > 0; divisor /= 10) {
+			append((char) ('0' + value / divisor % 10));
+		}
+		
+		return this;
+	}
+	
+	/**
+	 * Appends escaped value. Escapes '&amp;', '&lt;', '&gt;', '&quot;'
+	 * and '&apos;', so the result is safe both for attribute values
+	 * and element text
+	 * */
+	public ChunkedXmlWriter escape(CharSequence value) throws IOException {
+		
+		final int n = value.length();
+		
+		for(int i = 0; i < n; ++i) {
+			
+			final char c = value.charAt(i);
+			
+			switch (c) {
+				case '&' : append("&amp;"); break;
+				case '<' : append("&lt;"); break;
+				case '>' : append("&gt;"); break;
+				case '"' : append("&quot;"); break;
+				case '\'' : append("&apos;"); break;
+				default : {
+					if(length == chunk.length) writeChunk();
+					chunk[length++] = c;
+				}
+			}
+		}
+		
+		return this;
+	}
+	
+	/**
+	 * Appends attribute with escaped value
+	 * */
+	public ChunkedXmlWriter attribute(String name, CharSequence value) throws IOException {
+		return append(' ').append(name).append("='").escape(value).append('\'');
+	}
+	
+	public ChunkedXmlWriter attribute(String name, long value) throws IOException {
+		return append(' ').append(name).append("='").append(value).append('\'');
+	}
+	
+	/**
+	 * Writes pending chars and flushes the underlying writer
+	 * */
+	public void flush() throws IOException {
+		writeChunk();
+		out.flush();
+	}
+	
+	/**
+	 * Returns number of chars handed to the underlying writer
+	 * */
+	public long getCharsWritten() {
+		return written;
+	}
+	
+	private void writeChunk() throws IOException {
+		
+		if(length == 0) return;
+		
+		out.write(chunk, 0, length);
+		written += length;
+		length = 0;
+	}
+	
+}
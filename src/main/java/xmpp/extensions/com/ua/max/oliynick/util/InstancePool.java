@@ -0,0 +1,120 @@
+package xmpp.extensions.com.ua.max.oliynick.util;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * <p>
+ * Bounded lock-free pool of reusable instances. Instances are kept
+ * in a small array of slots, each thread starts scanning the slots at
+ * its own position, so that threads which acquire and release at the
+ * same time rarely contend for the same slot. Instances may be released
+ * by a thread other than the one which acquired them. When the pool is
+ * empty a new instance is created, when it's full a released instance
+ * is left to the collector
+ * </p>
+ * <p>
+ * Each instance carries a mark which is set atomically on release and
+ * cleared on acquire, see {@link #markPooled(Object, boolean)}, so that
+ * an instance released twice can't take two slots and be handed to
+ * two owners
+ * </p>
+ * @author Max Oliynick
+ * */
+public abstract class InstancePool<T> {
+	
+	private final AtomicReferenceArray<T> slots;
+	private final int mask;
+	
+	/**
+	 * Constructs an empty pool
+	 * @param capacity max number of pooled instances, rounded up to a power
+	 * of two. Slots are scanned linearly, so the pool should be small
+	 * */
+	protected InstancePool(int capacity) {
+		
+		if(capacity < 1)
+			throw new IllegalArgumentException("capacity < 1");
+		
+		if(capacity > 1024)
+			throw new IllegalArgumentException("capacity > 1024");
+		
+		this.slots = new AtomicReferenceArray<>(Math.max(1, Integer.highestOneBit(capacity - 1) << 1));
+		this.mask = slots.length() - 1;
+	}
+	
+	/**
+	 * Creates new instance when the pool is empty
+	 * */
+	protected abstract T newInstance();
+	
+	/**
+	 * Resets state of the released instance
+	 * */
+	protected abstract void reset(T instance);
+	
+	/**
+	 * Atomically sets the pooled mark of the instance
+	 * @param pooled new value of the mark
+	 * @return false if the mark already had the given value
+	 * */
+	protected abstract boolean markPooled(T instance, boolean pooled);
+	
+	/**
+	 * Returns pooled instance or a new one
+	 * */
+	public final T acquire() {
+		
+		final int first = stripe();
+		
+		for(int i = 0; i <= mask; ++i) {
+			
+			final int slot = (first + i) & mask;
+			
+			if(slots.get(slot) == null) continue;
+			
+			final T instance = slots.getAndSet(slot, null);
+			
+			if(instance != null) {
+				markPooled(instance, false);
+				return instance;
+			}
+		}
+		
+		return newInstance();
+	}
+	
+	/**
+	 * Resets instance and returns it to the pool. Caller
+	 * must not use the instance afterwards
+	 * @throws IllegalStateException if the instance is already released
+	 * */
+	public final void release(T instance) {
+		
+		if(instance == null)
+			throw new IllegalArgumentException("instance == null");
+		
+		if(!markPooled(instance, true))
+			throw new IllegalStateException("instance is already released");
+		
+		reset(instance);
+		
+		final int first = stripe();
+		
+		for(int i = 0; i <= mask; ++i) {
+			if(slots.compareAndSet((first + i) & mask, null, instance)) return;
+		}
+	}
+	
+	/**
+	 * Returns number of slots
+	 * */
+	public final int capacity() {
+		return slots.length();
+	}
+	
+	private int stripe() {
+		final long id = Thread.currentThread().getId();
+		return (int) (id * 0x9E3779B9L >>> 16);
+	}
+	
+}
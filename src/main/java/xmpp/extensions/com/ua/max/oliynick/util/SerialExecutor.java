@@ -0,0 +1,122 @@
+package xmpp.extensions.com.ua.max.oliynick.util;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * <p>
+ * Executor which runs tasks on the wrapped executor one at a time,
+ * in the order they were submitted, so that tasks never overlap and
+ * each one sees the effects of the previous ones. After each task the
+ * rest of the queue is passed back to the wrapped executor, so that a
+ * long queue doesn't hold a thread of a shared pool. If the wrapped
+ * executor rejects the queue, it's run by the submitting thread
+ * </p>
+ * <p>
+ * Tasks shouldn't throw, an exception thrown by a task is passed to the
+ * uncaught exception handler of the thread and the queue keeps running
+ * </p>
+ * @author Max Oliynick
+ * */
+public final class SerialExecutor implements Executor {
+	
+	private final Executor executor;
+	
+	/**
+	 * Submitted tasks, guarded by the instance monitor
+	 * */
+	private final Queue<Runnable> tasks = new ArrayDeque<>();
+	
+	/**
+	 * Whether the queue is being run or is passed to the
+	 * wrapped executor, guarded by the instance monitor
+	 * */
+	private boolean active;
+	
+	private final Runnable worker = new Runnable() {
+		
+		@Override
+		public void run() {
+			drain();
+		}
+	};
+	
+	/**
+	 * Constructs executor
+	 * @param executor executor which runs the tasks
+	 * */
+	public SerialExecutor(Executor executor) {
+		
+		if(executor == null)
+			throw new IllegalArgumentException("executor == null");
+		
+		this.executor = executor;
+	}
+	
+	@Override
+	public void execute(Runnable task) {
+		
+		if(task == null)
+			throw new IllegalArgumentException("task == null");
+		
+		synchronized(this) {
+			tasks.add(task);
+			
+			if(active) return;
+			
+			active = true;
+		}
+		
+		try {
+			executor.execute(worker);
+		} catch (RejectedExecutionException e) {
+			drain();
+		}
+	}
+	
+	/**
+	 * Runs queued tasks, after each task tries to pass the rest of
+	 * the queue to the wrapped executor and keeps running it if
+	 * the executor rejects
+	 * */
+	private void drain() {
+		
+		for(;;) {
+			
+			final Runnable task;
+			
+			synchronized(this) {
+				task = tasks.poll();
+				
+				if(task == null) {
+					active = false;
+					return;
+				}
+			}
+			
+			try {
+				task.run();
+			} catch (RuntimeException | Error e) {
+				final Thread thread = Thread.currentThread();
+				thread.getUncaughtExceptionHandler().uncaughtException(thread, e);
+			}
+			
+			synchronized(this) {
+				if(tasks.isEmpty()) {
+					active = false;
+					return;
+				}
+			}
+			
+			try {
+				executor.execute(worker);
+				return;
+			} catch (RejectedExecutionException e) {
+				// the rest of the queue is run by this thread
+			}
+		}
+	}
+	
+}
@@ -0,0 +1,97 @@
+package xmpp.extensions.com.ua.max.oliynick.util;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * <p>
+ * Bounded lock-free pool of canonical strings, intended for values
+ * repeated across parsed stanzas such as JIDs and timestamps. The pool
+ * is a direct-mapped table: each string hashes to a single slot and a
+ * string which doesn't match the slot replaces it. Thus the pool never
+ * grows beyond its capacity and rarely used values are simply
+ * forgotten, at worst a value isn't deduplicated
+ * </p>
+ * <p>
+ * Unlike {@link String#intern()} pooled strings are collected
+ * together with the pool
+ * </p>
+ * @author Max Oliynick
+ * */
+public final class StringPool {
+	
+	public static final int defaultCapacity = 4096;
+	
+	/**
+	 * Values longer than this aren't pooled, these are
+	 * unlikely to repeat and hashing them isn't free
+	 * */
+	public static final int maxLength = 256;
+	
+	private static final StringPool shared = new StringPool(defaultCapacity);
+	
+	private final AtomicReferenceArray<String> slots;
+	private final int mask;
+	
+	/**
+	 * Constructs an empty pool
+	 * @param capacity number of slots, rounded up to a power of two
+	 * */
+	public StringPool(int capacity) {
+		
+		if(capacity < 1)
+			throw new IllegalArgumentException("capacity < 1");
+		
+		if(capacity > 1 << 30)
+			throw new IllegalArgumentException("capacity > 2^30");
+		
+		final int size = Integer.highestOneBit(capacity - 1) << 1;
+		
+		this.slots = new AtomicReferenceArray<>(Math.max(1, size));
+		this.mask = slots.length() - 1;
+	}
+	
+	/**
+	 * Returns pool shared by archive providers
+	 * */
+	public static StringPool shared() {
+		return shared;
+	}
+	
+	/**
+	 * Returns pooled instance equal to the value or
+	 * pools the value itself if there is no such instance
+	 * @param value value, may be null
+	 * @return canonical instance or null if the value is null
+	 * */
+	public String canonicalize(String value) {
+		
+		if(value == null || value.length() > maxLength) return value;
+		
+		final int hash = value.hashCode();
+		final int slot = (hash ^ (hash >>> 16)) & mask;
+		final String pooled = slots.get(slot);
+		
+		if(pooled != null && pooled.equals(value)) return pooled;
+		
+		// racing threads may overwrite each other, which is harmless
+		slots.lazySet(slot, value);
+		return value;
+	}
+	
+	/**
+	 * Returns number of slots
+	 * */
+	public int capacity() {
+		return slots.length();
+	}
+	
+	/**
+	 * Forgets all pooled values
+	 * */
+	public void clear() {
+		for(int i = 0; i < slots.length(); ++i) {
+			slots.set(i, null);
+		}
+	}
+	
+}
@@ -0,0 +1,175 @@
+package xmpp.extensions.com.ua.max.oliynick.util;
+
+/**
+ * <p>
+ * Allocation-free parser of XEP-0082 DateTime values
+ * (CCYY-MM-DDThh:mm:ss[.sss]TZD) into epoch milliseconds.
+ * Fraction digits after milliseconds are ignored, missing time
+ * zone is treated as UTC. Dates are interpreted in proleptic
+ * Gregorian calendar
+ * </p>
+ * @author Max Oliynick
+ * */
+public final class Xep0082 {
+	
+	/**
+	 * Value returned by {@link #parseMillisOrDefault(CharSequence)}
+	 * for absent or malformed timestamps
+	 * */
+	public static final long unknown = Long.MIN_VALUE;
+	
+	private Xep0082() {}
+	
+	/**
+	 * Parses XEP-0082 DateTime
+	 * @param value timestamp, e.g. 1969-07-21T02:56:15.123Z
+	 * @return epoch milliseconds
+	 * @throws IllegalArgumentException if the value is malformed
+	 * */
+	public static long parseMillis(CharSequence value) {
+		
+		final int length = value.length();
+		
+		if(length < 19)
+			throw new IllegalArgumentException("Malformed XEP-0082 timestamp: " + value);
+		
+		final int year = digits(value, 0, 4);
+		expect(value, 4, '-');
+		final int month = digits(value, 5, 2);
+		expect(value, 7, '-');
+		final int day = digits(value, 8, 2);
+		expect(value, 10, 'T');
+		final int hour = digits(value, 11, 2);
+		expect(value, 13, ':');
+		final int minute = digits(value, 14, 2);
+		expect(value, 16, ':');
+		final int second = digits(value, 17, 2);
+		
+		if(month < 1 || month > 12 || day < 1 || day > daysInMonth(year, month) || hour > 23 || minute > 59 || second > 60)
+			throw new IllegalArgumentException("Malformed XEP-0082 timestamp: " + value);
+		
+		int pos = 19;
+		int millis = 0;
+		
+		if(pos < length && value.charAt(pos) == '.') {
+			
+			final int start = ++pos;
+			
+			for(; pos < length && isDigit(value.charAt(pos)); ++pos) {
+				if(pos - start < 3) {
+					millis = millis * 10 + value.charAt(pos) - '0';
+				}
+			}
+			
+			if(pos == start)
+				throw new IllegalArgumentException("Malformed XEP-0082 timestamp: " + value);
+			
+			// scales fractions shorter than 3 digits
+			for(int i = pos - start; i < 3; ++i) {
+				millis *= 10;
+			}
+		}
+		
+		long offset = 0;
+		
+		if(pos < length) {
+			
+			final char zone = value.charAt(pos);
+			
+			if(zone == 'Z') {
+				++pos;
+			} else if(zone == '+' || zone == '-') {
+				
+				if(pos + 6 != length)
+					throw new IllegalArgumentException("Malformed XEP-0082 timestamp: " + value);
+				
+				final int offsetHours = digits(value, pos + 1, 2);
+				expect(value, pos + 3, ':');
+				final int offsetMinutes = digits(value, pos + 4, 2);
+				
+				offset = (offsetHours * 60L + offsetMinutes) * 60000L;
+				
+				if(zone == '-') offset = -offset;
+				
+				pos += 6;
+			}
+		}
+		
+		if(pos != length)
+			throw new IllegalArgumentException("Malformed XEP-0082 timestamp: " + value);
+		
+		final long days = daysFromCivil(year, month, day);
+		
+		return (((days * 24 + hour) * 60 + minute) * 60 + second) * 1000L + millis - offset;
+	}
+	
+	/**
+	 * Parses XEP-0082 DateTime
+	 * @return epoch milliseconds or {@link #unknown} if
+	 * the value is null or malformed
+	 * */
+	public static long parseMillisOrDefault(CharSequence value) {
+		
+		if(value == null) return unknown;
+		
+		try {
+			return parseMillis(value);
+		} catch (IllegalArgumentException e) {
+			return unknown;
+		}
+	}
+	
+	/**
+	 * Returns number of days since 1970-01-01 in proleptic
+	 * Gregorian calendar
+	 * */
+	static long daysFromCivil(int year, int month, int day) {
+		
+		final long y = month <= 2 ? year - 1 : year;
+		final long era = (y >= 0 ? y : y - 399) / 400;
+		final long yoe = y - era * 400;
+		final long doy = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + day - 1;
+		final long doe = yoe * 365 + yoe / 4 - yoe / 100 + doy;
+		
+		return era * 146097 + doe - 719468;
+	}
+	
+	/**
+	 * Returns number of days in the month of proleptic Gregorian calendar
+	 * */
+	static int daysInMonth(int year, int month) {
+		
+		switch (month) {
+			case 2 : return year % 4 == 0 && (year % 100 != 0 || year % 400 == 0) ? 29 : 28;
+			case 4 : case 6 : case 9 : case 11 : return 30;
+			default : return 31;
+		}
+	}
+	
+	private static int digits(CharSequence value, int offset, int count) {
+		
+		int result = 0;
+		
+		for(int i = offset; i < offset + count; ++i) {
+			
+			final char c = value.charAt(i);
+			
+			if(!isDigit(c))
+				throw new IllegalArgumentException("Malformed XEP-0082 timestamp: " + value);
+			
+			result = result * 10 + c - '0';
+		}
+		
+		return result;
+	}
+	
+	private static void expect(CharSequence value, int offset, char c) {
+		if(value.charAt(offset) != c)
+			throw new IllegalArgumentException("Malformed XEP-0082 timestamp: " + value);
+	}
+	
+	private static boolean isDigit(char c) {
+		return c >= '0' && c <= '9';
+	}
+
+}
@@ -0,0 +1,254 @@
+package xmpp.extensions.com.ua.max.oliynick.archive;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
+
+import org.jivesoftware.smack.packet.IQ;
+import org.jivesoftware.smack.packet.XMPPError;
+import org.jivesoftware.smack.provider.ProviderManager;
+import org.jxmpp.util.XmppDateTime;
+
+import xmpp.extensions.com.ua.max.oliynick.iq.ChatListRequestIQ;
+import xmpp.extensions.com.ua.max.oliynick.iq.ChatListResponceIQ;
+import xmpp.extensions.com.ua.max.oliynick.iq.ChatListRetrieveRequestIQ;
+import xmpp.extensions.com.ua.max.oliynick.iq.ChatListRetrieveResultIQ;
+import xmpp.extensions.com.ua.max.oliynick.iq.ChatListRetrieveResultIQ.Direction;
+import xmpp.extensions.com.ua.max.oliynick.iq.ChatModifiedRequestIQ;
+import xmpp.extensions.com.ua.max.oliynick.iq.ChatModifiedResultIQ;
+import xmpp.extensions.com.ua.max.oliynick.provider.ChatListResponceIQProvider;
+import xmpp.extensions.com.ua.max.oliynick.provider.ChatListRetrieveIQProvider;
+import xmpp.extensions.com.ua.max.oliynick.provider.ChatModifiedIQProvider;
+import xmpp.extensions.com.ua.max.oliynick.util.StubConnection;
+
+/**
+ * <p>
+ * Simple in-memory XEP-0136 archive which answers 'list' and
+ * 'retrieve' requests with RSM paging, RSM values are indexes
+ * of collections and messages
+ * </p>
+ * Created 18.10.26
+ * @author Max Oliynick
+ * */
+final class ArchiveFixture implements StubConnection.Responder {
+	
+	static {
+		ProviderManager.addIQProvider(ChatListResponceIQProvider.elementName, ChatListResponceIQProvider.namespace, new ChatListResponceIQProvider());
+		ProviderManager.addIQProvider(ChatListRetrieveIQProvider.elementName, ChatListRetrieveIQProvider.namespace, new ChatListRetrieveIQProvider());
+		ProviderManager.addIQProvider(ChatModifiedIQProvider.elementName, ChatModifiedIQProvider.namespace, new ChatModifiedIQProvider());
+	}
+	
+	/**
+	 * Collections, keyed by 'with' and 'start'
+	 * */
+	private final Map<String, List<String>> collections = new TreeMap<>();
+	
+	// optional response delay in millis
+	private volatile long delay;
+	
+	// optional latch which holds responses until it's opened
+	private volatile CountDownLatch gate;
+	
+	// modification time, 'with', 'start', removal flag and version, null if replication isn't supported
+	private List<String []> modifications;
+	
+	// offset of the server clock in millis
+	private volatile long clockOffset;
+	
+	/**
+	 * Adds collection with given number of messages
+	 * */
+	ArchiveFixture add(String with, String start, int messages) {
+		
+		final List<String> bodies = new ArrayList<>(messages);
+		
+		for(int i = 0; i < messages; ++i) {
+			bodies.add("message " + i);
+		}
+		
+		collections.put(with + ' ' + start, bodies);
+		return this;
+	}
+	
+	/**
+	 * Enables XEP-0136 replication support
+	 * */
+	ArchiveFixture enableReplication() {
+		modifications = new ArrayList<>();
+		return this;
+	}
+	
+	/**
+	 * Adds or changes collection and records modification
+	 * */
+	ArchiveFixture modify(String with, String start, int messages) {
+		add(with, start, messages);
+		modifications.add(new String [] {now(), with, start, null, version(with, start)});
+		return this;
+	}
+	
+	/**
+	 * Removes collection and records modification
+	 * */
+	ArchiveFixture remove(String with, String start) {
+		collections.remove(with + ' ' + start);
+		modifications.add(new String [] {now(), with, start, "removed", version(with, start)});
+		return this;
+	}
+	
+	/**
+	 * Sets offset of the server clock in millis,
+	 * negative offset makes server clock run behind
+	 * */
+	ArchiveFixture setClockOffset(long clockOffset) {
+		this.clockOffset = clockOffset;
+		return this;
+	}
+	
+	ArchiveFixture setDelay(long delay) {
+		this.delay = delay;
+		return this;
+	}
+	
+	ArchiveFixture setGate(CountDownLatch gate) {
+		this.gate = gate;
+		return this;
+	}
+	
+	@Override
+	public IQ respond(IQ request) throws Exception {
+		
+		final CountDownLatch gate = this.gate;
+		
+		if(gate != null) gate.await();
+		if(delay > 0) Thread.sleep(delay);
+		
+		if(request instanceof ChatListRetrieveRequestIQ) 
+			return retrieve((ChatListRetrieveRequestIQ) request);
+		
+		if(request instanceof ChatListRequestIQ)
+			return list((ChatListRequestIQ) request);
+		
+		if(request instanceof ChatModifiedRequestIQ && modifications != null)
+			return modified((ChatModifiedRequestIQ) request);
+		
+		return IQ.createErrorResponse(request, new XMPPError(XMPPError.Condition.feature_not_implemented));
+	}
+	
+	private IQ retrieve(ChatListRetrieveRequestIQ request) {
+		
+		List<String> bodies = null;
+		String start = null;
+		
+		for(final Map.Entry<String, List<String>> entry : collections.entrySet()) {
+			final String [] key = entry.getKey().split(" ");
+			
+			if(key[0].equals(request.getWith()) && (request.getStart() == null || key[1].equals(request.getStart()))) {
+				bodies = entry.getValue();
+				start = key[1];
+				break;
+			}
+		}
+		
+		if(bodies == null)
+			return IQ.createErrorResponse(request, new XMPPError(XMPPError.Condition.item_not_found));
+		
+		final int from = request.getAfter() == null ? 0 : Integer.parseInt(request.getAfter()) + 1;
+		final int to = request.getMax() > 0 ? Math.min(bodies.size(), from + request.getMax()) : bodies.size();
+		
+		final ChatListRetrieveResultIQ result = new ChatListRetrieveResultIQ();
+		
+		result.setWith(request.getWith());
+		result.setStart(start);
+		result.setCount(bodies.size());
+		
+		for(int i = from; i < to; ++i) {
+			result.addBody(i % 2 == 0 ? Direction.from : Direction.to, i, bodies.get(i));
+		}
+		
+		if(from < to) {
+			result.setFirstIndex(from);
+			result.setFirstValue(String.valueOf(from));
+			result.setLastValue(String.valueOf(to - 1));
+		}
+		
+		return result;
+	}
+	
+	private IQ list(ChatListRequestIQ request) {
+		
+		final ChatListResponceIQ result = new ChatListResponceIQ();
+		final int from = request.getAfter() == null ? 0 : Integer.parseInt(request.getAfter()) + 1;
+		int index = 0, listed = 0;
+		
+		for(final String key : collections.keySet()) {
+			final String [] parts = key.split(" ");
+			
+			if(request.getWith() != null && !request.getWith().equals(parts[0])) continue;
+			if(request.getStart() != null && parts[1].compareTo(request.getStart()) < 0) continue;
+			if(request.getEnd() != null && parts[1].compareTo(request.getEnd()) >= 0) continue;
+			if(index++ < from) continue;
+			if(request.getMax() > 0 && listed >= request.getMax()) break;
+			
+			result.appendChat(parts[0], parts[1]);
+			++listed;
+		}
+		
+		if(listed > 0) {
+			result.setFirst(from, String.valueOf(from));
+			result.setLast(String.valueOf(from + listed - 1));
+		}
+		
+		return result;
+	}
+	
+	private IQ modified(ChatModifiedRequestIQ request) {
+		
+		final ChatModifiedResultIQ result = new ChatModifiedResultIQ();
+		final int from = request.getAfter() == null ? 0 : Integer.parseInt(request.getAfter()) + 1;
+		int index = 0, listed = 0;
+		
+		for(final String [] modification : modifications) {
+			
+			if(modification[0].compareTo(request.getStart()) < 0) continue;
+			if(index++ < from) continue;
+			if(request.getMax() > 0 && listed >= request.getMax()) break;
+			
+			result.addModification(modification[1], modification[2], Integer.parseInt(modification[4]), modification[3] != null);
+			++listed;
+		}
+		
+		if(listed > 0) {
+			result.setFirstIndex(from);
+			result.setFirstValue(String.valueOf(from));
+			result.setLastValue(String.valueOf(from + listed - 1));
+		}
+		
+		return result;
+	}
+	
+	/**
+	 * Returns current time by the server clock
+	 * */
+	private String now() {
+		return XmppDateTime.formatXEP0082Date(new Date(System.currentTimeMillis() + clockOffset));
+	}
+	
+	/**
+	 * Returns version of the next modification of the collection
+	 * */
+	private String version(String with, String start) {
+		
+		int version = 1;
+		
+		for(final String [] modification : modifications) {
+			if(modification[1].equals(with) && modification[2].equals(start)) ++version;
+		}
+		
+		return String.valueOf(version);
+	}
+	
+}
@@ -0,0 +1,83 @@
+package xmpp.extensions.com.ua.max.oliynick.archive;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Test;
+
+import xmpp.extensions.com.ua.max.oliynick.iq.ChatListRequestIQ;
+import xmpp.extensions.com.ua.max.oliynick.iq.ChatListRetrieveRequestIQ;
+import xmpp.extensions.com.ua.max.oliynick.metrics.HistogramArchiveMetrics;
+import xmpp.extensions.com.ua.max.oliynick.metrics.Metrics;
+import xmpp.extensions.com.ua.max.oliynick.metrics.RoundTripTracker;
+import xmpp.extensions.com.ua.max.oliynick.util.StubConnection;
+
+/**
+ * <p>
+ * Tests metrics of archive operations against {@link ArchiveFixture}
+ * </p>
+ * Created 18.10.26
+ * @author Max Oliynick
+ * */
+public final class TestArchiveMetrics {
+	
+	@After
+	public void disableMetrics() {
+		Metrics.set(null);
+	}
+	
+	/**
+	 * <p>Tests round-trip, parse and cache metrics</p>
+	 * */
+	@Test
+	public void testMetrics() throws Exception {
+		
+		final HistogramArchiveMetrics metrics = new HistogramArchiveMetrics();
+		
+		Metrics.set(metrics);
+		
+		final StubConnection connection = new StubConnection(
+				new ArchiveFixture().add("mary@maxlaptop", "2016-03-01T10:00:00.000Z", 25).setDelay(5));
+		final RoundTripTracker tracker = RoundTripTracker.install(connection);
+		final CollectionCache cache = new CollectionCache(1 << 20);
+		
+		connection.createPacketCollectorAndSend(new ChatListRequestIQ(null, 10)).nextResultOrThrow();
+		
+		cache.retrieve(connection, "mary@maxlaptop", "2016-03-01T10:00:00.000Z", 10);
+		cache.retrieve(connection, "mary@maxlaptop", "2016-03-01T10:00:00.000Z", 10);
+		
+		final ChatListRetrieveRequestIQ absent = new ChatListRetrieveRequestIQ("nobody@maxlaptop");
+		
+		absent.setStart("2016-03-01T10:00:00.000Z");
+		
+		try {
+			connection.createPacketCollectorAndSend(absent).nextResultOrThrow();
+		} catch (Exception e) {
+			// expected
+		}
+		
+		// responses are tracked by listeners, which may run after collectors
+		for(int i = 0; i < 100 && metrics.getErrors() == 0; ++i) {
+			Thread.sleep(10);
+		}
+		
+		assertEquals(1, metrics.getRoundTrips().get("list").getCount());
+		assertEquals(4, metrics.getRoundTrips().get("retrieve").getCount());
+		assertTrue(metrics.getRoundTrips().get("retrieve").getValueAtPercentile(99) >= 5000000L);
+		assertEquals(1, metrics.getErrors());
+		
+		assertEquals(3, metrics.getParseTimes().get("chat").getCount());
+		assertEquals(10, metrics.getPageSizes().get("chat").getMax());
+		assertEquals(1, metrics.getPageSizes().get("list").getCount());
+		assertTrue(metrics.getBytesParsed() > 25 * "message 0".length());
+		
+		assertEquals(1, metrics.getCacheHits());
+		assertEquals(1, metrics.getCacheMisses());
+		assertEquals(0, tracker.getPending());
+		
+		tracker.uninstall();
+		connection.disconnect();
+	}
+
+}
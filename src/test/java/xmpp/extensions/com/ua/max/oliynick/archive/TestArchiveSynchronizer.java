@@ -0,0 +1,147 @@
+package xmpp.extensions.com.ua.max.oliynick.archive;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import xmpp.extensions.com.ua.max.oliynick.util.StubConnection;
+
+/**
+ * <p>
+ * Tests {@link ArchiveSynchronizer} against {@link ArchiveFixture}
+ * </p>
+ * Created 18.10.26
+ * @author Max Oliynick
+ * */
+public final class TestArchiveSynchronizer {
+	
+	/**
+	 * <p>Tests that only the delta is listed without replication</p>
+	 * */
+	@Test
+	public void testListDelta() throws Exception {
+		
+		final ArchiveFixture archive = new ArchiveFixture();
+		
+		for(int i = 0; i < 25; ++i) {
+			archive.add("mary@maxlaptop", String.format("2016-03-%02dT10:00:00.000Z", i + 1), 1);
+		}
+		
+		final StubConnection connection = new StubConnection(archive);
+		final ArchiveSynchronizer synchronizer = new ArchiveSynchronizer(connection, new SyncState());
+		
+		synchronizer.setPageSize(10);
+		
+		SyncResult result = synchronizer.sync();
+		
+		assertFalse(result.isReplicated());
+		assertEquals(25, result.getAdded().size());
+		assertEquals("2016-03-25T10:00:00.000Z", synchronizer.getState().getNewestStart("mary@maxlaptop"));
+		
+		archive.add("mary@maxlaptop", "2016-03-26T10:00:00.000Z", 1);
+		archive.add("john@maxlaptop", "2016-03-27T10:00:00.000Z", 1);
+		
+		// replication isn't supported, listing is used instead
+		result = synchronizer.sync();
+		
+		assertFalse(result.isReplicated());
+		assertFalse(synchronizer.isReplicationEnabled());
+		assertEquals(2, result.getAdded().size());
+		
+		archive.add("mary@maxlaptop", "2016-03-28T10:00:00.000Z", 1);
+		
+		result = synchronizer.sync("mary@maxlaptop");
+		
+		assertEquals(1, result.getAdded().size());
+		assertEquals(new CollectionKey("mary@maxlaptop", "2016-03-28T10:00:00.000Z"), result.getAdded().get(0));
+		// synchronization of a contact doesn't advance the whole archive
+		assertEquals("2016-03-27T10:00:00.000Z", synchronizer.getState().getNewestStart());
+		
+		// older than the collection of mary which is already known
+		archive.add("kate@maxlaptop", "2016-03-27T12:00:00.000Z", 1);
+		
+		result = synchronizer.sync();
+		
+		assertEquals(1, result.getAdded().size());
+		assertEquals(new CollectionKey("kate@maxlaptop", "2016-03-27T12:00:00.000Z"), result.getAdded().get(0));
+		assertEquals("2016-03-28T10:00:00.000Z", synchronizer.getState().getNewestStart());
+		
+		connection.disconnect();
+	}
+	
+	/**
+	 * <p>Tests replication of changed and removed collections</p>
+	 * */
+	@Test
+	public void testReplication() throws Exception {
+		
+		final ArchiveFixture archive = new ArchiveFixture().enableReplication();
+		
+		archive.add("mary@maxlaptop", "2016-03-01T10:00:00.000Z", 1);
+		archive.add("john@maxlaptop", "2016-03-02T10:00:00.000Z", 1);
+		
+		final StubConnection connection = new StubConnection(archive);
+		final ArchiveSynchronizer synchronizer = new ArchiveSynchronizer(connection, new SyncState());
+		final CollectionCache cache = new CollectionCache(1 << 20);
+		
+		synchronizer.setCache(cache);
+		
+		assertEquals(2, synchronizer.sync().getAdded().size());
+		assertTrue(cache.retrieve(connection, "mary@maxlaptop", "2016-03-01T10:00:00.000Z", 0) != null);
+		
+		Thread.sleep(10);
+		
+		archive.modify("mary@maxlaptop", "2016-03-01T10:00:00.000Z", 2);
+		archive.remove("john@maxlaptop", "2016-03-02T10:00:00.000Z");
+		
+		final SyncResult result = synchronizer.sync();
+		
+		assertTrue(result.isReplicated());
+		assertEquals(1, result.getChanged().size());
+		assertEquals(1, result.getRemoved().size());
+		assertEquals(0, cache.size());
+		
+		connection.disconnect();
+	}
+	
+	/**
+	 * <p>Tests that changes aren't missed if server clock runs
+	 * behind the client one and aren't reported twice</p>
+	 * */
+	@Test
+	public void testReplicationClockSkew() throws Exception {
+		
+		final ArchiveFixture archive = new ArchiveFixture().enableReplication().setClockOffset(-60 * 1000);
+		
+		archive.add("mary@maxlaptop", "2016-03-01T10:00:00.000Z", 1);
+		
+		final StubConnection connection = new StubConnection(archive);
+		final ArchiveSynchronizer synchronizer = new ArchiveSynchronizer(connection, new SyncState());
+		
+		assertEquals(1, synchronizer.sync().getAdded().size());
+		
+		// recorded a minute earlier than the previous synchronization by the client clock
+		archive.modify("mary@maxlaptop", "2016-03-01T10:00:00.000Z", 2);
+		
+		SyncResult result = synchronizer.sync();
+		
+		assertTrue(result.isReplicated());
+		assertEquals(1, result.getChanged().size());
+		assertEquals(1, synchronizer.getState().getVersion(new CollectionKey("mary@maxlaptop", "2016-03-01T10:00:00.000Z")));
+		
+		// the same change is within the margin again
+		result = synchronizer.sync();
+		
+		assertTrue(result.isReplicated());
+		assertEquals(0, result.getChanged().size());
+		
+		archive.modify("mary@maxlaptop", "2016-03-01T10:00:00.000Z", 3);
+		
+		assertEquals(1, synchronizer.sync().getChanged().size());
+		
+		connection.disconnect();
+	}
+	
+}
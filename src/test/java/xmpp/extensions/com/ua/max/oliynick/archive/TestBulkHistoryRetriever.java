@@ -0,0 +1,157 @@
+package xmpp.extensions.com.ua.max.oliynick.archive;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import xmpp.extensions.com.ua.max.oliynick.iq.ChatListResponceIQ;
+import xmpp.extensions.com.ua.max.oliynick.iq.ChatListRetrieveResultIQ;
+import xmpp.extensions.com.ua.max.oliynick.util.StubConnection;
+
+/**
+ * <p>
+ * Tests {@link BulkHistoryRetriever} against {@link ArchiveFixture}
+ * </p>
+ * Created 18.10.26
+ * @author Max Oliynick
+ * */
+public final class TestBulkHistoryRetriever {
+	
+	/**
+	 * Collects results
+	 * */
+	private static final class Collector implements CollectionListener {
+		
+		final List<ChatListRetrieveResultIQ> pages = new ArrayList<>();
+		final List<String> failed = new ArrayList<>();
+		final CountDownLatch finished = new CountDownLatch(1);
+		int finishes;
+		
+		@Override
+		public void processPage(ChatListRetrieveResultIQ page) {
+			pages.add(page);
+		}
+
+		@Override
+		public void processException(String with, String start, Exception exception) {
+			failed.add(with);
+		}
+
+		@Override
+		public void processFinished() {
+			++finishes;
+			finished.countDown();
+		}
+		
+	}
+	
+	private static ChatListResponceIQ list() {
+		final ChatListResponceIQ list = new ChatListResponceIQ();
+		
+		list.appendChat("kate@maxlaptop", "2016-03-05T10:00:00.000Z");
+		list.appendChat("mary@maxlaptop", "2016-03-01T10:00:00.000Z");
+		list.appendChat("john@maxlaptop", "2016-03-04T10:00:00.000Z");
+		list.appendChat("nobody@maxlaptop", "2016-03-02T10:00:00.000Z");
+		list.appendChat("bill@maxlaptop", "2016-03-03T10:00:00.000Z");
+		
+		return list;
+	}
+	
+	private static ArchiveFixture archive() {
+		return new ArchiveFixture().
+				add("kate@maxlaptop", "2016-03-05T10:00:00.000Z", 1).
+				add("mary@maxlaptop", "2016-03-01T10:00:00.000Z", 7).
+				add("john@maxlaptop", "2016-03-04T10:00:00.000Z", 4).
+				add("bill@maxlaptop", "2016-03-03T10:00:00.000Z", 3).
+				setDelay(20);
+	}
+	
+	/**
+	 * <p>Tests ordered retrieval with bounded parallelism</p>
+	 * */
+	@Test
+	public void testOrdered() throws Exception {
+		
+		final StubConnection connection = new StubConnection(archive());
+		final BulkHistoryRetriever retriever = new BulkHistoryRetriever(connection, 3);
+		final Collector collector = new Collector();
+		
+		retriever.setPageSize(3);
+		retriever.setOrdered(true);
+		retriever.retrieve(list(), collector);
+		
+		assertTrue(collector.finished.await(10, TimeUnit.SECONDS));
+		
+		int messages = 0;
+		String previous = "";
+		
+		for(final ChatListRetrieveResultIQ page : collector.pages) {
+			assertTrue(previous.compareTo(page.getStart()) <= 0);
+			previous = page.getStart();
+			messages += page.getMessageCount();
+		}
+		
+		assertEquals(15, messages);
+		assertEquals(1, collector.failed.size());
+		assertEquals("nobody@maxlaptop", collector.failed.get(0));
+		assertTrue(connection.getMaxOutstanding() <= 3);
+		assertTrue(connection.getMaxOutstanding() > 1);
+		
+		connection.disconnect();
+	}
+	
+	/**
+	 * <p>Tests unordered retrieval and an empty list</p>
+	 * */
+	@Test
+	public void testUnordered() throws Exception {
+		
+		final StubConnection connection = new StubConnection(archive());
+		final BulkHistoryRetriever retriever = new BulkHistoryRetriever(connection, 2);
+		final Collector collector = new Collector();
+		final Collector empty = new Collector();
+		
+		retriever.retrieve(list(), collector);
+		retriever.retrieve(new ChatListResponceIQ(), empty);
+		
+		assertTrue(collector.finished.await(10, TimeUnit.SECONDS));
+		assertTrue(empty.finished.await(1, TimeUnit.SECONDS));
+		
+		assertEquals(4, collector.pages.size());
+		assertEquals(1, collector.failed.size());
+		assertTrue(empty.pages.isEmpty());
+		
+		connection.disconnect();
+	}
+	
+	/**
+	 * <p>Tests that retrieval over a lost connection
+	 * fails every collection and finishes exactly once</p>
+	 * */
+	@Test
+	public void testDisconnected() throws Exception {
+		
+		final StubConnection connection = new StubConnection(archive());
+		final BulkHistoryRetriever retriever = new BulkHistoryRetriever(connection, 2);
+		final Collector collector = new Collector();
+		
+		connection.disconnect();
+		retriever.setOrdered(true);
+		retriever.retrieve(list(), collector);
+		
+		// sending fails on the calling thread, no waiting required
+		assertEquals(0, collector.finished.getCount());
+		assertEquals(1, collector.finishes);
+		assertTrue(collector.pages.isEmpty());
+		assertEquals(Arrays.asList("mary@maxlaptop", "nobody@maxlaptop", "bill@maxlaptop", 
+				"john@maxlaptop", "kate@maxlaptop"), collector.failed);
+	}
+
+}
@@ -0,0 +1,226 @@
+package xmpp.extensions.com.ua.max.oliynick.archive;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import org.jivesoftware.smack.SmackException;
+import org.jivesoftware.smack.XMPPException.XMPPErrorException;
+import org.jivesoftware.smack.provider.IQProvider;
+import org.jivesoftware.smack.provider.ProviderManager;
+import org.junit.Test;
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+
+import xmpp.extensions.com.ua.max.oliynick.iq.ChatListRetrieveRequestIQ;
+import xmpp.extensions.com.ua.max.oliynick.iq.ChatListRetrieveResultIQ;
+import xmpp.extensions.com.ua.max.oliynick.iq.MessageCursor;
+import xmpp.extensions.com.ua.max.oliynick.provider.ChatListRetrieveIQProvider;
+import xmpp.extensions.com.ua.max.oliynick.util.StubConnection;
+
+/**
+ * <p>
+ * Tests {@link ChatHistoryPager} against {@link ArchiveFixture}
+ * </p>
+ * Created 18.10.26
+ * @author Max Oliynick
+ * */
+public final class TestChatHistoryPager {
+	
+	/**
+	 * <p>Tests that the whole collection is walked in order</p>
+	 * */
+	@Test
+	public void testWalk() throws Exception {
+		
+		final ArchiveFixture archive = new ArchiveFixture().add("mary@maxlaptop", "2016-03-02T10:00:00.000Z", 25);
+		final StubConnection connection = new StubConnection(archive);
+		
+		final ChatListRetrieveRequestIQ request = new ChatListRetrieveRequestIQ("mary@maxlaptop");
+		request.setMax(10);
+		
+		final ChatHistoryPager pager = new ChatHistoryPager(connection, request);
+		int messages = 0, pages = 0;
+		
+		for(ChatListRetrieveResultIQ page; (page = pager.nextPage()) != null; ++pages) {
+			for(final MessageCursor cursor = page.cursor(); cursor.next(); ++messages) {
+				assertEquals("message " + messages, cursor.getBody());
+			}
+		}
+		
+		assertEquals(25, messages);
+		assertEquals(3, pages);
+		// count tells that the third page is the last one
+		assertEquals(3, connection.getRequests());
+		assertNull(pager.nextPage());
+		
+		connection.disconnect();
+	}
+	
+	/**
+	 * <p>Tests that the next page is requested before consumer asks for it</p>
+	 * */
+	@Test
+	public void testPrefetch() throws Exception {
+		
+		final ArchiveFixture archive = new ArchiveFixture().add("mary@maxlaptop", "2016-03-02T10:00:00.000Z", 50);
+		final StubConnection connection = new StubConnection(archive);
+		
+		final ChatListRetrieveRequestIQ request = new ChatListRetrieveRequestIQ("mary@maxlaptop");
+		request.setMax(10);
+		
+		final ChatHistoryPager pager = new ChatHistoryPager(connection, request, 2);
+		
+		pager.nextPage();
+		
+		// consumer is slow, the pager should fill its buffer meanwhile,
+		// arrival of each page notifies waiters on the pager
+		final long deadline = System.currentTimeMillis() + 5000;
+		
+		synchronized(pager) {
+			while(pager.getBufferedPages() < 2 && System.currentTimeMillis() < deadline) {
+				pager.wait(100);
+			}
+		}
+		
+		// the taken page and two buffered ones, a full buffer stops requests
+		assertEquals(2, pager.getBufferedPages());
+		assertEquals(3, connection.getRequests());
+		
+		pager.close();
+		assertNull(pager.nextPage());
+		
+		connection.disconnect();
+	}
+	
+	/**
+	 * <p>Tests error propagation</p>
+	 * */
+	@Test
+	public void testError() throws Exception {
+		
+		final StubConnection connection = new StubConnection(new ArchiveFixture());
+		final ChatHistoryPager pager = new ChatHistoryPager(connection, new ChatListRetrieveRequestIQ("nobody@maxlaptop"));
+		
+		try {
+			pager.nextPage();
+			fail("'item-not-found' exception expected");
+		} catch (XMPPErrorException e) {
+			// expected
+		}
+		
+		assertNull(pager.nextPage());
+		
+		connection.disconnect();
+	}
+	
+	/**
+	 * <p>Tests that pooled pages which are buffered or
+	 * arrive after the pager is closed are recycled</p>
+	 * */
+	@Test
+	public void testCloseRecycles() throws Exception {
+		
+		// created first, the fixture registers client providers
+		final ArchiveFixture archive = new ArchiveFixture().add("mary@maxlaptop", "2016-03-02T10:00:00.000Z", 50);
+		final StubConnection connection = new StubConnection(archive);
+		final ChatListRetrieveRequestIQ request = new ChatListRetrieveRequestIQ("mary@maxlaptop");
+		final ChatListRetrieveIQProvider pooled = new ChatListRetrieveIQProvider();
+		final List<ChatListRetrieveResultIQ> parsed = Collections.synchronizedList(new ArrayList<ChatListRetrieveResultIQ>());
+		
+		pooled.setPooled(true);
+		ProviderManager.addIQProvider(ChatListRetrieveIQProvider.elementName, ChatListRetrieveIQProvider.namespace, 
+				new IQProvider<ChatListRetrieveResultIQ>() {
+			
+			@Override
+			public ChatListRetrieveResultIQ parse(XmlPullParser parser, int depth)
+					throws XmlPullParserException, IOException, SmackException {
+				final ChatListRetrieveResultIQ iq = pooled.parse(parser, depth);
+				parsed.add(iq);
+				return iq;
+			}
+		});
+		
+		request.setMax(10);
+		
+		try {
+			final ChatHistoryPager buffering = new ChatHistoryPager(connection, request, 2);
+			
+			buffering.nextPage().recycle();
+			
+			final long deadline = System.currentTimeMillis() + 5000;
+			
+			synchronized(buffering) {
+				while(buffering.getBufferedPages() < 2 && System.currentTimeMillis() < deadline) {
+					buffering.wait(100);
+				}
+			}
+			
+			assertEquals(2, buffering.getBufferedPages());
+			
+			buffering.close();
+			
+			assertEquals(3, parsed.size());
+			assertRecycled(parsed.get(1));
+			assertRecycled(parsed.get(2));
+			
+			// the response is held until the pager is closed
+			final CountDownLatch gate = new CountDownLatch(1);
+			final ChatHistoryPager late = new ChatHistoryPager(connection, request);
+			final Thread consumer = new Thread(new Runnable() {
+				
+				@Override
+				public void run() {
+					try {
+						late.nextPage();
+					} catch (Exception e) {
+						throw new RuntimeException(e);
+					}
+				}
+			});
+			
+			archive.setGate(gate);
+			consumer.start();
+			
+			while(connection.getRequests() < 4) {
+				Thread.sleep(1);
+			}
+			
+			late.close();
+			consumer.join(5000);
+			gate.countDown();
+			
+			// callbacks run asynchronously, recycled page is cleared
+			final long lateDeadline = System.currentTimeMillis() + 5000;
+			
+			while((parsed.size() < 4 || parsed.get(3).getWith() != null) && System.currentTimeMillis() < lateDeadline) {
+				Thread.sleep(1);
+			}
+			
+			assertEquals(4, parsed.size());
+			assertRecycled(parsed.get(3));
+			
+		} finally {
+			ProviderManager.addIQProvider(ChatListRetrieveIQProvider.elementName, ChatListRetrieveIQProvider.namespace, 
+					new ChatListRetrieveIQProvider());
+			connection.disconnect();
+		}
+	}
+	
+	private static void assertRecycled(ChatListRetrieveResultIQ page) {
+		
+		try {
+			page.recycle();
+			fail("page isn't recycled");
+		} catch (IllegalStateException e) {
+			// expected
+		}
+	}
+	
+}
@@ -0,0 +1,116 @@
+package xmpp.extensions.com.ua.max.oliynick.archive;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import xmpp.extensions.com.ua.max.oliynick.iq.ChatListRetrieveResultIQ;
+import xmpp.extensions.com.ua.max.oliynick.iq.ChatListRetrieveResultIQ.Direction;
+import xmpp.extensions.com.ua.max.oliynick.util.StubConnection;
+
+/**
+ * <p>
+ * Tests {@link CollectionCache}
+ * </p>
+ * Created 18.10.26
+ * @author Max Oliynick
+ * */
+public final class TestCollectionCache {
+	
+	private static ChatListRetrieveResultIQ collection(String with, String start, String body) {
+		final ChatListRetrieveResultIQ iq = new ChatListRetrieveResultIQ();
+		
+		iq.setWith(with);
+		iq.setStart(start);
+		iq.addBody(Direction.from, 0, body);
+		
+		return iq;
+	}
+	
+	/**
+	 * <p>Tests LRU eviction bounded by bodies size</p>
+	 * */
+	@Test
+	public void testEviction() {
+		
+		// room for two 10-char bodies
+		final CollectionCache cache = new CollectionCache(40);
+		final CollectionKey mary = new CollectionKey("mary@maxlaptop", "1");
+		final CollectionKey john = new CollectionKey("john@maxlaptop", "1");
+		final CollectionKey kate = new CollectionKey("kate@maxlaptop", "1");
+		
+		cache.put(collection("mary@maxlaptop", "1", "0123456789"));
+		cache.put(collection("john@maxlaptop", "1", "0123456789"));
+		
+		// mary becomes the most recently used
+		assertNotNull(cache.get(mary));
+		
+		cache.put(collection("kate@maxlaptop", "1", "0123456789"));
+		
+		assertNull(cache.get(john));
+		assertNotNull(cache.get(mary));
+		assertNotNull(cache.get(kate));
+		assertEquals(40, cache.getBytes());
+		assertEquals(1, cache.getEvictions());
+		assertEquals(3, cache.getHits());
+		assertEquals(1, cache.getMisses());
+		
+		// too large to be cached
+		cache.put(collection("bill@maxlaptop", "1", "012345678901234567890123456789"));
+		assertEquals(2, cache.size());
+	}
+	
+	/**
+	 * <p>Tests that the second retrieval is served by the cache</p>
+	 * */
+	@Test
+	public void testRetrieve() throws Exception {
+		
+		final ArchiveFixture archive = new ArchiveFixture().add("mary@maxlaptop", "2016-03-02T10:00:00.000Z", 25);
+		final StubConnection connection = new StubConnection(archive);
+		final CollectionCache cache = new CollectionCache(1 << 20);
+		
+		final ChatListRetrieveResultIQ first = cache.retrieve(connection, "mary@maxlaptop", "2016-03-02T10:00:00.000Z", 10);
+		
+		assertEquals(25, first.getMessageCount());
+		assertEquals(3, connection.getRequests());
+		
+		final ChatListRetrieveResultIQ second = cache.retrieve(connection, "mary@maxlaptop", "2016-03-02T10:00:00.000Z", 10);
+		
+		assertSame(first, second);
+		assertEquals(3, connection.getRequests());
+		assertEquals(1, cache.getHits());
+		assertEquals(1, cache.getMisses());
+		
+		connection.disconnect();
+	}
+	
+	/**
+	 * <p>Tests that compressed mode keeps compressed copies
+	 * weighed by their compressed size</p>
+	 * */
+	@Test
+	public void testCompressed() {
+		
+		final CollectionCache cache = new CollectionCache(1 << 20);
+		final StringBuilder body = new StringBuilder();
+		
+		while(body.length() < 10000) {
+			body.append("see you at the meeting tomorrow ");
+		}
+		
+		cache.setCompressed(true);
+		cache.put(collection("mary@maxlaptop", "1", body.toString()));
+		
+		final ChatListRetrieveResultIQ cached = cache.get(new CollectionKey("mary@maxlaptop", "1"));
+		
+		assertTrue(cached.isCompressed());
+		assertEquals(body.toString(), cached.getCompressedContent().getBody(0));
+		assertTrue(cache.getBytes() * 10 < 2L * body.length());
+	}
+	
+}
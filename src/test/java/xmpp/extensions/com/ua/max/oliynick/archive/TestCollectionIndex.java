@@ -0,0 +1,132 @@
+package xmpp.extensions.com.ua.max.oliynick.archive;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import xmpp.extensions.com.ua.max.oliynick.iq.ChatListRequestIQ;
+import xmpp.extensions.com.ua.max.oliynick.util.StubConnection;
+
+/**
+ * <p>
+ * Tests {@link CollectionIndex} against {@link ArchiveFixture}
+ * </p>
+ * Created 18.10.26
+ * @author Max Oliynick
+ * */
+public final class TestCollectionIndex {
+	
+	private static ChatListRequestIQ request(String with, String start, String end, int max) {
+		
+		final ChatListRequestIQ request = new ChatListRequestIQ(with, max);
+		
+		request.setStart(start);
+		request.setEnd(end);
+		return request;
+	}
+	
+	/**
+	 * <p>Tests that covered ranges are answered locally</p>
+	 * */
+	@Test
+	public void testCoveredRanges() throws Exception {
+		
+		final ArchiveFixture archive = new ArchiveFixture();
+		
+		for(int i = 0; i < 20; ++i) {
+			archive.add(i % 2 == 0 ? "mary@maxlaptop" : "john@maxlaptop", 
+					String.format("2016-03-%02dT10:00:00.000Z", i + 1), 1);
+		}
+		
+		final StubConnection connection = new StubConnection(archive);
+		final CollectionIndex index = new CollectionIndex(connection);
+		
+		index.setPageSize(3);
+		
+		assertNull(index.query(request(null, "2016-03-01T00:00:00.000Z", "2016-03-11T00:00:00.000Z", -1)));
+		
+		List<CollectionKey> result = index.list(request(null, "2016-03-01T00:00:00.000Z", "2016-03-11T00:00:00.000Z", -1));
+		
+		assertEquals(10, result.size());
+		assertEquals(new CollectionKey("mary@maxlaptop", "2016-03-01T10:00:00.000Z"), result.get(0));
+		assertEquals(new CollectionKey("john@maxlaptop", "2016-03-10T10:00:00.000Z"), result.get(9));
+		assertEquals(4, index.getRequests());
+		
+		// covered by the listing of all contacts
+		result = index.list(request("john@maxlaptop", "2016-03-03T00:00:00.000Z", "2016-03-09T00:00:00.000Z", 2));
+		
+		assertEquals(2, result.size());
+		assertEquals(new CollectionKey("john@maxlaptop", "2016-03-04T10:00:00.000Z"), result.get(0));
+		assertEquals(new CollectionKey("john@maxlaptop", "2016-03-06T10:00:00.000Z"), result.get(1));
+		assertEquals(4, index.getRequests());
+		
+		// only the uncovered tail is listed
+		result = index.list(request("mary@maxlaptop", "2016-03-05T00:00:00.000Z", "2016-03-16T00:00:00.000Z", -1));
+		
+		assertEquals(6, result.size());
+		assertEquals(new CollectionKey("mary@maxlaptop", "2016-03-15T10:00:00.000Z"), result.get(5));
+		assertEquals(6, index.getRequests());
+		assertEquals(13, index.size());
+		
+		// 'max' collections precede the uncovered part
+		result = index.list(request("mary@maxlaptop", "2016-03-01T00:00:00.000Z", "2016-03-31T00:00:00.000Z", 5));
+		
+		assertEquals(5, result.size());
+		assertEquals(6, index.getRequests());
+		
+		assertEquals(3, index.query(request("mary@maxlaptop", "2016-03-11T00:00:00.000Z", "2016-03-16T00:00:00.000Z", -1)).size());
+		
+		connection.disconnect();
+	}
+	
+	/**
+	 * <p>Tests that the index isn't locked while listing from the server</p>
+	 * */
+	@Test
+	public void testNotLockedWhileListing() throws Exception {
+		
+		final ArchiveFixture archive = new ArchiveFixture().
+				add("mary@maxlaptop", "2016-03-01T10:00:00.000Z", 1).
+				setDelay(2000);
+		
+		final StubConnection connection = new StubConnection(archive);
+		final CollectionIndex index = new CollectionIndex(connection);
+		final ExecutorService executor = Executors.newSingleThreadExecutor();
+		
+		final Future<List<CollectionKey>> listed = executor.submit(new Callable<List<CollectionKey>>() {
+
+			@Override
+			public List<CollectionKey> call() throws Exception {
+				return index.list(request(null, "2016-03-01T00:00:00.000Z", "2016-03-11T00:00:00.000Z", -1));
+			}
+		});
+		
+		final long deadline = System.currentTimeMillis() + 5000;
+		
+		while(index.getRequests() == 0 && System.currentTimeMillis() < deadline) {
+			Thread.yield();
+		}
+		
+		// the response is delayed, but queries are answered meanwhile
+		final long started = System.currentTimeMillis();
+		
+		assertNull(index.query(request(null, "2016-03-01T00:00:00.000Z", "2016-03-11T00:00:00.000Z", -1)));
+		assertTrue(System.currentTimeMillis() - started < 1000);
+		
+		assertEquals(1, listed.get(10, TimeUnit.SECONDS).size());
+		assertEquals(1, index.query(request(null, "2016-03-01T00:00:00.000Z", "2016-03-11T00:00:00.000Z", -1)).size());
+		
+		executor.shutdown();
+		connection.disconnect();
+	}
+
+}
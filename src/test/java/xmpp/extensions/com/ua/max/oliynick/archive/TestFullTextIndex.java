@@ -0,0 +1,178 @@
+package xmpp.extensions.com.ua.max.oliynick.archive;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.List;
+
+import org.jivesoftware.smack.util.PacketParserUtils;
+import org.junit.Test;
+import org.xmlpull.v1.XmlPullParser;
+
+import xmpp.extensions.com.ua.max.oliynick.iq.ChatListRetrieveResultIQ;
+import xmpp.extensions.com.ua.max.oliynick.iq.ChatListRetrieveResultIQ.Direction;
+import xmpp.extensions.com.ua.max.oliynick.provider.ChatListRetrieveIQProvider;
+
+/**
+ * <p>
+ * Tests {@link FullTextIndex}
+ * </p>
+ * Created 18.10.26
+ * @author Max Oliynick
+ * */
+public final class TestFullTextIndex {
+	
+	private static ChatListRetrieveResultIQ page(String with, String start, int firstIndex, String ... bodies) {
+		
+		final ChatListRetrieveResultIQ page = new ChatListRetrieveResultIQ(true);
+		
+		page.setWith(with);
+		page.setStart(start);
+		page.setFirstIndex(firstIndex);
+		
+		for(int i = 0; i < bodies.length; ++i) {
+			page.addBody(i % 2 == 0 ? Direction.from : Direction.to, i, bodies[i]);
+		}
+		
+		return page;
+	}
+	
+	/**
+	 * <p>Tests term and phrase queries</p>
+	 * */
+	@Test
+	public void testSearch() {
+		
+		final FullTextIndex index = new FullTextIndex();
+		final CollectionKey mary = new CollectionKey("mary@maxlaptop", "2016-03-02T10:00:00.000Z");
+		final CollectionKey john = new CollectionKey("john@maxlaptop", "2016-03-03T10:00:00.000Z");
+		
+		index.index(page(mary.getWith(), mary.getStart(), 0, "Hello, Mary!", "Hi, how are you?"));
+		index.index(page(john.getWith(), john.getStart(), 0, "Are you coming to the party?", "How are things?"));
+		index.index(page(mary.getWith(), mary.getStart(), 2, "Fine. How are you doing?", "Are you?"));
+		
+		// already indexed page is skipped
+		index.index(page(mary.getWith(), mary.getStart(), 0, "Hello, Mary!", "Hi, how are you?"));
+		
+		assertEquals(6, index.getMessageCount());
+		
+		List<MessageHit> hits = index.search("HOW", -1);
+		
+		assertEquals(3, hits.size());
+		assertEquals(new MessageHit(mary, 1), hits.get(0));
+		assertEquals(new MessageHit(john, 1), hits.get(1));
+		assertEquals(new MessageHit(mary, 2), hits.get(2));
+		
+		hits = index.search("how are you", -1);
+		
+		assertEquals(2, hits.size());
+		assertEquals(new MessageHit(mary, 1), hits.get(0));
+		assertEquals(new MessageHit(mary, 2), hits.get(1));
+		
+		hits = index.search("are you", 2);
+		
+		assertEquals(2, hits.size());
+		assertEquals(new MessageHit(mary, 1), hits.get(0));
+		assertEquals(new MessageHit(john, 0), hits.get(1));
+		
+		assertTrue(index.search("you are", -1).isEmpty());
+		assertTrue(index.search("absent", -1).isEmpty());
+		assertTrue(index.search("?!", -1).isEmpty());
+	}
+	
+	/**
+	 * <p>Tests indexing while page is being parsed</p>
+	 * */
+	@Test
+	public void testListener() {
+		
+		final FullTextIndex index = new FullTextIndex();
+		final ChatListRetrieveResultIQ iq = page("mary@maxlaptop", "2016-03-02T10:00:00.000Z", -1);
+		
+		for(int i = 0; i < 1000; ++i) {
+			index.processMessage(iq, Direction.from, i, "message number " + i + " of " + (i % 10 == 0 ? "ten" : "many"));
+		}
+		
+		// messages are held until the page is parsed
+		assertEquals(0, index.getMessageCount());
+		index.processFinished(iq);
+		
+		assertEquals(1000, index.search("message", -1).size());
+		assertEquals(100, index.search("of ten", -1).size());
+		assertEquals(5, index.search("of ten", 5).size());
+		assertEquals(new MessageHit(new CollectionKey("mary@maxlaptop", "2016-03-02T10:00:00.000Z"), 777),
+				index.search("number 777", -1).get(0));
+	}
+	
+	/**
+	 * <p>Tests that a page parsed again isn't indexed twice</p>
+	 * */
+	@Test
+	public void testListenerReparsed() {
+		
+		final FullTextIndex index = new FullTextIndex();
+		
+		for(int k = 0; k < 2; ++k) {
+			
+			final ChatListRetrieveResultIQ iq = page("mary@maxlaptop", "2016-03-02T10:00:00.000Z", -1);
+			
+			for(int i = 0; i < 10; ++i) {
+				index.processMessage(iq, Direction.from, i, "message " + i);
+			}
+			
+			// RSM values follow the messages
+			iq.setFirstIndex(0);
+			index.processFinished(iq);
+		}
+		
+		assertEquals(10, index.getMessageCount());
+		assertEquals(1, index.search("message 7", -1).size());
+	}
+	
+	/**
+	 * <p>Tests that messages of a page with known RSM 'first'
+	 * index are indexed as they arrive</p>
+	 * */
+	@Test
+	public void testListenerIndexed() {
+		
+		final FullTextIndex index = new FullTextIndex();
+		final ChatListRetrieveResultIQ iq = page("mary@maxlaptop", "2016-03-02T10:00:00.000Z", 5);
+		
+		index.processMessage(iq, Direction.from, 0, "first message");
+		assertEquals(1, index.getMessageCount());
+		index.processMessage(iq, Direction.to, 1, "second message");
+		assertEquals(2, index.getMessageCount());
+		index.processFinished(iq);
+		
+		assertEquals(0, index.getParsingPages());
+		assertEquals(new MessageHit(new CollectionKey("mary@maxlaptop", "2016-03-02T10:00:00.000Z"), 6),
+				index.search("second", -1).get(0));
+	}
+	
+	/**
+	 * <p>Tests that held messages of a malformed page are dropped</p>
+	 * */
+	@Test
+	public void testMalformedPage() throws Exception {
+		
+		final FullTextIndex index = new FullTextIndex();
+		final ChatListRetrieveIQProvider provider = new ChatListRetrieveIQProvider(index);
+		final XmlPullParser parser = PacketParserUtils.getParserFor(
+				"<chat xmlns='urn:xmpp:archive' with='mary@maxlaptop' start='2016-03-02T10:00:00.000Z'>"
+				+ "<from secs='0'><body>Hello</body></from><to secs='5'><body>Hi, Mary</body></to>"
+				+ "<set xmlns='http://jabber.org/protocol/rsm'><first index='0'>0</first><count>?</count></set></chat>");
+		
+		try {
+			provider.parse(parser, parser.getDepth());
+			fail("malformed page is parsed");
+		} catch (NumberFormatException e) {
+			// expected
+		}
+		
+		assertEquals(0, index.getParsingPages());
+		assertEquals(0, index.getMessageCount());
+	}
+	
+}
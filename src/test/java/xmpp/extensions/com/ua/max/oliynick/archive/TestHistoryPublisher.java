@@ -0,0 +1,168 @@
+package xmpp.extensions.com.ua.max.oliynick.archive;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+import xmpp.extensions.com.ua.max.oliynick.iq.ChatListRetrieveRequestIQ;
+import xmpp.extensions.com.ua.max.oliynick.util.StubConnection;
+
+/**
+ * <p>
+ * Tests {@link HistoryPublisher} against {@link ArchiveFixture}
+ * </p>
+ * Created 18.10.26
+ * @author Max Oliynick
+ * */
+public final class TestHistoryPublisher {
+	
+	/**
+	 * Requests batch of messages as soon as the previous one was received
+	 * */
+	private static final class BatchSubscriber implements Subscriber<ArchivedMessage> {
+		
+		final List<ArchivedMessage> messages = new CopyOnWriteArrayList<>();
+		final CountDownLatch finished = new CountDownLatch(1);
+		final int batch;
+		volatile Subscription subscription;
+		volatile Throwable error;
+		int left;
+		
+		BatchSubscriber(int batch) {
+			this.batch = batch;
+		}
+
+		@Override
+		public void onSubscribe(Subscription subscription) {
+			this.subscription = subscription;
+			
+			if(batch > 0) {
+				left = batch;
+				subscription.request(batch);
+			}
+		}
+
+		@Override
+		public void onNext(ArchivedMessage message) {
+			messages.add(message);
+			
+			if(batch > 0 && --left == 0) {
+				left = batch;
+				subscription.request(batch);
+			}
+		}
+
+		@Override
+		public void onError(Throwable error) {
+			this.error = error;
+			finished.countDown();
+		}
+
+		@Override
+		public void onComplete() {
+			finished.countDown();
+		}
+		
+	}
+	
+	private static ChatListRetrieveRequestIQ request(String with) {
+		
+		final ChatListRetrieveRequestIQ request = new ChatListRetrieveRequestIQ(with);
+		
+		request.setStart("2016-03-01T10:00:00.000Z");
+		return request;
+	}
+	
+	/**
+	 * <p>Tests that pages are requested according to demand</p>
+	 * */
+	@Test
+	public void testDemand() throws Exception {
+		
+		final StubConnection connection = new StubConnection(
+				new ArchiveFixture().add("mary@maxlaptop", "2016-03-01T10:00:00.000Z", 10));
+		final HistoryPublisher publisher = new HistoryPublisher(connection, request("mary@maxlaptop"));
+		final BatchSubscriber subscriber = new BatchSubscriber(3);
+		
+		publisher.subscribe(subscriber);
+		
+		assertTrue(subscriber.finished.await(5, TimeUnit.SECONDS));
+		assertNull(subscriber.error);
+		assertEquals(10, subscriber.messages.size());
+		assertEquals("message 9", subscriber.messages.get(9).getBody());
+		assertEquals(1456826409000L, subscriber.messages.get(9).getMillis());
+		// pages of 3, 3, 3 and 1 messages
+		assertEquals(4, connection.getRequests());
+		
+		connection.disconnect();
+	}
+	
+	/**
+	 * <p>Tests that nothing is requested without demand</p>
+	 * */
+	@Test
+	public void testSlowSubscriber() throws Exception {
+		
+		final StubConnection connection = new StubConnection(
+				new ArchiveFixture().add("mary@maxlaptop", "2016-03-01T10:00:00.000Z", 100));
+		final HistoryPublisher publisher = new HistoryPublisher(connection, request("mary@maxlaptop"));
+		final BatchSubscriber subscriber = new BatchSubscriber(0);
+		
+		publisher.setMaxPageSize(10);
+		publisher.subscribe(subscriber);
+		
+		Thread.sleep(100);
+		assertEquals(0, connection.getRequests());
+		
+		subscriber.subscription.request(2);
+		
+		for(int i = 0; i < 100 && subscriber.messages.size() < 2; ++i) {
+			Thread.sleep(10);
+		}
+		
+		Thread.sleep(100);
+		assertEquals(2, subscriber.messages.size());
+		assertEquals(1, connection.getRequests());
+		
+		subscriber.subscription.request(25);
+		
+		for(int i = 0; i < 100 && subscriber.messages.size() < 27; ++i) {
+			Thread.sleep(10);
+		}
+		
+		assertEquals(27, subscriber.messages.size());
+		// pages of 10, 10 and 5 messages
+		assertEquals(4, connection.getRequests());
+		
+		subscriber.subscription.cancel();
+		connection.disconnect();
+	}
+	
+	/**
+	 * <p>Tests error propagation</p>
+	 * */
+	@Test
+	public void testError() throws Exception {
+		
+		final StubConnection connection = new StubConnection(new ArchiveFixture());
+		final BatchSubscriber subscriber = new BatchSubscriber(5);
+		
+		new HistoryPublisher(connection, request("nobody@maxlaptop")).subscribe(subscriber);
+		
+		assertTrue(subscriber.finished.await(5, TimeUnit.SECONDS));
+		assertTrue(subscriber.messages.isEmpty());
+		assertTrue(subscriber.error != null);
+		
+		connection.disconnect();
+	}
+
+}
@@ -0,0 +1,158 @@
+package xmpp.extensions.com.ua.max.oliynick.archive;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.jivesoftware.smack.XMPPException.XMPPErrorException;
+import org.jivesoftware.smack.packet.IQ;
+import org.jivesoftware.smack.packet.XMPPError;
+import org.junit.Test;
+
+import xmpp.extensions.com.ua.max.oliynick.iq.ChatListResponceIQ;
+import xmpp.extensions.com.ua.max.oliynick.iq.ChatListRetrieveRequestIQ;
+import xmpp.extensions.com.ua.max.oliynick.iq.ChatListRetrieveResultIQ;
+import xmpp.extensions.com.ua.max.oliynick.util.StubConnection;
+
+/**
+ * <p>
+ * Tests {@link IqPipeline} against {@link ArchiveFixture}
+ * </p>
+ * Created 18.10.26
+ * @author Max Oliynick
+ * */
+public final class TestIqPipeline {
+	
+	/**
+	 * <p>Tests that requests are pipelined within the window</p>
+	 * */
+	@Test
+	public void testWindow() throws Exception {
+		
+		// responses are held until the window is checked
+		final CountDownLatch gate = new CountDownLatch(1);
+		final ArchiveFixture archive = new ArchiveFixture().setGate(gate);
+		
+		for(int i = 0; i < 20; ++i) {
+			archive.add("user" + i + "@maxlaptop", "2016-03-01T10:00:00.000Z", i + 1);
+		}
+		
+		final StubConnection connection = new StubConnection(archive);
+		final IqPipeline pipeline = new IqPipeline(connection, 4);
+		final List<Future<ChatListRetrieveResultIQ>> pages = new ArrayList<>();
+		
+		for(int i = 0; i < 20; ++i) {
+			
+			final ChatListRetrieveRequestIQ request = new ChatListRetrieveRequestIQ("user" + i + "@maxlaptop");
+			
+			request.setStart("2016-03-01T10:00:00.000Z");
+			request.setMax(100);
+			pages.add(pipeline.submit(request, ChatListRetrieveResultIQ.class));
+		}
+		
+		assertEquals(4, pipeline.getInFlight());
+		assertEquals(16, pipeline.getQueued());
+		
+		gate.countDown();
+		
+		for(int i = 0; i < 20; ++i) {
+			final ChatListRetrieveResultIQ page = pages.get(i).get();
+			
+			assertEquals("user" + i + "@maxlaptop", page.getWith());
+			assertEquals(i + 1, page.getMessageCount());
+		}
+		
+		assertEquals(20, connection.getRequests());
+		assertEquals(4, connection.getMaxOutstanding());
+		assertEquals(0, pipeline.getInFlight());
+		
+		connection.disconnect();
+	}
+	
+	/**
+	 * <p>Tests that errors complete the future</p>
+	 * */
+	@Test
+	public void testError() throws Exception {
+		
+		final StubConnection connection = new StubConnection(new ArchiveFixture());
+		final IqPipeline pipeline = new IqPipeline(connection, 2);
+		final ChatListRetrieveRequestIQ request = new ChatListRetrieveRequestIQ("nobody@maxlaptop");
+		
+		request.setStart("2016-03-01T10:00:00.000Z");
+		
+		try {
+			pipeline.submit(request, ChatListRetrieveResultIQ.class).get();
+			fail("ExecutionException expected");
+		} catch (ExecutionException e) {
+			assertTrue(e.getCause() instanceof XMPPErrorException);
+		}
+		
+		assertEquals(0, pipeline.getInFlight());
+		
+		connection.disconnect();
+	}
+	
+	/**
+	 * <p>Tests that response of unexpected type completes the future</p>
+	 * */
+	@Test
+	public void testUnexpectedType() throws Exception {
+		
+		final ArchiveFixture archive = new ArchiveFixture().add("mary@maxlaptop", "2016-03-01T10:00:00.000Z", 1);
+		final StubConnection connection = new StubConnection(archive);
+		final IqPipeline pipeline = new IqPipeline(connection, 2);
+		final ChatListRetrieveRequestIQ request = new ChatListRetrieveRequestIQ("mary@maxlaptop");
+		
+		request.setStart("2016-03-01T10:00:00.000Z");
+		
+		try {
+			pipeline.submit(request, ChatListResponceIQ.class).get();
+			fail("ExecutionException expected");
+		} catch (ExecutionException e) {
+			assertTrue(e.getCause() instanceof ClassCastException);
+		}
+		
+		assertEquals(0, pipeline.getInFlight());
+		
+		connection.disconnect();
+	}
+	
+	/**
+	 * <p>Tests that failure of the responder is answered by an error</p>
+	 * */
+	@Test
+	public void testResponderFailure() throws Exception {
+		
+		final StubConnection connection = new StubConnection(new StubConnection.Responder() {
+			
+			@Override
+			public IQ respond(IQ request) throws Exception {
+				throw new IllegalStateException("broken archive");
+			}
+		});
+		final IqPipeline pipeline = new IqPipeline(connection, 2);
+		final ChatListRetrieveRequestIQ request = new ChatListRetrieveRequestIQ("mary@maxlaptop");
+		
+		request.setStart("2016-03-01T10:00:00.000Z");
+		
+		try {
+			pipeline.submit(request, ChatListRetrieveResultIQ.class).get(10, TimeUnit.SECONDS);
+			fail("ExecutionException expected");
+		} catch (ExecutionException e) {
+			assertEquals(XMPPError.Condition.internal_server_error, ((XMPPErrorException) e.getCause()).getXMPPError().getCondition());
+		}
+		
+		assertEquals(0, pipeline.getInFlight());
+		
+		connection.disconnect();
+	}
+	
+}
@@ -0,0 +1,133 @@
+package xmpp.extensions.com.ua.max.oliynick.archive;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import xmpp.extensions.com.ua.max.oliynick.iq.ChatListRetrieveRequestIQ;
+import xmpp.extensions.com.ua.max.oliynick.util.StubConnection;
+
+/**
+ * <p>
+ * Tests {@link PageSizeController}
+ * </p>
+ * Created 18.10.26
+ * @author Max Oliynick
+ * */
+public final class TestPageSizeController {
+	
+	private static final long millis = 1000000L;
+	
+	/**
+	 * <p>Tests that page size converges to the target stanza size</p>
+	 * */
+	@Test
+	public void testTargetBytes() {
+		
+		final PageSizeController controller = new PageSizeController(10, 1000, 50);
+		
+		controller.setTargetBytes(64 * 1000);
+		
+		for(int i = 0; i < 20; ++i) {
+			final int size = controller.getPageSize("mary@maxlaptop");
+			controller.record("mary@maxlaptop", size, 20 * millis, size * 10000L, size * 1000L);
+		}
+		
+		assertEquals(64, controller.getPageSize("mary@maxlaptop"));
+		// other keys aren't affected
+		assertEquals(50, controller.getPageSize("john@maxlaptop"));
+	}
+	
+	/**
+	 * <p>Tests that page size follows response time model</p>
+	 * */
+	@Test
+	public void testResponseTime() {
+		
+		final PageSizeController controller = new PageSizeController(10, 1000, 50);
+		
+		controller.setTargetResponseMillis(500);
+		
+		// 100 ms latency and 1 ms per message, target is met with 400 messages
+		for(int i = 0; i < 50; ++i) {
+			final int size = controller.getPageSize("fast");
+			controller.record("fast", size, 100 * millis + size * millis, 0, 0);
+		}
+		
+		final int fast = controller.getPageSize("fast");
+		
+		assertTrue(String.valueOf(fast), fast >= 350 && fast <= 450);
+		
+		// latency alone exceeds the target, larger pages amortize it
+		for(int i = 0; i < 50; ++i) {
+			final int size = controller.getPageSize("slow");
+			controller.record("slow", size, 800 * millis + size * 10000L, 0, 0);
+		}
+		
+		assertEquals(1000, controller.getPageSize("slow"));
+		
+		// slow parsing limits page size
+		controller.setTargetParseMillis(10);
+		
+		for(int i = 0; i < 50; ++i) {
+			final int size = controller.getPageSize("slow");
+			controller.record("slow", size, 800 * millis + size * 10000L, size * millis / 2, 0);
+		}
+		
+		assertEquals(20, controller.getPageSize("slow"));
+	}
+	
+	/**
+	 * <p>Tests that latency isn't mistaken for the minimal round-trip,
+	 * which includes cost of the messages of the page</p>
+	 * */
+	@Test
+	public void testLatencyFit() {
+		
+		final PageSizeController controller = new PageSizeController(10, 1000, 50);
+		
+		controller.setTargetResponseMillis(120);
+		
+		// 100 ms latency and 1 ms per message, target is met with 20 messages,
+		// although no response of the initial page size meets the target
+		for(int i = 0; i < 50; ++i) {
+			final int size = controller.getPageSize("mary@maxlaptop");
+			controller.record("mary@maxlaptop", size, 100 * millis + size * millis, 0, 0);
+		}
+		
+		final int size = controller.getPageSize("mary@maxlaptop");
+		
+		assertTrue(String.valueOf(size), size >= 15 && size <= 25);
+	}
+	
+	/**
+	 * <p>Tests that pager requests pages of adapted size</p>
+	 * */
+	@Test
+	public void testPager() throws Exception {
+		
+		final StubConnection connection = new StubConnection(
+				new ArchiveFixture().add("mary@maxlaptop", "2016-03-01T10:00:00.000Z", 200));
+		final ChatListRetrieveRequestIQ request = new ChatListRetrieveRequestIQ("mary@maxlaptop");
+		final PageSizeController controller = new PageSizeController(5, 1000, 50);
+		
+		request.setStart("2016-03-01T10:00:00.000Z");
+		controller.setTargetBytes(2000);
+		
+		final ChatHistoryPager pager = new ChatHistoryPager(connection, request);
+		
+		pager.setPageSizeController(controller);
+		
+		assertEquals(200, pager.fetchAll().getMessageCount());
+		
+		// bodies of 'message N' and markup take about 106 bytes
+		final int size = controller.getPageSize("mary@maxlaptop");
+		
+		assertTrue(String.valueOf(size), size >= 17 && size <= 20);
+		assertTrue(String.valueOf(connection.getRequests()), connection.getRequests() > 8);
+		
+		connection.disconnect();
+	}
+
+}
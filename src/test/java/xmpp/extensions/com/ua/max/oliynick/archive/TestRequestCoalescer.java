@@ -0,0 +1,158 @@
+package xmpp.extensions.com.ua.max.oliynick.archive;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.jivesoftware.smack.StanzaListener;
+import org.jivesoftware.smack.filter.StanzaTypeFilter;
+import org.jivesoftware.smack.packet.Stanza;
+import org.junit.Test;
+
+import xmpp.extensions.com.ua.max.oliynick.iq.ChatListRequestIQ;
+import xmpp.extensions.com.ua.max.oliynick.iq.ChatListResponceIQ;
+import xmpp.extensions.com.ua.max.oliynick.iq.ChatListRetrieveRequestIQ;
+import xmpp.extensions.com.ua.max.oliynick.iq.ChatListRetrieveResultIQ;
+import xmpp.extensions.com.ua.max.oliynick.util.StubConnection;
+
+/**
+ * <p>
+ * Tests {@link RequestCoalescer} against {@link ArchiveFixture}
+ * </p>
+ * Created 18.10.26
+ * @author Max Oliynick
+ * */
+public final class TestRequestCoalescer {
+	
+	/**
+	 * <p>Tests that concurrent identical requests share one IQ</p>
+	 * */
+	@Test
+	public void testCoalescing() throws Exception {
+		
+		final ArchiveFixture archive = new ArchiveFixture().
+				add("mary@maxlaptop", "2016-03-01T10:00:00.000Z", 5).
+				add("john@maxlaptop", "2016-03-02T10:00:00.000Z", 3).
+				setDelay(300);
+		
+		final StubConnection connection = new StubConnection(archive);
+		final RequestCoalescer coalescer = new RequestCoalescer(connection);
+		final ExecutorService executor = Executors.newFixedThreadPool(8);
+		final List<Future<ChatListRetrieveResultIQ>> pages = new ArrayList<>();
+		
+		for(int i = 0; i < 6; ++i) {
+			
+			// every third caller asks for another page
+			final int max = i % 3 == 2 ? 2 : 10;
+			
+			pages.add(executor.submit(new Callable<ChatListRetrieveResultIQ>() {
+				
+				@Override
+				public ChatListRetrieveResultIQ call() throws Exception {
+					
+					final ChatListRetrieveRequestIQ request = new ChatListRetrieveRequestIQ("mary@maxlaptop");
+					
+					request.setStart("2016-03-01T10:00:00.000Z");
+					request.setMax(max);
+					return coalescer.retrieve(request);
+				}
+			}));
+		}
+		
+		final Future<ChatListResponceIQ> list1 = executor.submit(new Callable<ChatListResponceIQ>() {
+			
+			@Override
+			public ChatListResponceIQ call() throws Exception {
+				return coalescer.list(new ChatListRequestIQ(null, 10));
+			}
+		});
+		
+		final Future<ChatListResponceIQ> list2 = executor.submit(new Callable<ChatListResponceIQ>() {
+			
+			@Override
+			public ChatListResponceIQ call() throws Exception {
+				return coalescer.list(new ChatListRequestIQ(null, 10));
+			}
+		});
+		
+		assertEquals(5, pages.get(0).get().getMessageCount());
+		assertEquals(2, pages.get(2).get().getMessageCount());
+		assertSame(pages.get(0).get(), pages.get(1).get());
+		assertSame(pages.get(0).get(), pages.get(4).get());
+		assertSame(pages.get(2).get(), pages.get(5).get());
+		assertSame(list1.get(), list2.get());
+		assertEquals(2, list1.get().getChatCount());
+		
+		assertEquals(3, connection.getRequests());
+		assertEquals(3, coalescer.getSent());
+		assertEquals(5, coalescer.getCoalesced());
+		
+		// completed request isn't reused
+		assertEquals(2, coalescer.list(new ChatListRequestIQ(null, 10)).getChatCount());
+		assertEquals(4, connection.getRequests());
+		
+		executor.shutdown();
+		connection.disconnect();
+	}
+	
+	/**
+	 * <p>Tests that an error of the sending caller reaches waiters</p>
+	 * */
+	@Test
+	public void testError() throws Exception {
+		
+		final StubConnection connection = new StubConnection(new ArchiveFixture());
+		final RequestCoalescer coalescer = new RequestCoalescer(connection);
+		final ExecutorService executor = Executors.newFixedThreadPool(2);
+		final Error error = new Error("interceptor failure");
+		
+		// interceptors are invoked by the sending thread
+		connection.addPacketInterceptor(new StanzaListener() {
+			
+			@Override
+			public void processPacket(Stanza packet) {
+				
+				// waits for the second caller to join
+				while(coalescer.getCoalesced() == 0) {
+					Thread.yield();
+				}
+				
+				throw error;
+			}
+		}, StanzaTypeFilter.IQ);
+		
+		final List<Future<ChatListResponceIQ>> lists = new ArrayList<>();
+		
+		for(int i = 0; i < 2; ++i) {
+			lists.add(executor.submit(new Callable<ChatListResponceIQ>() {
+				
+				@Override
+				public ChatListResponceIQ call() throws Exception {
+					return coalescer.list(new ChatListRequestIQ(null, 10));
+				}
+			}));
+		}
+		
+		for(final Future<ChatListResponceIQ> list : lists) {
+			try {
+				list.get(10, TimeUnit.SECONDS);
+				fail("error expected");
+			} catch (ExecutionException e) {
+				assertSame(error, e.getCause());
+			}
+		}
+		
+		executor.shutdown();
+		connection.disconnect();
+	}
+
+}
@@ -0,0 +1,37 @@
+package xmpp.extensions.com.ua.max.oliynick.archive;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * <p>
+ * Tests {@link Timestamps}
+ * </p>
+ * Created 18.10.26
+ * @author Max Oliynick
+ * */
+public final class TestTimestamps {
+	
+	/**
+	 * <p>Tests that malformed timestamps don't break transitivity</p>
+	 * */
+	@Test
+	public void testMalformed() throws Exception {
+		
+		final String early = "2016-03-02T10:00:00.000Z";
+		final String late = "2016-03-02T10:00:00.500Z";
+		final String malformed = "2016-03-02T10:00:00.2?";
+		
+		// lexicographically the malformed value is between the valid ones
+		assertTrue(Timestamps.compare(early, late) < 0);
+		assertTrue(Timestamps.compare(late, malformed) < 0);
+		assertTrue(Timestamps.compare(early, malformed) < 0);
+		assertTrue(Timestamps.compare(malformed, early) > 0);
+		
+		assertTrue(Timestamps.compare("a", "b") < 0);
+		assertEquals(0, Timestamps.compare("2016-03-02T10:00:00Z", early));
+	}
+
+}
@@ -3,23 +3,18 @@ package xmpp.extensions.com.ua.max.oliynick.iq;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
-import static org.junit.Assume.assumeTrue;
 
-import java.io.IOException;
-
-import org.jivesoftware.smack.SmackException;
 import org.jivesoftware.smack.SmackException.NotConnectedException;
-import org.jivesoftware.smack.XMPPException;
+import org.jivesoftware.smack.packet.IQ;
 import org.jivesoftware.smack.packet.Stanza;
 import org.jivesoftware.smack.provider.ProviderManager;
-import org.jivesoftware.smack.tcp.XMPPTCPConnection;
-import org.jivesoftware.smack.tcp.XMPPTCPConnectionConfiguration;
 import org.junit.AfterClass;
 import org.junit.BeforeClass;
 import org.junit.Test;
 
 import xmpp.extensions.com.ua.max.oliynick.provider.ChatListResponceIQProvider;
 import xmpp.extensions.com.ua.max.oliynick.provider.ChatListRetrieveIQProvider;
+import xmpp.extensions.com.ua.max.oliynick.util.StubConnection;
 
 /**
  * <p>
@@ -33,43 +28,43 @@ import xmpp.extensions.com.ua.max.oliynick.provider.ChatListRetrieveIQProvider;
  * */
 public final class TestChatListIQ {
 	
-	// Default server host
-	public static final String defaultHost = "localhost";
-	// Default server port
-	public static final int defaultPort = 5222;
-	// Default server service name
-	public static final String defaultServiceName = "maxlaptop";
-	// Default packet responce timeout
-	public static final int defaultTimeout = 3000;
-	
 	// Test xmpp connection instance
-	private static XMPPTCPConnection connection = null;
+	private static StubConnection connection = null;
 	
 	/**
 	 * Initializes connection instance and allocates resources
 	 * */
 	@BeforeClass
-	public static void prepareConnection() throws SmackException, IOException, XMPPException {
-		
-		// Building server connection configuration
-		final XMPPTCPConnectionConfiguration.Builder builder = XMPPTCPConnectionConfiguration.builder();
-        builder.setHost(defaultHost).
-                setServiceName(defaultServiceName).
-                setPort(defaultPort).
-                setCompressionEnabled(false).
-                setSendPresence(true).
-                setConnectTimeout(defaultTimeout).
-                setDebuggerEnabled(true);
+	public static void prepareConnection() {
         
         // IQ provider registration
         ProviderManager.addIQProvider(ChatListResponceIQProvider.elementName, ChatListResponceIQProvider.namespace, new ChatListResponceIQProvider());
         ProviderManager.addIQProvider(ChatListRetrieveIQProvider.elementName, ChatListRetrieveIQProvider.namespace, new ChatListRetrieveIQProvider());
         
-        connection = new XMPPTCPConnection(builder.build());
-        connection.connect();
-        connection.login("maxxx", "qwerty");
+        // archive which keeps two conversations with 'mary@maxlaptop'
+        connection = new StubConnection(new StubConnection.Responder() {
+			
+			@Override
+			public IQ respond(IQ request) {
+				
+				final ChatListRequestIQ list = (ChatListRequestIQ) request;
+				final ChatListResponceIQ result = new ChatListResponceIQ();
+				
+				if(list.getWith() == null || list.getWith().equals("mary@maxlaptop")) {
+					result.appendChat("mary@maxlaptop", "2016-03-01T10:00:00.000Z");
+					result.appendChat("mary@maxlaptop", "2016-03-02T10:00:00.000Z");
+					result.setFirst(0, "0");
+					result.setLast("1");
+					result.setCount(2);
+				} else {
+					result.setCount(0);
+				}
+				
+				return result;
+			}
+		});
 	}
-
+	
 	/**
 	 * <p>
 	 * Tests server response on GetChatsListIQ 
@@ -99,7 +94,7 @@ public final class TestChatListIQ {
 			public Exception getException() {
 				return exception ;
 			}
-
+			
 			@Override
 			public synchronized void processPacket(final Stanza stanza) throws NotConnectedException {
 				//	response class should be AvailableChatsIQ
@@ -118,9 +113,9 @@ public final class TestChatListIQ {
 		final ChatListRequestIQ iq = new ChatListRequestIQ();
 		iq.setMax(30);
 		
-		connection.sendIqWithResponseCallback(iq, listener, listener, timeout);
-		
 		synchronized(listener) {
+			// listener can't be notified until it waits
+			connection.sendIqWithResponseCallback(iq, listener, listener, timeout);
 			listener.wait();
 				
 			if(listener.getException() != null) {
@@ -137,10 +132,10 @@ public final class TestChatListIQ {
 				System.out.println("\nXML".concat(stanza.toXML().toString()));
 				System.out.println("***************************************************\n");
 				
-				assumeTrue("Empty responce set", stanza.getCount() > 0);
-				assumeTrue("First index < 0", stanza.getFirstIndex() >= 0);
-				assumeTrue("First value == null", stanza.getFirstValue() != null);
-				assumeTrue("Last value == null", stanza.getLastValue() != null);
+				assertTrue("Empty responce set", stanza.getCount() > 0);
+				assertTrue("First index < 0", stanza.getFirstIndex() >= 0);
+				assertTrue("First value == null", stanza.getFirstValue() != null);
+				assertTrue("Last value == null", stanza.getLastValue() != null);
 				
 			}
 		}
@@ -172,7 +167,7 @@ public final class TestChatListIQ {
 			public Exception getException() {
 				return exception ;
 			}
-
+			
 			@Override
 			public synchronized void processPacket(final Stanza stanza) throws NotConnectedException {
 				//	response class should be AvailableChatsIQ
@@ -191,9 +186,9 @@ public final class TestChatListIQ {
 		ChatListRequestIQ iq = new ChatListRequestIQ("non_existing_user@maxlaptop");
 		iq.setMax(30);
 		
-		connection.sendIqWithResponseCallback(iq, listener, listener, timeout);
-		
 		synchronized(listener) {
+			// listener can't be notified until it waits
+			connection.sendIqWithResponseCallback(iq, listener, listener, timeout);
 			listener.wait();
 				
 			if(listener.getException() != null) {
@@ -210,10 +205,10 @@ public final class TestChatListIQ {
 				System.out.println("\nXML".concat(stanza.toXML().toString()));
 				System.out.println("***************************************************\n");
 				
-				assumeTrue("Not empty responce set", 0 == stanza.getCount());
-				assumeTrue("First index >= 0", stanza.getFirstIndex() < 0);
-				assumeTrue("First value != null", stanza.getFirstValue() == null);
-				assumeTrue("Last value != null", stanza.getLastValue() == null);
+				assertTrue("Not empty responce set", 0 == stanza.getCount());
+				assertTrue("First index >= 0", stanza.getFirstIndex() < 0);
+				assertTrue("First value != null", stanza.getFirstValue() == null);
+				assertTrue("Last value != null", stanza.getLastValue() == null);
 				
 			}
 		}
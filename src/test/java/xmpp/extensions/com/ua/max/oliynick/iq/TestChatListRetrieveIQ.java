@@ -2,23 +2,20 @@ package xmpp.extensions.com.ua.max.oliynick.iq;
 
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
-import static org.junit.Assume.assumeTrue;
 
-import java.io.IOException;
-
-import org.jivesoftware.smack.SmackException;
 import org.jivesoftware.smack.SmackException.NotConnectedException;
-import org.jivesoftware.smack.XMPPException;
+import org.jivesoftware.smack.packet.IQ;
 import org.jivesoftware.smack.packet.Stanza;
+import org.jivesoftware.smack.packet.XMPPError;
 import org.jivesoftware.smack.provider.ProviderManager;
-import org.jivesoftware.smack.tcp.XMPPTCPConnection;
-import org.jivesoftware.smack.tcp.XMPPTCPConnectionConfiguration;
 import org.junit.AfterClass;
 import org.junit.BeforeClass;
 import org.junit.Test;
 
+import xmpp.extensions.com.ua.max.oliynick.iq.ChatListRetrieveResultIQ.Direction;
 import xmpp.extensions.com.ua.max.oliynick.provider.ChatListResponceIQProvider;
 import xmpp.extensions.com.ua.max.oliynick.provider.ChatListRetrieveIQProvider;
+import xmpp.extensions.com.ua.max.oliynick.util.StubConnection;
 
 /**
  * <p>
@@ -31,34 +28,16 @@ import xmpp.extensions.com.ua.max.oliynick.provider.ChatListRetrieveIQProvider;
  * @author Max Oliynick
  * */
 public final class TestChatListRetrieveIQ {
-
-	// Default server host
-	public static final String defaultHost = "localhost";
-	// Default server port
-	public static final int defaultPort = 5222;
-	// Default server service name
-	public static final String defaultServiceName = "maxlaptop";
-	// Default packet responce timeout
-	public static final int defaultTimeout = 3000;
-
+	
 	// Test xmpp connection instance
-	private static XMPPTCPConnection connection = null;
-
+	private static StubConnection connection = null;
+	
 	/**
 	 * Initializes connection instance and allocates resources
 	 * */
 	@BeforeClass
-	public static void prepareConnection() throws SmackException, IOException,
-			XMPPException {
-
-		// Building server connection configuration
-		final XMPPTCPConnectionConfiguration.Builder builder = XMPPTCPConnectionConfiguration
-				.builder();
-		builder.setHost(defaultHost).setServiceName(defaultServiceName)
-				.setPort(defaultPort).setCompressionEnabled(false)
-				.setSendPresence(true).setConnectTimeout(defaultTimeout)
-				.setDebuggerEnabled(true);
-
+	public static void prepareConnection() {
+		
 		// IQ provider registration
 		ProviderManager.addIQProvider(ChatListResponceIQProvider.elementName,
 				ChatListResponceIQProvider.namespace,
@@ -67,11 +46,35 @@ public final class TestChatListRetrieveIQ {
 				ChatListRetrieveIQProvider.namespace,
 				new ChatListRetrieveIQProvider());
 		
-		connection = new XMPPTCPConnection(builder.build());
-		connection.connect();
-		connection.login("maxxx", "qwerty");
+		// archive which keeps a single conversation with 'mary@maxlaptop'
+		connection = new StubConnection(new StubConnection.Responder() {
+			
+			@Override
+			public IQ respond(IQ request) {
+				
+				final ChatListRetrieveRequestIQ retrieve = (ChatListRetrieveRequestIQ) request;
+				
+				if(!"mary@maxlaptop".equals(retrieve.getWith()))
+					return IQ.createErrorResponse(request, new XMPPError(XMPPError.Condition.item_not_found));
+				
+				final ChatListRetrieveResultIQ result = new ChatListRetrieveResultIQ();
+				
+				result.setWith(retrieve.getWith());
+				result.setStart("2016-03-01T10:00:00.000Z");
+				
+				for(int i = 0; i < 3; ++i) {
+					result.addBody(i % 2 == 0 ? Direction.from : Direction.to, i, "message " + i);
+				}
+				
+				result.setFirstIndex(0);
+				result.setFirstValue("0");
+				result.setLastValue("2");
+				result.setCount(3);
+				return result;
+			}
+		});
 	}
-
+	
 	@Test
 	public void testResponce() throws NotConnectedException, InterruptedException {
 		
@@ -93,7 +96,7 @@ public final class TestChatListRetrieveIQ {
 			public Exception getException() {
 				return exception ;
 			}
-
+			
 			@Override
 			public synchronized void processPacket(final Stanza stanza) throws NotConnectedException {
 				//	response class should be AvailableChatsIQ
@@ -112,9 +115,9 @@ public final class TestChatListRetrieveIQ {
 		final ChatListRetrieveRequestIQ iq = new ChatListRetrieveRequestIQ("mary@maxlaptop");
 		iq.setMax(30);
 		
-		connection.sendIqWithResponseCallback(iq, listener, listener, timeout);
-		
 		synchronized(listener) {
+			// listener can't be notified until it waits
+			connection.sendIqWithResponseCallback(iq, listener, listener, timeout);
 			listener.wait();
 				
 			if(listener.getException() != null) {
@@ -131,10 +134,10 @@ public final class TestChatListRetrieveIQ {
 				System.out.println("\nXML".concat(stanza.toXML().toString()));
 				System.out.println("***************************************************\n");
 				
-				assumeTrue("Empty responce set", stanza.getCount() > 0);
-				assumeTrue("First index < 0", stanza.getFirstIndex() >= 0);
-				assumeTrue("First value == null", stanza.getFirstValue() != null);
-				assumeTrue("Last value == null", stanza.getLastValue() != null);
+				assertTrue("Empty responce set", stanza.getCount() > 0);
+				assertTrue("First index < 0", stanza.getFirstIndex() >= 0);
+				assertTrue("First value == null", stanza.getFirstValue() != null);
+				assertTrue("Last value == null", stanza.getLastValue() != null);
 				
 			}
 		}
@@ -162,7 +165,7 @@ public final class TestChatListRetrieveIQ {
 			public Exception getException() {
 				return exception ;
 			}
-
+			
 			@Override
 			public synchronized void processPacket(final Stanza stanza) throws NotConnectedException {
 				//	response class should be AvailableChatsIQ
@@ -181,9 +184,9 @@ public final class TestChatListRetrieveIQ {
 		final ChatListRetrieveRequestIQ iq = new ChatListRetrieveRequestIQ("non_existing_user@maxlaptop");
 		iq.setMax(30);
 		
-		connection.sendIqWithResponseCallback(iq, listener, listener, timeout);
-		
 		synchronized(listener) {
+			// listener can't be notified until it waits
+			connection.sendIqWithResponseCallback(iq, listener, listener, timeout);
 			listener.wait();
 				
 			if(listener.getException() != null) {
@@ -210,5 +213,5 @@ public final class TestChatListRetrieveIQ {
 			fail("Connection wasn't set properly!");
 		}
 	}
-
+	
 }
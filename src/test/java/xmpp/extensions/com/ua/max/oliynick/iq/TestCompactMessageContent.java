@@ -0,0 +1,78 @@
+package xmpp.extensions.com.ua.max.oliynick.iq;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import xmpp.extensions.com.ua.max.oliynick.iq.ChatListRetrieveResultIQ.Direction;
+
+/**
+ * <p>
+ * Tests {@link CompactMessageContent} columnar storage
+ * and {@link MessageCursor} of {@link ChatListRetrieveResultIQ}
+ * </p>
+ * Created 18.10.26
+ * @author Max Oliynick
+ * */
+public final class TestCompactMessageContent {
+	
+	/**
+	 * <p>Tests storage growth and cursor iteration</p>
+	 * */
+	@Test
+	public void testAppend() {
+		
+		final CompactMessageContent content = new CompactMessageContent(1, 1);
+		final int messages = 200;
+		
+		for(int i = 0; i < messages; ++i) {
+			content.append(i % 3 == 0 ? Direction.to : Direction.from, i, "body " + i);
+		}
+		
+		assertEquals(messages, content.size());
+		
+		final MessageCursor cursor = content.cursor();
+		
+		for(int i = 0; i < messages; ++i) {
+			assertTrue(cursor.next());
+			assertEquals(i, cursor.getSecs());
+			assertEquals(i % 3 == 0 ? Direction.to : Direction.from, cursor.getDirection());
+			assertEquals("body " + i, cursor.getBody());
+		}
+		
+		assertFalse(cursor.next());
+		
+		content.trimToSize();
+		assertEquals("body 199", content.getBody(messages - 1));
+		assertEquals(Direction.to, content.getDirection(198));
+	}
+	
+	/**
+	 * <p>Tests that both storage modes give the same XML</p>
+	 * */
+	@Test
+	public void testCompactIQ() {
+		
+		final ChatListRetrieveResultIQ plain = new ChatListRetrieveResultIQ();
+		final ChatListRetrieveResultIQ compact = new ChatListRetrieveResultIQ(true);
+		
+		for(final ChatListRetrieveResultIQ iq : new ChatListRetrieveResultIQ[] {plain, compact}) {
+			iq.setWith("mary@maxlaptop");
+			iq.setStart("2016-03-02T10:00:00.000Z");
+			iq.addBody(Direction.from, 0, "Hello");
+			iq.addBody(Direction.to, 5, "");
+			iq.setFirstIndex(0);
+			iq.setFirstValue("0");
+			iq.setLastValue("1");
+			iq.setCount(2);
+		}
+		
+		assertTrue(compact.isCompact());
+		assertEquals(2, compact.getMessageCount());
+		assertEquals(2, compact.getContent().size());
+		assertEquals(plain.getChildElementXML().toString(), compact.getChildElementXML().toString());
+	}
+
+}
@@ -0,0 +1,132 @@
+package xmpp.extensions.com.ua.max.oliynick.iq;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import xmpp.extensions.com.ua.max.oliynick.iq.ChatListRetrieveResultIQ.Direction;
+
+/**
+ * <p>
+ * Tests {@link CompressedMessageContent} and compressed
+ * copies of {@link ChatListRetrieveResultIQ}
+ * </p>
+ * Created 18.10.26
+ * @author Max Oliynick
+ * */
+public final class TestCompressedMessageContent {
+	
+	private static final String [] words = {"hi", "hello", "are", "you", "coming", "to", "the", "meeting",
+		"tomorrow", "yes", "sure", "see", "at", "office", "lunch", "maybe", "later", "thanks", "ok", "call",
+		"me", "when", "done", "with", "report", "project", "deadline", "friday", "weekend", "привіт", "як", "справи"};
+	
+	/**
+	 * Builds collection of chat-like messages
+	 * */
+	private static ChatListRetrieveResultIQ collection(int messages) {
+		
+		final Random random = new Random(42);
+		final ChatListRetrieveResultIQ collection = new ChatListRetrieveResultIQ(true);
+		
+		collection.setWith("mary@maxlaptop");
+		collection.setStart("2016-03-02T10:00:00.000Z");
+		
+		for(int i = 0; i < messages; ++i) {
+			
+			final StringBuilder body = new StringBuilder();
+			
+			for(int n = i % 7 == 0 ? 0 : 1 + random.nextInt(12); n > 0; --n) {
+				body.append(words[random.nextInt(words.length)]).append(n == 1 ? "" : " ");
+			}
+			
+			collection.addBody(random.nextBoolean() ? Direction.from : Direction.to, i * 3, body.toString());
+		}
+		
+		return collection;
+	}
+	
+	/**
+	 * <p>Tests that content is restored by cursor and random access,
+	 * including partial last block and empty bodies</p>
+	 * */
+	@Test
+	public void testRoundTrip() {
+		
+		final ChatListRetrieveResultIQ source = collection(1000);
+		final CompactMessageContent expected = source.getCompactContent();
+		final CompressedMessageContent content = CompressedMessageContent.compress(expected.size(), source.cursor(), 10, null);
+		
+		assertEquals(expected.size(), content.size());
+		assertEquals(expected.getBodiesLength(), content.getBodiesLength());
+		
+		final MessageCursor cursor = content.cursor();
+		
+		for(int i = 0; i < expected.size(); ++i) {
+			assertTrue(cursor.next());
+			assertEquals(expected.getSecs(i), cursor.getSecs());
+			assertEquals(expected.getDirection(i), cursor.getDirection());
+			assertEquals(expected.getBody(i), cursor.getBody());
+		}
+		
+		assertFalse(cursor.next());
+		
+		for(final int i : new int[] {999, 0, 5, 995, 14, 500}) {
+			assertEquals(expected.getBody(i), content.getBody(i));
+			assertEquals(expected.getDirection(i), content.getDirection(i));
+		}
+		
+		assertFalse(CompressedMessageContent.compress(0, new ChatListRetrieveResultIQ().cursor()).cursor().next());
+	}
+	
+	/**
+	 * <p>Tests that chat-like bodies take several times less
+	 * memory than UTF-16 strings</p>
+	 * */
+	@Test
+	public void testFootprint() {
+		
+		final ChatListRetrieveResultIQ source = collection(2000);
+		final CompressedMessageContent content = CompressedMessageContent.compress(source.getMessageCount(), source.cursor());
+		
+		final long utf16 = 2L * content.getBodiesLength();
+		
+		assertTrue(content.toString(), content.getCompressedBytes() * 3 <= utf16);
+	}
+	
+	/**
+	 * <p>Tests that compressed copy gives the same XML and is read-only</p>
+	 * */
+	@Test
+	public void testCompressedIQ() {
+		
+		final ChatListRetrieveResultIQ source = collection(100);
+		
+		source.setFirstIndex(0);
+		source.setFirstValue("0");
+		source.setLastValue("99");
+		source.setCount(100);
+		
+		final ChatListRetrieveResultIQ compressed = source.compress();
+		
+		assertTrue(compressed.isCompressed());
+		assertFalse(compressed.isCompact());
+		assertSame(compressed, compressed.compress());
+		assertEquals(100, compressed.getMessageCount());
+		assertEquals(source.getMessageMillis(42), compressed.getMessageMillis(42));
+		assertEquals(source.getChildElementXML().toString(), compressed.getChildElementXML().toString());
+		
+		try {
+			compressed.addBody(Direction.to, 0, "more");
+			fail("compressed collection is modified");
+		} catch(UnsupportedOperationException e) {
+			// expected
+		}
+	}
+	
+}
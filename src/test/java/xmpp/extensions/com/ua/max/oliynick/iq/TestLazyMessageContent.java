@@ -0,0 +1,65 @@
+package xmpp.extensions.com.ua.max.oliynick.iq;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+import xmpp.extensions.com.ua.max.oliynick.iq.ChatListRetrieveResultIQ.Direction;
+
+/**
+ * <p>
+ * Tests {@link LazyMessageContent} slice storage
+ * </p>
+ * Created 18.10.26
+ * @author Max Oliynick
+ * */
+public final class TestLazyMessageContent {
+	
+	/**
+	 * <p>Tests random access by index while the storage
+	 * grows, is trimmed and reused</p>
+	 * */
+	@Test
+	public void testIndexedAccess() {
+		
+		final LazyMessageContent content = new LazyMessageContent(1);
+		final int messages = 1000;
+		
+		for(int i = 0; i < messages; ++i) {
+			content.append(i % 3 == 0 ? Direction.to : Direction.from, i * 7, "body " + i);
+		}
+		
+		assertEquals(messages, content.size());
+		
+		for(int i = messages - 1; i >= 0; --i) {
+			assertEquals(i * 7, content.getSecs(i));
+		}
+		
+		content.trimToSize();
+		content.append(Direction.to, 70000, "appended after trim");
+		assertEquals(70000, content.getSecs(messages));
+		assertEquals(999 * 7, content.getSecs(messages - 1));
+		
+		try {
+			content.getSecs(messages + 1);
+			fail("index is out of bounds");
+		} catch (IndexOutOfBoundsException e) {
+			// expected
+		}
+		
+		content.clear();
+		content.append(Direction.from, 5, "reused");
+		assertEquals(1, content.size());
+		assertEquals(5, content.getSecs(0));
+		
+		final MessageCursor cursor = content.cursor();
+		
+		assertTrue(cursor.next());
+		assertEquals("reused", cursor.getBody());
+		assertFalse(cursor.next());
+	}
+	
+}
@@ -0,0 +1,75 @@
+package xmpp.extensions.com.ua.max.oliynick.metrics;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * <p>
+ * Tests {@link Histogram}
+ * </p>
+ * Created 18.10.26
+ * @author Max Oliynick
+ * */
+public final class TestHistogram {
+	
+	/**
+	 * <p>Tests bucket bounds</p>
+	 * */
+	@Test
+	public void testBuckets() {
+		
+		for(long value : new long [] {0, 1, 127, 128, 129, 255, 256, 1000, 123456789L, Long.MAX_VALUE}) {
+			
+			final int index = Histogram.indexOf(value);
+			
+			assertTrue(String.valueOf(value), Histogram.highestValueOf(index) >= value);
+			assertTrue(String.valueOf(value), index == 0 || Histogram.highestValueOf(index - 1) < value);
+		}
+		
+		assertEquals(127, Histogram.highestValueOf(Histogram.indexOf(127)));
+		assertEquals(Long.MAX_VALUE, Histogram.highestValueOf(Histogram.indexOf(Long.MAX_VALUE)));
+	}
+	
+	/**
+	 * <p>Tests percentiles against sorted values</p>
+	 * */
+	@Test
+	public void testPercentiles() {
+		
+		final Histogram histogram = new Histogram();
+		final Random random = new Random(42);
+		final long [] values = new long[100000];
+		
+		for(int i = 0; i < values.length; ++i) {
+			// log-normal latencies around one millisecond
+			values[i] = (long) (1000000 * Math.exp(random.nextGaussian()));
+			histogram.record(values[i]);
+		}
+		
+		Arrays.sort(values);
+		
+		for(double percentile : new double [] {50, 90, 99, 99.9}) {
+			
+			final long exact = values[(int) Math.ceil(percentile / 100 * values.length) - 1];
+			final long estimated = histogram.getValueAtPercentile(percentile);
+			
+			assertTrue(percentile + ": " + exact + " vs " + estimated, 
+					estimated >= exact && estimated <= exact + exact / 32);
+		}
+		
+		assertEquals(values.length, histogram.getCount());
+		assertEquals(values[values.length - 1], histogram.getMax());
+		assertEquals(values[values.length - 1], histogram.getValueAtPercentile(100));
+		
+		histogram.reset();
+		
+		assertEquals(0, histogram.getCount());
+		assertEquals(0, histogram.getValueAtPercentile(99));
+	}
+
+}
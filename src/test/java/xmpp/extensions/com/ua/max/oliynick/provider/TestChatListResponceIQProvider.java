@@ -0,0 +1,193 @@
+package xmpp.extensions.com.ua.max.oliynick.provider;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Iterator;
+
+import org.jivesoftware.smack.util.PacketParserUtils;
+import org.junit.Test;
+import org.xmlpull.v1.XmlPullParser;
+
+import xmpp.extensions.com.ua.max.oliynick.iq.ChatListResponceIQ;
+import xmpp.extensions.com.ua.max.oliynick.metrics.HistogramArchiveMetrics;
+import xmpp.extensions.com.ua.max.oliynick.metrics.Metrics;
+
+/**
+ * <p>
+ * Tests {@link ChatListResponceIQProvider} on raw XEP-0136
+ * payloads without server connection
+ * </p>
+ * Created 18.10.26
+ * @author Max Oliynick
+ * */
+public final class TestChatListResponceIQProvider {
+	
+	// Sample list, attributes of the second chat are in reversed order
+	public static final String payload = 
+			"<list xmlns='urn:xmpp:archive'>"
+			+ "<chat with='mary@maxlaptop' start='2016-03-02T10:00:00.000Z'/>"
+			+ "<chat start='2016-03-03T10:00:00.000Z' with='john@maxlaptop'/>"
+			+ "<set xmlns='http://jabber.org/protocol/rsm'>"
+			+ "<first index='0'>0</first><last>1</last><count>2</count>"
+			+ "</set></list>";
+	
+	/**
+	 * Parses payload with given provider
+	 * */
+	static ChatListResponceIQ parse(ChatListResponceIQProvider provider, String xml) throws Exception {
+		final XmlPullParser parser = PacketParserUtils.getParserFor(xml);
+		return provider.parse(parser, parser.getDepth());
+	}
+	
+	/**
+	 * <p>Tests attributes lookup by their names</p>
+	 * */
+	@Test
+	public void testParse() throws Exception {
+		
+		final ChatListResponceIQ iq = parse(new ChatListResponceIQProvider(), payload);
+		final Iterator<String> dates = iq.getStartDates().iterator();
+		
+		assertEquals(2, iq.getCount());
+		assertEquals(0, iq.getFirstIndex());
+		assertEquals("0", iq.getFirstValue());
+		assertEquals("1", iq.getLastValue());
+		assertEquals("2016-03-02T10:00:00.000Z", dates.next());
+		assertEquals("2016-03-03T10:00:00.000Z", dates.next());
+		assertEquals(1456912800000L, iq.getStartMillis(0));
+		assertEquals(1456999200000L, iq.getStartMillis(1));
+	}
+	
+	/**
+	 * <p>Tests that JIDs and timestamps of separately
+	 * parsed lists share instances</p>
+	 * */
+	@Test
+	public void testPooledValues() throws Exception {
+		
+		final ChatListResponceIQ first = parse(new ChatListResponceIQProvider(), payload);
+		final ChatListResponceIQ second = parse(new ChatListResponceIQProvider(), payload);
+		
+		assertSame(first.getWith(0), second.getWith(0));
+		assertSame(first.getWith(1), second.getWith(1));
+		assertSame(first.getStartDate(1), second.getStartDate(1));
+	}
+	
+	/**
+	 * <p>Tests that IQs of pooled provider are fully
+	 * reset when reused and can't be recycled twice</p>
+	 * */
+	@Test
+	public void testPooled() throws Exception {
+		
+		final ChatListResponceIQProvider provider = new ChatListResponceIQProvider();
+		
+		provider.setPooled(true);
+		
+		final ChatListResponceIQ first = parse(provider, payload);
+		
+		assertTrue(first.isPooled());
+		first.setStanzaId("list-1");
+		first.recycle();
+		
+		final ChatListResponceIQ second = parse(provider, 
+				"<list xmlns='urn:xmpp:archive'><chat with='kate@maxlaptop' start='2016-03-04T10:00:00.000Z'/></list>");
+		
+		assertTrue(second.isPooled());
+		assertEquals(1, second.getChatCount());
+		assertEquals(1, second.getStartDates().size());
+		assertEquals("kate@maxlaptop", second.getWith(0));
+		assertEquals("2016-03-04T10:00:00.000Z", second.getStartDate(0));
+		assertEquals(1, second.getCount());
+		assertEquals(-1, second.getFirstIndex());
+		assertNull(second.getLastValue());
+		assertNull(second.getStanzaId());
+		
+		second.recycle();
+		
+		try {
+			second.recycle();
+			fail("IQ is recycled twice");
+		} catch (IllegalStateException e) {
+			// expected, the IQ is already in the pool
+		}
+	}
+	
+	/**
+	 * <p>Tests that serialized XML doesn't change when
+	 * the IQ is modified afterwards</p>
+	 * */
+	@Test
+	public void testSerializedSnapshot() throws Exception {
+		
+		final ChatListResponceIQ iq = new ChatListResponceIQ();
+		
+		iq.appendChat("mary@maxlaptop", "2016-03-02T10:00:00.000Z");
+		iq.setFirst(0, "0");
+		iq.setLast("0");
+		
+		final CharSequence xml = iq.getChildElementXML();
+		final String expected = xml.toString();
+		
+		iq.appendChat("john@maxlaptop", "2016-03-03T10:00:00.000Z");
+		assertEquals(expected, xml.toString());
+		
+		iq.clearBuffers();
+		assertEquals(expected, xml.toString());
+		assertTrue(expected.contains("<chat xmlns='urn:xmpp:archive' with='mary@maxlaptop' start='2016-03-02T10:00:00.000Z'/>"));
+	}
+	
+	/**
+	 * <p>Tests that serialized attributes are escaped and can be parsed back</p>
+	 * */
+	@Test
+	public void testEscaping() throws Exception {
+		
+		final ChatListResponceIQ iq = new ChatListResponceIQ();
+		
+		iq.appendChat("o'brien&co@maxlaptop", "2016-03-02T10:00:00.000Z");
+		iq.appendChat("<mary>@maxlaptop", "2016-03-03T10:00:00.000Z");
+		iq.setFirst(0, "0");
+		iq.setLast("1");
+		
+		final String xml = iq.getChildElementXML().toString();
+		
+		assertTrue(xml.contains("with='o&apos;brien&amp;co@maxlaptop'"));
+		assertTrue(xml.contains("with='&lt;mary&gt;@maxlaptop'"));
+		
+		final ChatListResponceIQ parsed = parse(new ChatListResponceIQProvider(), xml);
+		
+		assertEquals(2, parsed.getCount());
+		assertEquals("0", parsed.getFirstValue());
+		assertEquals("1", parsed.getLastValue());
+	}
+	
+	/**
+	 * <p>Tests that recorded size counts parsed text</p>
+	 * */
+	@Test
+	public void testMetrics() throws Exception {
+		
+		final HistogramArchiveMetrics metrics = new HistogramArchiveMetrics();
+		
+		Metrics.set(metrics);
+		
+		try {
+			parse(new ChatListResponceIQProvider(), payload);
+		} finally {
+			Metrics.set(null);
+		}
+		
+		// two JIDs, two timestamps, 'first' and 'last' values
+		final int chars = "mary@maxlaptop".length() + "john@maxlaptop".length() 
+				+ 2 * "2016-03-02T10:00:00.000Z".length() + 2;
+		
+		assertEquals(Metrics.estimateSize(2, chars), metrics.getBytesParsed());
+		assertEquals(1, metrics.getParseTimes().get(ChatListResponceIQProvider.elementName).getCount());
+	}
+	
+}
@@ -0,0 +1,508 @@
+package xmpp.extensions.com.ua.max.oliynick.provider;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.jivesoftware.smack.ExceptionCallback;
+import org.jivesoftware.smack.StanzaListener;
+import org.jivesoftware.smack.packet.Stanza;
+import org.jivesoftware.smack.util.PacketParserUtils;
+import org.junit.Test;
+import org.xmlpull.v1.XmlPullParser;
+
+import xmpp.extensions.com.ua.max.oliynick.iq.ChatListRetrieveResultIQ;
+import xmpp.extensions.com.ua.max.oliynick.iq.ChatListRetrieveResultIQ.Direction;
+import xmpp.extensions.com.ua.max.oliynick.iq.MessageCursor;
+import xmpp.extensions.com.ua.max.oliynick.iq.PendingDecode;
+
+/**
+ * <p>
+ * Tests {@link ChatListRetrieveIQProvider} on raw XEP-0136
+ * payloads without server connection
+ * </p>
+ * Created 18.10.26
+ * @author Max Oliynick
+ * */
+public final class TestChatListRetrieveIQProvider {
+	
+	// Sample collection with two messages
+	public static final String payload = 
+			"<chat xmlns='urn:xmpp:archive' with='mary@maxlaptop' start='2016-03-02T10:00:00.000Z' subject='test' version='2'>"
+			+ "<from secs='0'><body>Hello</body></from>"
+			+ "<to secs='5'><body>Hi, Mary</body></to>"
+			+ "<set xmlns='http://jabber.org/protocol/rsm'>"
+			+ "<first index='0'>0</first><last>1</last><count>2</count>"
+			+ "</set></chat>";
+	
+	/**
+	 * Parses payload with given provider
+	 * */
+	static ChatListRetrieveResultIQ parse(ChatListRetrieveIQProvider provider, String xml) throws Exception {
+		final XmlPullParser parser = PacketParserUtils.getParserFor(xml);
+		return provider.parse(parser, parser.getDepth());
+	}
+	
+	/**
+	 * <p>Tests streaming mode for correct message delivery</p>
+	 * */
+	@Test
+	public void testStreaming() throws Exception {
+		
+		final List<String> received = new ArrayList<>();
+		final ChatListRetrieveIQProvider provider = new ChatListRetrieveIQProvider(new ArchiveMessageListener() {
+			
+			@Override
+			public void processMessage(ChatListRetrieveResultIQ iq, Direction direction, int secs, String body) {
+				// collection attributes should be parsed before any message
+				assertEquals("mary@maxlaptop", iq.getWith());
+				received.add(direction + ":" + secs + ":" + body);
+			}
+			
+			@Override
+			public void processFinished(ChatListRetrieveResultIQ iq) {
+				// RSM values follow the messages
+				assertEquals("1", iq.getLastValue());
+				received.add("finished");
+			}
+			
+			@Override
+			public void processFailed(ChatListRetrieveResultIQ iq) {
+				received.add("failed");
+			}
+		});
+		
+		final ChatListRetrieveResultIQ iq = parse(provider, payload);
+		
+		assertEquals(3, received.size());
+		assertEquals("from:0:Hello", received.get(0));
+		assertEquals("to:5:Hi, Mary", received.get(1));
+		assertEquals("finished", received.get(2));
+		
+		// only RSM metadata should be kept
+		assertTrue(iq.getContent().isEmpty());
+		assertEquals(0, iq.getFirstIndex());
+		assertEquals("0", iq.getFirstValue());
+		assertEquals("1", iq.getLastValue());
+		assertEquals(2, iq.getCount());
+		
+		// listener learns that delivered messages belong to a broken collection
+		received.clear();
+		
+		try {
+			parse(provider, payload.replace("<count>2</count>", "<count>two</count>"));
+			fail("malformed count is parsed");
+		} catch (NumberFormatException e) {
+			// expected
+		}
+		
+		assertEquals(3, received.size());
+		assertEquals("failed", received.get(2));
+	}
+	
+	/**
+	 * <p>Tests default mode for correct message materialization</p>
+	 * */
+	@Test
+	public void testDefault() throws Exception {
+		
+		final ChatListRetrieveResultIQ iq = parse(new ChatListRetrieveIQProvider(), payload);
+		
+		assertEquals("mary@maxlaptop", iq.getWith());
+		assertEquals("2016-03-02T10:00:00.000Z", iq.getStart());
+		assertEquals("test", iq.getSubject());
+		assertEquals(2, iq.getVersion());
+		assertEquals(2, iq.getContent().size());
+		assertEquals(2, iq.getCount());
+		assertEquals(1456912800000L, iq.getStartMillis());
+		assertEquals(1456912805000L, iq.getMessageMillis(1));
+	}
+	
+	/**
+	 * <p>Tests compact storage mode</p>
+	 * */
+	@Test
+	public void testCompact() throws Exception {
+		
+		final ChatListRetrieveIQProvider provider = new ChatListRetrieveIQProvider();
+		provider.setCompactStorage(true);
+		
+		final ChatListRetrieveResultIQ iq = parse(provider, payload);
+		final MessageCursor cursor = iq.cursor();
+		
+		assertTrue(iq.isCompact());
+		assertEquals(2, iq.getMessageCount());
+		assertTrue(cursor.next());
+		assertEquals(Direction.from, cursor.getDirection());
+		assertEquals("Hello", cursor.getBody());
+		assertTrue(cursor.next());
+		assertEquals(Direction.to, cursor.getDirection());
+		assertEquals(5, cursor.getSecs());
+		assertEquals("Hi, Mary", cursor.getBody());
+		assertEquals(1456912805000L, iq.getMessageMillis(cursor));
+		assertEquals(1456912800000L, iq.getMessageMillis(0));
+	}
+	
+	/**
+	 * <p>Tests that IQs of pooled provider are fully
+	 * reset when reused and can't be recycled twice</p>
+	 * */
+	@Test
+	public void testPooled() throws Exception {
+		
+		final ChatListRetrieveIQProvider provider = new ChatListRetrieveIQProvider();
+		
+		provider.setPooled(true);
+		provider.setCompactStorage(true);
+		
+		final ChatListRetrieveResultIQ first = parse(provider, payload);
+		
+		assertTrue(first.isPooled());
+		assertEquals(2, first.getMessageCount());
+		
+		first.setFrom("maxlaptop");
+		first.recycle();
+		
+		final ChatListRetrieveResultIQ second = parse(provider, 
+				"<chat xmlns='urn:xmpp:archive' with='john@maxlaptop' start='2016-03-03T10:00:00.000Z'/>");
+		
+		assertTrue(second.isPooled());
+		assertEquals("john@maxlaptop", second.getWith());
+		assertEquals(1456999200000L, second.getStartMillis());
+		assertEquals(0, second.getMessageCount());
+		assertNull(second.getSubject());
+		assertEquals(0, second.getVersion());
+		assertEquals(-1, second.getCount());
+		assertEquals(-1, second.getFirstIndex());
+		assertNull(second.getFirstValue());
+		assertNull(second.getLastValue());
+		assertNull(second.getFrom());
+		assertFalse(second.cursor().next());
+		
+		second.recycle();
+		
+		try {
+			second.recycle();
+			fail("IQ is recycled twice");
+		} catch (IllegalStateException e) {
+			// expected, the IQ is already in the pool
+		}
+		
+		// instances created directly aren't pooled
+		final ChatListRetrieveResultIQ plain = parse(new ChatListRetrieveIQProvider(), payload);
+		
+		assertFalse(plain.isPooled());
+		plain.recycle();
+		assertEquals(2, plain.getMessageCount());
+	}
+	
+	/**
+	 * <p>Tests that lazy IQ exposes RSM values and decodes
+	 * the same messages as the default one</p>
+	 * */
+	@Test
+	public void testLazy() throws Exception {
+		
+		final String xml = 
+				"<chat xmlns='urn:xmpp:archive' with='mary@maxlaptop' start='2016-03-02T10:00:00.000Z'>"
+				+ "<from secs='0'><body>Hello &amp; &lt;welcome&gt;</body></from>"
+				+ "<to secs='70000'><body></body></to>"
+				+ "<from secs='75000'><body>Bye</body></from>"
+				+ "<set xmlns='http://jabber.org/protocol/rsm'>"
+				+ "<first index='4'>4</first><last>6</last><count>10</count>"
+				+ "</set></chat>";
+		
+		final ChatListRetrieveIQProvider provider = new ChatListRetrieveIQProvider();
+		
+		provider.setLazy(true);
+		
+		final ChatListRetrieveResultIQ lazy = parse(provider, xml);
+		final ChatListRetrieveResultIQ eager = parse(new ChatListRetrieveIQProvider(), xml);
+		
+		assertTrue(lazy.isLazy());
+		assertEquals(10, lazy.getCount());
+		assertEquals("4", lazy.getFirstValue());
+		assertEquals("6", lazy.getLastValue());
+		assertEquals(3, lazy.getMessageCount());
+		assertEquals(eager.getBodiesLength(), lazy.getBodiesLength());
+		assertEquals(eager.getMessageMillis(2), lazy.getMessageMillis(2));
+		
+		final MessageCursor cursor = lazy.cursor();
+		
+		assertTrue(cursor.next());
+		assertEquals("Hello & <welcome>", cursor.getBody());
+		assertTrue(cursor.next());
+		assertEquals(Direction.to, cursor.getDirection());
+		assertEquals(70000, cursor.getSecs());
+		assertEquals("", cursor.getBody());
+		assertTrue(cursor.next());
+		assertFalse(cursor.next());
+		
+		assertEquals(eager.getChildElementXML().toString(), lazy.getChildElementXML().toString());
+	}
+	
+	/**
+	 * <p>Tests that offload mode decodes collections on the executor
+	 * and delivers them to the callback</p>
+	 * */
+	@Test
+	public void testOffload() throws Exception {
+		
+		final ExecutorService executor = Executors.newSingleThreadExecutor();
+		final ChatListRetrieveIQProvider provider = new ChatListRetrieveIQProvider();
+		
+		provider.setCompactStorage(true);
+		provider.setDecodeExecutor(executor, 2);
+		
+		try {
+			final ChatListRetrieveResultIQ captured = parse(provider, payload);
+			
+			// attributes and RSM values are available immediately
+			assertNotNull(captured.getPendingDecode());
+			assertEquals("mary@maxlaptop", captured.getWith());
+			assertEquals(2, captured.getCount());
+			assertEquals("1", captured.getLastValue());
+			
+			captured.setStanzaId("retrieve-1");
+			
+			final ChatListRetrieveResultIQ decoded = captured.getDecoded();
+			
+			assertNotSame(captured, decoded);
+			assertTrue(decoded.isCompact());
+			assertEquals("retrieve-1", decoded.getStanzaId());
+			assertEquals(2, decoded.getMessageCount());
+			assertEquals("Hi, Mary", decoded.getCompactContent().getBody(1));
+			
+			// delivered by the callback on the decoding thread
+			final CountDownLatch delivered = new CountDownLatch(1);
+			final AtomicReference<Stanza> received = new AtomicReference<>();
+			final DecodedResultCallback callback = new DecodedResultCallback(new StanzaListener() {
+				
+				@Override
+				public void processPacket(Stanza packet) {
+					received.set(packet);
+					delivered.countDown();
+				}
+			}, new ExceptionCallback() {
+				
+				@Override
+				public void processException(Exception exception) {
+					throw new AssertionError(exception);
+				}
+			});
+			
+			callback.processPacket(parse(provider, payload));
+			assertTrue(delivered.await(10, TimeUnit.SECONDS));
+			assertTrue(received.get() instanceof ChatListRetrieveResultIQ);
+			assertNull(((ChatListRetrieveResultIQ) received.get()).getPendingDecode());
+			assertEquals(2, ((ChatListRetrieveResultIQ) received.get()).getMessageCount());
+			
+			// streaming listener runs on the executor
+			final List<String> threads = new ArrayList<>();
+			
+			provider.setMessageListener(new ArchiveMessageListener() {
+				
+				@Override
+				public void processMessage(ChatListRetrieveResultIQ iq, Direction direction, int secs, String body) {
+					threads.add(Thread.currentThread().getName());
+				}
+				
+				@Override
+				public void processFinished(ChatListRetrieveResultIQ iq) {}
+				
+				@Override
+				public void processFailed(ChatListRetrieveResultIQ iq) {}
+			});
+			
+			parse(provider, payload).getDecoded();
+			
+			assertEquals(2, threads.size());
+			assertFalse(threads.contains(Thread.currentThread().getName()));
+			
+			// small collections are decoded by the reader
+			provider.setMessageListener(null);
+			provider.setDecodeExecutor(executor, 3);
+			
+			final ChatListRetrieveResultIQ small = parse(provider, payload);
+			
+			assertNull(small.getPendingDecode());
+			assertEquals(2, small.getMessageCount());
+			
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+	
+	/**
+	 * <p>Tests that lazy mode disables offload mode
+	 * unless a message listener is set</p>
+	 * */
+	@Test
+	public void testLazyOffload() throws Exception {
+		
+		final ExecutorService executor = Executors.newSingleThreadExecutor();
+		final ChatListRetrieveIQProvider provider = new ChatListRetrieveIQProvider();
+		
+		provider.setLazy(true);
+		provider.setDecodeExecutor(executor, 0);
+		
+		try {
+			final ChatListRetrieveResultIQ lazy = parse(provider, payload);
+			
+			// returned by the reader as it is
+			assertNull(lazy.getPendingDecode());
+			assertTrue(lazy.isLazy());
+			assertEquals(2, lazy.getMessageCount());
+			
+			final List<String> threads = new ArrayList<>();
+			
+			provider.setMessageListener(new ArchiveMessageListener() {
+				
+				@Override
+				public void processMessage(ChatListRetrieveResultIQ iq, Direction direction, int secs, String body) {
+					threads.add(Thread.currentThread().getName());
+				}
+				
+				@Override
+				public void processFinished(ChatListRetrieveResultIQ iq) {}
+				
+				@Override
+				public void processFailed(ChatListRetrieveResultIQ iq) {}
+			});
+			
+			final ChatListRetrieveResultIQ offloaded = parse(provider, payload);
+			
+			assertNotNull(offloaded.getPendingDecode());
+			offloaded.getDecoded();
+			
+			assertEquals(2, threads.size());
+			assertFalse(threads.contains(Thread.currentThread().getName()));
+			
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+	
+	/**
+	 * <p>Tests that offloaded collections reach the listener one
+	 * at a time and in the order they were parsed</p>
+	 * */
+	@Test
+	public void testOffloadOrder() throws Exception {
+		
+		final ExecutorService executor = Executors.newFixedThreadPool(4);
+		final ChatListRetrieveIQProvider provider = new ChatListRetrieveIQProvider();
+		final List<String> delivered = new ArrayList<>();
+		final AtomicInteger active = new AtomicInteger();
+		final AtomicInteger maxActive = new AtomicInteger();
+		final int collections = 100;
+		final CountDownLatch finished = new CountDownLatch(collections);
+		
+		provider.setMessageListener(new ArchiveMessageListener() {
+			
+			@Override
+			public void processMessage(ChatListRetrieveResultIQ iq, Direction direction, int secs, String body) {
+				
+				final int current = active.incrementAndGet();
+				
+				maxActive.set(Math.max(maxActive.get(), current));
+				Thread.yield();
+				
+				synchronized(delivered) {
+					delivered.add(iq.getWith() + ' ' + body);
+				}
+				
+				active.decrementAndGet();
+			}
+			
+			@Override
+			public void processFinished(ChatListRetrieveResultIQ iq) {
+				finished.countDown();
+			}
+			
+			@Override
+			public void processFailed(ChatListRetrieveResultIQ iq) {
+				throw new AssertionError("collection isn't parsed");
+			}
+		});
+		
+		// small collections must not overtake the queued ones
+		provider.setDecodeExecutor(executor, 3);
+		
+		try {
+			for(int i = 0; i < collections; ++i) {
+				parse(provider, payload.replace("mary@maxlaptop", "contact" + i + "@maxlaptop"));
+			}
+			
+			assertTrue(finished.await(10, TimeUnit.SECONDS));
+			assertEquals(1, maxActive.get());
+			assertEquals(2 * collections, delivered.size());
+			
+			for(int i = 0; i < collections; ++i) {
+				assertEquals("contact" + i + "@maxlaptop Hello", delivered.get(2 * i));
+				assertEquals("contact" + i + "@maxlaptop Hi, Mary", delivered.get(2 * i + 1));
+			}
+			
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+	
+	/**
+	 * <p>Tests that a failed continuation doesn't prevent
+	 * delivery of the decoded IQ to the others</p>
+	 * */
+	@Test
+	public void testFailedContinuation() throws Exception {
+		
+		final PendingDecode pending = new PendingDecode(new Callable<ChatListRetrieveResultIQ>() {
+			
+			@Override
+			public ChatListRetrieveResultIQ call() {
+				return new ChatListRetrieveResultIQ();
+			}
+		});
+		final AtomicInteger runs = new AtomicInteger();
+		
+		pending.whenDone(new Runnable() {
+			
+			@Override
+			public void run() {
+				throw new IllegalStateException("first continuation");
+			}
+		});
+		
+		pending.whenDone(new Runnable() {
+			
+			@Override
+			public void run() {
+				runs.incrementAndGet();
+			}
+		});
+		
+		try {
+			pending.run();
+			fail("failure of the continuation is lost");
+		} catch (IllegalStateException e) {
+			assertEquals("first continuation", e.getMessage());
+		}
+		
+		assertEquals(1, runs.get());
+		assertNotNull(pending.get());
+	}
+	
+}
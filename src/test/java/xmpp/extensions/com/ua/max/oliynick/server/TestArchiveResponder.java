@@ -0,0 +1,444 @@
+package xmpp.extensions.com.ua.max.oliynick.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import org.jivesoftware.smack.XMPPException.XMPPErrorException;
+import org.jivesoftware.smack.packet.IQ;
+import org.jivesoftware.smack.packet.XMPPError;
+import org.jivesoftware.smack.provider.ProviderManager;
+import org.jivesoftware.smack.util.PacketParserUtils;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.jxmpp.util.XmppDateTime;
+
+import xmpp.extensions.com.ua.max.oliynick.archive.ChatHistoryPager;
+import xmpp.extensions.com.ua.max.oliynick.iq.ChatListRequestIQ;
+import xmpp.extensions.com.ua.max.oliynick.iq.ChatListResponceIQ;
+import xmpp.extensions.com.ua.max.oliynick.iq.ChatListRetrieveRequestIQ;
+import xmpp.extensions.com.ua.max.oliynick.iq.ChatListRetrieveResultIQ;
+import xmpp.extensions.com.ua.max.oliynick.iq.ChatListRetrieveResultIQ.Direction;
+import xmpp.extensions.com.ua.max.oliynick.iq.MessageCursor;
+import xmpp.extensions.com.ua.max.oliynick.provider.ChatListResponceIQProvider;
+import xmpp.extensions.com.ua.max.oliynick.provider.ChatListRetrieveIQProvider;
+import xmpp.extensions.com.ua.max.oliynick.util.StubConnection;
+
+/**
+ * <p>
+ * Tests {@link ArchiveResponder} and {@link MemoryArchiveStore}
+ * </p>
+ * Created 18.10.26
+ * @author Max Oliynick
+ * */
+public final class TestArchiveResponder {
+	
+	private static final String owner = "maxxx@maxlaptop";
+	private static final long base = 1456912800000L;
+	
+	@BeforeClass
+	public static void registerProviders() {
+		ArchiveResponder.registerProviders();
+		ProviderManager.addIQProvider(ChatListRetrieveIQProvider.elementName, ChatListRetrieveIQProvider.namespace, new ChatListRetrieveIQProvider());
+	}
+	
+	private static String start(int minute) {
+		return XmppDateTime.formatXEP0082Date(new Date(base + minute * 60000L));
+	}
+	
+	private static ChatListRetrieveResultIQ collection(String with, int minute, int messages) {
+		
+		final ChatListRetrieveResultIQ collection = new ChatListRetrieveResultIQ(true);
+		
+		collection.setWith(with);
+		collection.setStart(start(minute));
+		
+		for(int i = 0; i < messages; ++i) {
+			collection.addBody(i % 2 == 0 ? Direction.from : Direction.to, i, "message <" + i + "> & co");
+		}
+		
+		return collection;
+	}
+	
+	/**
+	 * Adds 30 collections, 'mary' has every third one
+	 * */
+	private static MemoryArchiveStore store() {
+		
+		final MemoryArchiveStore store = new MemoryArchiveStore();
+		final String [] contacts = {"mary@maxlaptop", "john@maxlaptop", "kate@maxlaptop"};
+		
+		// added in reverse order, the store sorts them
+		for(int i = 29; i >= 0; --i) {
+			store.add(owner, collection(contacts[i % 3], i, 5));
+		}
+		
+		store.add("someone@maxlaptop", collection("mary@maxlaptop", 100, 5));
+		return store;
+	}
+	
+	private static ChatListRequestIQ listRequest(String with, int max, String after) {
+		final ChatListRequestIQ request = new ChatListRequestIQ(with, max);
+		request.setAfter(after);
+		return request;
+	}
+	
+	/**
+	 * <p>Tests that 'list' pages follow each other by RSM values</p>
+	 * */
+	@Test
+	public void testListPaging() throws Exception {
+		
+		final ArchiveResponder responder = ArchiveResponder.install(new StubConnection(), store());
+		String after = null;
+		int listed = 0;
+		
+		for(int page = 0; page < 3; ++page) {
+			
+			final ChatListResponceIQ result = (ChatListResponceIQ) responder.list(listRequest(null, 12, after));
+			
+			assertEquals(IQ.Type.result, result.getType());
+			assertEquals(listed, result.getFirstIndex());
+			assertEquals(30, result.getCount());
+			
+			for(int i = 0; i < result.getChatCount(); ++i, ++listed) {
+				assertEquals(start(listed), result.getStartDate(i));
+			}
+			
+			after = result.getLastValue();
+		}
+		
+		assertEquals(30, listed);
+		
+		// there is nothing after the last item
+		final ChatListResponceIQ empty = (ChatListResponceIQ) responder.list(listRequest(null, 12, after));
+		
+		assertEquals(0, empty.getChatCount());
+		assertEquals(30, empty.getCount());
+	}
+	
+	/**
+	 * <p>Tests that 'list' pages precede each other by RSM 'before' values</p>
+	 * */
+	@Test
+	public void testListPagingBackwards() throws Exception {
+		
+		final ArchiveResponder responder = ArchiveResponder.install(new StubConnection(), store());
+		// an empty 'before' requests the last page, parsed by the provider as a request
+		String before = "";
+		int listed = 30;
+		
+		for(int page = 0; page < 3; ++page) {
+			
+			final ChatListRequestIQ request = (ChatListRequestIQ) PacketParserUtils.parseStanza(
+					listRequest(null, 12, null).toXML().toString().replace("</set>", 
+					before.isEmpty() ? "<before/></set>" : "<before>" + before + "</before></set>"));
+			
+			assertEquals(before, request.getBefore());
+			
+			final ChatListResponceIQ result = (ChatListResponceIQ) responder.list(request);
+			
+			assertEquals(IQ.Type.result, result.getType());
+			assertEquals(Math.max(0, listed - 12), result.getFirstIndex());
+			assertEquals(30, result.getCount());
+			
+			for(int i = result.getChatCount() - 1; i >= 0; --i) {
+				assertEquals(start(--listed), result.getStartDate(i));
+			}
+			
+			before = result.getFirstValue();
+		}
+		
+		assertEquals(0, listed);
+		
+		// there is nothing before the first item
+		final ChatListRequestIQ first = listRequest(null, 12, null);
+		
+		first.setBefore("0");
+		
+		assertEquals(0, ((ChatListResponceIQ) responder.list(first)).getChatCount());
+		
+		first.setBefore("30");
+		
+		assertEquals(IQ.Type.error, responder.list(first).getType());
+	}
+	
+	/**
+	 * <p>Tests 'with', 'start' and 'end' filters and the page limit</p>
+	 * */
+	@Test
+	public void testListFilters() throws Exception {
+		
+		final ArchiveResponder responder = ArchiveResponder.install(new StubConnection(), store());
+		final ChatListRequestIQ request = listRequest("mary@maxlaptop", -1, null);
+		
+		request.setStart(start(4));
+		request.setEnd(start(22));
+		
+		final ChatListResponceIQ result = (ChatListResponceIQ) responder.list(request);
+		
+		// minutes 6, 9, 12, 15, 18 and 21
+		assertEquals(6, result.getCount());
+		assertEquals(start(6), result.getStartDate(0));
+		assertEquals(start(21), result.getStartDate(5));
+		
+		for(int i = 0; i < result.getChatCount(); ++i) {
+			assertEquals("mary@maxlaptop", result.getWith(i));
+		}
+		
+		responder.setPageLimit(4);
+		
+		final ChatListResponceIQ limited = (ChatListResponceIQ) responder.list(listRequest(null, 10, null));
+		
+		assertEquals(4, limited.getChatCount());
+		assertEquals(30, limited.getCount());
+		assertEquals(0, ((ChatListResponceIQ) responder.list(listRequest("nobody@maxlaptop", 10, null))).getCount());
+	}
+	
+	/**
+	 * <p>Tests 'retrieve' paging and errors</p>
+	 * */
+	@Test
+	public void testRetrieve() throws Exception {
+		
+		final ArchiveResponder responder = ArchiveResponder.install(new StubConnection(), store());
+		final ChatListRetrieveRequestIQ request = new ChatListRetrieveRequestIQ("john@maxlaptop");
+		
+		request.setStart(start(7));
+		request.setMax(2);
+		request.setAfter("1");
+		
+		final ChatListRetrieveResultIQ page = (ChatListRetrieveResultIQ) responder.retrieve(request);
+		
+		assertEquals(2, page.getMessageCount());
+		assertEquals(2, page.getFirstIndex());
+		assertEquals("3", page.getLastValue());
+		assertEquals(5, page.getCount());
+		assertEquals(start(7), page.getStart());
+		
+		request.setAfter("5");
+		assertEquals(XMPPError.Condition.item_not_found, responder.retrieve(request).getError().getCondition());
+		
+		// collection of another owner isn't visible
+		request.setStart(start(100));
+		request.setAfter(null);
+		assertEquals(XMPPError.Condition.item_not_found, responder.retrieve(request).getError().getCondition());
+		
+		request.setStart("yesterday");
+		assertEquals(XMPPError.Condition.bad_request, responder.retrieve(request).getError().getCondition());
+	}
+	
+	/**
+	 * <p>Tests that requests sent over the connection are answered
+	 * and walked by the client code</p>
+	 * */
+	@Test
+	public void testRoundTrip() throws Exception {
+		
+		final StubConnection connection = new StubConnection();
+		ArchiveResponder.install(connection, store());
+		
+		final ChatListResponceIQ list = connection.createPacketCollectorAndSend(listRequest("kate@maxlaptop", 3, null)).nextResultOrThrow();
+		
+		assertEquals(3, list.getChatCount());
+		assertEquals(start(2), list.getStartDate(0));
+		
+		final ChatListRetrieveRequestIQ request = new ChatListRetrieveRequestIQ("kate@maxlaptop");
+		
+		request.setStart(list.getStartDate(1));
+		request.setMax(2);
+		
+		final ChatListRetrieveResultIQ collection = new ChatHistoryPager(connection, request).fetchAll();
+		int messages = 0;
+		
+		for(final MessageCursor cursor = collection.cursor(); cursor.next(); ++messages) {
+			assertEquals("message <" + messages + "> & co", cursor.getBody());
+		}
+		
+		assertEquals(5, messages);
+		
+		request.setWith("nobody@maxlaptop");
+		
+		try {
+			connection.createPacketCollectorAndSend(request).nextResultOrThrow();
+			fail("item-not-found expected");
+		} catch(XMPPErrorException e) {
+			assertEquals(XMPPError.Condition.item_not_found, e.getXMPPError().getCondition());
+		}
+		
+		connection.disconnect();
+	}
+	
+	/**
+	 * <p>Tests that streamed responses carry the same content
+	 * as response IQs</p>
+	 * */
+	@Test
+	public void testStreaming() throws Exception {
+		
+		final ArchiveResponder responder = ArchiveResponder.install(new StubConnection(), store());
+		final ChatListRequestIQ listRequest = listRequest(null, 12, "11");
+		final StringWriter listOut = new StringWriter();
+		
+		responder.respond(listRequest, listOut);
+		
+		final ChatListResponceIQ list = (ChatListResponceIQ) PacketParserUtils.parseStanza(listOut.toString());
+		final ChatListResponceIQ expectedList = (ChatListResponceIQ) responder.list(listRequest);
+		
+		assertEquals(listRequest.getStanzaId(), list.getStanzaId());
+		assertEquals(IQ.Type.result, list.getType());
+		assertEquals(12, list.getChatCount());
+		assertEquals(12, list.getFirstIndex());
+		assertEquals(expectedList.getLastValue(), list.getLastValue());
+		
+		for(int i = 0; i < list.getChatCount(); ++i) {
+			assertEquals(expectedList.getWith(i), list.getWith(i));
+			assertEquals(expectedList.getStartDate(i), list.getStartDate(i));
+		}
+		
+		final ChatListRetrieveRequestIQ retrieveRequest = new ChatListRetrieveRequestIQ("john@maxlaptop");
+		final StringWriter retrieveOut = new StringWriter();
+		
+		retrieveRequest.setStart(start(7));
+		retrieveRequest.setAfter("0");
+		responder.respond(retrieveRequest, retrieveOut);
+		
+		final ChatListRetrieveResultIQ collection = (ChatListRetrieveResultIQ) PacketParserUtils.parseStanza(retrieveOut.toString());
+		int messages = 1;
+		
+		for(final MessageCursor cursor = collection.cursor(); cursor.next(); ++messages) {
+			assertEquals("message <" + messages + "> & co", cursor.getBody());
+			assertEquals(messages, cursor.getSecs());
+		}
+		
+		assertEquals(5, messages);
+		assertEquals(5, collection.getCount());
+		assertEquals(1, collection.getFirstIndex());
+		
+		// errors are written as error stanzas
+		final StringWriter errorOut = new StringWriter();
+		
+		retrieveRequest.setAfter("9");
+		responder.respond(retrieveRequest, errorOut);
+		
+		assertEquals(XMPPError.Condition.item_not_found, PacketParserUtils.parseStanza(errorOut.toString()).getError().getCondition());
+	}
+	
+	/**
+	 * <p>Tests that the client provider keeps parsing 'list' responses
+	 * once providers of requests are registered</p>
+	 * */
+	@Test
+	public void testClientProvider() throws Exception {
+		
+		final ChatListResponceIQProvider client = new ChatListResponceIQProvider();
+		
+		client.setPooled(true);
+		ProviderManager.addIQProvider(ChatListResponceIQProvider.elementName, ChatListResponceIQProvider.namespace, client);
+		
+		try {
+			ArchiveResponder.registerProviders();
+			ArchiveResponder.registerProviders();
+			
+			final IQ response = (IQ) PacketParserUtils.parseStanza("<iq id='1' type='result'><list xmlns='urn:xmpp:archive'>"
+					+ "<chat with='mary@maxlaptop' start='" + start(0) + "'/><set xmlns='http://jabber.org/protocol/rsm'>"
+					+ "<first index='0'>0</first><last>0</last><count>1</count></set></list></iq>");
+			
+			assertTrue(response instanceof ChatListResponceIQ);
+			assertTrue(((ChatListResponceIQ) response).isPooled());
+			assertEquals(1, ((ChatListResponceIQ) response).getChatCount());
+			
+			final IQ empty = (IQ) PacketParserUtils.parseStanza("<iq id='2' type='result'><list xmlns='urn:xmpp:archive'>"
+					+ "<set xmlns='http://jabber.org/protocol/rsm'><count>0</count></set></list></iq>");
+			
+			assertTrue(empty instanceof ChatListResponceIQ);
+			assertEquals(0, ((ChatListResponceIQ) empty).getChatCount());
+			
+			final IQ request = (IQ) PacketParserUtils.parseStanza("<iq id='3' type='get'><list xmlns='urn:xmpp:archive'>"
+					+ "<set xmlns='http://jabber.org/protocol/rsm'><max>10</max><after>4</after></set></list></iq>");
+			
+			assertTrue(request instanceof ChatListRequestIQ);
+			assertEquals(10, ((ChatListRequestIQ) request).getMax());
+			assertEquals("4", ((ChatListRequestIQ) request).getAfter());
+			
+			assertTrue(PacketParserUtils.parseStanza("<iq id='4' type='get'><list xmlns='urn:xmpp:archive'>"
+					+ "<set xmlns='http://jabber.org/protocol/rsm'><before/></set></list></iq>") instanceof ChatListRequestIQ);
+			
+		} finally {
+			ProviderManager.addIQProvider(ChatListResponceIQProvider.elementName, ChatListResponceIQProvider.namespace, new ChatListResponceIQProvider());
+			ArchiveResponder.registerProviders();
+		}
+	}
+	
+	/**
+	 * <p>Tests replacement and removal of stored collections</p>
+	 * */
+	@Test
+	public void testStoreUpdates() {
+		
+		final MemoryArchiveStore store = store();
+		
+		store.add(owner, collection("mary@maxlaptop", 3, 7));
+		assertEquals(30, store.size(owner));
+		assertEquals(7, store.get(owner, "mary@maxlaptop", base + 3 * 60000L).getMessageCount());
+		
+		assertTrue(store.remove(owner, "mary@maxlaptop", start(3)));
+		assertFalse(store.remove(owner, "mary@maxlaptop", start(3)));
+		assertNull(store.get(owner, "mary@maxlaptop", base + 3 * 60000L));
+		assertEquals(29, store.size(owner));
+		assertEquals(9, store.find(owner, "mary@maxlaptop", Long.MIN_VALUE, Long.MAX_VALUE).size());
+		assertEquals(start(4), store.find(owner, null, base + 3 * 60000L, Long.MAX_VALUE).getStart(0));
+	}
+	
+	/**
+	 * <p>Tests that bulk loading keeps the same order as adding one by one</p>
+	 * */
+	@Test
+	public void testStoreBulkAdd() {
+		
+		final MemoryArchiveStore expected = store();
+		final MemoryArchiveStore store = new MemoryArchiveStore();
+		final List<ChatListRetrieveResultIQ> batch = new ArrayList<>();
+		final String [] contacts = {"mary@maxlaptop", "john@maxlaptop", "kate@maxlaptop"};
+		
+		for(int i = 0; i < 15; ++i) {
+			store.add(owner, collection(contacts[i % 3], i, 1));
+		}
+		
+		for(int i = 29; i >= 10; --i) {
+			batch.add(collection(contacts[i % 3], i, 1));
+		}
+		
+		// the later of equal collections is kept and replaces the stored one
+		batch.add(collection("mary@maxlaptop", 12, 5));
+		batch.add(collection("john@maxlaptop", 4, 5));
+		
+		store.addAll(owner, batch);
+		
+		assertEquals(expected.size(owner), store.size(owner));
+		
+		for(final String with : new String [] {null, "mary@maxlaptop", "john@maxlaptop", "kate@maxlaptop"}) {
+			
+			final CollectionRange all = expected.find(owner, with, Long.MIN_VALUE, Long.MAX_VALUE);
+			final CollectionRange loaded = store.find(owner, with, Long.MIN_VALUE, Long.MAX_VALUE);
+			
+			assertEquals(all.size(), loaded.size());
+			
+			for(int i = 0; i < all.size(); ++i) {
+				assertEquals(all.getWith(i), loaded.getWith(i));
+				assertEquals(all.getStart(i), loaded.getStart(i));
+			}
+		}
+		
+		assertEquals(5, store.get(owner, "mary@maxlaptop", base + 12 * 60000L).getMessageCount());
+		assertEquals(5, store.get(owner, "john@maxlaptop", base + 4 * 60000L).getMessageCount());
+	}
+	
+}
@@ -0,0 +1,168 @@
+package xmpp.extensions.com.ua.max.oliynick.store;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import xmpp.extensions.com.ua.max.oliynick.iq.ChatListRetrieveResultIQ;
+import xmpp.extensions.com.ua.max.oliynick.iq.ChatListRetrieveResultIQ.Direction;
+import xmpp.extensions.com.ua.max.oliynick.store.StoredCollection.StoredCursor;
+
+/**
+ * <p>
+ * Tests {@link MappedArchiveStore}
+ * </p>
+ * Created 18.10.26
+ * @author Max Oliynick
+ * */
+public final class TestMappedArchiveStore {
+	
+	@Rule
+	public final TemporaryFolder folder = new TemporaryFolder();
+	
+	private static ChatListRetrieveResultIQ collection(String with, String start, int messages) {
+		final ChatListRetrieveResultIQ iq = new ChatListRetrieveResultIQ();
+		
+		iq.setWith(with);
+		iq.setStart(start);
+		iq.setSubject("Привіт");
+		iq.setVersion(3);
+		
+		for(int i = 0; i < messages; ++i) {
+			iq.addBody(i % 2 == 0 ? Direction.from : Direction.to, i * 10, "повідомлення " + i);
+		}
+		
+		return iq;
+	}
+	
+	/**
+	 * <p>Tests that collections survive reopening</p>
+	 * */
+	@Test
+	public void testReopen() throws Exception {
+		
+		final File directory = folder.newFolder();
+		
+		// small segments, so that several files are created
+		MappedArchiveStore store = new MappedArchiveStore(directory, 512);
+		
+		for(int i = 0; i < 10; ++i) {
+			store.append(collection("user" + i + "@maxlaptop", "2016-03-02T10:00:00.000Z", i * 3));
+		}
+		
+		// supersedes the previous record
+		store.append(collection("user1@maxlaptop", "2016-03-02T10:00:00.000Z", 7));
+		store.close();
+		
+		assertTrue(directory.listFiles().length > 1);
+		
+		store = new MappedArchiveStore(directory, 512);
+		
+		assertEquals(10, store.size());
+		assertNull(store.get("user1@maxlaptop", "2016-03-03T10:00:00.000Z"));
+		assertEquals(7, store.get("user1@maxlaptop", "2016-03-02T10:00:00.000Z").getMessageCount());
+		
+		final StoredCollection stored = store.get("user9@maxlaptop", "2016-03-02T10:00:00.000Z");
+		
+		assertEquals("Привіт", stored.getSubject());
+		assertEquals(3, stored.getVersion());
+		assertEquals(27, stored.getMessageCount());
+		
+		final StoredCursor cursor = stored.cursor();
+		
+		for(int i = 0; i < 27; ++i) {
+			assertTrue(cursor.next());
+			assertEquals(i * 10, cursor.getSecs());
+			assertEquals(i % 2 == 0 ? Direction.from : Direction.to, cursor.getDirection());
+			assertEquals("повідомлення " + i, cursor.getBody());
+			assertEquals(("повідомлення " + i).getBytes(StandardCharsets.UTF_8).length, cursor.getBodyBytes().remaining());
+		}
+		
+		assertFalse(cursor.next());
+		
+		// appending continues after reopening
+		store.append(collection("user10@maxlaptop", "2016-03-02T10:00:00.000Z", 1));
+		assertEquals(27, store.get("user9@maxlaptop", "2016-03-02T10:00:00.000Z").toIQ().getMessageCount());
+		store.close();
+		
+		store = new MappedArchiveStore(directory, 512);
+		assertEquals(11, store.size());
+		store.close();
+	}
+	
+	/**
+	 * <p>Tests that RSM values of the server survive storing</p>
+	 * */
+	@Test
+	public void testRsmValues() throws Exception {
+		
+		final MappedArchiveStore store = new MappedArchiveStore(folder.newFolder(), 4096);
+		final ChatListRetrieveResultIQ collection = collection("mary@maxlaptop", "2016-03-02T10:00:00.000Z", 5);
+		
+		collection.setFirstIndex(20);
+		collection.setFirstValue("a20");
+		collection.setLastValue("a24");
+		collection.setCount(100);
+		store.append(collection);
+		
+		final ChatListRetrieveResultIQ restored = store.get("mary@maxlaptop", "2016-03-02T10:00:00.000Z").toIQ();
+		
+		assertEquals(20, restored.getFirstIndex());
+		assertEquals("a20", restored.getFirstValue());
+		assertEquals("a24", restored.getLastValue());
+		assertEquals(100, restored.getCount());
+		assertEquals(5, restored.getMessageCount());
+		store.close();
+	}
+	
+	/**
+	 * <p>Tests that a torn record is dropped on reopening
+	 * and overwritten by the next append</p>
+	 * */
+	@Test
+	public void testTornRecord() throws Exception {
+		
+		final File directory = folder.newFolder();
+		
+		MappedArchiveStore store = new MappedArchiveStore(directory, 4096);
+		
+		store.append(collection("mary@maxlaptop", "2016-03-02T10:00:00.000Z", 3));
+		store.append(collection("kate@maxlaptop", "2016-03-02T10:00:00.000Z", 3));
+		
+		// both records have header of 8 bytes
+		final int first = store.get("mary@maxlaptop", "2016-03-02T10:00:00.000Z").getRecordSize();
+		final int second = store.get("kate@maxlaptop", "2016-03-02T10:00:00.000Z").getRecordSize();
+		
+		store.close();
+		
+		// the last body byte of the second record didn't reach the disk
+		try(final RandomAccessFile file = new RandomAccessFile(directory.listFiles()[0], "rw")) {
+			file.seek(8 + first + 8 + second - 1);
+			file.write(0);
+		}
+		
+		store = new MappedArchiveStore(directory, 4096);
+		
+		assertEquals(1, store.size());
+		assertFalse(store.contains("kate@maxlaptop", "2016-03-02T10:00:00.000Z"));
+		
+		store.append(collection("john@maxlaptop", "2016-03-02T10:00:00.000Z", 1));
+		store.close();
+		
+		store = new MappedArchiveStore(directory, 4096);
+		
+		assertEquals(2, store.size());
+		assertEquals(1, store.get("john@maxlaptop", "2016-03-02T10:00:00.000Z").getMessageCount());
+		store.close();
+	}
+
+}
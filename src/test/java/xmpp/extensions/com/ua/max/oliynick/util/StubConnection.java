@@ -0,0 +1,239 @@
+package xmpp.extensions.com.ua.max.oliynick.util;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jivesoftware.smack.AbstractXMPPConnection;
+import org.jivesoftware.smack.SmackException;
+import org.jivesoftware.smack.SmackException.NotConnectedException;
+import org.jivesoftware.smack.XMPPException;
+import org.jivesoftware.smack.packet.IQ;
+import org.jivesoftware.smack.packet.PlainStreamElement;
+import org.jivesoftware.smack.packet.Stanza;
+import org.jivesoftware.smack.packet.XMPPError;
+import org.jivesoftware.smack.tcp.XMPPTCPConnectionConfiguration;
+import org.jivesoftware.smack.util.PacketParserUtils;
+
+/**
+ * <p>
+ * In-process connection for tests and benchmarks, which is already
+ * connected and authenticated. Request IQs are answered by the
+ * {@link Responder} on a 'server' thread, responses are serialized and
+ * delivered after the injected latency to a single 'reader' thread,
+ * which parses them by registered providers just as it happens with a
+ * real server connection. If the responder fails, the request is
+ * answered with 'internal-server-error'. Latency doesn't block the server, so that
+ * pipelined requests overlap as they would on a network
+ * </p>
+ * <p>
+ * Connection without responder works in loopback mode: every sent IQ
+ * is parsed back, so that requests reach registered request handlers
+ * and their responses reach the requester
+ * </p>
+ * <p>
+ * Providers aren't registered by the connection
+ * </p>
+ * Created 18.10.26
+ * @author Max Oliynick
+ * */
+public final class StubConnection extends AbstractXMPPConnection {
+
+	/**
+	 * Answers request IQs
+	 * */
+	public interface Responder {
+
+		/**
+		 * Returns response on the given request, id
+		 * and type of the response are set by connection
+		 * */
+		public IQ respond(IQ request) throws Exception;
+	}
+
+	private final ExecutorService server = Executors.newSingleThreadExecutor();
+	private final ScheduledExecutorService reader = Executors.newSingleThreadScheduledExecutor();
+
+	/**
+	 * Responder or null in loopback mode
+	 * */
+	private final Responder responder;
+
+	// round-trip latency in nanos
+	private volatile long latency;
+
+	// number of sent request IQs
+	private final AtomicLong requests = new AtomicLong();
+	private final AtomicLong responseChars = new AtomicLong();
+
+	// number of unanswered request IQs and its maximum
+	private final AtomicInteger outstanding = new AtomicInteger();
+	private final AtomicInteger maxOutstanding = new AtomicInteger();
+
+	/**
+	 * Constructs connection in loopback mode
+	 * */
+	public StubConnection() {
+		this(null);
+	}
+
+	/**
+	 * Constructs connection
+	 * @param responder responder of request IQs, null for loopback mode
+	 * */
+	public StubConnection(Responder responder) {
+		super(XMPPTCPConnectionConfiguration.builder().setServiceName("maxlaptop").build());
+		this.responder = responder;
+		this.user = "maxxx@maxlaptop/test";
+		this.connected = true;
+		this.authenticated = true;
+	}
+
+	/**
+	 * Returns injected round-trip latency in millis
+	 * */
+	public long getLatency() {
+		return TimeUnit.NANOSECONDS.toMillis(latency);
+	}
+
+	/**
+	 * Sets round-trip latency in millis which is added
+	 * between sending a request and receiving its response
+	 * */
+	public void setLatency(long latency) {
+
+		if(latency < 0)
+			throw new IllegalArgumentException("latency < 0");
+
+		this.latency = TimeUnit.MILLISECONDS.toNanos(latency);
+	}
+
+	/**
+	 * Returns number of sent request IQs
+	 * */
+	public long getRequests() {
+		return requests.get();
+	}
+
+	/**
+	 * Returns max number of request IQs which
+	 * were awaiting response at the same time
+	 * */
+	public int getMaxOutstanding() {
+		return maxOutstanding.get();
+	}
+
+	/**
+	 * Returns total length of serialized responses in chars
+	 * */
+	public long getResponseChars() {
+		return responseChars.get();
+	}
+
+	@Override
+	protected void sendStanzaInternal(final Stanza stanza) throws NotConnectedException {
+
+		if(!(stanza instanceof IQ)) return;
+
+		if(responder == null) {
+			deliver(stanza.toXML().toString(), System.nanoTime());
+			return;
+		}
+
+		if(!((IQ) stanza).isRequestIQ()) return;
+
+		final long sent = System.nanoTime();
+
+		requests.incrementAndGet();
+
+		final int current = outstanding.incrementAndGet();
+
+		for(int max; (max = maxOutstanding.get()) < current && !maxOutstanding.compareAndSet(max, current); );
+
+		server.execute(new Runnable() {
+
+			@Override
+			public void run() {
+
+				final IQ request = (IQ) stanza;
+				IQ response;
+
+				try {
+					response = responder.respond(request);
+
+					if(response.getType() != IQ.Type.error) {
+						response.setType(IQ.Type.result);
+					}
+
+				} catch (Exception e) {
+					// the requester gets an error instead of waiting for timeout
+					response = IQ.createErrorResponse(request, new XMPPError(XMPPError.Condition.internal_server_error));
+				} finally {
+					outstanding.decrementAndGet();
+				}
+
+				response.setStanzaId(request.getStanzaId());
+				response.setFrom(request.getTo());
+
+				final String xml = response.toXML().toString();
+
+				responseChars.addAndGet(xml.length());
+				deliver(xml, sent);
+			}
+		});
+	}
+
+	/**
+	 * Parses the stanza on the reader thread once latency passes
+	 * @param sent time the request was sent in nanos
+	 * */
+	private void deliver(final String xml, long sent) {
+		reader.schedule(new Runnable() {
+
+			@Override
+			public void run() {
+
+				try {
+					parseAndProcessStanza(PacketParserUtils.getParserFor(xml));
+				} catch (Exception e) {
+					throw new RuntimeException(e);
+				}
+			}
+		}, latency - (System.nanoTime() - sent), TimeUnit.NANOSECONDS);
+	}
+
+	@Override
+	public boolean isSecureConnection() {
+		return false;
+	}
+
+	@Override
+	public void send(PlainStreamElement element) throws NotConnectedException {}
+
+	@Override
+	public boolean isUsingCompression() {
+		return false;
+	}
+
+	@Override
+	protected void connectInternal() throws SmackException, IOException, XMPPException {}
+
+	@Override
+	protected void loginNonAnonymously(String username, String password, String resource)
+			throws XMPPException, SmackException, IOException {}
+
+	@Override
+	protected void loginAnonymously() throws XMPPException, SmackException, IOException {}
+
+	@Override
+	protected void shutdown() {
+		connected = false;
+		server.shutdownNow();
+		reader.shutdownNow();
+	}
+
+}
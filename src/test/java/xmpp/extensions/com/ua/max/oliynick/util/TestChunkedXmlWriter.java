@@ -0,0 +1,67 @@
+package xmpp.extensions.com.ua.max.oliynick.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.StringWriter;
+
+import org.junit.Test;
+
+/**
+ * <p>
+ * Tests {@link ChunkedXmlWriter}
+ * </p>
+ * Created 18.10.26
+ * @author Max Oliynick
+ * */
+public final class TestChunkedXmlWriter {
+	
+	/**
+	 * Counts chunks handed to the writer and checks their size
+	 * */
+	private static final class ChunkCounter extends StringWriter {
+		
+		private int chunks;
+		private int maxChunk;
+		
+		@Override
+		public void write(char [] cbuf, int off, int len) {
+			++chunks;
+			maxChunk = Math.max(maxChunk, len);
+			super.write(cbuf, off, len);
+		}
+	}
+	
+	/**
+	 * <p>Tests that output doesn't depend on chunk size</p>
+	 * */
+	@Test
+	public void testOutput() throws Exception {
+		
+		final StringBuilder expected = new StringBuilder();
+		final ChunkCounter out = new ChunkCounter();
+		final ChunkedXmlWriter writer = new ChunkedXmlWriter(out, 16);
+		
+		for(int i = 0; i < 100; ++i) {
+			
+			final String body = "message <" + i + "> & 'co'";
+			
+			writer.append("<m").attribute("secs", i * 7 - 50).attribute("with", "mary@maxlaptop").append('>')
+			.escape(body).append("</m>");
+			
+			expected.append("<m secs='").append(i * 7 - 50).append("' with='mary@maxlaptop'>")
+			.append("message &lt;").append(i).append("&gt; &amp; &apos;co&apos;</m>");
+		}
+		
+		writer.append(0).append(' ').append(Long.MIN_VALUE).append(' ').append(Long.MAX_VALUE);
+		expected.append(0).append(' ').append(Long.MIN_VALUE).append(' ').append(Long.MAX_VALUE);
+		
+		writer.flush();
+		
+		assertEquals(expected.toString(), out.toString());
+		assertEquals(expected.length(), writer.getCharsWritten());
+		assertEquals(16, out.maxChunk);
+		assertTrue(out.chunks >= expected.length() / 16);
+	}
+	
+}
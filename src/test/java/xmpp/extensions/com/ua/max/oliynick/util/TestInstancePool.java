@@ -0,0 +1,81 @@
+package xmpp.extensions.com.ua.max.oliynick.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Test;
+
+/**
+ * <p>
+ * Tests {@link InstancePool}
+ * </p>
+ * Created 18.10.26
+ * @author Max Oliynick
+ * */
+public final class TestInstancePool {
+	
+	private static final class Item {
+		
+		private final AtomicBoolean pooled = new AtomicBoolean();
+		
+		private int value;
+	}
+	
+	private static InstancePool<Item> newPool() {
+		return new InstancePool<Item>(2) {
+			
+			@Override
+			protected Item newInstance() {
+				return new Item();
+			}
+			
+			@Override
+			protected void reset(Item item) {
+				item.value = 0;
+			}
+			
+			@Override
+			protected boolean markPooled(Item item, boolean pooled) {
+				return item.pooled.compareAndSet(!pooled, pooled);
+			}
+		};
+	}
+	
+	/**
+	 * <p>Tests that released instances are reset and
+	 * reused, and can't be released twice</p>
+	 * */
+	@Test
+	public void testRelease() {
+		
+		final InstancePool<Item> pool = newPool();
+		final Item first = pool.acquire();
+		
+		first.value = 42;
+		pool.release(first);
+		
+		try {
+			pool.release(first);
+			fail("instance is released twice");
+		} catch (IllegalStateException e) {
+			// expected, the instance is already in the pool
+		}
+		
+		final Item second = pool.acquire();
+		
+		assertSame(first, second);
+		assertEquals(0, second.value);
+		
+		// the instance took a single slot, so the pool is empty again
+		assertNotSame(second, pool.acquire());
+		
+		// acquired instance may be released again
+		pool.release(second);
+		assertSame(second, pool.acquire());
+	}
+	
+}
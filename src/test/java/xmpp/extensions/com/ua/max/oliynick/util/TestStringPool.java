@@ -0,0 +1,49 @@
+package xmpp.extensions.com.ua.max.oliynick.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Test;
+
+/**
+ * <p>
+ * Tests {@link StringPool}
+ * </p>
+ * Created 18.10.26
+ * @author Max Oliynick
+ * */
+public final class TestStringPool {
+	
+	/**
+	 * <p>Tests that equal values are deduplicated
+	 * and the pool stays bounded</p>
+	 * */
+	@Test
+	public void testCanonicalize() {
+		
+		final StringPool pool = new StringPool(100);
+		final String mary = new String("mary@maxlaptop");
+		
+		assertEquals(128, pool.capacity());
+		assertNull(pool.canonicalize(null));
+		assertSame(mary, pool.canonicalize(mary));
+		assertSame(mary, pool.canonicalize(new String("mary@maxlaptop")));
+		
+		// many distinct values evict each other rather than grow the pool
+		for(int i = 0; i < 10000; ++i) {
+			assertEquals("contact" + i, pool.canonicalize("contact" + i));
+		}
+		
+		assertEquals(128, pool.capacity());
+		
+		pool.clear();
+		
+		final String john = new String("john@maxlaptop");
+		
+		assertSame(john, pool.canonicalize(john));
+		assertNotSame(mary, pool.canonicalize(new String("mary@maxlaptop")));
+	}
+	
+}
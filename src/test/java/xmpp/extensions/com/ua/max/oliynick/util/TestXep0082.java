@@ -0,0 +1,77 @@
+package xmpp.extensions.com.ua.max.oliynick.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.util.Date;
+import java.util.Random;
+
+import org.junit.Test;
+import org.jxmpp.util.XmppDateTime;
+
+/**
+ * <p>
+ * Tests {@link Xep0082} parser against jxmpp implementation
+ * </p>
+ * Created 18.10.26
+ * @author Max Oliynick
+ * */
+public final class TestXep0082 {
+	
+	/**
+	 * <p>Tests different notations</p>
+	 * */
+	@Test
+	public void testParse() throws Exception {
+		
+		final String [] values = {
+			"1969-07-21T02:56:15Z",
+			"1969-07-21T02:56:15.1Z",
+			"2016-03-02T10:00:00.000Z",
+			"2016-02-29T23:59:59.999999Z",
+			"2016-03-02T10:00:00.000+02:00",
+			"2016-03-02T10:00:00-05:30",
+			"1970-01-01T00:00:00Z",
+			"2000-02-29T00:00:00Z",
+			"2016-04-30T00:00:00Z",
+			"2016-12-31T23:59:59Z"
+		};
+		
+		for(final String value : values) {
+			assertEquals(value, XmppDateTime.parseXEP0082Date(value).getTime(), Xep0082.parseMillis(value));
+		}
+		
+		assertEquals(Xep0082.unknown, Xep0082.parseMillisOrDefault(null));
+		assertEquals(Xep0082.unknown, Xep0082.parseMillisOrDefault("2016-03-02"));
+		assertEquals(Xep0082.unknown, Xep0082.parseMillisOrDefault("2016-13-02T10:00:00Z"));
+		
+		// days beyond the month length, 1900 and 2015 aren't leap years
+		assertEquals(Xep0082.unknown, Xep0082.parseMillisOrDefault("2016-02-30T10:00:00Z"));
+		assertEquals(Xep0082.unknown, Xep0082.parseMillisOrDefault("2015-02-29T10:00:00Z"));
+		assertEquals(Xep0082.unknown, Xep0082.parseMillisOrDefault("1900-02-29T10:00:00Z"));
+		assertEquals(Xep0082.unknown, Xep0082.parseMillisOrDefault("2016-04-31T10:00:00Z"));
+		assertEquals(Xep0082.unknown, Xep0082.parseMillisOrDefault("2016-11-31T10:00:00Z"));
+		
+		try {
+			Xep0082.parseMillis("2016-03-02T10:00:00.Z");
+			fail("IllegalArgumentException expected");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+	}
+	
+	/**
+	 * <p>Tests round trip with formatted random dates</p>
+	 * */
+	@Test
+	public void testRandom() {
+		
+		final Random random = new Random(42);
+		
+		for(int i = 0; i < 10000; ++i) {
+			final long millis = (long) (random.nextDouble() * 4e12) - 1000000000000L;
+			assertEquals(millis, Xep0082.parseMillis(XmppDateTime.formatXEP0082Date(new Date(millis))));
+		}
+	}
+
+}